@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ike.ikev2;
+
+import com.android.ike.ikev2.SaRecord.ChildSaRecord;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * ChildSaGroup is a group of Child SAs of one Child Session that have identical traffic selectors.
+ *
+ * <p>Each Child SA has its own keys and anti-replay window, so ESP processing of different Child
+ * SAs can run on different CPUs. The data plane spreads flows across the Child SAs by selecting one
+ * with the hash of each flow. A Child SA keeps its position in the group when it is replaced by
+ * rekeying, so that flows are not moved to other Child SAs.
+ *
+ * <p>The Child SAs of a group are rekeyed together. The new Child SAs replace the old ones at once
+ * so that the data plane never sees a mix of old and new Child SAs.
+ *
+ * <p>ChildSaGroup is modified only by ChildSessionStateMachine. It is thread-safe so that the data
+ * plane can read it from other threads.
+ *
+ * @see <a href="https://tools.ietf.org/html/draft-ietf-ipsecme-multi-sa-performance">IKEv2
+ *     support for per-resource Child SAs</a>
+ */
+public final class ChildSaGroup {
+    private final int mTargetSize;
+
+    // Child SAs in the order they were added. Guarded by "this".
+    private final List<ChildSaRecord> mChildSaRecords = new ArrayList<>();
+
+    /**
+     * Package private constructor.
+     *
+     * @param targetSize the number of Child SAs to negotiate for the group.
+     */
+    ChildSaGroup(int targetSize) {
+        mTargetSize = targetSize;
+    }
+
+    /** Package private */
+    int getTargetSize() {
+        return mTargetSize;
+    }
+
+    /** Package private method for checking whether all Child SAs have been negotiated. */
+    synchronized boolean isComplete() {
+        return mChildSaRecords.size() >= mTargetSize;
+    }
+
+    /**
+     * Package private method for adding a newly negotiated Child SA.
+     *
+     * @param record the Child SA.
+     * @throws IllegalStateException if the group is complete.
+     */
+    synchronized void add(ChildSaRecord record) {
+        if (isComplete()) {
+            throw new IllegalStateException("Child SA group is complete.");
+        }
+        mChildSaRecords.add(record);
+    }
+
+    /**
+     * Package private method for removing a deleted Child SA.
+     *
+     * @param record the Child SA.
+     * @return whether the Child SA was in the group.
+     */
+    synchronized boolean remove(ChildSaRecord record) {
+        return mChildSaRecords.remove(record);
+    }
+
+    /**
+     * Package private method for replacing a single Child SA that was rekeyed by the remote.
+     *
+     * @param oldRecord the rekeyed Child SA.
+     * @param newRecord the new Child SA.
+     * @throws IllegalArgumentException if oldRecord is not in the group.
+     */
+    synchronized void replace(ChildSaRecord oldRecord, ChildSaRecord newRecord) {
+        int index = mChildSaRecords.indexOf(oldRecord);
+        if (index < 0) {
+            throw new IllegalArgumentException("Child SA is not in the group.");
+        }
+        mChildSaRecords.set(index, newRecord);
+    }
+
+    /**
+     * Package private method for replacing all Child SAs after they are rekeyed together.
+     *
+     * @param newRecords the new Child SAs, in the order of the Child SAs they replace.
+     * @return the old Child SAs to be deleted.
+     * @throws IllegalArgumentException if the number of new Child SAs does not match the group.
+     */
+    synchronized List<ChildSaRecord> replaceAll(List<ChildSaRecord> newRecords) {
+        if (newRecords.size() != mChildSaRecords.size()) {
+            throw new IllegalArgumentException(
+                    "Expected "
+                            + mChildSaRecords.size()
+                            + " new Child SAs but received "
+                            + newRecords.size());
+        }
+        List<ChildSaRecord> oldRecords = new ArrayList<>(mChildSaRecords);
+        mChildSaRecords.clear();
+        mChildSaRecords.addAll(newRecords);
+        return oldRecords;
+    }
+
+    /** Return a snapshot of all Child SAs in the group. */
+    public synchronized List<ChildSaRecord> getChildSaRecords() {
+        return Collections.unmodifiableList(new ArrayList<>(mChildSaRecords));
+    }
+
+    /**
+     * Select the Child SA for a flow.
+     *
+     * <p>Packets of the same flow are always sent on the same Child SA, as long as the number of
+     * Child SAs does not change, so that they are not reordered.
+     *
+     * @param flowHash the hash of the flow, e.g. of its addresses, ports and protocol.
+     * @return the Child SA, or null if the group is empty.
+     */
+    public synchronized ChildSaRecord selectChildSaRecord(int flowHash) {
+        if (mChildSaRecords.isEmpty()) return null;
+        return mChildSaRecords.get(Math.floorMod(flowHash, mChildSaRecords.size()));
+    }
+
+    /** Return the number of Child SAs in the group. */
+    public synchronized int size() {
+        return mChildSaRecords.size();
+    }
+}
@@ -21,5 +21,62 @@ package com.android.ike.ikev2;
  * information.
  */
 public final class ChildSessionOptions {
-    // TODO: Implement it.
+    /** Maximum number of parallel Child SAs negotiated for the same traffic selectors. */
+    public static final int PARALLEL_SA_COUNT_MAX = 16;
+
+    private final int mParallelSaCount;
+
+    /** Construct ChildSessionOptions with default configurations. */
+    public ChildSessionOptions() {
+        this(1);
+    }
+
+    private ChildSessionOptions(int parallelSaCount) {
+        mParallelSaCount = parallelSaCount;
+    }
+
+    /** Package private */
+    int getParallelSaCount() {
+        return mParallelSaCount;
+    }
+
+    // TODO: Add Child SA proposals and traffic selectors.
+
+    /** This class can be used to incrementally construct a ChildSessionOptions. */
+    public static final class Builder {
+        private int mParallelSaCount = 1;
+
+        /**
+         * Sets how many Child SAs are negotiated with identical traffic selectors.
+         *
+         * <p>All ESP traffic of a single Child SA is protected with one key and one anti-replay
+         * window, so it is processed by one CPU on each side. With multiple Child SAs for the same
+         * traffic selectors, the data plane can spread flows across the SAs and thus across CPUs.
+         * The Child SAs are rekeyed together. Defaults to 1.
+         *
+         * <p>Package private until CREATE_CHILD_SA exchanges negotiate the Child SAs after the
+         * first one.
+         *
+         * @param count the number of Child SAs.
+         * @return Builder for a ChildSessionOptions.
+         * @throws IllegalArgumentException if count is smaller than 1 or larger than {@link
+         *     #PARALLEL_SA_COUNT_MAX}.
+         */
+        Builder setParallelSaCount(int count) {
+            if (count < 1 || count > PARALLEL_SA_COUNT_MAX) {
+                throw new IllegalArgumentException("Invalid parallel SA count: " + count);
+            }
+            mParallelSaCount = count;
+            return this;
+        }
+
+        /**
+         * Builds and returns the ChildSessionOptions
+         *
+         * @return ChildSessionOptions the built ChildSessionOptions
+         */
+        public ChildSessionOptions build() {
+            return new ChildSessionOptions(mParallelSaCount);
+        }
+    }
 }
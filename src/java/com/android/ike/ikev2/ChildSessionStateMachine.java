@@ -18,6 +18,7 @@ package com.android.ike.ikev2;
 import android.os.Looper;
 import android.os.Message;
 
+import com.android.ike.ikev2.IkeRekeyScheduler.IRekeyCallback;
 import com.android.ike.ikev2.IkeSessionStateMachine.IChildSessionCallback;
 import com.android.ike.ikev2.SaRecord.ChildSaRecord;
 import com.android.ike.ikev2.exceptions.IkeException;
@@ -27,6 +28,7 @@ import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
 
+import java.net.InetAddress;
 import java.util.List;
 
 /**
@@ -51,21 +53,47 @@ public class ChildSessionStateMachine extends StateMachine {
 
     /** Receive request for negotiating first Child SA. */
     private static final int CMD_HANDLE_FIRST_CHILD_EXCHANGE = 1;
+    /** Rekey permit for the Child SAs is granted by IkeRekeyScheduler. */
+    private static final int CMD_LOCAL_REQUEST_REKEY_CHILD = 2;
+    /** Hard lifetime of the Child SAs expires. */
+    private static final int CMD_CHILD_HARD_LIFETIME_EXPIRED = 3;
+    /** Delete this Child Session locally. */
+    private static final int CMD_KILL_SESSION = 4;
 
+    private static IkeRekeyScheduler sRekeyScheduler = IkeRekeyScheduler.getInstance();
+
+    private final InetAddress mServerAddress;
     private final ChildSessionOptions mChildSessionOptions;
 
+    // Callback of the IkeSessionStateMachine this Child Session belongs to.
+    private IChildSessionCallback mChildSessionCallback;
+
+    // Identifies rekeying of all Child SAs of mChildSaGroup to IkeRekeyScheduler.
+    private final IRekeyCallback mChildRekeyCallback =
+            () -> sendMessage(CMD_LOCAL_REQUEST_REKEY_CHILD);
+    // Requests a rekey permit when the soft lifetime of the Child SAs expires.
+    private final Runnable mChildSoftLifetimeTimeout = this::requestChildRekey;
+
     /** Package private */
     @VisibleForTesting ChildSaRecord mCurrentChildSaRecord;
+    /** Package private Child SAs with identical traffic selectors, including the first one. */
+    @VisibleForTesting final ChildSaGroup mChildSaGroup;
 
     private final State mInitial = new Initial();
     private final State mClosed = new Closed();
     private final State mIdle = new Idle();
 
     /** Package private */
-    ChildSessionStateMachine(String name, Looper looper, ChildSessionOptions sessionOptions) {
+    ChildSessionStateMachine(
+            String name,
+            Looper looper,
+            InetAddress serverAddress,
+            ChildSessionOptions sessionOptions) {
         super(name, looper);
 
+        mServerAddress = serverAddress;
         mChildSessionOptions = sessionOptions;
+        mChildSaGroup = new ChildSaGroup(sessionOptions.getParallelSaCount());
 
         addState(mInitial);
         addState(mClosed);
@@ -74,6 +102,63 @@ public class ChildSessionStateMachine extends StateMachine {
         setInitialState(mInitial);
     }
 
+    /**
+     * Get the Child SAs of this Child Session.
+     *
+     * <p>The data plane uses them to spread flows across Child SAs and thus across CPUs.
+     *
+     * @return the ChildSaGroup of this Child Session.
+     */
+    public ChildSaGroup getChildSaGroup() {
+        return mChildSaGroup;
+    }
+
+    /**
+     * Delete this Child Session without sending Delete requests.
+     *
+     * <p>It is called when the IKE session is closed, e.g. because the remote server is dead.
+     */
+    public void killSession() {
+        sendMessage(CMD_KILL_SESSION);
+    }
+
+    /** Package private */
+    @VisibleForTesting
+    static void setRekeyScheduler(IkeRekeyScheduler rekeyScheduler) {
+        sRekeyScheduler = rekeyScheduler;
+    }
+
+    @Override
+    protected void onQuitting() {
+        releaseRekeyResources();
+    }
+
+    // Start the soft and hard lifetimes of newly established Child SAs. All Child SAs of
+    // mChildSaGroup are rekeyed together, so they share one set of lifetimes.
+    private void scheduleChildRekey() {
+        sRekeyScheduler.finishRekey(mChildRekeyCallback);
+        getHandler().removeCallbacks(mChildSoftLifetimeTimeout);
+        getHandler()
+                .postDelayed(
+                        mChildSoftLifetimeTimeout,
+                        sRekeyScheduler.computeSoftLifetimeMs(
+                                IkeRekeyScheduler.CHILD_HARD_LIFETIME_MS_DEFAULT));
+        removeMessages(CMD_CHILD_HARD_LIFETIME_EXPIRED);
+        sendMessageDelayed(
+                CMD_CHILD_HARD_LIFETIME_EXPIRED, IkeRekeyScheduler.CHILD_HARD_LIFETIME_MS_DEFAULT);
+    }
+
+    private void requestChildRekey() {
+        sRekeyScheduler.requestRekey(mServerAddress, mChildRekeyCallback);
+    }
+
+    // Release the rekey permit and lifetime timers held by this Child Session.
+    private void releaseRekeyResources() {
+        getHandler().removeCallbacks(mChildSoftLifetimeTimeout);
+        removeMessages(CMD_CHILD_HARD_LIFETIME_EXPIRED);
+        sRekeyScheduler.finishRekey(mChildRekeyCallback);
+    }
+
     private void validateCreateChildResp(
             List<IkePayload> reqPayloads, List<IkePayload> respPayloads) throws IkeException {
         // TODO: Validate SA reponse against request and set negotiated SA in mChildSessionOptions.
@@ -158,6 +243,7 @@ public class ChildSessionStateMachine extends StateMachine {
                 case CMD_HANDLE_FIRST_CHILD_EXCHANGE:
                     FirstChildNegotiationData childNegotiationData =
                             (FirstChildNegotiationData) message.obj;
+                    mChildSessionCallback = childNegotiationData.childCallback;
                     try {
                         List<IkePayload> reqPayloads = childNegotiationData.requestPayloads;
                         List<IkePayload> respPayloads = childNegotiationData.responsePayloads;
@@ -165,13 +251,23 @@ public class ChildSessionStateMachine extends StateMachine {
 
                         mCurrentChildSaRecord =
                                 ChildSaRecord.makeChildSaRecord(reqPayloads, respPayloads);
+                        mChildSaGroup.add(mCurrentChildSaRecord);
                         // TODO: Add mCurrentChildSaRecord in mSpiToSaRecordMap.
+                        // TODO: Negotiate the remaining Child SAs of mChildSaGroup with
+                        // CREATE_CHILD_SA exchanges using the same traffic selectors, and register
+                        // their remotely generated SPIs with IChildSessionCallback#onCreateChildSa
+                        // so that all of them map to this ChildSessionStateMachine. Stop when the
+                        // remote indicates that it does not accept more Child SAs.
+                        scheduleChildRekey();
                         transitionTo(mIdle);
                     } catch (IkeException e) {
                         // TODO: Unregister remotely generated SPI and handle Child SA negotiation
                         // failure.
                     }
                     return HANDLED;
+                case CMD_KILL_SESSION:
+                    transitionTo(mClosed);
+                    return HANDLED;
                 default:
                     return NOT_HANDLED;
             }
@@ -183,16 +279,44 @@ public class ChildSessionStateMachine extends StateMachine {
      * actions can be performed on it.
      */
     class Closed extends State {
-        // TODO: Implement it.
+        @Override
+        public void enter() {
+            releaseRekeyResources();
+            // TODO: Delete IPsec SAs once they are installed, and send Delete Child SA request
+            // unless the IKE session is closed.
+            for (ChildSaRecord record : mChildSaGroup.getChildSaRecords()) {
+                mChildSessionCallback.onDeleteChildSa(record.outboundSpi);
+            }
+        }
     }
 
     /**
      * Idle represents a state when there is no ongoing IKE exchange affecting established Child SA.
      */
     class Idle extends State {
-        // TODO: Implement it.
+        @Override
+        public boolean processMessage(Message message) {
+            switch (message.what) {
+                case CMD_LOCAL_REQUEST_REKEY_CHILD:
+                    // TODO: Rekey all Child SAs of mChildSaGroup with CREATE_CHILD_SA exchanges.
+                    // Until then the permit is released right away, and the Child SAs are deleted
+                    // when their hard lifetime expires.
+                    sRekeyScheduler.finishRekey(mChildRekeyCallback);
+                    return HANDLED;
+                case CMD_CHILD_HARD_LIFETIME_EXPIRED:
+                    // The Child SAs were not rekeyed in time and MUST NOT be used any more.
+                    transitionTo(mClosed);
+                    return HANDLED;
+                case CMD_KILL_SESSION:
+                    transitionTo(mClosed);
+                    return HANDLED;
+                default:
+                    return NOT_HANDLED;
+            }
+        }
     }
 
     // TODO: Add states to support creating additional Child SA, deleting Child SA and rekeying
-    // Child SA.
+    // Child SA. Rekeying any Child SA of mChildSaGroup rekeys all of them, and the new Child SAs
+    // are installed with ChildSaGroup#replaceAll once all rekey exchanges complete.
 }
@@ -20,6 +20,8 @@ import android.os.Looper;
 
 import com.android.internal.annotations.VisibleForTesting;
 
+import java.net.InetAddress;
+
 /** Package private factory for making ChildSessionStateMachine. */
 //TODO: Make it a inner Creator class of ChildSessionStateMachine
 final class ChildSessionStateMachineFactory {
@@ -28,8 +30,12 @@ final class ChildSessionStateMachineFactory {
 
     /** Package private. */
     static ChildSessionStateMachine makeChildSessionStateMachine(
-            String name, Looper looper, ChildSessionOptions sessionOptions) {
-        return sChildSessionHelper.makeChildSessionStateMachine(name, looper, sessionOptions);
+            String name,
+            Looper looper,
+            InetAddress serverAddress,
+            ChildSessionOptions sessionOptions) {
+        return sChildSessionHelper.makeChildSessionStateMachine(
+                name, looper, serverAddress, sessionOptions);
     }
 
     @VisibleForTesting
@@ -45,7 +51,10 @@ final class ChildSessionStateMachineFactory {
      */
     interface IChildSessionFactoryHelper {
         ChildSessionStateMachine makeChildSessionStateMachine(
-                String name, Looper looper, ChildSessionOptions sessionOptions);
+                String name,
+                Looper looper,
+                InetAddress serverAddress,
+                ChildSessionOptions sessionOptions);
     }
 
     /**
@@ -55,9 +64,12 @@ final class ChildSessionStateMachineFactory {
      */
     static class ChildSessionFactoryHelper implements IChildSessionFactoryHelper {
         public ChildSessionStateMachine makeChildSessionStateMachine(
-                String name, Looper looper, ChildSessionOptions sessionOptions) {
+                String name,
+                Looper looper,
+                InetAddress serverAddress,
+                ChildSessionOptions sessionOptions) {
             ChildSessionStateMachine childSession =
-                    new ChildSessionStateMachine(name, looper, sessionOptions);
+                    new ChildSessionStateMachine(name, looper, serverAddress, sessionOptions);
             childSession.start();
             return childSession;
         }
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ike.ikev2;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.function.LongSupplier;
+
+/**
+ * IkeLivenessMonitor decides when an IKE session needs to probe the remote for dead peer detection.
+ *
+ * <p>Any authenticated inbound IKE message proves that the remote is alive, so a probe is only
+ * needed after the session has been idle for the DPD delay. Inbound IKE messages are recorded as a
+ * timestamp once their integrity has been verified, so that spoofed packets cannot postpone a
+ * probe. Inbound ESP packets are not taken into account yet, since Child SAs are not installed in
+ * the kernel and thus have no packet counters.
+ *
+ * <p>While the session stays idle and the remote keeps answering probes, the delay between probes
+ * is doubled up to {@link #MAX_BACKOFF_MULTIPLIER} times the DPD delay. It falls back to the DPD
+ * delay as soon as other traffic is received.
+ *
+ * <p>Package private. IkeLivenessMonitor is not thread-safe and MUST only be used on the IKE
+ * working thread.
+ */
+final class IkeLivenessMonitor {
+    @VisibleForTesting static final int MAX_BACKOFF_MULTIPLIER = 8;
+
+    private final long mDpdDelayMs;
+    private final LongSupplier mClock;
+
+    private long mLastInboundActivityMs;
+
+    private long mCurrentDelayMs;
+    // Time the last probe was answered, or -1 if no probe has been answered.
+    private long mLastProbeAnsweredMs = -1L;
+    // Whether no traffic was received between the last two probes.
+    private boolean mIsIdleSinceLastProbe;
+
+    /**
+     * Construct an IkeLivenessMonitor for a newly established IKE session.
+     *
+     * @param dpdDelayMs the idle time before probing the remote, in milliseconds.
+     * @param clock the time source in milliseconds.
+     */
+    IkeLivenessMonitor(long dpdDelayMs, LongSupplier clock) {
+        mDpdDelayMs = dpdDelayMs;
+        mCurrentDelayMs = dpdDelayMs;
+        mClock = clock;
+        mLastInboundActivityMs = clock.getAsLong();
+    }
+
+    /** Record that an authenticated inbound IKE message was received. */
+    void onInboundActivity() {
+        mLastInboundActivityMs = mClock.getAsLong();
+    }
+
+    /**
+     * Get the time until the remote should be probed.
+     *
+     * @return the time in milliseconds, or zero if a probe is due.
+     */
+    long getDelayUntilProbeMs() {
+        long delayMs = mCurrentDelayMs;
+        if (mLastInboundActivityMs > mLastProbeAnsweredMs) {
+            // Traffic resumed since the last probe.
+            delayMs = mDpdDelayMs;
+        }
+        return Math.max(0L, mLastInboundActivityMs + delayMs - mClock.getAsLong());
+    }
+
+    /** Record that a probe is sent. */
+    void onProbeSent() {
+        mIsIdleSinceLastProbe = mLastInboundActivityMs <= mLastProbeAnsweredMs;
+    }
+
+    /** Record that the remote answered the probe, and back off if the session stays idle. */
+    void onProbeAnswered() {
+        if (mIsIdleSinceLastProbe) {
+            mCurrentDelayMs = Math.min(mCurrentDelayMs * 2, mDpdDelayMs * MAX_BACKOFF_MULTIPLIER);
+        } else {
+            mCurrentDelayMs = mDpdDelayMs;
+        }
+        long now = mClock.getAsLong();
+        mLastInboundActivityMs = now;
+        mLastProbeAnsweredMs = now;
+    }
+}
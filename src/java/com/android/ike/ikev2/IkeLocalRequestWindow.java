@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ike.ikev2;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * IkeLocalRequestWindow tracks locally initiated requests on an IKE SA that are waiting for
+ * responses.
+ *
+ * <p>The remote announces in SET_WINDOW_SIZE how many requests it accepts at a time, and the window
+ * size is 1 if it does not. A request with Message ID n can only be sent after responses to all
+ * requests with Message IDs up to n - windowSize have been received. Responses can arrive in any
+ * order and are matched to their requests by Message ID.
+ *
+ * <p>Package private. IkeLocalRequestWindow is not thread-safe and MUST only be used on the IKE
+ * working thread.
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc7296#section-2.3">RFC 7296, Internet Key Exchange
+ *     Protocol Version 2 (IKEv2)</a>
+ */
+final class IkeLocalRequestWindow {
+    private final Set<Integer> mOutstandingIds = new HashSet<>();
+
+    private int mWindowSize = 1;
+    private int mNextMessageId;
+    // Lowest Message ID whose response has not been received.
+    private int mLowestUnansweredId;
+
+    /**
+     * Construct an IkeLocalRequestWindow.
+     *
+     * @param firstMessageId the Message ID of the first request to be sent.
+     */
+    IkeLocalRequestWindow(int firstMessageId) {
+        mNextMessageId = firstMessageId;
+        mLowestUnansweredId = firstMessageId;
+    }
+
+    /**
+     * Set the window size announced by the remote.
+     *
+     * <p>Requests that are already outstanding are kept even if the window shrinks.
+     *
+     * @param windowSize the window size.
+     * @throws IllegalArgumentException if windowSize is smaller than 1.
+     */
+    void setWindowSize(int windowSize) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("Invalid window size: " + windowSize);
+        }
+        mWindowSize = windowSize;
+    }
+
+    /** Return the window size announced by the remote. */
+    int getWindowSize() {
+        return mWindowSize;
+    }
+
+    /** Return whether a new request has to wait for outstanding requests to be answered. */
+    boolean isFull() {
+        return mNextMessageId - mLowestUnansweredId >= mWindowSize;
+    }
+
+    /**
+     * Assign the next Message ID to a request that is being sent.
+     *
+     * @return the Message ID of the request.
+     * @throws IllegalStateException if the window is full.
+     */
+    int add() {
+        if (isFull()) {
+            throw new IllegalStateException("Request window is full.");
+        }
+        int messageId = mNextMessageId++;
+        mOutstandingIds.add(messageId);
+        return messageId;
+    }
+
+    /**
+     * Return whether a response with the Message ID answers an outstanding request.
+     *
+     * @param messageId the Message ID of the response.
+     * @return false if the response is a duplicate or was not solicited.
+     */
+    boolean isOutstanding(int messageId) {
+        return mOutstandingIds.contains(messageId);
+    }
+
+    /**
+     * Match a received response to its request.
+     *
+     * @param messageId the Message ID of the response.
+     * @return false if the response is a duplicate or was not solicited.
+     */
+    boolean remove(int messageId) {
+        if (!mOutstandingIds.remove(messageId)) return false;
+
+        while (mLowestUnansweredId != mNextMessageId
+                && !mOutstandingIds.contains(mLowestUnansweredId)) {
+            mLowestUnansweredId++;
+        }
+        return true;
+    }
+
+    /**
+     * Withdraw the most recent request so that its Message ID is assigned to the next request.
+     *
+     * <p>It is only allowed when the request was never delivered to the remote, e.g. because the
+     * path it was sent on turned out to be unreachable.
+     *
+     * @param messageId the Message ID of the request.
+     * @throws IllegalStateException if the request is not the most recent outstanding request.
+     */
+    void cancel(int messageId) {
+        if (messageId != mNextMessageId - 1 || !mOutstandingIds.remove(messageId)) {
+            throw new IllegalStateException("Cannot cancel request: " + messageId);
+        }
+        mNextMessageId--;
+    }
+
+    /** Return the number of requests waiting for responses. */
+    int getOutstandingCount() {
+        return mOutstandingIds.size();
+    }
+
+    /** Return the Message ID of the next request. */
+    int getNextMessageId() {
+        return mNextMessageId;
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ike.ikev2;
+
+import android.annotation.Nullable;
+
+import com.android.ike.ikev2.message.IkeSaPayload.DhGroupTransform;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * IkePeerCapabilityCache remembers what remote servers negotiated in their last IKE_INIT exchange.
+ *
+ * <p>IKE_INIT request carries a KE payload for a single DH group. If the remote server selects a
+ * proposal with another DH group, it replies with INVALID_KE_PAYLOAD and the exchange has to be
+ * restarted. Sessions to the same server start with the DH group and proposal that server accepted
+ * last time, which saves that round trip.
+ *
+ * <p>IKE_INIT messages, including INVALID_KE_PAYLOAD, are not protected. Callers MUST only store
+ * capabilities after IKE_AUTH exchange has authenticated the remote server, so that an on-path
+ * attacker cannot pin a weak DH group for later sessions.
+ *
+ * <p>Entries are keyed by server address and expire after the configured TTL. Callers MUST
+ * invalidate the entry of a server when IKE_INIT or IKE_AUTH exchange with it fails, so that a
+ * server that changed its configuration is not repeatedly offered stale choices. When the cache is
+ * full, the least recently used entry is evicted.
+ *
+ * <p>IkePeerCapabilityCache is thread-safe.
+ */
+public final class IkePeerCapabilityCache {
+    @VisibleForTesting static final int DEFAULT_MAX_ENTRIES = 32;
+    @VisibleForTesting static final long DEFAULT_TTL_MS = TimeUnit.HOURS.toMillis(1L);
+
+    private static final IkePeerCapabilityCache sInstance =
+            new IkePeerCapabilityCache(
+                    DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MS, System::currentTimeMillis);
+
+    private final int mMaxEntries;
+    private final LongSupplier mClock;
+
+    // Least recently used first. Guarded by "this".
+    private final LinkedHashMap<InetAddress, Entry> mEntries =
+            new LinkedHashMap<>(16, 0.75f, true /*accessOrder*/);
+    private long mTtlMs;
+
+    /** Package private constructor for configuring bounds and time source in tests. */
+    @VisibleForTesting
+    IkePeerCapabilityCache(int maxEntries, long ttlMs, LongSupplier clock) {
+        mMaxEntries = maxEntries;
+        mTtlMs = ttlMs;
+        mClock = clock;
+    }
+
+    /** Get the IkePeerCapabilityCache shared by all IKE sessions. */
+    public static IkePeerCapabilityCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Package private method for looking up capabilities of a server.
+     *
+     * @param serverAddress the address of the server.
+     * @return the unexpired capabilities, or null if there are none.
+     */
+    synchronized PeerCapabilities get(InetAddress serverAddress) {
+        Entry entry = mEntries.get(serverAddress);
+        if (entry == null) return null;
+        if (mClock.getAsLong() >= entry.expiryTimeMs) {
+            mEntries.remove(serverAddress);
+            return null;
+        }
+        return entry.capabilities;
+    }
+
+    /**
+     * Package private method for storing capabilities of a server, replacing any previous ones.
+     *
+     * @param serverAddress the address of the server.
+     * @param capabilities the capabilities.
+     */
+    synchronized void put(InetAddress serverAddress, PeerCapabilities capabilities) {
+        long now = mClock.getAsLong();
+        mEntries.put(serverAddress, new Entry(capabilities, now + mTtlMs));
+
+        mEntries.values().removeIf((Entry entry) -> entry.expiryTimeMs <= now);
+        Iterator<Map.Entry<InetAddress, Entry>> iterator = mEntries.entrySet().iterator();
+        while (mEntries.size() > mMaxEntries) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Discard capabilities of a server.
+     *
+     * @param serverAddress the address of the server.
+     */
+    public synchronized void invalidate(InetAddress serverAddress) {
+        mEntries.remove(serverAddress);
+    }
+
+    /**
+     * Set the time capabilities are remembered for.
+     *
+     * <p>Cached capabilities keep the expiry time calculated when they were stored.
+     *
+     * @param ttlMs the time to live in milliseconds.
+     */
+    public synchronized void setTtlMillis(long ttlMs) {
+        if (ttlMs < 0L) {
+            throw new IllegalArgumentException("Invalid TTL: " + ttlMs);
+        }
+        mTtlMs = ttlMs;
+    }
+
+    /** Discard all capabilities. */
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    /** Return the number of cached entries, including expired ones not yet discarded. */
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    private static final class Entry {
+        final PeerCapabilities capabilities;
+        final long expiryTimeMs;
+
+        Entry(PeerCapabilities capabilities, long expiryTimeMs) {
+            this.capabilities = capabilities;
+            this.expiryTimeMs = expiryTimeMs;
+        }
+    }
+
+    /**
+     * PeerCapabilities is the set of choices a remote server made in IKE_INIT exchange.
+     *
+     * <p>Package private
+     */
+    static final class PeerCapabilities {
+        /** DH group the remote server accepted in KE payload. */
+        @SaProposal.DhGroup final int dhGroup;
+        /** Proposal the remote server selected, or null if it is unknown. */
+        @Nullable final SaProposal negotiatedProposal;
+        /** Whether the remote server accepts certificates sent as "Hash and URL". */
+        final boolean isHttpCertLookupSupported;
+
+        PeerCapabilities(
+                @SaProposal.DhGroup int dhGroup,
+                @Nullable SaProposal negotiatedProposal,
+                boolean isHttpCertLookupSupported) {
+            this.dhGroup = dhGroup;
+            this.negotiatedProposal = negotiatedProposal;
+            this.isHttpCertLookupSupported = isHttpCertLookupSupported;
+        }
+
+        /** Construct capabilities that only carry the DH group requested in INVALID_KE_PAYLOAD. */
+        PeerCapabilities(@SaProposal.DhGroup int dhGroup) {
+            this(dhGroup, null, false);
+        }
+
+        /**
+         * Reorder locally configured proposals so that the ones the remote server is expected to
+         * select come first.
+         *
+         * <p>Proposals the negotiated proposal can be selected from are preferred. If the
+         * negotiated proposal is unknown, proposals that contain the cached DH group are
+         * preferred. The relative order of proposals is otherwise kept.
+         *
+         * @param saProposals locally configured proposals in the order of local preference.
+         * @return the reordered proposals.
+         */
+        SaProposal[] orderSaProposals(SaProposal[] saProposals) {
+            List<SaProposal> preferred = new ArrayList<>(saProposals.length);
+            List<SaProposal> others = new ArrayList<>(saProposals.length);
+            for (SaProposal saProposal : saProposals) {
+                if (isPreferred(saProposal)) {
+                    preferred.add(saProposal);
+                } else {
+                    others.add(saProposal);
+                }
+            }
+            preferred.addAll(others);
+            return preferred.toArray(new SaProposal[saProposals.length]);
+        }
+
+        /**
+         * Select the DH group for KE payload.
+         *
+         * @param firstProposal the first proposal in IKE_INIT request.
+         * @return the cached DH group if the first proposal contains it, otherwise the first DH
+         *     group of the first proposal.
+         */
+        @SaProposal.DhGroup
+        int selectDhGroup(SaProposal firstProposal) {
+            if (containsDhGroup(firstProposal, dhGroup)) return dhGroup;
+            return firstProposal.getDhGroupTransforms()[0].id;
+        }
+
+        private boolean isPreferred(SaProposal saProposal) {
+            if (negotiatedProposal != null) return negotiatedProposal.isNegotiatedFrom(saProposal);
+            return containsDhGroup(saProposal, dhGroup);
+        }
+
+        private static boolean containsDhGroup(SaProposal saProposal, int dhGroup) {
+            for (DhGroupTransform transform : saProposal.getDhGroupTransforms()) {
+                if (transform.id == dhGroup) return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ike.ikev2;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * IkeRekeyScheduler decides when IKE SAs and Child SAs of all IKE sessions are rekeyed.
+ *
+ * <p>An SA is rekeyed when its soft lifetime expires and is deleted when its hard lifetime expires.
+ * The soft lifetime is randomly chosen between 80% and 90% of the hard lifetime, so that SAs
+ * created in a burst, e.g. when many IKE sessions are set up after the device boots, do not all
+ * rekey at the same time, and do not stay in lockstep in later rekey cycles either.
+ *
+ * <p>When its soft lifetime expires, an IKE session requests a rekey permit and starts rekeying
+ * once it is granted. The number of rekeys in progress is capped globally and for each remote
+ * server. Requests beyond the caps are deferred and granted in the order they were made as rekeys
+ * finish, which spreads the load of a rekey burst over time.
+ *
+ * <p>Metrics of the rekey rate and of the time rekeys are deferred are exposed for monitoring.
+ *
+ * <p>IkeRekeyScheduler is thread-safe. Callbacks are invoked without holding its lock, on the
+ * thread that requested or finished a rekey.
+ */
+public final class IkeRekeyScheduler {
+    /** Default hard lifetime of IKE SAs. */
+    public static final long IKE_HARD_LIFETIME_MS_DEFAULT = TimeUnit.HOURS.toMillis(4L);
+    /** Default hard lifetime of Child SAs. */
+    public static final long CHILD_HARD_LIFETIME_MS_DEFAULT = TimeUnit.HOURS.toMillis(2L);
+
+    @VisibleForTesting static final int DEFAULT_MAX_CONCURRENT_REKEYS = 16;
+    @VisibleForTesting static final int DEFAULT_MAX_CONCURRENT_REKEYS_PER_PEER = 4;
+
+    // Rekeying starts at least REKEY_MARGIN_PERCENT of the hard lifetime before it expires, plus a
+    // random jitter of up to REKEY_JITTER_PERCENT of the hard lifetime.
+    private static final int REKEY_MARGIN_PERCENT = 10;
+    private static final int REKEY_JITTER_PERCENT = 10;
+
+    private static final long RATE_WINDOW_MS = TimeUnit.MINUTES.toMillis(1L);
+
+    private static final IkeRekeyScheduler sInstance =
+            new IkeRekeyScheduler(
+                    DEFAULT_MAX_CONCURRENT_REKEYS,
+                    DEFAULT_MAX_CONCURRENT_REKEYS_PER_PEER,
+                    System::currentTimeMillis,
+                    new Random());
+
+    private final int mMaxConcurrentRekeys;
+    private final int mMaxConcurrentRekeysPerPeer;
+    private final LongSupplier mClock;
+    private final Random mRandom;
+
+    // All fields below are guarded by "this".
+
+    // Rekeys in progress.
+    private final Map<IRekeyCallback, RekeyRequest> mActiveRekeys = new HashMap<>();
+    // Number of rekeys in progress for each remote server.
+    private final Map<InetAddress, Integer> mActiveRekeysPerPeer = new HashMap<>();
+    // Deferred rekeys in the order they were requested.
+    private final LinkedHashMap<IRekeyCallback, RekeyRequest> mPendingRekeys =
+            new LinkedHashMap<>();
+
+    // Start times of rekeys within the last RATE_WINDOW_MS, oldest first.
+    private final ArrayDeque<Long> mRecentStartTimesMs = new ArrayDeque<>();
+    private long mStartedRekeyCount;
+    private long mDeferredRekeyCount;
+    private long mTotalDeferralMs;
+    private long mMaxDeferralMs;
+
+    /** Package private constructor for configuring caps, time source and jitter in tests. */
+    @VisibleForTesting
+    IkeRekeyScheduler(
+            int maxConcurrentRekeys,
+            int maxConcurrentRekeysPerPeer,
+            LongSupplier clock,
+            Random random) {
+        mMaxConcurrentRekeys = maxConcurrentRekeys;
+        mMaxConcurrentRekeysPerPeer = maxConcurrentRekeysPerPeer;
+        mClock = clock;
+        mRandom = random;
+    }
+
+    /** Get the IkeRekeyScheduler shared by all IKE sessions. */
+    public static IkeRekeyScheduler getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Package private interface for notifying an IKE session that it can start rekeying.
+     *
+     * <p>Each SA that is rekeyed independently has its own IRekeyCallback instance, which
+     * identifies the rekey to IkeRekeyScheduler.
+     */
+    interface IRekeyCallback {
+        /** Notify that the rekey can start. */
+        void onRekeyPermitted();
+    }
+
+    /**
+     * Package private method for choosing the soft lifetime of an SA.
+     *
+     * @param hardLifetimeMs the hard lifetime of the SA in milliseconds.
+     * @return the randomized soft lifetime in milliseconds.
+     */
+    long computeSoftLifetimeMs(long hardLifetimeMs) {
+        long marginMs = hardLifetimeMs * REKEY_MARGIN_PERCENT / 100;
+        long jitterRangeMs = hardLifetimeMs * REKEY_JITTER_PERCENT / 100;
+        double jitter;
+        synchronized (this) {
+            jitter = mRandom.nextDouble();
+        }
+        return hardLifetimeMs - marginMs - (long) (jitter * jitterRangeMs);
+    }
+
+    /**
+     * Package private method for requesting a rekey permit.
+     *
+     * <p>The callback is invoked immediately if the caps allow, otherwise when enough rekeys have
+     * finished. Requesting again while the rekey is deferred or in progress has no effect.
+     *
+     * @param serverAddress the address of the remote server.
+     * @param callback the callback identifying the rekey.
+     */
+    void requestRekey(InetAddress serverAddress, IRekeyCallback callback) {
+        synchronized (this) {
+            if (mActiveRekeys.containsKey(callback) || mPendingRekeys.containsKey(callback)) {
+                return;
+            }
+
+            RekeyRequest request = new RekeyRequest(serverAddress, mClock.getAsLong());
+            if (!canStart(serverAddress)) {
+                mPendingRekeys.put(callback, request);
+                mDeferredRekeyCount++;
+                return;
+            }
+            start(callback, request);
+        }
+        callback.onRekeyPermitted();
+    }
+
+    /**
+     * Package private method for releasing a rekey permit, or withdrawing a deferred request.
+     *
+     * <p>It MUST be called when the rekey completes or fails, and when the IKE session is closed.
+     * Deferred requests are granted in place of the released permit.
+     *
+     * @param callback the callback identifying the rekey.
+     */
+    void finishRekey(IRekeyCallback callback) {
+        List<IRekeyCallback> permittedCallbacks = new ArrayList<>();
+        synchronized (this) {
+            if (mPendingRekeys.remove(callback) != null) return;
+
+            RekeyRequest request = mActiveRekeys.remove(callback);
+            if (request == null) return;
+
+            int peerCount = mActiveRekeysPerPeer.get(request.serverAddress) - 1;
+            if (peerCount == 0) {
+                mActiveRekeysPerPeer.remove(request.serverAddress);
+            } else {
+                mActiveRekeysPerPeer.put(request.serverAddress, peerCount);
+            }
+
+            Iterator<Map.Entry<IRekeyCallback, RekeyRequest>> iterator =
+                    mPendingRekeys.entrySet().iterator();
+            while (iterator.hasNext() && mActiveRekeys.size() < mMaxConcurrentRekeys) {
+                Map.Entry<IRekeyCallback, RekeyRequest> pending = iterator.next();
+                if (!canStart(pending.getValue().serverAddress)) continue;
+
+                iterator.remove();
+                start(pending.getKey(), pending.getValue());
+                permittedCallbacks.add(pending.getKey());
+            }
+        }
+        for (IRekeyCallback permittedCallback : permittedCallbacks) {
+            permittedCallback.onRekeyPermitted();
+        }
+    }
+
+    /**
+     * Package private method for checking whether a rekey is permitted and has not finished.
+     *
+     * @param callback the callback identifying the rekey.
+     * @return whether the rekey is in progress.
+     */
+    synchronized boolean isRekeyPermitted(IRekeyCallback callback) {
+        return mActiveRekeys.containsKey(callback);
+    }
+
+    // Guarded by "this".
+    private boolean canStart(InetAddress serverAddress) {
+        return mActiveRekeys.size() < mMaxConcurrentRekeys
+                && mActiveRekeysPerPeer.getOrDefault(serverAddress, 0)
+                        < mMaxConcurrentRekeysPerPeer;
+    }
+
+    // Guarded by "this".
+    private void start(IRekeyCallback callback, RekeyRequest request) {
+        long now = mClock.getAsLong();
+        mActiveRekeys.put(callback, request);
+        mActiveRekeysPerPeer.merge(request.serverAddress, 1, Integer::sum);
+
+        long deferralMs = now - request.requestTimeMs;
+        mTotalDeferralMs += deferralMs;
+        mMaxDeferralMs = Math.max(mMaxDeferralMs, deferralMs);
+        mStartedRekeyCount++;
+        mRecentStartTimesMs.addLast(now);
+        discardOldStartTimes(now);
+    }
+
+    // Guarded by "this".
+    private void discardOldStartTimes(long now) {
+        while (!mRecentStartTimesMs.isEmpty()
+                && now - mRecentStartTimesMs.peekFirst() >= RATE_WINDOW_MS) {
+            mRecentStartTimesMs.removeFirst();
+        }
+    }
+
+    /** Return the number of rekeys started within the last minute. */
+    public synchronized int getRekeyRatePerMinute() {
+        discardOldStartTimes(mClock.getAsLong());
+        return mRecentStartTimesMs.size();
+    }
+
+    /** Return the total number of rekeys started. */
+    public synchronized long getStartedRekeyCount() {
+        return mStartedRekeyCount;
+    }
+
+    /** Return the total number of rekeys that could not start immediately. */
+    public synchronized long getDeferredRekeyCount() {
+        return mDeferredRekeyCount;
+    }
+
+    /** Return the average time started rekeys waited for a permit, in milliseconds. */
+    public synchronized long getAverageDeferralMillis() {
+        return mStartedRekeyCount == 0L ? 0L : mTotalDeferralMs / mStartedRekeyCount;
+    }
+
+    /** Return the longest time a started rekey waited for a permit, in milliseconds. */
+    public synchronized long getMaxDeferralMillis() {
+        return mMaxDeferralMs;
+    }
+
+    /** Return the number of rekeys in progress. */
+    public synchronized int getActiveRekeyCount() {
+        return mActiveRekeys.size();
+    }
+
+    /** Return the number of rekeys waiting for a permit. */
+    public synchronized int getPendingRekeyCount() {
+        return mPendingRekeys.size();
+    }
+
+    private static final class RekeyRequest {
+        final InetAddress serverAddress;
+        final long requestTimeMs;
+
+        RekeyRequest(InetAddress serverAddress, long requestTimeMs) {
+            this.serverAddress = serverAddress;
+            this.requestTimeMs = requestTimeMs;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ike.ikev2;
+
+import android.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * IkeRemoteRequestWindow tracks requests received from the remote on an IKE SA.
+ *
+ * <p>With a local window size of n, the remote can send requests with Message IDs from the lowest
+ * unanswered one up to n - 1 beyond it, and they can be processed in any order. A request that has
+ * already been answered is a retransmission, which is answered by re-sending the cached response
+ * without processing it again. Responses are kept until the remote can no longer retransmit their
+ * requests. Other requests are dropped.
+ *
+ * <p>Package private. IkeRemoteRequestWindow is not thread-safe and MUST only be used on the IKE
+ * working thread.
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc7296#section-2.3">RFC 7296, Internet Key Exchange
+ *     Protocol Version 2 (IKEv2)</a>
+ */
+final class IkeRemoteRequestWindow {
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({REQUEST_NEW, REQUEST_RETRANSMITTED, REQUEST_DROPPED})
+    @interface RequestStatus {}
+
+    /** The request should be processed. */
+    static final int REQUEST_NEW = 1;
+    /** The request has been answered. The cached response should be re-sent. */
+    static final int REQUEST_RETRANSMITTED = 2;
+    /** The request is outside the window or is still being processed. */
+    static final int REQUEST_DROPPED = 3;
+
+    private final int mWindowSize;
+
+    // Requests that are being processed.
+    private final Set<Integer> mPendingIds = new HashSet<>();
+    // Encoded responses to answered requests that can still be retransmitted by the remote.
+    private final Map<Integer, byte[]> mResponses = new HashMap<>();
+
+    // Lowest Message ID that has not been answered.
+    private int mLowestUnansweredId;
+
+    /**
+     * Construct an IkeRemoteRequestWindow.
+     *
+     * @param firstMessageId the Message ID of the first request expected from the remote.
+     * @param windowSize the local window size announced in SET_WINDOW_SIZE, or 1.
+     * @throws IllegalArgumentException if windowSize is smaller than 1.
+     */
+    IkeRemoteRequestWindow(int firstMessageId, int windowSize) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("Invalid window size: " + windowSize);
+        }
+        mLowestUnansweredId = firstMessageId;
+        mWindowSize = windowSize;
+    }
+
+    /**
+     * Classify a received request and start tracking it if it is new.
+     *
+     * @param messageId the Message ID of the request.
+     * @return the status of the request.
+     */
+    @RequestStatus
+    int onRequestReceived(int messageId) {
+        if (mResponses.containsKey(messageId)) return REQUEST_RETRANSMITTED;
+
+        int offset = messageId - mLowestUnansweredId;
+        if (offset < 0 || offset >= mWindowSize || !mPendingIds.add(messageId)) {
+            return REQUEST_DROPPED;
+        }
+        return REQUEST_NEW;
+    }
+
+    /**
+     * Record the response sent to a request.
+     *
+     * @param messageId the Message ID of the request.
+     * @param responsePacket the encoded response for answering retransmissions.
+     * @throws IllegalStateException if the request is not being processed.
+     */
+    void onResponseSent(int messageId, byte[] responsePacket) {
+        if (!mPendingIds.remove(messageId)) {
+            throw new IllegalStateException("Request is not being processed: " + messageId);
+        }
+        mResponses.put(messageId, responsePacket);
+
+        while (mResponses.containsKey(mLowestUnansweredId)) {
+            mLowestUnansweredId++;
+        }
+
+        // The remote has received responses to all requests below the window before it could
+        // send the requests in the window, so it never retransmits them.
+        Iterator<Integer> iterator = mResponses.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (mLowestUnansweredId - iterator.next() > mWindowSize) iterator.remove();
+        }
+    }
+
+    /**
+     * Get the cached response to a retransmitted request.
+     *
+     * @param messageId the Message ID of the request.
+     * @return the encoded response, or null if it is not cached.
+     */
+    byte[] getResponse(int messageId) {
+        return mResponses.get(messageId);
+    }
+
+    /** Return the lowest Message ID that has not been answered. */
+    int getLowestUnansweredId() {
+        return mLowestUnansweredId;
+    }
+}
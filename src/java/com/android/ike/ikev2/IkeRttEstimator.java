@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ike.ikev2;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * IkeRttEstimator estimates the round-trip time to each remote server for choosing retransmission
+ * timeouts.
+ *
+ * <p>The smoothed round-trip time and its variance are updated from the time between sending a
+ * request and receiving its response. Exchanges whose request was retransmitted are not measured,
+ * since it is unknown which transmission was answered.
+ *
+ * <p>Entries are keyed by server address and shared by all IKE sessions. Callers MUST only report
+ * round-trip times of responses that have been authenticated, since a forged sample would change
+ * the timeouts of every IKE session to that server. Backing off after a retransmission timer
+ * expires is left to the exchange, so that one dead exchange does not slow down the others. When
+ * the estimator is full, the least recently used entry is evicted.
+ *
+ * <p>IkeRttEstimator is thread-safe.
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc6298">RFC 6298, Computing TCP's Retransmission
+ *     Timer</a>
+ */
+public final class IkeRttEstimator {
+    @VisibleForTesting static final int DEFAULT_MAX_ENTRIES = 32;
+
+    /** Retransmission timeout used before the round-trip time to a server is measured. */
+    @VisibleForTesting static final long INITIAL_RTO_MS = TimeUnit.SECONDS.toMillis(1L);
+    /** Upper bound of the retransmission timeout. */
+    @VisibleForTesting static final long MAX_RTO_MS = TimeUnit.SECONDS.toMillis(60L);
+
+    // Clock granularity of SystemClock#elapsedRealtime().
+    private static final long CLOCK_GRANULARITY_MS = 1L;
+    // Weights of a new measurement in the smoothed round-trip time (1/8) and its variance (1/4).
+    private static final int RTT_GAIN_DIVISOR = 8;
+    private static final int RTT_VAR_GAIN_DIVISOR = 4;
+    private static final int RTT_VAR_MULTIPLIER = 4;
+
+    private static final IkeRttEstimator sInstance = new IkeRttEstimator(DEFAULT_MAX_ENTRIES);
+
+    private final int mMaxEntries;
+
+    // Least recently used first. Guarded by "this".
+    private final LinkedHashMap<InetAddress, Estimate> mEstimates =
+            new LinkedHashMap<>(16, 0.75f, true /*accessOrder*/);
+
+    /** Package private constructor for configuring bounds in tests. */
+    @VisibleForTesting
+    IkeRttEstimator(int maxEntries) {
+        mMaxEntries = maxEntries;
+    }
+
+    /** Get the IkeRttEstimator shared by all IKE sessions. */
+    public static IkeRttEstimator getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Package private method for getting the retransmission timeout of a new request to a server.
+     *
+     * @param serverAddress the address of the server.
+     * @return the timeout in milliseconds.
+     */
+    synchronized long getRetransmitTimeoutMs(InetAddress serverAddress) {
+        Estimate estimate = mEstimates.get(serverAddress);
+        return estimate == null ? INITIAL_RTO_MS : estimate.rtoMs;
+    }
+
+    /**
+     * Package private method for updating the estimate with a measured round-trip time.
+     *
+     * <p>It MUST only be called for requests that were not retransmitted, and whose response has
+     * been authenticated.
+     *
+     * @param serverAddress the address of the server.
+     * @param rttMs the time between sending the request and receiving its response.
+     */
+    synchronized void onRttSample(InetAddress serverAddress, long rttMs) {
+        Estimate estimate = getOrCreate(serverAddress);
+        if (estimate.smoothedRttMs < 0L) {
+            estimate.smoothedRttMs = rttMs;
+            estimate.rttVarMs = rttMs / 2;
+        } else {
+            long errorMs = Math.abs(estimate.smoothedRttMs - rttMs);
+            estimate.rttVarMs += (errorMs - estimate.rttVarMs) / RTT_VAR_GAIN_DIVISOR;
+            estimate.smoothedRttMs += (rttMs - estimate.smoothedRttMs) / RTT_GAIN_DIVISOR;
+        }
+        estimate.rtoMs =
+                Math.min(
+                        MAX_RTO_MS,
+                        estimate.smoothedRttMs
+                                + Math.max(
+                                        CLOCK_GRANULARITY_MS,
+                                        RTT_VAR_MULTIPLIER * estimate.rttVarMs));
+    }
+
+    // Guarded by "this".
+    private Estimate getOrCreate(InetAddress serverAddress) {
+        Estimate estimate = mEstimates.get(serverAddress);
+        if (estimate != null) return estimate;
+
+        estimate = new Estimate();
+        mEstimates.put(serverAddress, estimate);
+        Iterator<Map.Entry<InetAddress, Estimate>> iterator = mEstimates.entrySet().iterator();
+        while (mEstimates.size() > mMaxEntries) {
+            iterator.next();
+            iterator.remove();
+        }
+        return estimate;
+    }
+
+    /**
+     * Return the smoothed round-trip time to a server.
+     *
+     * @param serverAddress the address of the server.
+     * @return the time in milliseconds, or -1 if it has not been measured.
+     */
+    public synchronized long getSmoothedRttMillis(InetAddress serverAddress) {
+        Estimate estimate = mEstimates.get(serverAddress);
+        return estimate == null ? -1L : estimate.smoothedRttMs;
+    }
+
+    /** Discard all estimates. */
+    public synchronized void clear() {
+        mEstimates.clear();
+    }
+
+    private static final class Estimate {
+        long smoothedRttMs = -1L;
+        long rttVarMs;
+        long rtoMs = INITIAL_RTO_MS;
+    }
+}
@@ -30,20 +30,51 @@ import java.util.List;
  * <p>TODO: Make this doc more user-friendly.
  */
 public final class IkeSessionOptions {
+    /** Package private DPD delay that disables dead peer detection. */
+    static final int IKE_DPD_DELAY_SEC_DISABLED = 0;
+    /** Package private minimum idle time in seconds before checking whether the remote is alive. */
+    static final int IKE_DPD_DELAY_SEC_MIN = 20;
+    /**
+     * Default lower bound in milliseconds of the initial retransmission timeout of a request.
+     *
+     * <p>It is the minimum retransmission timeout of RFC 6298 section 2.4.
+     */
+    public static final long IKE_RETRANS_TIMEOUT_MS_FLOOR_DEFAULT = 1000L;
+    /** Default upper bound in milliseconds of the initial retransmission timeout of a request. */
+    public static final long IKE_RETRANS_TIMEOUT_MS_CEILING_DEFAULT = 10000L;
+
     private final InetAddress mServerAddress;
     private final UdpEncapsulationSocket mUdpEncapSocket;
     private final SaProposal[] mSaProposals;
-    private final boolean mIsIkeFragmentationSupported;
+    private final boolean mIsCryptoOffloadEnabled;
+    private final boolean mIsHttpCertLookupSupported;
+    private final boolean mIsSessionResumptionEnabled;
+    private final boolean mIsMobikeEnabled;
+    private final int mDpdDelaySec;
+    private final long mRetransTimeoutFloorMs;
+    private final long mRetransTimeoutCeilingMs;
 
     private IkeSessionOptions(
             InetAddress serverAddress,
             UdpEncapsulationSocket udpEncapsulationSocket,
             SaProposal[] proposals,
-            boolean isIkeFragmentationSupported) {
+            boolean isCryptoOffloadEnabled,
+            boolean isHttpCertLookupSupported,
+            boolean isSessionResumptionEnabled,
+            boolean isMobikeEnabled,
+            int dpdDelaySec,
+            long retransTimeoutFloorMs,
+            long retransTimeoutCeilingMs) {
         mServerAddress = serverAddress;
         mUdpEncapSocket = udpEncapsulationSocket;
         mSaProposals = proposals;
-        mIsIkeFragmentationSupported = isIkeFragmentationSupported;
+        mIsCryptoOffloadEnabled = isCryptoOffloadEnabled;
+        mIsHttpCertLookupSupported = isHttpCertLookupSupported;
+        mIsSessionResumptionEnabled = isSessionResumptionEnabled;
+        mIsMobikeEnabled = isMobikeEnabled;
+        mDpdDelaySec = dpdDelaySec;
+        mRetransTimeoutFloorMs = retransTimeoutFloorMs;
+        mRetransTimeoutCeilingMs = retransTimeoutCeilingMs;
     }
 
     /** Package private */
@@ -59,8 +90,36 @@ public final class IkeSessionOptions {
         return mSaProposals;
     }
     /** Package private */
-    boolean isIkeFragmentationSupported() {
-        return mIsIkeFragmentationSupported;
+    boolean isCryptoOffloadEnabled() {
+        return mIsCryptoOffloadEnabled;
+    }
+    /** Package private */
+    boolean isHttpCertLookupSupported() {
+        return mIsHttpCertLookupSupported;
+    }
+    /** Package private */
+    boolean isSessionResumptionEnabled() {
+        return mIsSessionResumptionEnabled;
+    }
+    /** Package private */
+    boolean isMobikeEnabled() {
+        return mIsMobikeEnabled;
+    }
+    /** Package private */
+    boolean isDpdEnabled() {
+        return mDpdDelaySec != IKE_DPD_DELAY_SEC_DISABLED;
+    }
+    /** Package private */
+    int getDpdDelaySeconds() {
+        return mDpdDelaySec;
+    }
+    /** Package private */
+    long getRetransTimeoutFloorMillis() {
+        return mRetransTimeoutFloorMs;
+    }
+    /** Package private */
+    long getRetransTimeoutCeilingMillis() {
+        return mRetransTimeoutCeilingMs;
     }
 
     /** This class can be used to incrementally construct a IkeSessionOptions. */
@@ -69,7 +128,13 @@ public final class IkeSessionOptions {
         private final UdpEncapsulationSocket mUdpEncapSocket;
         private final List<SaProposal> mSaProposalList = new LinkedList<>();
 
-        private boolean mIsIkeFragmentationSupported = false;
+        private boolean mIsCryptoOffloadEnabled = false;
+        private boolean mIsHttpCertLookupSupported = false;
+        private boolean mIsSessionResumptionEnabled = false;
+        private boolean mIsMobikeEnabled = false;
+        private int mDpdDelaySec = IKE_DPD_DELAY_SEC_DISABLED;
+        private long mRetransTimeoutFloorMs = IKE_RETRANS_TIMEOUT_MS_FLOOR_DEFAULT;
+        private long mRetransTimeoutCeilingMs = IKE_RETRANS_TIMEOUT_MS_CEILING_DEFAULT;
 
         /**
          * Returns a new Builder for an IkeSessionOptions.
@@ -100,6 +165,128 @@ public final class IkeSessionOptions {
             return this;
         }
 
+        /**
+         * Sets whether expensive cryptographic operations run on a worker thread.
+         *
+         * <p>When enabled, calculating the Diffie-Hellman shared secret and deriving keying
+         * material of the first IKE SA run on a shared worker pool instead of the IKE working
+         * thread, so that other IKE sessions are not blocked. Disabled by default.
+         *
+         * @param enabled whether crypto offload is enabled.
+         * @return Builder for an IkeSessionOptions.
+         */
+        public Builder setCryptoOffloadEnabled(boolean enabled) {
+            mIsCryptoOffloadEnabled = enabled;
+            return this;
+        }
+
+        /**
+         * Sets whether IKE library looks up certificates that are sent as "Hash and URL".
+         *
+         * <p>When enabled, IKE library advertises HTTP_CERT_LOOKUP_SUPPORTED so that the remote
+         * server can send the hash and URL of its certificates instead of the certificates. This
+         * keeps IKE_AUTH messages small but requires HTTP access to the certificate repository.
+         * Disabled by default.
+         *
+         * @param supported whether certificate lookup is supported.
+         * @return Builder for an IkeSessionOptions.
+         */
+        public Builder setHttpCertLookupSupported(boolean supported) {
+            mIsHttpCertLookupSupported = supported;
+            return this;
+        }
+
+        /**
+         * Sets whether IKE library resumes IKE sessions with tickets issued by the remote server.
+         *
+         * <p>When enabled, IKE library requests a ticket in IKE_AUTH exchange. When the next IKE
+         * session to the same server is created, the ticket is sent in IKE_SESSION_RESUME exchange
+         * so that the new IKE SA is derived without Diffie-Hellman exchange and without
+         * certificate or EAP authentication. If the server rejects the ticket, a full IKE_INIT
+         * exchange is done instead. Disabled by default.
+         *
+         * <p>Package private until the IKE_AUTH request is built and requests a ticket with a
+         * TICKET_REQUEST notification.
+         *
+         * @param enabled whether session resumption is enabled.
+         * @return Builder for an IkeSessionOptions.
+         */
+        Builder setSessionResumptionEnabled(boolean enabled) {
+            mIsSessionResumptionEnabled = enabled;
+            return this;
+        }
+
+        /**
+         * Sets whether IKE library moves the IKE session to a new network with MOBIKE.
+         *
+         * <p>When enabled, IKE library advertises MOBIKE_SUPPORTED in IKE_AUTH request. If the
+         * remote server supports it as well, the established IKE session can be moved to another
+         * {@link IpSecManager.UdpEncapsulationSocket} with a single UPDATE_SA_ADDRESSES exchange,
+         * without rekeying or re-authenticating. Disabled by default.
+         *
+         * <p>Package private until MOBIKE_SUPPORTED is sent in IKE_AUTH request and addresses of
+         * IPsec SAs of Child Sessions are updated.
+         *
+         * @param enabled whether MOBIKE is enabled.
+         * @return Builder for an IkeSessionOptions.
+         */
+        Builder setMobikeEnabled(boolean enabled) {
+            mIsMobikeEnabled = enabled;
+            return this;
+        }
+
+        /**
+         * Package private method for setting how long the IKE session can be idle before IKE
+         * library checks whether the remote server is alive.
+         *
+         * <p>Dead peer detection only sends a probe when no IKE message has been received from the
+         * remote server for this time. While the IKE session stays idle, probes are sent less and
+         * less often. The remote server is considered dead if a probe is not answered after all
+         * retransmissions. Dead peer detection is disabled by default.
+         *
+         * <p>This stays package private until encrypted INFORMATIONAL requests can be encoded.
+         * Until then a probe cannot be answered and would close every idle IKE session.
+         *
+         * @param dpdDelaySeconds the idle time in seconds.
+         * @return Builder for an IkeSessionOptions.
+         * @throws IllegalArgumentException if dpdDelaySeconds is smaller than {@link
+         *     #IKE_DPD_DELAY_SEC_MIN}.
+         */
+        Builder setDpdDelaySeconds(int dpdDelaySeconds) {
+            if (dpdDelaySeconds < IKE_DPD_DELAY_SEC_MIN) {
+                throw new IllegalArgumentException("Invalid DPD delay: " + dpdDelaySeconds);
+            }
+            mDpdDelaySec = dpdDelaySeconds;
+            return this;
+        }
+
+        /**
+         * Sets the bounds of the time IKE library waits for a response before retransmitting a
+         * request for the first time.
+         *
+         * <p>The initial timeout is derived from the round-trip times measured to the remote server
+         * and then limited to these bounds. Each following retransmission waits twice as long as
+         * the previous one, but no longer than the upper bound. A request is given up if it is not
+         * answered within 30 seconds, regardless of these bounds. Defaults to {@link
+         * #IKE_RETRANS_TIMEOUT_MS_FLOOR_DEFAULT} and {@link
+         * #IKE_RETRANS_TIMEOUT_MS_CEILING_DEFAULT}.
+         *
+         * @param floorMs the lower bound in milliseconds.
+         * @param ceilingMs the upper bound in milliseconds.
+         * @return Builder for an IkeSessionOptions.
+         * @throws IllegalArgumentException if floorMs is not positive or ceilingMs is smaller than
+         *     floorMs.
+         */
+        public Builder setRetransTimeoutBoundsMillis(long floorMs, long ceilingMs) {
+            if (floorMs <= 0L || ceilingMs < floorMs) {
+                throw new IllegalArgumentException(
+                        "Invalid retransmission timeout bounds: " + floorMs + ", " + ceilingMs);
+            }
+            mRetransTimeoutFloorMs = floorMs;
+            mRetransTimeoutCeilingMs = ceilingMs;
+            return this;
+        }
+
         /**
          * Validates, builds and returns the IkeSessionOptions
          *
@@ -114,9 +301,13 @@ public final class IkeSessionOptions {
                     mServerAddress,
                     mUdpEncapSocket,
                     mSaProposalList.toArray(new SaProposal[mSaProposalList.size()]),
-                    mIsIkeFragmentationSupported);
+                    mIsCryptoOffloadEnabled,
+                    mIsHttpCertLookupSupported,
+                    mIsSessionResumptionEnabled,
+                    mIsMobikeEnabled,
+                    mDpdDelaySec,
+                    mRetransTimeoutFloorMs,
+                    mRetransTimeoutCeilingMs);
         }
-
-        // TODO: add methods for supporting IKE fragmentation.
     }
 }
@@ -15,32 +15,50 @@
  */
 package com.android.ike.ikev2;
 
+import android.net.IpSecManager.UdpEncapsulationSocket;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.system.ErrnoException;
+import android.util.Log;
 import android.util.LongSparseArray;
 import android.util.SparseArray;
 
+import com.android.ike.ikev2.IkePeerCapabilityCache.PeerCapabilities;
+import com.android.ike.ikev2.IkeRekeyScheduler.IRekeyCallback;
 import com.android.ike.ikev2.SaRecord.IkeSaRecord;
+import com.android.ike.ikev2.crypto.CryptoWorkerPool;
 import com.android.ike.ikev2.exceptions.IkeException;
+import com.android.ike.ikev2.exceptions.InvalidSyntaxException;
+import com.android.ike.ikev2.exceptions.NoValidProposalChosenException;
 import com.android.ike.ikev2.message.IkeHeader;
 import com.android.ike.ikev2.message.IkeKePayload;
+import com.android.ike.ikev2.message.IkeLivenessResponder;
 import com.android.ike.ikev2.message.IkeMessage;
 import com.android.ike.ikev2.message.IkeNoncePayload;
 import com.android.ike.ikev2.message.IkeNotifyPayload;
 import com.android.ike.ikev2.message.IkePayload;
 import com.android.ike.ikev2.message.IkeSaPayload;
 import com.android.ike.ikev2.message.IkeSaPayload.DhGroupTransform;
+import com.android.ike.ikev2.utils.RandomnessFactory;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
 
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
-import java.security.SecureRandom;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * IkeSessionStateMachine tracks states and manages exchanges of this IKE session.
@@ -72,7 +90,14 @@ public class IkeSessionStateMachine extends StateMachine {
     static final int CMD_RECEIVE_OUTBOUND_CHILD_PAYLOADS = CMD_GENERAL_BASE + 2;
     /** Receive encoded IKE packet with unrecognized IKE SPI on IkeSessionStateMachine. */
     static final int CMD_RECEIVE_PACKET_INVALID_IKE_SPI = CMD_GENERAL_BASE + 3;
-    // TODO: Add signal for retransmission.
+    /** Receive the result of a cryptographic operation that ran on a worker thread. */
+    static final int CMD_CRYPTO_OPERATION_COMPLETE = CMD_GENERAL_BASE + 4;
+    /** Retransmit the outstanding request after a timeout. */
+    static final int CMD_RETRANSMIT = CMD_GENERAL_BASE + 5;
+    /** Submit a cryptographic operation again after the worker pool rejected it. */
+    static final int CMD_RETRY_CRYPTO_OPERATION = CMD_GENERAL_BASE + 6;
+    /** Hard lifetime of the current IKE SA expires. */
+    static final int CMD_IKE_HARD_LIFETIME_EXPIRED = CMD_GENERAL_BASE + 7;
 
     private static final int CMD_LOCAL_REQUEST_BASE = CMD_GENERAL_BASE + 100;
     static final int CMD_LOCAL_REQUEST_CREATE_IKE = CMD_LOCAL_REQUEST_BASE + 1;
@@ -82,12 +107,36 @@ public class IkeSessionStateMachine extends StateMachine {
     static final int CMD_LOCAL_REQUEST_CREATE_CHILD = CMD_LOCAL_REQUEST_BASE + 5;
     static final int CMD_LOCAL_REQUEST_DELETE_CHILD = CMD_LOCAL_REQUEST_BASE + 6;
     static final int CMD_LOCAL_REQUEST_REKEY_CHILD = CMD_LOCAL_REQUEST_BASE + 7;
+    static final int CMD_LOCAL_REQUEST_UPDATE_SA_ADDRESSES = CMD_LOCAL_REQUEST_BASE + 8;
+    static final int CMD_LOCAL_REQUEST_DPD = CMD_LOCAL_REQUEST_BASE + 9;
     // TODO: Add signals for other procedure types and notificaitons.
 
     // Remember locally assigned IKE SPIs to avoid SPI collision.
     private static final Set<Long> ASSIGNED_LOCAL_IKE_SPI_SET = new HashSet<>();
     private static final int MAX_ASSIGN_IKE_SPI_ATTEMPTS = 100;
-    private static final SecureRandom IKE_SPI_RANDOM = new SecureRandom();
+
+    // Length of DH Group # in INVALID_KE_PAYLOAD notification data.
+    private static final int DH_GROUP_LEN = 2;
+    // Length of Window Size in SET_WINDOW_SIZE notification data.
+    private static final int WINDOW_SIZE_LEN = 4;
+    // Maximum number of outstanding local requests, regardless of the window size of the remote.
+    @VisibleForTesting static final int MAX_PEER_WINDOW_SIZE = 32;
+    // Length of COOKIE2 notification data. RFC 4555 allows 8 to 64 octets.
+    private static final int COOKIE2_LEN = 16;
+
+    // Time a request is retransmitted for before the remote is considered dead. It bounds elapsed
+    // time rather than the number of retransmissions, so that a short measured round-trip time
+    // does not give up within a few seconds, e.g. while a cellular radio is waking up.
+    @VisibleForTesting static final long RETRANSMIT_GIVE_UP_MS = TimeUnit.SECONDS.toMillis(30L);
+
+    // Delay before submitting a cryptographic operation again after the worker pool rejected it.
+    @VisibleForTesting static final long CRYPTO_RETRY_DELAY_MS = 50L;
+
+    // Value of arg1 of CMD_LOCAL_REQUEST_REKEY_IKE sent when IkeRekeyScheduler grants a permit.
+    private static final int REKEY_SCHEDULED = 1;
+
+    private static Executor sCryptoExecutor = CryptoWorkerPool.getInstance();
+    private static IkeRekeyScheduler sRekeyScheduler = IkeRekeyScheduler.getInstance();
 
     private final IkeSessionOptions mIkeSessionOptions;
     private final ChildSessionOptions mFirstChildSessionOptions;
@@ -96,7 +145,7 @@ public class IkeSessionStateMachine extends StateMachine {
     /**
      * Map that stores all ChildSessionStateMachines, keyed by remotely generated Child SPI for
      * sending IPsec packet. Different SPIs may point to the same ChildSessionStateMachine if this
-     * Child Session is doing Rekey.
+     * Child Session is doing Rekey or has multiple Child SAs in its ChildSaGroup.
      */
     private final SparseArray<ChildSessionStateMachine> mSpiToChildSessionMap;
 
@@ -105,6 +154,18 @@ public class IkeSessionStateMachine extends StateMachine {
      * State.
      */
     @VisibleForTesting IkeSocket mIkeSocket;
+    /**
+     * Package private flag indicating whether a NAT was detected between IKE library and the
+     * remote server in IKE_INIT exchange. NAT-keepalive packets are only sent if it is true.
+     */
+    @VisibleForTesting boolean mIsNatDetected;
+    /**
+     * Package private local address and port sent in NAT_DETECTION_SOURCE_IP of IKE_INIT request,
+     * or null if NAT detection was not requested.
+     */
+    @VisibleForTesting InetSocketAddress mLocalSocketAddress;
+    // Whether mIkeSocket sends NAT-keepalive packets for this session.
+    @VisibleForTesting boolean mIsNatKeepaliveStarted;
 
     /** Package */
     @VisibleForTesting IkeSaRecord mCurrentIkeSaRecord;
@@ -120,12 +181,72 @@ public class IkeSessionStateMachine extends StateMachine {
     /** Package */
     @VisibleForTesting IkeSaRecord mIkeSaRecordAwaitingRemoteDel;
 
+    /**
+     * Package private encoded IKE_INIT request and response, retained for calculating
+     * SignedOctets in IKE_AUTH without re-encoding.
+     */
+    @VisibleForTesting byte[] mIkeInitRequestBytes;
+    /** Package */
+    @VisibleForTesting byte[] mIkeInitResponseBytes;
+
+    /**
+     * Package private flag indicating whether the remote server has sent HTTP_CERT_LOOKUP_SUPPORTED
+     * in IKE_INIT response, and thus accepts certificates sent as "Hash and URL".
+     */
+    @VisibleForTesting boolean mIsPeerHttpCertLookupSupported;
+
+    /**
+     * Package private ticket sent in IKE_SESSION_RESUME request. It is null if the IKE SA is not
+     * being resumed.
+     */
+    @VisibleForTesting IkeSessionTicket mResumptionTicket;
+
+    /**
+     * Package private flag indicating whether both sides have sent MOBIKE_SUPPORTED in IKE_AUTH
+     * exchange, and thus the IKE session can be moved to another UdpEncapsulationSocket. It is
+     * read by {@link #updateSaAddresses} on the caller thread.
+     */
+    @VisibleForTesting volatile boolean mIsMobikeNegotiated;
+
+    // UdpEncapsulationSocket the IKE session is being moved to.
+    private UdpEncapsulationSocket mPendingUdpEncapSocket;
+
+    /**
+     * Package private COOKIE2 sent in UPDATE_SA_ADDRESSES request. It is null if the IKE session
+     * is not being moved.
+     */
+    @VisibleForTesting byte[] mUpdateSaAddressesCookie2;
+
+    // Capabilities learned from the remote server during IKE_INIT exchange. They are only cached
+    // for later IKE sessions after IKE_AUTH exchange authenticates the remote server.
+    private PeerCapabilities mPendingPeerCapabilities;
+
+    // Round-trip time of IKE_INIT exchange, or -1 if it was not measured. IKE_INIT response is not
+    // protected, so the time is only given to IkeRttEstimator after IKE_AUTH exchange
+    // authenticates the remote server.
+    private long mPendingIkeInitRttMs = -1L;
+
+    // Identifies the latest offloaded cryptographic operation. Results of earlier operations are
+    // ignored.
+    private int mCryptoOperationToken;
+
+    /** Package private monitor of inbound traffic for dead peer detection. */
+    @VisibleForTesting IkeLivenessMonitor mLivenessMonitor;
+
+    // Identifies rekeying of the current IKE SA to IkeRekeyScheduler.
+    private final IRekeyCallback mIkeRekeyCallback =
+            () -> sendMessage(CMD_LOCAL_REQUEST_REKEY_IKE, REKEY_SCHEDULED);
+    // Requests a rekey permit when the soft lifetime of the current IKE SA expires.
+    private final Runnable mIkeSoftLifetimeTimeout = this::requestIkeRekey;
+
     // States
     private final State mInitial = new Initial();
     private final State mClosed = new Closed();
     private final State mIdle = new Idle();
     private final State mReceiving = new Receiving();
     private final State mCreateIkeLocalIkeInit = new CreateIkeLocalIkeInit();
+    private final State mCreateIkeLocalIkeResume = new CreateIkeLocalIkeResume();
+    private final State mCreateIkeLocalIkeInitAwaitingDh = new CreateIkeLocalIkeInitAwaitingDh();
     private final State mCreateIkeLocalIkeAuth = new CreateIkeLocalIkeAuth();
     private final State mRekeyIkeLocalCreate = new RekeyIkeLocalCreate();
     private final State mSimulRekeyIkeLocalCreate = new SimulRekeyIkeLocalCreate();
@@ -135,6 +256,8 @@ public class IkeSessionStateMachine extends StateMachine {
     private final State mSimulRekeyIkeRemoteDelete = new SimulRekeyIkeRemoteDelete();
     private final State mRekeyIkeLocalDelete = new RekeyIkeLocalDelete();
     private final State mRekeyIkeRemoteDelete = new RekeyIkeRemoteDelete();
+    private final State mUpdateSaAddressesLocal = new UpdateSaAddressesLocal();
+    private final State mDpdIkeLocalInfo = new DpdIkeLocalInfo();
     // TODO: Add InfoLocal and DeleteIkeLocal.
 
     /** Package private constructor */
@@ -149,10 +272,16 @@ public class IkeSessionStateMachine extends StateMachine {
         // There are at most three IkeSaRecords co-existing during simultaneous rekeying.
         mSpiToSaRecordMap = new LongSparseArray<>(3);
         mSpiToChildSessionMap = new SparseArray<>();
+        mLivenessMonitor =
+                new IkeLivenessMonitor(
+                        TimeUnit.SECONDS.toMillis(ikeOptions.getDpdDelaySeconds()),
+                        SystemClock::elapsedRealtime);
 
         addState(mInitial);
         addState(mClosed);
         addState(mCreateIkeLocalIkeInit);
+        addState(mCreateIkeLocalIkeResume);
+        addState(mCreateIkeLocalIkeInitAwaitingDh);
         addState(mCreateIkeLocalIkeAuth);
         addState(mIdle);
         addState(mReceiving);
@@ -163,6 +292,8 @@ public class IkeSessionStateMachine extends StateMachine {
         addState(mSimulRekeyIkeRemoteDelete, mSimulRekeyIkeLocalDeleteRemoteDelete);
         addState(mRekeyIkeLocalDelete);
         addState(mRekeyIkeRemoteDelete);
+        addState(mUpdateSaAddressesLocal);
+        addState(mDpdIkeLocalInfo);
 
         setInitialState(mInitial);
     }
@@ -170,12 +301,17 @@ public class IkeSessionStateMachine extends StateMachine {
     // Generate IKE SPI. Throw an exception if it failed and handle this exception in current State.
     private static Long getIkeSpiOrThrow() {
         for (int i = 0; i < MAX_ASSIGN_IKE_SPI_ATTEMPTS; i++) {
-            long spi = IKE_SPI_RANDOM.nextLong();
+            long spi = RandomnessFactory.getRandom().nextLong();
             if (ASSIGNED_LOCAL_IKE_SPI_SET.add(spi)) return spi;
         }
         throw new IllegalStateException("Failed to generate IKE SPI.");
     }
 
+    // Make an IKE SPI that is no longer used available for new IKE SAs.
+    private static void releaseIkeSpi(long spi) {
+        ASSIGNED_LOCAL_IKE_SPI_SET.remove(spi);
+    }
+
     private IkeMessage buildIkeInitReq() {
         // TODO: Handle IKE SPI assigning error in CreateIkeLocalIkeInit State.
 
@@ -189,20 +325,36 @@ public class IkeSessionStateMachine extends StateMachine {
         // SaProposal and all SaProposals are valid for IKE SA negotiation.
         SaProposal[] saProposals = mIkeSessionOptions.getSaProposals();
 
+        // Start with what the remote server requested in this exchange or accepted last time, if
+        // it is known.
+        PeerCapabilities capabilities =
+                mPendingPeerCapabilities != null
+                        ? mPendingPeerCapabilities
+                        : IkePeerCapabilityCache.getInstance()
+                                .get(mIkeSessionOptions.getServerAddress());
+        if (capabilities != null) saProposals = capabilities.orderSaProposals(saProposals);
+
         // Build SA Payload
         IkeSaPayload saPayload = new IkeSaPayload(saProposals);
         payloadList.add(saPayload);
 
-        // Build KE Payload using the first DH group number in the first SaProposal.
-        DhGroupTransform dhGroupTransform = saProposals[0].getDhGroupTransforms()[0];
-        IkeKePayload kePayload = new IkeKePayload(dhGroupTransform.id);
+        // Build KE Payload using the cached DH group, or the first DH group number in the first
+        // SaProposal.
+        int dhGroup =
+                capabilities != null
+                        ? capabilities.selectDhGroup(saProposals[0])
+                        : saProposals[0].getDhGroupTransforms()[0].id;
+        IkeKePayload kePayload = new IkeKePayload(dhGroup);
         payloadList.add(kePayload);
 
         // Build Nonce Payload
         IkeNoncePayload noncePayload = new IkeNoncePayload();
         payloadList.add(noncePayload);
 
-        // TODO: Add Notification Payloads according to user configurations.
+        // Build NAT detection Notification Payloads
+        payloadList.addAll(buildNatDetectionPayloads(initSpi, respSpi));
+
+        // TODO: Add other Notification Payloads according to user configurations.
 
         // Build IKE header
         IkeHeader ikeHeader =
@@ -218,12 +370,115 @@ public class IkeSessionStateMachine extends StateMachine {
         return new IkeMessage(ikeHeader, payloadList);
     }
 
+    private List<IkeNotifyPayload> buildNatDetectionPayloads(long initSpi, long respSpi) {
+        List<IkeNotifyPayload> payloadList = new LinkedList<>();
+
+        InetAddress serverAddress = mIkeSessionOptions.getServerAddress();
+        try {
+            mLocalSocketAddress = mIkeSocket.getLocalSocketAddress(serverAddress);
+        } catch (ErrnoException | IOException e) {
+            // Without NAT detection, NAT-keepalive packets are not sent for this session.
+            Log.w(TAG, "Failed to get local address. Skip NAT detection.", e);
+            mLocalSocketAddress = null;
+            return payloadList;
+        }
+
+        payloadList.add(
+                new IkeNotifyPayload(
+                        IkeNotifyPayload.NOTIFY_TYPE_NAT_DETECTION_SOURCE_IP,
+                        generateNatDetectionData(
+                                initSpi,
+                                respSpi,
+                                mLocalSocketAddress.getAddress(),
+                                mLocalSocketAddress.getPort())));
+        payloadList.add(
+                new IkeNotifyPayload(
+                        IkeNotifyPayload.NOTIFY_TYPE_NAT_DETECTION_DESTINATION_IP,
+                        generateNatDetectionData(
+                                initSpi, respSpi, serverAddress, IkeSocket.IKE_SERVER_PORT)));
+        return payloadList;
+    }
+
+    private static byte[] generateNatDetectionData(
+            long initSpi, long respSpi, InetAddress ipAddress, int port) {
+        try {
+            return IkeNotifyPayload.generateNatDetectionData(initSpi, respSpi, ipAddress, port);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Failed to generate NAT detection data.", e);
+        }
+    }
+
+    private IkeMessage buildIkeSessionResumeReq(IkeSessionTicket ticket) {
+        List<IkePayload> payloadList = new LinkedList<>();
+
+        // Build Nonce Payload and Notify Payload carrying the ticket. SA and KE payloads are not
+        // sent; the resumed IKE SA uses the algorithms negotiated for the ticket.
+        payloadList.add(new IkeNoncePayload());
+        payloadList.add(
+                new IkeNotifyPayload(IkeNotifyPayload.NOTIFY_TYPE_TICKET_OPAQUE, ticket.ticket));
+
+        IkeHeader ikeHeader =
+                new IkeHeader(
+                        getIkeSpiOrThrow(),
+                        0 /*respSpi*/,
+                        IkePayload.PAYLOAD_TYPE_NONCE,
+                        IkeHeader.EXCHANGE_TYPE_IKE_SESSION_RESUME,
+                        false /*isResponseMsg*/,
+                        true /*fromIkeInitiator*/,
+                        0 /*messageId*/);
+
+        return new IkeMessage(ikeHeader, payloadList);
+    }
+
     private IkeMessage buildIkeAuthReq() {
         // TODO: Build IKE_AUTH request according to mIkeSessionOptions and
-        // firstChildSessionOptions.
+        // firstChildSessionOptions. Include HTTP_CERT_LOOKUP_SUPPORTED with CERTREQ if
+        // mIkeSessionOptions.isHttpCertLookupSupported(), and only send certificates as
+        // "Hash and URL" if mIsPeerHttpCertLookupSupported. Include TICKET_REQUEST if
+        // mIkeSessionOptions.isSessionResumptionEnabled(). If mResumptionTicket is not null,
+        // authenticate with the keys of the resumed IKE SA as specified in RFC 5723 section 5.2.
+        // Include MOBIKE_SUPPORTED if mIkeSessionOptions.isMobikeEnabled().
         return null;
     }
 
+    private IkeMessage buildUpdateSaAddressesReq(byte[] cookie2) {
+        List<IkePayload> payloadList = new LinkedList<>();
+
+        payloadList.add(
+                new IkeNotifyPayload(
+                        IkeNotifyPayload.NOTIFY_TYPE_UPDATE_SA_ADDRESSES, new byte[0]));
+        payloadList.add(new IkeNotifyPayload(IkeNotifyPayload.NOTIFY_TYPE_COOKIE2, cookie2));
+        // TODO: Add NAT_DETECTION_SOURCE_IP and NAT_DETECTION_DESTINATION_IP calculated for the
+        // new socket.
+
+        IkeHeader ikeHeader =
+                new IkeHeader(
+                        mCurrentIkeSaRecord.initiatorSpi,
+                        mCurrentIkeSaRecord.responderSpi,
+                        IkePayload.PAYLOAD_TYPE_SK,
+                        IkeHeader.EXCHANGE_TYPE_INFORMATIONAL,
+                        false /*isResponseMsg*/,
+                        mCurrentIkeSaRecord.isLocalInit /*fromIkeInitiator*/,
+                        mCurrentIkeSaRecord.getLocalRequestMessageId());
+
+        return new IkeMessage(ikeHeader, payloadList);
+    }
+
+    private IkeMessage buildDpdReq() {
+        IkeHeader ikeHeader =
+                new IkeHeader(
+                        mCurrentIkeSaRecord.initiatorSpi,
+                        mCurrentIkeSaRecord.responderSpi,
+                        IkePayload.PAYLOAD_TYPE_SK,
+                        IkeHeader.EXCHANGE_TYPE_INFORMATIONAL,
+                        false /*isResponseMsg*/,
+                        mCurrentIkeSaRecord.isLocalInit /*fromIkeInitiator*/,
+                        mCurrentIkeSaRecord.getLocalRequestMessageId());
+
+        // An empty INFORMATIONAL request only checks whether the remote is alive.
+        return new IkeMessage(ikeHeader, new LinkedList<>());
+    }
+
     private IkeMessage buildIkeDeleteReq(IkeSaRecord ikeSaRecord) {
         // TODO: Implement it.
         return null;
@@ -246,12 +501,219 @@ public class IkeSessionStateMachine extends StateMachine {
 
     private void validateIkeInitResp(IkeMessage reqMsg, IkeMessage respMsg) throws IkeException {
         // TODO: Validate ikeMessage against IKE_INIT request and set confiugration negotiation
-        // results
-        // in mIkeSessionOptions(e.g.NAT detecting result).
+        // results in mIkeSessionOptions.
+        mIsPeerHttpCertLookupSupported = false;
+        SaProposal negotiatedProposal = null;
+        List<byte[]> natSourceDataList = new LinkedList<>();
+        byte[] natDestinationData = null;
+        for (IkePayload payload : respMsg.ikePayloadList) {
+            if (payload instanceof IkeSaPayload) {
+                negotiatedProposal =
+                        ((IkeSaPayload) payload)
+                                .getVerifiedNegotiatedProposal(
+                                        getPayloadForType(reqMsg, IkeSaPayload.class));
+                continue;
+            }
+            if (!(payload instanceof IkeNotifyPayload)) continue;
+
+            IkeNotifyPayload notifyPayload = (IkeNotifyPayload) payload;
+            switch (notifyPayload.notifyType) {
+                case IkeNotifyPayload.NOTIFY_TYPE_NO_PROPOSAL_CHOSEN:
+                    throw new NoValidProposalChosenException("No proposal is acceptable.");
+                case IkeNotifyPayload.NOTIFY_TYPE_HTTP_CERT_LOOKUP_SUPPORTED:
+                    mIsPeerHttpCertLookupSupported = true;
+                    break;
+                case IkeNotifyPayload.NOTIFY_TYPE_NAT_DETECTION_SOURCE_IP:
+                    // The remote server may send one for each of its addresses.
+                    natSourceDataList.add(notifyPayload.notifyData);
+                    break;
+                case IkeNotifyPayload.NOTIFY_TYPE_NAT_DETECTION_DESTINATION_IP:
+                    natDestinationData = notifyPayload.notifyData;
+                    break;
+                default:
+                    // Other notifications are not handled here.
+            }
+        }
+
+        mIsNatDetected = isNatDetected(respMsg.ikeHeader, natSourceDataList, natDestinationData);
+        mPendingPeerCapabilities =
+                new PeerCapabilities(
+                        getPayloadForType(reqMsg, IkeKePayload.class).dhGroup,
+                        negotiatedProposal,
+                        mIsPeerHttpCertLookupSupported);
+    }
+
+    // Compare NAT detection data of IKE_INIT response with hashes of the addresses and ports that
+    // IKE packets are exchanged between, as described in RFC 7296 section 2.23. The SPIs are taken
+    // from the response header.
+    private boolean isNatDetected(
+            IkeHeader respHeader, List<byte[]> natSourceDataList, byte[] natDestinationData) {
+        // NAT detection was not requested, or the remote server does not support it.
+        if (mLocalSocketAddress == null
+                || natSourceDataList.isEmpty()
+                || natDestinationData == null) {
+            return false;
+        }
+
+        byte[] expectedSourceData =
+                generateNatDetectionData(
+                        respHeader.ikeInitiatorSpi,
+                        respHeader.ikeResponderSpi,
+                        mIkeSessionOptions.getServerAddress(),
+                        IkeSocket.IKE_SERVER_PORT);
+        boolean isRemoteBehindNat = true;
+        for (byte[] natSourceData : natSourceDataList) {
+            if (Arrays.equals(expectedSourceData, natSourceData)) isRemoteBehindNat = false;
+        }
+
+        byte[] expectedDestinationData =
+                generateNatDetectionData(
+                        respHeader.ikeInitiatorSpi,
+                        respHeader.ikeResponderSpi,
+                        mLocalSocketAddress.getAddress(),
+                        mLocalSocketAddress.getPort());
+        boolean isLocalBehindNat = !Arrays.equals(expectedDestinationData, natDestinationData);
+
+        return isRemoteBehindNat || isLocalBehindNat;
+    }
+
+    // Return the DH group requested in INVALID_KE_PAYLOAD, or DH_GROUP_NONE if there is none.
+    @SaProposal.DhGroup
+    private static int getRequestedDhGroup(IkeMessage respMsg) throws InvalidSyntaxException {
+        for (IkePayload payload : respMsg.ikePayloadList) {
+            if (!(payload instanceof IkeNotifyPayload)) continue;
+
+            IkeNotifyPayload notifyPayload = (IkeNotifyPayload) payload;
+            if (notifyPayload.notifyType != IkeNotifyPayload.NOTIFY_TYPE_INVALID_KE_PAYLOAD) {
+                continue;
+            }
+            if (notifyPayload.notifyData.length != DH_GROUP_LEN) {
+                throw new InvalidSyntaxException(
+                        "Invalid INVALID_KE_PAYLOAD data length: "
+                                + notifyPayload.notifyData.length);
+            }
+            return Short.toUnsignedInt(ByteBuffer.wrap(notifyPayload.notifyData).getShort());
+        }
+        return SaProposal.DH_GROUP_NONE;
+    }
+
+    // Return whether any locally configured proposal contains the DH group.
+    private boolean isDhGroupProposed(@SaProposal.DhGroup int dhGroup) {
+        for (SaProposal saProposal : mIkeSessionOptions.getSaProposals()) {
+            for (DhGroupTransform transform : saProposal.getDhGroupTransforms()) {
+                if (transform.id == dhGroup) return true;
+            }
+        }
+        return false;
+    }
+
+    private static <T extends IkePayload> T getPayloadForType(IkeMessage ikeMessage, Class<T> type)
+            throws InvalidSyntaxException {
+        for (IkePayload payload : ikeMessage.ikePayloadList) {
+            if (type.isInstance(payload)) return type.cast(payload);
+        }
+        throw new InvalidSyntaxException("Missing " + type.getSimpleName());
     }
 
     private void validateIkeAuthResp(IkeMessage reqMsg, IkeMessage respMsg) throws IkeException {
-        // TODO: Validate ikeMessage against IKE_AUTH request and mIkeSessionOptions.
+        // TODO: Validate ikeMessage against IKE_AUTH request and mIkeSessionOptions. When crypto
+        // offload is enabled, parse certificates and verify the AUTH payload with
+        // offloadCryptoOperation() instead of on the IKE working thread.
+        mIsMobikeNegotiated = false;
+        byte[] ticketLtOpaqueData = null;
+        for (IkePayload payload : respMsg.ikePayloadList) {
+            if (!(payload instanceof IkeNotifyPayload)) continue;
+            IkeNotifyPayload notifyPayload = (IkeNotifyPayload) payload;
+            switch (notifyPayload.notifyType) {
+                case IkeNotifyPayload.NOTIFY_TYPE_MOBIKE_SUPPORTED:
+                    mIsMobikeNegotiated = mIkeSessionOptions.isMobikeEnabled();
+                    break;
+                case IkeNotifyPayload.NOTIFY_TYPE_TICKET_LT_OPAQUE:
+                    ticketLtOpaqueData = notifyPayload.notifyData;
+                    break;
+                case IkeNotifyPayload.NOTIFY_TYPE_SET_WINDOW_SIZE:
+                    mCurrentIkeSaRecord.setPeerWindowSize(getWindowSize(notifyPayload));
+                    break;
+                default:
+                    // Ignore other notifications.
+            }
+        }
+
+        if (ticketLtOpaqueData != null && mIkeSessionOptions.isSessionResumptionEnabled()) {
+            storeSessionTicket(ticketLtOpaqueData);
+        }
+    }
+
+    private static int getWindowSize(IkeNotifyPayload notifyPayload)
+            throws InvalidSyntaxException {
+        if (notifyPayload.notifyData.length != WINDOW_SIZE_LEN) {
+            throw new InvalidSyntaxException(
+                    "Invalid SET_WINDOW_SIZE data length: " + notifyPayload.notifyData.length);
+        }
+        long windowSize =
+                Integer.toUnsignedLong(ByteBuffer.wrap(notifyPayload.notifyData).getInt());
+        if (windowSize < 1) {
+            throw new InvalidSyntaxException("Invalid window size: " + windowSize);
+        }
+        // Outstanding requests are also bounded by local resources.
+        return (int) Math.min(windowSize, MAX_PEER_WINDOW_SIZE);
+    }
+
+    // Store the ticket issued for the current IKE SA so that the next IKE session to the same
+    // server can be resumed. A malformed ticket only disables resumption, so it is not treated as
+    // an error of the IKE_AUTH exchange.
+    private void storeSessionTicket(byte[] ticketLtOpaqueData) {
+        IkeSessionTicketStore ticketStore = IkeSessionTicketStore.getInstance();
+        try {
+            IkeSessionTicket ticket =
+                    IkeSessionTicket.fromTicketLtOpaque(
+                            ticketLtOpaqueData,
+                            mCurrentIkeSaRecord.getSkD(),
+                            mCurrentIkeSaRecord.getSaProposal(),
+                            ticketStore.getCurrentTimeMillis());
+            ticketStore.put(mIkeSessionOptions.getServerAddress(), ticket);
+        } catch (InvalidSyntaxException e) {
+            Log.w(TAG, "Ignore malformed TICKET_LT_OPAQUE notification.", e);
+        }
+    }
+
+    // Return whether the response carries the COOKIE2 that was sent in the request.
+    private static boolean isCookie2Echoed(IkeMessage respMsg, byte[] cookie2) {
+        for (IkePayload payload : respMsg.ikePayloadList) {
+            if (payload instanceof IkeNotifyPayload
+                    && ((IkeNotifyPayload) payload).notifyType
+                            == IkeNotifyPayload.NOTIFY_TYPE_COOKIE2) {
+                return Arrays.equals(cookie2, ((IkeNotifyPayload) payload).notifyData);
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasErrorNotify(IkeMessage ikeMessage) {
+        for (IkePayload payload : ikeMessage.ikePayloadList) {
+            if (payload instanceof IkeNotifyPayload
+                    && ((IkeNotifyPayload) payload).isErrorNotify()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Return whether the remote server accepted the ticket in IKE_SESSION_RESUME response.
+    private static boolean isIkeSessionResumeAccepted(IkeMessage respMsg) {
+        boolean hasNonce = false;
+        for (IkePayload payload : respMsg.ikePayloadList) {
+            if (payload.payloadType == IkePayload.PAYLOAD_TYPE_NONCE) {
+                hasNonce = true;
+            } else if (payload instanceof IkeNotifyPayload) {
+                IkeNotifyPayload notifyPayload = (IkeNotifyPayload) payload;
+                if (notifyPayload.isErrorNotify()
+                        || notifyPayload.notifyType == IkeNotifyPayload.NOTIFY_TYPE_TICKET_NACK) {
+                    return false;
+                }
+            }
+        }
+        return hasNonce;
     }
 
     private void validateIkeDeleteReq(IkeMessage ikeMessage) throws IkeException {
@@ -272,6 +734,77 @@ public class IkeSessionStateMachine extends StateMachine {
 
     // TODO: Add methods for building and validating general Informational packet.
 
+    // Start the soft and hard lifetimes of a newly established IKE SA, and release the rekey permit
+    // of the IKE SA it replaces.
+    private void scheduleIkeRekey() {
+        sRekeyScheduler.finishRekey(mIkeRekeyCallback);
+        getHandler().removeCallbacks(mIkeSoftLifetimeTimeout);
+        getHandler()
+                .postDelayed(
+                        mIkeSoftLifetimeTimeout,
+                        sRekeyScheduler.computeSoftLifetimeMs(
+                                IkeRekeyScheduler.IKE_HARD_LIFETIME_MS_DEFAULT));
+        removeMessages(CMD_IKE_HARD_LIFETIME_EXPIRED);
+        sendMessageDelayed(
+                CMD_IKE_HARD_LIFETIME_EXPIRED, IkeRekeyScheduler.IKE_HARD_LIFETIME_MS_DEFAULT);
+    }
+
+    private void handleIkeHardLifetimeExpired() {
+        // The IKE SA was not rekeyed in time and MUST NOT be used any more.
+        // TODO: Notify the user, and send Delete IKE SA request once encrypted requests can be
+        // sent.
+        transitionTo(mClosed);
+    }
+
+    private void handlePeerDead() {
+        // All SAs are deleted locally when entering Closed.
+        // TODO: Notify the user once IKE sessions have a user callback.
+        transitionTo(mClosed);
+    }
+
+    // Delete all IKE SAs and Child Sessions without sending Delete requests, e.g. because the
+    // remote server is dead or an SA expired.
+    private void deleteAllSasLocally() {
+        // A Child Session is registered once for each of its Child SAs.
+        Set<ChildSessionStateMachine> childSessions = new HashSet<>();
+        for (int i = 0; i < mSpiToChildSessionMap.size(); i++) {
+            childSessions.add(mSpiToChildSessionMap.valueAt(i));
+        }
+        for (ChildSessionStateMachine childSession : childSessions) {
+            childSession.killSession();
+        }
+        mSpiToChildSessionMap.clear();
+
+        mSpiToSaRecordMap.clear();
+        mCurrentIkeSaRecord = null;
+        mLocalInitNewIkeSaRecord = null;
+        mRemoteInitNewIkeSaRecord = null;
+        mIkeSaRecordSurviving = null;
+        mIkeSaRecordAwaitingLocalDel = null;
+        mIkeSaRecordAwaitingRemoteDel = null;
+    }
+
+    // Release the rekey permit, timers, NAT-keepalives and IkeSocket held by this IKE session. It
+    // is called when the IKE session is closed and again when it quits.
+    private void releaseSharedResources() {
+        getHandler().removeCallbacks(mIkeSoftLifetimeTimeout);
+        removeMessages(CMD_IKE_HARD_LIFETIME_EXPIRED);
+        sRekeyScheduler.finishRekey(mIkeRekeyCallback);
+        if (mIkeSocket == null) return;
+
+        if (mIsNatKeepaliveStarted) {
+            mIkeSocket.stopNatKeepalive(mIkeSessionOptions.getServerAddress());
+            mIsNatKeepaliveStarted = false;
+        }
+        mIkeSocket.unregisterIkeSession(this);
+        mIkeSocket.releaseReference();
+        mIkeSocket = null;
+    }
+
+    private void requestIkeRekey() {
+        sRekeyScheduler.requestRekey(mIkeSessionOptions.getServerAddress(), mIkeRekeyCallback);
+    }
+
     private void addIkeSaRecord(IkeSaRecord record) {
         mSpiToSaRecordMap.put(record.getRemoteSpi(), record);
     }
@@ -280,6 +813,14 @@ public class IkeSessionStateMachine extends StateMachine {
         mSpiToSaRecordMap.remove(record.getRemoteSpi());
     }
 
+    private IkeSaRecord getIkeSaRecordForPacket(IkeHeader ikeHeader) {
+        if (ikeHeader.fromIkeInitiator) {
+            return mSpiToSaRecordMap.get(ikeHeader.ikeInitiatorSpi);
+        } else {
+            return mSpiToSaRecordMap.get(ikeHeader.ikeResponderSpi);
+        }
+    }
+
     /**
      * Receive IKE packet from remote server.
      *
@@ -293,6 +834,24 @@ public class IkeSessionStateMachine extends StateMachine {
         sendMessage(CMD_RECEIVE_IKE_PACKET, new ReceivedIkePacket(ikeHeader, ikePacketBytes));
     }
 
+    /**
+     * Move the IKE session to another UdpEncapsulationSocket, e.g. after the default network
+     * changed.
+     *
+     * <p>The IKE SA is kept and only its addresses are updated with MOBIKE. Addresses of IPsec SAs
+     * of Child Sessions are not updated yet.
+     *
+     * @param udpEncapSocket the UdpEncapsulationSocket on the new network.
+     * @throws IllegalStateException if MOBIKE has not been negotiated. The IKE session cannot be
+     *     moved and a new IKE session needs to be created on the new network instead.
+     */
+    public void updateSaAddresses(UdpEncapsulationSocket udpEncapSocket) {
+        if (!mIsMobikeNegotiated) {
+            throw new IllegalStateException("MOBIKE is not negotiated");
+        }
+        sendMessage(CMD_LOCAL_REQUEST_UPDATE_SA_ADDRESSES, udpEncapSocket);
+    }
+
     /**
      * ReceivedIkePacket is a package private data container consists of decoded IkeHeader and
      * encoded IKE packet in a byte array.
@@ -309,6 +868,92 @@ public class IkeSessionStateMachine extends StateMachine {
         }
     }
 
+    /** Package private */
+    @VisibleForTesting
+    static void setCryptoExecutor(Executor executor) {
+        sCryptoExecutor = executor;
+    }
+
+    /** Package private */
+    @VisibleForTesting
+    static void setRekeyScheduler(IkeRekeyScheduler rekeyScheduler) {
+        sRekeyScheduler = rekeyScheduler;
+    }
+
+    @Override
+    protected void onQuitting() {
+        releaseSharedResources();
+    }
+
+    // Install the IKE SA derived from IKE_INIT exchange and start IKE_AUTH exchange. Close the IKE
+    // session if the keys of the IKE SA could not be derived.
+    private void establishFirstIkeSa(IkeSaRecord ikeSaRecord, Exception derivationError) {
+        if (ikeSaRecord == null) {
+            // The working thread is shared by all IKE sessions, so no exception is rethrown.
+            mPendingPeerCapabilities = null;
+            mPendingIkeInitRttMs = -1L;
+            IkePeerCapabilityCache.getInstance().invalidate(mIkeSessionOptions.getServerAddress());
+            // The IKE SA cannot be established without its keys.
+            Log.e(TAG, "Failed to derive keys of the IKE SA.", derivationError);
+            transitionTo(mClosed);
+            return;
+        }
+
+        mCurrentIkeSaRecord = ikeSaRecord;
+        addIkeSaRecord(mCurrentIkeSaRecord);
+        transitionTo(mCreateIkeLocalIkeAuth);
+    }
+
+    /**
+     * ICryptoOperation represents a cryptographic operation that can run on a worker thread.
+     *
+     * <p>An ICryptoOperation MUST NOT access states of IkeSessionStateMachine since it runs
+     * concurrently with the IKE working thread.
+     */
+    private interface ICryptoOperation {
+        Object run() throws IkeException, GeneralSecurityException;
+    }
+
+    /**
+     * CryptoOperationResult is a package private data container that carries the outcome of an
+     * offloaded cryptographic operation back to the IKE working thread.
+     */
+    static class CryptoOperationResult {
+        /** Token of the operation */
+        public final int token;
+        /** Value returned by the operation, or null if it failed */
+        public final Object value;
+        /** Exception thrown by the operation, or null if it succeeded */
+        public final Exception exception;
+
+        CryptoOperationResult(int token, Object value, Exception exception) {
+            this.token = token;
+            this.value = value;
+            this.exception = exception;
+        }
+    }
+
+    // Run operation on the crypto executor and post its outcome as CMD_CRYPTO_OPERATION_COMPLETE.
+    // If the executor is saturated, CMD_RETRY_CRYPTO_OPERATION is posted instead, so that the
+    // operation never runs on the IKE working thread.
+    private void offloadCryptoOperation(ICryptoOperation operation) {
+        final int token = ++mCryptoOperationToken;
+        try {
+            sCryptoExecutor.execute(
+                    () -> {
+                        CryptoOperationResult result;
+                        try {
+                            result = new CryptoOperationResult(token, operation.run(), null);
+                        } catch (IkeException | GeneralSecurityException | RuntimeException e) {
+                            result = new CryptoOperationResult(token, null, e);
+                        }
+                        sendMessage(CMD_CRYPTO_OPERATION_COMPLETE, result);
+                    });
+        } catch (RejectedExecutionException e) {
+            sendMessageDelayed(CMD_RETRY_CRYPTO_OPERATION, operation, CRYPTO_RETRY_DELAY_MS);
+        }
+    }
+
     /**
      * Interface for ChildSessionStateMachine to notify IkeSessionStateMachine.
      *
@@ -352,7 +997,16 @@ public class IkeSessionStateMachine extends StateMachine {
         public boolean processMessage(Message message) {
             switch (message.what) {
                 case CMD_LOCAL_REQUEST_CREATE_IKE:
-                    transitionTo(mCreateIkeLocalIkeInit);
+                    if (mIkeSessionOptions.isSessionResumptionEnabled()) {
+                        mResumptionTicket =
+                                IkeSessionTicketStore.getInstance()
+                                        .take(mIkeSessionOptions.getServerAddress());
+                    }
+                    if (mResumptionTicket != null) {
+                        transitionTo(mCreateIkeLocalIkeResume);
+                    } else {
+                        transitionTo(mCreateIkeLocalIkeInit);
+                    }
                     return HANDLED;
                 default:
                     return NOT_HANDLED;
@@ -363,25 +1017,75 @@ public class IkeSessionStateMachine extends StateMachine {
     /**
      * Closed represents the state when this IkeSessionStateMachine is closed, and no further
      * actions can be performed on it.
+     *
+     * <p>All SAs are deleted locally, and resources shared with other IKE sessions are released
+     * when entering Closed, without waiting for the IkeSessionStateMachine to quit.
      */
     class Closed extends State {
-        // TODO:Implement it.
+        @Override
+        public void enter() {
+            deleteAllSasLocally();
+            releaseSharedResources();
+        }
     }
 
     /**
      * Idle represents a state when there is no ongoing IKE exchange affecting established IKE SA.
      */
     class Idle extends State {
+        @Override
+        public void enter() {
+            if (mIkeSessionOptions.isDpdEnabled()) {
+                sendMessageDelayed(
+                        CMD_LOCAL_REQUEST_DPD, mLivenessMonitor.getDelayUntilProbeMs());
+            }
+        }
+
+        @Override
+        public void exit() {
+            removeMessages(CMD_LOCAL_REQUEST_DPD);
+        }
+
         @Override
         public boolean processMessage(Message message) {
             switch (message.what) {
+                case CMD_LOCAL_REQUEST_DPD:
+                    long delayMs = mLivenessMonitor.getDelayUntilProbeMs();
+                    if (delayMs > 0L) {
+                        // Traffic was received since the timer was set.
+                        sendMessageDelayed(CMD_LOCAL_REQUEST_DPD, delayMs);
+                    } else {
+                        transitionTo(mDpdIkeLocalInfo);
+                    }
+                    return HANDLED;
                 case CMD_RECEIVE_IKE_PACKET:
+                    if (answerEmptyInformationalRequest((ReceivedIkePacket) message.obj)) {
+                        return HANDLED;
+                    }
                     deferMessage(message);
                     transitionTo(mReceiving);
                     return HANDLED;
                 case CMD_LOCAL_REQUEST_REKEY_IKE:
+                    if (message.arg1 == REKEY_SCHEDULED
+                            && !sRekeyScheduler.isRekeyPermitted(mIkeRekeyCallback)) {
+                        // The IKE SA has been rekeyed by the remote since the permit was granted.
+                        return HANDLED;
+                    }
                     transitionTo(mRekeyIkeLocalCreate);
                     return HANDLED;
+                case CMD_IKE_HARD_LIFETIME_EXPIRED:
+                    handleIkeHardLifetimeExpired();
+                    return HANDLED;
+                case CMD_LOCAL_REQUEST_UPDATE_SA_ADDRESSES:
+                    if (!mIsMobikeNegotiated) {
+                        // updateSaAddresses() already rejects this. Never leave the IKE session
+                        // on a socket the caller has moved away from.
+                        transitionTo(mClosed);
+                        return HANDLED;
+                    }
+                    mPendingUdpEncapSocket = (UdpEncapsulationSocket) message.obj;
+                    transitionTo(mUpdateSaAddressesLocal);
+                    return HANDLED;
                 default:
                     return NOT_HANDLED;
                     // TODO: Add more cases for supporting local request.
@@ -397,6 +1101,19 @@ public class IkeSessionStateMachine extends StateMachine {
                 case CMD_RECEIVE_IKE_PACKET:
                     handleReceivedIkePacket(message);
                     return HANDLED;
+                case CMD_LOCAL_REQUEST_REKEY_IKE:
+                    // Wait until the ongoing procedure finishes so that a granted rekey permit is
+                    // not lost.
+                    deferMessage(message);
+                    return HANDLED;
+                case CMD_LOCAL_REQUEST_UPDATE_SA_ADDRESSES:
+                    // The caller has moved away from the current socket, so the update is never
+                    // dropped. It starts once the ongoing procedure finishes.
+                    deferMessage(message);
+                    return HANDLED;
+                case CMD_IKE_HARD_LIFETIME_EXPIRED:
+                    handleIkeHardLifetimeExpired();
+                    return HANDLED;
                 default:
                     return NOT_HANDLED;
             }
@@ -404,6 +1121,8 @@ public class IkeSessionStateMachine extends StateMachine {
 
         protected void handleReceivedIkePacket(Message message) {
             ReceivedIkePacket receivedIkePacket = (ReceivedIkePacket) message.obj;
+            if (answerEmptyInformationalRequest(receivedIkePacket)) return;
+
             IkeHeader ikeHeader = receivedIkePacket.ikeHeader;
             byte[] ikePacketBytes = receivedIkePacket.ikePacketBytes;
             IkeSaRecord ikeSaRecord = getIkeSaRecordForPacket(ikeHeader);
@@ -411,6 +1130,8 @@ public class IkeSessionStateMachine extends StateMachine {
                 IkeMessage ikeMessage =
                         IkeMessage.decode(
                                 mIkeSessionOptions, ikeSaRecord, ikeHeader, ikePacketBytes);
+                // Only a message that passed integrity check proves that the remote is alive.
+                mLivenessMonitor.onInboundActivity();
                 int messageType = ikeMessage.getMessageType();
                 // TODO: Handle fatal error notifications.
                 handleIkeMessage(ikeMessage, messageType, message);
@@ -453,14 +1174,6 @@ public class IkeSessionStateMachine extends StateMachine {
             // TODO: Initiate Delete IKE Exchange
         }
 
-        protected IkeSaRecord getIkeSaRecordForPacket(IkeHeader ikeHeader) {
-            if (ikeHeader.fromIkeInitiator) {
-                return mSpiToSaRecordMap.get(ikeHeader.ikeInitiatorSpi);
-            } else {
-                return mSpiToSaRecordMap.get(ikeHeader.ikeResponderSpi);
-            }
-        }
-
         protected abstract void handleIkeMessage(
                 IkeMessage ikeMessage, int messageType, Message message);
     }
@@ -469,15 +1182,29 @@ public class IkeSessionStateMachine extends StateMachine {
      * Receiving represents a state when idle IkeSessionStateMachine receives an incoming packet.
      */
     class Receiving extends BaseState {
+        @Override
+        protected void handleReceivedIkePacket(Message message) {
+            // Go back to Idle unless the packet starts a procedure.
+            transitionTo(mIdle);
+            super.handleReceivedIkePacket(message);
+        }
+
         @Override
         protected void handleIkeMessage(IkeMessage ikeMessage, int messageType, Message message) {
+            // A response is never expected in this state, and requests outside the local window
+            // are dropped.
+            if (ikeMessage.ikeHeader.isResponseMsg || !isNewRemoteRequest(ikeMessage.ikeHeader)) {
+                return;
+            }
+
             switch (messageType) {
                 case IkeMessage.MESSAGE_TYPE_REKEY_IKE_REQ:
                     try {
                         validateIkeRekeyReq(ikeMessage);
                         // Reply
                         IkeMessage responseIkeMessage = buildIkeRekeyResp(ikeMessage);
-                        // TODO: Encode and send out responseIkeMessage
+                        // TODO: Encode and send out responseIkeMessage, and keep the packet with
+                        // IkeSaRecord.onRemoteResponseSent() for answering retransmissions.
 
                         mRemoteInitNewIkeSaRecord =
                                 IkeSaRecord.makeNewIkeSaRecord(
@@ -494,25 +1221,189 @@ public class IkeSessionStateMachine extends StateMachine {
         }
     }
 
+    // Classify a request received on an IKE SA with its remote request window. A retransmitted
+    // request that has already been answered gets the same response again.
+    private boolean isNewRemoteRequest(IkeHeader ikeHeader) {
+        IkeSaRecord ikeSaRecord = getIkeSaRecordForPacket(ikeHeader);
+        if (ikeSaRecord == null) return false;
+
+        switch (ikeSaRecord.onRemoteRequestReceived(ikeHeader.messageId)) {
+            case IkeRemoteRequestWindow.REQUEST_NEW:
+                return true;
+            case IkeRemoteRequestWindow.REQUEST_RETRANSMITTED:
+                mIkeSocket.sendIkePacket(
+                        ikeSaRecord.getRemoteResponse(ikeHeader.messageId),
+                        mIkeSessionOptions.getServerAddress());
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Answer an empty INFORMATIONAL request, e.g. a liveness check of the remote server, from the
+     * template of its IKE SA.
+     *
+     * <p>Such a request does not change any state of the IKE session, so it is answered in any
+     * state without a transition and without decoding the request.
+     *
+     * @return whether the packet was an authenticated empty INFORMATIONAL request. It has then
+     *     been answered, or dropped if its Message ID is outside the remote request window.
+     */
+    private boolean answerEmptyInformationalRequest(ReceivedIkePacket receivedIkePacket) {
+        IkeHeader ikeHeader = receivedIkePacket.ikeHeader;
+        IkeSaRecord ikeSaRecord = getIkeSaRecordForPacket(ikeHeader);
+        if (ikeSaRecord == null) return false;
+
+        IkeLivenessResponder livenessResponder = ikeSaRecord.getLivenessResponder();
+        if (livenessResponder == null
+                || !livenessResponder.isEmptyInformationalRequest(
+                        ikeHeader, receivedIkePacket.ikePacketBytes)) {
+            return false;
+        }
+
+        // The integrity checksum has been verified, so the remote is alive.
+        mLivenessMonitor.onInboundActivity();
+        if (isNewRemoteRequest(ikeHeader)) {
+            byte[] responsePacket = livenessResponder.buildResponse(ikeHeader.messageId);
+            ikeSaRecord.onRemoteResponseSent(ikeHeader.messageId, responsePacket);
+            mIkeSocket.sendIkePacket(responsePacket, mIkeSessionOptions.getServerAddress());
+        }
+        return true;
+    }
+
     /**
      * LocalNewExchangeBase represents the common behaviours when IKE library initiates a new
      * exchange.
+     *
+     * <p>The request takes the next Message ID from the local request window of the current IKE
+     * SA. Responses that do not answer an outstanding request are dropped before they are
+     * decrypted.
      */
     private abstract class LocalNewExchangeBase extends BaseState {
         protected IkeMessage mRequestMsg;
         protected byte[] mRequestPacket;
+        protected int mRequestMessageId;
+
+        private long mRetransTimeoutMs;
+        // Sum of the retransmission timeouts scheduled so far.
+        private long mRetransElapsedMs;
+        // Time the request was sent, or -1 if its round-trip time cannot be measured.
+        private long mRequestSentTimeMs;
 
         @Override
         public void enter() {
+            sendRequest();
+        }
+
+        protected void sendRequest() {
             mRequestMsg = buildRequest();
             mRequestPacket = encodeRequest();
-            mIkeSocket.sendIkePacket(mRequestPacket, mIkeSessionOptions.getServerAddress());
-            // TODO: Send out packet and start retransmission timer.
+            mRequestMessageId = addRequestToWindow();
+            getRequestSocket()
+                    .sendIkePacket(mRequestPacket, mIkeSessionOptions.getServerAddress());
+            startRetransmitTimer();
+        }
+
+        // The initial timeout is estimated from round-trip times to the remote. Each retransmission
+        // doubles it, up to the configured ceiling. The request is given up RETRANSMIT_GIVE_UP_MS
+        // after it was first sent.
+        private void startRetransmitTimer() {
+            long rtoMs =
+                    IkeRttEstimator.getInstance()
+                            .getRetransmitTimeoutMs(mIkeSessionOptions.getServerAddress());
+            mRetransTimeoutMs =
+                    Math.min(
+                            Math.max(rtoMs, mIkeSessionOptions.getRetransTimeoutFloorMillis()),
+                            mIkeSessionOptions.getRetransTimeoutCeilingMillis());
+            mRetransElapsedMs = 0L;
+            mRequestSentTimeMs = SystemClock.elapsedRealtime();
+
+            removeMessages(CMD_RETRANSMIT);
+            scheduleRetransmitTimeout();
+        }
+
+        private void scheduleRetransmitTimeout() {
+            long delayMs = Math.min(mRetransTimeoutMs, RETRANSMIT_GIVE_UP_MS - mRetransElapsedMs);
+            mRetransElapsedMs += delayMs;
+            sendMessageDelayed(CMD_RETRANSMIT, delayMs);
+        }
+
+        // CreateIkeLocalIkeInit should override addRequestToWindow() since the IKE SA does not
+        // exist yet.
+        protected int addRequestToWindow() {
+            return mCurrentIkeSaRecord.addLocalRequest();
+        }
+
+        // UpdateSaAddressesLocal should override getRequestSocket() to send from the new socket.
+        protected IkeSocket getRequestSocket() {
+            return mIkeSocket;
+        }
+
+        @Override
+        public boolean processMessage(Message message) {
+            switch (message.what) {
+                case CMD_RETRANSMIT:
+                    handleRetransmitTimeout();
+                    return HANDLED;
+                default:
+                    return super.processMessage(message);
+            }
+        }
+
+        @Override
+        protected void handleReceivedIkePacket(Message message) {
+            IkeHeader ikeHeader = ((ReceivedIkePacket) message.obj).ikeHeader;
+            if (ikeHeader.isResponseMsg) {
+                IkeSaRecord ikeSaRecord = getIkeSaRecordForPacket(ikeHeader);
+                // Duplicate or unsolicited response.
+                if (ikeSaRecord == null
+                        || !ikeSaRecord.isLocalRequestOutstanding(ikeHeader.messageId)) {
+                    return;
+                }
+            }
+            super.handleReceivedIkePacket(message);
+        }
+
+        /**
+         * Return the round-trip time of the request.
+         *
+         * <p>It MUST only be called after the response has been validated against the request.
+         *
+         * @return the time in milliseconds, or -1 if the request was retransmitted.
+         */
+        protected long getRttMs() {
+            if (mRequestSentTimeMs < 0L) return -1L;
+            return SystemClock.elapsedRealtime() - mRequestSentTimeMs;
+        }
+
+        // Only the timer of this exchange backs off. The shared estimate is not changed, so that a
+        // dead exchange does not slow down other IKE sessions to the same remote server.
+        private void handleRetransmitTimeout() {
+            // It is unknown which transmission a later response answers.
+            mRequestSentTimeMs = -1L;
+
+            if (mRetransElapsedMs >= RETRANSMIT_GIVE_UP_MS) {
+                handleRetransmitExhausted();
+                return;
+            }
+            getRequestSocket()
+                    .sendIkePacket(mRequestPacket, mIkeSessionOptions.getServerAddress());
+            mRetransTimeoutMs =
+                    Math.min(
+                            mRetransTimeoutMs * 2,
+                            mIkeSessionOptions.getRetransTimeoutCeilingMillis());
+            scheduleRetransmitTimeout();
+        }
+
+        // Called when the request is not answered within RETRANSMIT_GIVE_UP_MS.
+        protected void handleRetransmitExhausted() {
+            handlePeerDead();
         }
 
         @Override
         public void exit() {
-            // TODO: Stop retransmission
+            removeMessages(CMD_RETRANSMIT);
             mRequestMsg = null;
             mRequestPacket = null;
         }
@@ -526,8 +1417,14 @@ public class IkeSessionStateMachine extends StateMachine {
         }
     }
 
-    /** CreateIkeLocalIkeInit represents state when IKE library initiates IKE_INIT exchange. */
+    /**
+     * CreateIkeLocalIkeInit represents state when IKE library initiates IKE_INIT exchange.
+     *
+     * <p>If the remote server replies with INVALID_KE_PAYLOAD, IKE_INIT request is sent once more
+     * with a KE payload for the requested DH group.
+     */
     class CreateIkeLocalIkeInit extends LocalNewExchangeBase {
+        private boolean mIsRetriedWithRequestedDhGroup;
 
         @Override
         public void enter() {
@@ -547,16 +1444,13 @@ public class IkeSessionStateMachine extends StateMachine {
         }
 
         @Override
-        public boolean processMessage(Message message) {
-            switch (message.what) {
-                case CMD_RECEIVE_IKE_PACKET:
-                    handleReceivedIkePacket(message);
-                    return HANDLED;
-                default:
-                    return NOT_HANDLED;
-            }
+        protected int addRequestToWindow() {
+            // The request always uses Message ID 0, which is accounted for in the window of the
+            // new IKE SA once it is established.
+            return 0;
         }
 
+        @Override
         protected void handleReceivedIkePacket(Message message) {
             ReceivedIkePacket receivedIkePacket = (ReceivedIkePacket) message.obj;
             IkeHeader ikeHeader = receivedIkePacket.ikeHeader;
@@ -576,12 +1470,33 @@ public class IkeSessionStateMachine extends StateMachine {
             switch (messageType) {
                 case IkeMessage.MESSAGE_TYPE_IKE_INIT_RESP:
                     try {
+                        int requestedDhGroup = getRequestedDhGroup(ikeMessage);
+                        if (requestedDhGroup != SaProposal.DH_GROUP_NONE) {
+                            retryWithRequestedDhGroup(requestedDhGroup);
+                            return;
+                        }
                         validateIkeInitResp(mRequestMsg, ikeMessage);
-                        mCurrentIkeSaRecord =
-                                IkeSaRecord.makeFirstIkeSaRecord(mRequestMsg, ikeMessage);
-                        addIkeSaRecord(mCurrentIkeSaRecord);
-                        transitionTo(mCreateIkeLocalIkeAuth);
+                        mPendingIkeInitRttMs = getRttMs();
+                        mIkeInitRequestBytes = mRequestPacket;
+                        mIkeInitResponseBytes = ((ReceivedIkePacket) message.obj).ikePacketBytes;
+                        if (mIkeSessionOptions.isCryptoOffloadEnabled()) {
+                            // Calculate DH shared secret and derive keying materials on a worker.
+                            IkeMessage initRequest = mRequestMsg;
+                            IkeMessage initResponse = ikeMessage;
+                            offloadCryptoOperation(
+                                    () ->
+                                            IkeSaRecord.makeFirstIkeSaRecord(
+                                                    initRequest, initResponse));
+                            transitionTo(mCreateIkeLocalIkeInitAwaitingDh);
+                            return;
+                        }
+                        establishFirstIkeSa(
+                                IkeSaRecord.makeFirstIkeSaRecord(mRequestMsg, ikeMessage), null);
                     } catch (IkeException e) {
+                        mPendingPeerCapabilities = null;
+                        mPendingIkeInitRttMs = -1L;
+                        IkePeerCapabilityCache.getInstance()
+                                .invalidate(mIkeSessionOptions.getServerAddress());
                         // TODO: Handle processing errors.
                     }
                     return;
@@ -590,15 +1505,127 @@ public class IkeSessionStateMachine extends StateMachine {
             }
         }
 
+        private void retryWithRequestedDhGroup(@SaProposal.DhGroup int requestedDhGroup)
+                throws IkeException {
+            int sentDhGroup = getPayloadForType(mRequestMsg, IkeKePayload.class).dhGroup;
+            if (mIsRetriedWithRequestedDhGroup
+                    || requestedDhGroup == sentDhGroup
+                    || !isDhGroupProposed(requestedDhGroup)) {
+                throw new NoValidProposalChosenException(
+                        "Unacceptable DH group in INVALID_KE_PAYLOAD: " + requestedDhGroup);
+            }
+            mIsRetriedWithRequestedDhGroup = true;
+
+            // buildIkeInitReq() picks up the requested DH group. INVALID_KE_PAYLOAD is not
+            // authenticated, so the DH group is not cached before IKE_AUTH exchange succeeds.
+            mPendingPeerCapabilities = new PeerCapabilities(requestedDhGroup);
+            long abandonedSpi = mRequestMsg.ikeHeader.ikeInitiatorSpi;
+            mIkeSocket.unregisterIke(abandonedSpi);
+            releaseIkeSpi(abandonedSpi);
+            sendRequest();
+            mIkeSocket.registerIke(
+                    mRequestMsg.ikeHeader.ikeInitiatorSpi, IkeSessionStateMachine.this);
+        }
+    }
+
+    /**
+     * CreateIkeLocalIkeResume represents state when IKE library initiates IKE_SESSION_RESUME
+     * exchange with a stored ticket.
+     *
+     * <p>If the remote server rejects the ticket, or the keys of the resumed IKE SA cannot be
+     * derived, IKE library falls back to IKE_INIT exchange.
+     */
+    class CreateIkeLocalIkeResume extends CreateIkeLocalIkeInit {
         @Override
-        public void exit() {
-            super.exit();
-            // TODO: Store IKE_INIT request and response in mIkeSessionOptions for IKE_AUTH
+        protected IkeMessage buildRequest() {
+            return buildIkeSessionResumeReq(mResumptionTicket);
+        }
+
+        @Override
+        protected void handleIkeMessage(IkeMessage ikeMessage, int messageType, Message message) {
+            switch (messageType) {
+                case IkeMessage.MESSAGE_TYPE_IKE_SESSION_RESUME_RESP:
+                    if (!isIkeSessionResumeAccepted(ikeMessage)) {
+                        fallBackToIkeInit();
+                        return;
+                    }
+                    // No Diffie-Hellman calculation is needed, so keys are always derived on the
+                    // IKE working thread.
+                    IkeSaRecord resumedIkeSaRecord;
+                    try {
+                        resumedIkeSaRecord =
+                                IkeSaRecord.makeResumedIkeSaRecord(
+                                        mResumptionTicket, mRequestMsg, ikeMessage);
+                    } catch (IkeException e) {
+                        // Keys of the resumed IKE SA cannot be derived from this ticket.
+                        fallBackToIkeInit();
+                        return;
+                    }
+                    mIkeInitRequestBytes = mRequestPacket;
+                    mIkeInitResponseBytes = ((ReceivedIkePacket) message.obj).ikePacketBytes;
+                    mCurrentIkeSaRecord = resumedIkeSaRecord;
+                    addIkeSaRecord(mCurrentIkeSaRecord);
+                    transitionTo(mCreateIkeLocalIkeAuth);
+                    return;
+                default:
+                    // TODO: Handle unexpected message type.
+            }
+        }
+
+        private void fallBackToIkeInit() {
+            long abandonedSpi = mRequestMsg.ikeHeader.ikeInitiatorSpi;
+            mIkeSocket.unregisterIke(abandonedSpi);
+            releaseIkeSpi(abandonedSpi);
+            mResumptionTicket = null;
+            transitionTo(mCreateIkeLocalIkeInit);
+        }
+    }
+
+    /**
+     * CreateIkeLocalIkeInitAwaitingDh represents state when IKE library has received a valid
+     * IKE_INIT response and is waiting for the first IKE SA to be derived on a worker thread.
+     *
+     * <p>The IKE working thread stays available to other IKE sessions in the meantime. Local
+     * requests are deferred until the IKE SA is established. If the keys cannot be derived, the
+     * IKE session is closed.
+     */
+    class CreateIkeLocalIkeInitAwaitingDh extends State {
+        @Override
+        public boolean processMessage(Message message) {
+            switch (message.what) {
+                case CMD_CRYPTO_OPERATION_COMPLETE:
+                    handleCryptoOperationResult((CryptoOperationResult) message.obj);
+                    return HANDLED;
+                case CMD_RETRY_CRYPTO_OPERATION:
+                    offloadCryptoOperation((ICryptoOperation) message.obj);
+                    return HANDLED;
+                case CMD_RECEIVE_IKE_PACKET:
+                    // Only retransmitted IKE_INIT responses can arrive before IKE_AUTH request is
+                    // sent. Drop them.
+                    return HANDLED;
+                default:
+                    deferMessage(message);
+                    return HANDLED;
+            }
+        }
+
+        private void handleCryptoOperationResult(CryptoOperationResult result) {
+            if (result.token != mCryptoOperationToken) return;
+
+            establishFirstIkeSa((IkeSaRecord) result.value, result.exception);
         }
     }
 
     /** CreateIkeLocalIkeAuth represents state when IKE library initiates IKE_AUTH exchange. */
     class CreateIkeLocalIkeAuth extends LocalNewExchangeBase {
+        @Override
+        public void enter() {
+            // IKE_INIT or IKE_SESSION_RESUME request used Message ID 0 of the new IKE SA, and it
+            // has been answered.
+            mCurrentIkeSaRecord.onLocalResponseReceived(mCurrentIkeSaRecord.addLocalRequest());
+            super.enter();
+        }
+
         @Override
         protected IkeMessage buildRequest() {
             return buildIkeAuthReq();
@@ -611,18 +1638,50 @@ public class IkeSessionStateMachine extends StateMachine {
                 case IkeMessage.MESSAGE_TYPE_IKE_AUTH_RESP:
                     try {
                         validateIkeAuthResp(mRequestMsg, ikeMessage);
+                        mCurrentIkeSaRecord.onLocalResponseReceived(ikeMessage.ikeHeader.messageId);
 
                         ChildSessionStateMachine firstChild =
                                 ChildSessionStateMachineFactory.makeChildSessionStateMachine(
                                         "ChildSessionStateMachine",
                                         getHandler().getLooper(),
+                                        mIkeSessionOptions.getServerAddress(),
                                         mFirstChildSessionOptions);
                         // TODO: Replace null input params to payload lists in IKE_AUTH request and
                         // IKE_AUTH response for negotiating Child SA.
                         firstChild.handleFirstChildExchange(null, null, new ChildSessionCallback());
 
+                        if (mPendingPeerCapabilities != null) {
+                            // The remote server is authenticated, and so is its IKE_INIT response.
+                            IkePeerCapabilityCache.getInstance()
+                                    .put(
+                                            mIkeSessionOptions.getServerAddress(),
+                                            mPendingPeerCapabilities);
+                            mPendingPeerCapabilities = null;
+                        }
+                        // TODO: Also measure later exchanges once their encrypted responses are
+                        // authenticated.
+                        if (mPendingIkeInitRttMs >= 0L) {
+                            IkeRttEstimator.getInstance()
+                                    .onRttSample(
+                                            mIkeSessionOptions.getServerAddress(),
+                                            mPendingIkeInitRttMs);
+                            mPendingIkeInitRttMs = -1L;
+                        }
+
+                        scheduleIkeRekey();
+                        if (mIsNatDetected) {
+                            // Keep the NAT binding of mIkeSocket alive.
+                            mIkeSocket.startNatKeepalive(mIkeSessionOptions.getServerAddress());
+                            mIsNatKeepaliveStarted = true;
+                        }
                         transitionTo(mIdle);
                     } catch (IkeException e) {
+                        // Nothing learned from a remote server that failed authentication is
+                        // cached.
+                        mPendingPeerCapabilities = null;
+                        mPendingIkeInitRttMs = -1L;
+                        IkePeerCapabilityCache.getInstance()
+                                .invalidate(mIkeSessionOptions.getServerAddress());
                         // TODO: Handle processing errors.
                     }
                     return;
@@ -675,6 +1734,7 @@ public class IkeSessionStateMachine extends StateMachine {
         // Is also called by SimulRekeyIkeLocalCreate to handle incoming rekey response.
         protected void handleRekeyResp(IkeMessage ikeMessage) throws IkeException {
             validateIkeRekeyResp(mRequestMsg, ikeMessage);
+            mCurrentIkeSaRecord.onLocalResponseReceived(ikeMessage.ikeHeader.messageId);
             mLocalInitNewIkeSaRecord =
                     IkeSaRecord.makeNewIkeSaRecord(mCurrentIkeSaRecord, mRequestMsg, ikeMessage);
             addIkeSaRecord(mLocalInitNewIkeSaRecord);
@@ -771,6 +1831,7 @@ public class IkeSessionStateMachine extends StateMachine {
         }
 
         protected void finishRekey() {
+            scheduleIkeRekey();
             mCurrentIkeSaRecord = mIkeSaRecordSurviving;
             mLocalInitNewIkeSaRecord = null;
             mRemoteInitNewIkeSaRecord = null;
@@ -949,4 +2010,131 @@ public class IkeSessionStateMachine extends StateMachine {
             // TODO: Stop timer awaiting delete request.
         }
     }
+
+    /**
+     * UpdateSaAddressesLocal represents state when IKE library moves the IKE session to a new
+     * UdpEncapsulationSocket with MOBIKE.
+     *
+     * <p>UPDATE_SA_ADDRESSES request is sent from the new socket together with a COOKIE2
+     * notification. The response echoing the COOKIE2 proves that the remote server is reachable on
+     * the new path, which is the return routability check of RFC 4555 section 3.4. Only then is
+     * the IKE SA rebound to the new socket, so moving takes one round trip and no keys change. If
+     * the remote server rejects the update or does not answer on the new path, the IKE session
+     * stays on the old socket.
+     */
+    class UpdateSaAddressesLocal extends LocalNewExchangeBase {
+        private IkeSocket mNewIkeSocket;
+
+        @Override
+        public void enter() {
+            try {
+                mNewIkeSocket = IkeSocket.getIkeSocket(mPendingUdpEncapSocket);
+            } catch (ErrnoException e) {
+                // TODO: Notify the user that the IKE session cannot be moved.
+                transitionTo(mIdle);
+                return;
+            }
+            // Receive the response on the new socket.
+            mNewIkeSocket.registerIke(
+                    mCurrentIkeSaRecord.getLocalSpi(), IkeSessionStateMachine.this);
+            super.enter();
+        }
+
+        @Override
+        public void exit() {
+            super.exit();
+            if (mNewIkeSocket != null) {
+                // The IKE session was not moved.
+                mNewIkeSocket.unregisterIke(mCurrentIkeSaRecord.getLocalSpi());
+                mNewIkeSocket.releaseReference();
+                mNewIkeSocket = null;
+            }
+            mUpdateSaAddressesCookie2 = null;
+            mPendingUdpEncapSocket = null;
+        }
+
+        @Override
+        protected IkeMessage buildRequest() {
+            mUpdateSaAddressesCookie2 = RandomnessFactory.generateRandomBytes(COOKIE2_LEN);
+            return buildUpdateSaAddressesReq(mUpdateSaAddressesCookie2);
+        }
+
+        @Override
+        protected IkeSocket getRequestSocket() {
+            return mNewIkeSocket;
+        }
+
+        @Override
+        protected void handleRetransmitExhausted() {
+            // Only the new path is unreachable. Stay on the old socket, which is released by
+            // exit() otherwise. The request is withdrawn so that its Message ID is used again,
+            // since the remote server may not have received it.
+            // TODO: Notify the user that the IKE session cannot be moved.
+            Log.w(TAG, "UPDATE_SA_ADDRESSES request is not answered. Stay on the old socket.");
+            mCurrentIkeSaRecord.cancelLocalRequest(mRequestMessageId);
+            transitionTo(mIdle);
+        }
+
+        @Override
+        protected void handleIkeMessage(IkeMessage ikeMessage, int messageType, Message message) {
+            switch (messageType) {
+                case IkeMessage.MESSAGE_TYPE_UPDATE_SA_ADDRESSES_RESP:
+                    // A response without the COOKIE2 is not a response to this request. Ignore it
+                    // and keep waiting.
+                    if (!isCookie2Echoed(ikeMessage, mUpdateSaAddressesCookie2)) return;
+
+                    mCurrentIkeSaRecord.onLocalResponseReceived(ikeMessage.ikeHeader.messageId);
+                    if (!hasErrorNotify(ikeMessage)) {
+                        long localSpi = mCurrentIkeSaRecord.getLocalSpi();
+                        mIkeSocket.unregisterIke(localSpi);
+                        if (mIsNatKeepaliveStarted) {
+                            // The NAT binding of the new socket needs keepalives instead.
+                            mIkeSocket.stopNatKeepalive(mIkeSessionOptions.getServerAddress());
+                            mNewIkeSocket.startNatKeepalive(mIkeSessionOptions.getServerAddress());
+                        }
+                        mIkeSocket.releaseReference();
+                        mIkeSocket = mNewIkeSocket;
+                        mNewIkeSocket = null;
+                        // TODO: Update addresses of IPsec SAs of all Child Sessions.
+                    }
+                    transitionTo(mIdle);
+                    return;
+                default:
+                    // TODO: Handle requests from the remote server during the update.
+            }
+        }
+    }
+
+    /**
+     * DpdIkeLocalInfo represents state when IKE library probes an idle remote server with an empty
+     * INFORMATIONAL request for dead peer detection.
+     *
+     * <p>Any response proves that the remote server is alive. If the request is not answered
+     * after all retransmissions, the remote server is considered dead.
+     */
+    class DpdIkeLocalInfo extends LocalNewExchangeBase {
+        @Override
+        public void enter() {
+            super.enter();
+            mLivenessMonitor.onProbeSent();
+        }
+
+        @Override
+        protected IkeMessage buildRequest() {
+            return buildDpdReq();
+        }
+
+        @Override
+        protected void handleIkeMessage(IkeMessage ikeMessage, int messageType, Message message) {
+            switch (messageType) {
+                case IkeMessage.MESSAGE_TYPE_DPD_RESP:
+                    mCurrentIkeSaRecord.onLocalResponseReceived(ikeMessage.ikeHeader.messageId);
+                    mLivenessMonitor.onProbeAnswered();
+                    transitionTo(mIdle);
+                    return;
+                default:
+                    // TODO: Handle requests from the remote server during the probe.
+            }
+        }
+    }
 }
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ike.ikev2;
+
+import com.android.ike.ikev2.exceptions.InvalidSyntaxException;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * IkeSessionTicket is the client side state for resuming an IKE SA.
+ *
+ * <p>It holds the opaque ticket issued by the remote server, together with the SK_d of the IKE SA
+ * the ticket was issued for and the negotiated IKE SA proposal. The ticket is sent back in
+ * IKE_SESSION_RESUME request, and the new IKE SA is derived from SK_d without a Diffie-Hellman
+ * exchange.
+ *
+ * <p>Package private
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc5723">RFC 5723, Internet Key Exchange Protocol
+ *     Version 2 (IKEv2) Session Resumption</a>
+ */
+final class IkeSessionTicket {
+    // Length of Lifetime field in TICKET_LT_OPAQUE notification data.
+    private static final int LIFETIME_LEN = 4;
+
+    /** Opaque ticket to send in TICKET_OPAQUE notification. */
+    final byte[] ticket;
+    /** SK_d of the IKE SA that the ticket was issued for. */
+    final byte[] skD;
+    /** Negotiated proposal of the IKE SA that the ticket was issued for. */
+    final SaProposal saProposal;
+    /** Time in milliseconds after which the ticket must not be used. */
+    final long expiryTimeMs;
+
+    IkeSessionTicket(byte[] ticket, byte[] skD, SaProposal saProposal, long expiryTimeMs) {
+        this.ticket = ticket;
+        this.skD = skD;
+        this.saProposal = saProposal;
+        this.expiryTimeMs = expiryTimeMs;
+    }
+
+    /**
+     * Construct an IkeSessionTicket from the data of a received TICKET_LT_OPAQUE notification.
+     *
+     * @param notifyData the 4-octet lifetime in seconds followed by the ticket.
+     * @param skD SK_d of the current IKE SA.
+     * @param saProposal negotiated proposal of the current IKE SA.
+     * @param nowMs current time in milliseconds.
+     * @return the IkeSessionTicket.
+     * @throws InvalidSyntaxException if the lifetime or the ticket is missing.
+     */
+    static IkeSessionTicket fromTicketLtOpaque(
+            byte[] notifyData, byte[] skD, SaProposal saProposal, long nowMs)
+            throws InvalidSyntaxException {
+        if (notifyData.length <= LIFETIME_LEN) {
+            throw new InvalidSyntaxException(
+                    "Invalid TICKET_LT_OPAQUE data length: " + notifyData.length);
+        }
+
+        ByteBuffer inputBuffer = ByteBuffer.wrap(notifyData);
+        long lifetimeSec = Integer.toUnsignedLong(inputBuffer.getInt());
+        byte[] ticket = new byte[inputBuffer.remaining()];
+        inputBuffer.get(ticket);
+        return new IkeSessionTicket(
+                ticket, skD, saProposal, nowMs + TimeUnit.SECONDS.toMillis(lifetimeSec));
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ike.ikev2;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * IkeSessionTicketStore keeps IKE session resumption tickets keyed by remote server address.
+ *
+ * <p>A ticket is handed out at most once. A ticket that has been sent in IKE_SESSION_RESUME
+ * request is no longer stored, whether the remote server accepts it or not, so that a ticket is
+ * never replayed. A successfully resumed IKE SA obtains a new ticket in its IKE_AUTH exchange.
+ *
+ * <p>Expired tickets are discarded when tickets are looked up or stored. When the store is full,
+ * the least recently stored ticket is evicted.
+ *
+ * <p>IkeSessionTicketStore is thread-safe.
+ */
+public final class IkeSessionTicketStore {
+    @VisibleForTesting static final int DEFAULT_MAX_ENTRIES = 16;
+
+    private static final IkeSessionTicketStore sInstance =
+            new IkeSessionTicketStore(DEFAULT_MAX_ENTRIES, System::currentTimeMillis);
+
+    private final int mMaxEntries;
+    private final LongSupplier mClock;
+
+    // Least recently stored first. Guarded by "this".
+    private final LinkedHashMap<InetAddress, IkeSessionTicket> mTickets = new LinkedHashMap<>();
+
+    /** Package private constructor for configuring bound and time source in tests. */
+    @VisibleForTesting
+    IkeSessionTicketStore(int maxEntries, LongSupplier clock) {
+        mMaxEntries = maxEntries;
+        mClock = clock;
+    }
+
+    /** Get the IkeSessionTicketStore shared by all IKE sessions. */
+    public static IkeSessionTicketStore getInstance() {
+        return sInstance;
+    }
+
+    /** Package private */
+    long getCurrentTimeMillis() {
+        return mClock.getAsLong();
+    }
+
+    /**
+     * Package private method for storing a ticket, replacing any ticket for the same server.
+     *
+     * @param serverAddress the address of the server that issued the ticket.
+     * @param ticket the ticket.
+     */
+    synchronized void put(InetAddress serverAddress, IkeSessionTicket ticket) {
+        discardExpired();
+        mTickets.remove(serverAddress);
+        mTickets.put(serverAddress, ticket);
+
+        Iterator<IkeSessionTicket> iterator = mTickets.values().iterator();
+        while (mTickets.size() > mMaxEntries) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Package private method for removing and returning the ticket for a server.
+     *
+     * @param serverAddress the address of the server.
+     * @return the unexpired ticket, or null if there is none.
+     */
+    synchronized IkeSessionTicket take(InetAddress serverAddress) {
+        IkeSessionTicket ticket = mTickets.remove(serverAddress);
+        if (ticket == null || mClock.getAsLong() >= ticket.expiryTimeMs) return null;
+        return ticket;
+    }
+
+    /**
+     * Discard the ticket for a server.
+     *
+     * <p>It should be called when the server is known to have lost its resumption state.
+     *
+     * @param serverAddress the address of the server.
+     */
+    public synchronized void remove(InetAddress serverAddress) {
+        mTickets.remove(serverAddress);
+    }
+
+    /** Discard all tickets. */
+    public synchronized void clear() {
+        mTickets.clear();
+    }
+
+    /** Return the number of stored tickets, including expired ones not yet discarded. */
+    public synchronized int size() {
+        return mTickets.size();
+    }
+
+    // Guarded by "this".
+    private void discardExpired() {
+        long now = mClock.getAsLong();
+        Iterator<Map.Entry<InetAddress, IkeSessionTicket>> iterator =
+                mTickets.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (now >= iterator.next().getValue().expiryTimeMs) iterator.remove();
+        }
+    }
+}
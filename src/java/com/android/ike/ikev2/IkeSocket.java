@@ -16,13 +16,17 @@
 
 package com.android.ike.ikev2;
 
+import static android.system.OsConstants.AF_INET;
+import static android.system.OsConstants.AF_INET6;
 import static android.system.OsConstants.F_SETFL;
+import static android.system.OsConstants.IPPROTO_UDP;
 import static android.system.OsConstants.SOCK_DGRAM;
 import static android.system.OsConstants.SOCK_NONBLOCK;
 
 import android.net.IpSecManager.UdpEncapsulationSocket;
 import android.net.util.PacketReader;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.system.ErrnoException;
 import android.system.Os;
 import android.util.Log;
@@ -34,11 +38,14 @@ import com.android.internal.annotations.VisibleForTesting;
 
 import java.io.FileDescriptor;
 import java.io.IOException;
+import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * IkeSocket sends and receives IKE packets via the user provided {@link UdpEncapsulationSocket}.
@@ -58,6 +65,10 @@ import java.util.Map;
  *     there is no reference of this instance.
  * </pre>
  *
+ * <p>IkeSocket also sends NAT-keepalive packets for IKE sessions that have registered for them.
+ * Sessions sharing one UdpEncapsulationSocket and one remote server share one NAT binding, so
+ * IkeSocket keeps a single keepalive timer for each server address.
+ *
  * <p>IkeSocket is constructed and called only on a single IKE working thread by {@link
  * IkeSessionStateMachine}. Since all {@link IkeSessionStateMachine}s run on the same working
  * thread, there will not be concurrent modification problems.
@@ -73,6 +84,11 @@ public final class IkeSocket extends PacketReader implements AutoCloseable {
     @VisibleForTesting static final int NON_ESP_MARKER_LEN = 4;
     @VisibleForTesting static final byte[] NON_ESP_MARKER = new byte[NON_ESP_MARKER_LEN];
 
+    // A NAT-keepalive packet is a single octet 0xFF UDP payload. The interval is the recommended
+    // default of RFC 3948.
+    @VisibleForTesting static final byte[] NAT_KEEPALIVE_PACKET = {(byte) 0xff};
+    @VisibleForTesting static final long NAT_KEEPALIVE_INTERVAL_MS = TimeUnit.SECONDS.toMillis(20L);
+
     // Map from UdpEncapsulationSocket to IkeSocket instances.
     private static Map<UdpEncapsulationSocket, IkeSocket> sFdToIkeSocketMap = new HashMap<>();
 
@@ -85,6 +101,10 @@ public final class IkeSocket extends PacketReader implements AutoCloseable {
     // UdpEncapsulationSocket for sending and receving IKE packet.
     private final UdpEncapsulationSocket mUdpEncapSocket;
 
+    private final NatKeepaliveScheduler mNatKeepaliveScheduler;
+    // Map from remote server address to its NAT-keepalive timer.
+    private final Map<InetAddress, Runnable> mNatKeepaliveTimers = new HashMap<>();
+
     /** Package private */
     @VisibleForTesting
     int mRefCount;
@@ -93,6 +113,11 @@ public final class IkeSocket extends PacketReader implements AutoCloseable {
         super(handler);
         mRefCount = 1;
         mUdpEncapSocket = udpEncapSocket;
+        mNatKeepaliveScheduler =
+                new NatKeepaliveScheduler(
+                        NAT_KEEPALIVE_INTERVAL_MS,
+                        SystemClock::elapsedRealtime,
+                        this::sendNatKeepalive);
     }
 
     /**
@@ -216,13 +241,23 @@ public final class IkeSocket extends PacketReader implements AutoCloseable {
      * @param serverAddress IP address of remote server
      */
     public void sendIkePacket(byte[] ikePacket, InetAddress serverAddress) {
-        try {
-            ByteBuffer buffer = ByteBuffer.allocate(NON_ESP_MARKER_LEN + ikePacket.length);
+        ByteBuffer buffer = ByteBuffer.allocate(NON_ESP_MARKER_LEN + ikePacket.length);
+
+        // Build outbound UDP Encapsulation packet body for sending IKE message.
+        buffer.put(NON_ESP_MARKER).put(ikePacket);
+        buffer.rewind();
+
+        sendPacket(buffer, serverAddress);
+        // The IKE packet refreshes the NAT binding, so the next keepalive can be skipped.
+        mNatKeepaliveScheduler.onOutboundTraffic(serverAddress);
+    }
 
-            // Build outbound UDP Encapsulation packet body for sending IKE message.
-            buffer.put(NON_ESP_MARKER).put(ikePacket);
-            buffer.rewind();
+    private void sendNatKeepalive(InetAddress serverAddress) {
+        sendPacket(ByteBuffer.wrap(NAT_KEEPALIVE_PACKET), serverAddress);
+    }
 
+    private void sendPacket(ByteBuffer buffer, InetAddress serverAddress) {
+        try {
             // Use unconnected UDP socket because one {@UdpEncapsulationSocket} may be shared by
             // multiple IKE sessions that send messages to different destinations.
             Os.sendto(
@@ -232,6 +267,85 @@ public final class IkeSocket extends PacketReader implements AutoCloseable {
         }
     }
 
+    /**
+     * Get the local address and port that IKE packets to a remote server are sent from.
+     *
+     * <p>mUdpEncapSocket is bound to the wildcard address, so the source address is looked up by
+     * connecting a temporary UDP socket to the server. Connecting a UDP socket does not send any
+     * packet.
+     *
+     * @param serverAddress IP address of remote server
+     * @return the local address and port
+     * @throws ErrnoException if there is no route to the server.
+     * @throws IOException if the temporary socket cannot be connected.
+     */
+    public InetSocketAddress getLocalSocketAddress(InetAddress serverAddress)
+            throws ErrnoException, IOException {
+        FileDescriptor fd =
+                Os.socket(
+                        serverAddress instanceof Inet4Address ? AF_INET : AF_INET6,
+                        SOCK_DGRAM,
+                        IPPROTO_UDP);
+        try {
+            Os.connect(fd, serverAddress, IKE_SERVER_PORT);
+            InetAddress localAddress = ((InetSocketAddress) Os.getsockname(fd)).getAddress();
+            return new InetSocketAddress(localAddress, mUdpEncapSocket.getPort());
+        } finally {
+            Os.close(fd);
+        }
+    }
+
+    /**
+     * Start sending NAT-keepalive packets to a remote server on behalf of an IKE session.
+     *
+     * <p>All IKE sessions to the same server share one keepalive timer. A keepalive is only sent
+     * when no packet has been sent to the server for {@link #NAT_KEEPALIVE_INTERVAL_MS}.
+     *
+     * @param serverAddress IP address of remote server
+     */
+    public void startNatKeepalive(InetAddress serverAddress) {
+        if (!mNatKeepaliveScheduler.addSession(serverAddress)) return;
+
+        Runnable timer =
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        long delayMs = mNatKeepaliveScheduler.onTimerExpired(serverAddress);
+                        getHandler().postDelayed(this, delayMs);
+                    }
+                };
+        mNatKeepaliveTimers.put(serverAddress, timer);
+        getHandler().postDelayed(timer, mNatKeepaliveScheduler.getIntervalMs());
+    }
+
+    /**
+     * Stop sending NAT-keepalive packets to a remote server on behalf of an IKE session.
+     *
+     * <p>The keepalive timer is cancelled when no IKE session to the server needs it.
+     *
+     * @param serverAddress IP address of remote server
+     */
+    public void stopNatKeepalive(InetAddress serverAddress) {
+        if (!mNatKeepaliveScheduler.removeSession(serverAddress)) return;
+        getHandler().removeCallbacks(mNatKeepaliveTimers.remove(serverAddress));
+    }
+
+    /** Package private */
+    @VisibleForTesting
+    int getNatKeepaliveSessionCount(InetAddress serverAddress) {
+        return mNatKeepaliveScheduler.getSessionCount(serverAddress);
+    }
+
+    /** Return the number of NAT-keepalive packets sent. */
+    public long getNatKeepaliveSentCount() {
+        return mNatKeepaliveScheduler.getSentCount();
+    }
+
+    /** Return the number of NAT-keepalive packets skipped because of other outbound traffic. */
+    public long getNatKeepaliveSuppressedCount() {
+        return mNatKeepaliveScheduler.getSuppressedCount();
+    }
+
     /**
      * Register new created IKE SA
      *
@@ -251,6 +365,17 @@ public final class IkeSocket extends PacketReader implements AutoCloseable {
         mSpiToIkeSession.remove(spi);
     }
 
+    /**
+     * Unregister all IKE SAs of a closed IKE session
+     *
+     * @param ikeSession the closed IKE session
+     */
+    public void unregisterIkeSession(IkeSessionStateMachine ikeSession) {
+        for (int i = mSpiToIkeSession.size() - 1; i >= 0; i--) {
+            if (mSpiToIkeSession.valueAt(i) == ikeSession) mSpiToIkeSession.removeAt(i);
+        }
+    }
+
     /** Release reference of current IkeSocket when the IKE session is closed. */
     public void releaseReference() {
         mRefCount--;
@@ -261,6 +386,10 @@ public final class IkeSocket extends PacketReader implements AutoCloseable {
     @Override
     public void close() {
         sFdToIkeSocketMap.remove(mUdpEncapSocket);
+        for (Runnable timer : mNatKeepaliveTimers.values()) {
+            getHandler().removeCallbacks(timer);
+        }
+        mNatKeepaliveTimers.clear();
         // PackeReader unregisters file descriptor on thread with which the Handler constructor
         // argument is associated.
         stop();
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ike.ikev2;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * NatKeepaliveScheduler decides when NAT-keepalive packets are sent on a UdpEncapsulationSocket.
+ *
+ * <p>All IKE sessions that share a socket and a remote server also share one NAT binding, so one
+ * keepalive per interval is enough for all of them. Each (socket, server address) pair has a
+ * single timer, and its keepalive is suppressed if any packet has been sent to the server within
+ * the interval, since that packet refreshed the NAT binding as well.
+ *
+ * <p>Package private. NatKeepaliveScheduler is owned by an IkeSocket and MUST only be used on the
+ * IKE working thread.
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc3948#section-2.3">RFC 3948, UDP Encapsulation of
+ *     IPsec ESP Packets 2.3. NAT-Keepalive Packet Format</a>
+ */
+final class NatKeepaliveScheduler {
+    private final long mIntervalMs;
+    private final LongSupplier mClock;
+    private final IKeepaliveSender mSender;
+
+    private final Map<InetAddress, Binding> mBindings = new HashMap<>();
+
+    private long mSentCount;
+    private long mSuppressedCount;
+
+    /**
+     * Construct a NatKeepaliveScheduler.
+     *
+     * @param intervalMs the maximum time in milliseconds a NAT binding stays without traffic.
+     * @param clock the time source in milliseconds.
+     * @param sender the sender of keepalive packets.
+     */
+    NatKeepaliveScheduler(long intervalMs, LongSupplier clock, IKeepaliveSender sender) {
+        mIntervalMs = intervalMs;
+        mClock = clock;
+        mSender = sender;
+    }
+
+    /** Package private interface for sending a NAT-keepalive packet. */
+    interface IKeepaliveSender {
+        void sendKeepalive(InetAddress serverAddress);
+    }
+
+    /**
+     * Register an IKE session that needs NAT-keepalives to a server.
+     *
+     * @param serverAddress the address of the server.
+     * @return whether it is the first IKE session to the server, so that a timer has to be started
+     *     with the delay returned by {@link #getIntervalMs()}.
+     */
+    boolean addSession(InetAddress serverAddress) {
+        Binding binding = mBindings.get(serverAddress);
+        if (binding != null) {
+            binding.sessionCount++;
+            return false;
+        }
+        mBindings.put(serverAddress, new Binding(mClock.getAsLong()));
+        return true;
+    }
+
+    /**
+     * Unregister an IKE session that no longer needs NAT-keepalives to a server.
+     *
+     * @param serverAddress the address of the server.
+     * @return whether it was the last IKE session to the server, so that its timer has to be
+     *     cancelled.
+     */
+    boolean removeSession(InetAddress serverAddress) {
+        Binding binding = mBindings.get(serverAddress);
+        if (binding == null) return false;
+
+        binding.sessionCount--;
+        if (binding.sessionCount > 0) return false;
+        mBindings.remove(serverAddress);
+        return true;
+    }
+
+    /**
+     * Record that a packet was sent to a server.
+     *
+     * @param serverAddress the address of the server.
+     */
+    void onOutboundTraffic(InetAddress serverAddress) {
+        Binding binding = mBindings.get(serverAddress);
+        if (binding != null) binding.lastOutboundTimeMs = mClock.getAsLong();
+    }
+
+    /**
+     * Handle expiry of the timer of a server, and send a keepalive if no packet was sent within
+     * the interval.
+     *
+     * @param serverAddress the address of the server.
+     * @return the delay in milliseconds until the timer should expire again.
+     */
+    long onTimerExpired(InetAddress serverAddress) {
+        Binding binding = mBindings.get(serverAddress);
+        if (binding == null) return mIntervalMs;
+
+        long now = mClock.getAsLong();
+        long idleMs = now - binding.lastOutboundTimeMs;
+        if (idleMs < mIntervalMs) {
+            mSuppressedCount++;
+            return mIntervalMs - idleMs;
+        }
+
+        mSender.sendKeepalive(serverAddress);
+        mSentCount++;
+        binding.lastOutboundTimeMs = now;
+        return mIntervalMs;
+    }
+
+    /** Return the interval between keepalives in milliseconds. */
+    long getIntervalMs() {
+        return mIntervalMs;
+    }
+
+    /** Return the number of IKE sessions that need keepalives to a server. */
+    int getSessionCount(InetAddress serverAddress) {
+        Binding binding = mBindings.get(serverAddress);
+        return binding == null ? 0 : binding.sessionCount;
+    }
+
+    /** Return the number of keepalives sent. */
+    long getSentCount() {
+        return mSentCount;
+    }
+
+    /** Return the number of keepalives skipped because other packets refreshed the NAT binding. */
+    long getSuppressedCount() {
+        return mSuppressedCount;
+    }
+
+    private static final class Binding {
+        int sessionCount = 1;
+        long lastOutboundTimeMs;
+
+        Binding(long lastOutboundTimeMs) {
+            this.lastOutboundTimeMs = lastOutboundTimeMs;
+        }
+    }
+}
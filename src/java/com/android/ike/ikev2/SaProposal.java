@@ -122,12 +122,24 @@ public final class SaProposal {
     }
 
     @Retention(RetentionPolicy.SOURCE)
-    @IntDef({DH_GROUP_NONE, DH_GROUP_1024_BIT_MODP, DH_GROUP_2048_BIT_MODP})
+    @IntDef({
+        DH_GROUP_NONE,
+        DH_GROUP_1024_BIT_MODP,
+        DH_GROUP_2048_BIT_MODP,
+        DH_GROUP_256_BIT_ECP,
+        DH_GROUP_384_BIT_ECP,
+        DH_GROUP_521_BIT_ECP,
+        DH_GROUP_CURVE_25519
+    })
     public @interface DhGroup {}
 
     public static final int DH_GROUP_NONE = 0;
     public static final int DH_GROUP_1024_BIT_MODP = 2;
     public static final int DH_GROUP_2048_BIT_MODP = 14;
+    public static final int DH_GROUP_256_BIT_ECP = 19;
+    public static final int DH_GROUP_384_BIT_ECP = 20;
+    public static final int DH_GROUP_521_BIT_ECP = 21;
+    public static final int DH_GROUP_CURVE_25519 = 31;
 
     private static final Set<Integer> SUPPORTED_DH_GROUP;
 
@@ -136,6 +148,10 @@ public final class SaProposal {
         SUPPORTED_DH_GROUP.add(DH_GROUP_NONE);
         SUPPORTED_DH_GROUP.add(DH_GROUP_1024_BIT_MODP);
         SUPPORTED_DH_GROUP.add(DH_GROUP_2048_BIT_MODP);
+        SUPPORTED_DH_GROUP.add(DH_GROUP_256_BIT_ECP);
+        SUPPORTED_DH_GROUP.add(DH_GROUP_384_BIT_ECP);
+        SUPPORTED_DH_GROUP.add(DH_GROUP_521_BIT_ECP);
+        SUPPORTED_DH_GROUP.add(DH_GROUP_CURVE_25519);
     }
 
     /** Package private */
@@ -15,16 +15,31 @@
  */
 package com.android.ike.ikev2;
 
+import com.android.ike.ikev2.crypto.CryptoProviderRegistry;
+import com.android.ike.ikev2.exceptions.IkeException;
+import com.android.ike.ikev2.exceptions.InvalidSyntaxException;
+import com.android.ike.ikev2.exceptions.NoValidProposalChosenException;
+import com.android.ike.ikev2.message.IkeKePayload;
+import com.android.ike.ikev2.message.IkeLivenessResponder;
 import com.android.ike.ikev2.message.IkeMessage;
+import com.android.ike.ikev2.message.IkeNoncePayload;
 import com.android.ike.ikev2.message.IkePayload;
+import com.android.ike.ikev2.message.IkeSaPayload;
+import com.android.ike.ikev2.message.IkeSaPayload.EncryptionTransform;
+import com.android.ike.ikev2.message.IkeSaPayload.IntegrityTransform;
+import com.android.ike.ikev2.message.IkeSaPayload.Proposal;
 import com.android.internal.annotations.VisibleForTesting;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.List;
 
+import javax.crypto.Cipher;
 import javax.crypto.Mac;
+import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 
 /**
@@ -37,6 +52,24 @@ import javax.crypto.spec.SecretKeySpec;
  */
 public abstract class SaRecord {
 
+    private static final byte[] RESUMPTION_LABEL =
+            "Resumption".getBytes(StandardCharsets.US_ASCII);
+
+    private static final String PRF_HMAC_SHA1_ALGO_NAME = "HmacSHA1";
+
+    private static final String INTEGRITY_HMAC_SHA1_ALGO_NAME = "HmacSHA1";
+    private static final String INTEGRITY_HMAC_SHA256_ALGO_NAME = "HmacSHA256";
+    private static final String INTEGRITY_HMAC_SHA384_ALGO_NAME = "HmacSHA384";
+    private static final String INTEGRITY_HMAC_SHA512_ALGO_NAME = "HmacSHA512";
+
+    private static final String ENCRYPTION_AES_CBC_ALGO_NAME = "AES/CBC/NoPadding";
+    private static final String ENCRYPTION_3DES_ALGO_NAME = "DESede/CBC/NoPadding";
+    private static final String KEY_AES_ALGO_NAME = "AES";
+    private static final String KEY_3DES_ALGO_NAME = "DESede";
+
+    private static final int IKE_SPI_LEN = 8;
+    private static final int AES_GCM_SALT_LEN = 4;
+
     private static ISaRecordHelper sSaRecordHelper = new SaRecordHelper();
 
     public final byte[] nonceInitiator;
@@ -55,16 +88,92 @@ public abstract class SaRecord {
      */
     static class SaRecordHelper implements ISaRecordHelper {
         @Override
-        public IkeSaRecord makeFirstIkeSaRecord(IkeMessage initRequest, IkeMessage initResponse) {
-            // TODO: Generate keying materials
-            return null;
+        public IkeSaRecord makeFirstIkeSaRecord(IkeMessage initRequest, IkeMessage initResponse)
+                throws IkeException {
+            SaProposal negotiatedProposal = getNegotiatedProposal(initRequest, initResponse);
+            String prfAlgorithm = getPrfAlgorithm(negotiatedProposal);
+            byte[] nonceInit = getPayloadOrThrow(initRequest, IkeNoncePayload.class).nonceData;
+            byte[] nonceResp = getPayloadOrThrow(initResponse, IkeNoncePayload.class).nonceData;
+
+            byte[] sharedDhKey =
+                    getSharedDhKey(initRequest.ikePayloadList, initResponse.ikePayloadList);
+            byte[] sKeySeed = generateSKeySeed(prfAlgorithm, nonceInit, nonceResp, sharedDhKey);
+
+            return makeIkeSaRecord(
+                    negotiatedProposal,
+                    prfAlgorithm,
+                    sKeySeed,
+                    initResponse.ikeHeader.ikeInitiatorSpi,
+                    initResponse.ikeHeader.ikeResponderSpi,
+                    true /*localInit*/,
+                    nonceInit,
+                    nonceResp);
         }
 
         @Override
         public IkeSaRecord makeNewIkeSaRecord(
-                IkeSaRecord oldSaRecord, IkeMessage rekeyRequest, IkeMessage rekeyResponse) {
-            // TODO: Generate keying materials based on old SK_d
-            return null;
+                IkeSaRecord oldSaRecord, IkeMessage rekeyRequest, IkeMessage rekeyResponse)
+                throws IkeException {
+            SaProposal negotiatedProposal = getNegotiatedProposal(rekeyRequest, rekeyResponse);
+            byte[] nonceInit = getPayloadOrThrow(rekeyRequest, IkeNoncePayload.class).nonceData;
+            byte[] nonceResp = getPayloadOrThrow(rekeyResponse, IkeNoncePayload.class).nonceData;
+
+            // The locally built message of the exchange carries the local KE payload.
+            boolean isLocalInit = getPayloadOrThrow(rekeyRequest, IkeKePayload.class).isOutbound;
+            byte[] sharedDhKey =
+                    isLocalInit
+                            ? getSharedDhKey(
+                                    rekeyRequest.ikePayloadList, rekeyResponse.ikePayloadList)
+                            : getSharedDhKey(
+                                    rekeyResponse.ikePayloadList, rekeyRequest.ikePayloadList);
+
+            // The rekey exchange belongs to the old IKE SA, so SKEYSEED is generated with its PRF.
+            byte[] sKeySeed =
+                    generateRekeySKeySeed(
+                            oldSaRecord.getPrfAlgorithm(),
+                            oldSaRecord.getSkD(),
+                            sharedDhKey,
+                            nonceInit,
+                            nonceResp);
+
+            // SPIs of the new IKE SA are carried in the SA proposals.
+            IkeSaPayload reqSaPayload = getPayloadOrThrow(rekeyRequest, IkeSaPayload.class);
+            IkeSaPayload respSaPayload = getPayloadOrThrow(rekeyResponse, IkeSaPayload.class);
+            Proposal respProposal = respSaPayload.proposalList.get(0);
+            Proposal reqProposal = reqSaPayload.proposalList.get(respProposal.number - 1);
+
+            return makeIkeSaRecord(
+                    negotiatedProposal,
+                    getPrfAlgorithm(negotiatedProposal),
+                    sKeySeed,
+                    reqProposal.spi,
+                    respProposal.spi,
+                    isLocalInit,
+                    nonceInit,
+                    nonceResp);
+        }
+
+        @Override
+        public IkeSaRecord makeResumedIkeSaRecord(
+                IkeSessionTicket ticket, IkeMessage resumeRequest, IkeMessage resumeResponse)
+                throws IkeException {
+            // The resumed IKE SA uses the algorithms of the IKE SA that the ticket was issued for.
+            String prfAlgorithm = getPrfAlgorithm(ticket.saProposal);
+            byte[] nonceInit = getPayloadOrThrow(resumeRequest, IkeNoncePayload.class).nonceData;
+            byte[] nonceResp = getPayloadOrThrow(resumeResponse, IkeNoncePayload.class).nonceData;
+
+            byte[] sKeySeed =
+                    generateResumptionSKeySeed(prfAlgorithm, ticket.skD, nonceInit, nonceResp);
+
+            return makeIkeSaRecord(
+                    ticket.saProposal,
+                    prfAlgorithm,
+                    sKeySeed,
+                    resumeResponse.ikeHeader.ikeInitiatorSpi,
+                    resumeResponse.ikeHeader.ikeResponderSpi,
+                    true /*localInit*/,
+                    nonceInit,
+                    nonceResp);
         }
 
         @Override
@@ -90,27 +199,108 @@ public abstract class SaRecord {
         /** Flag indicates if this IKE SA is locally initiated */
         public final boolean isLocalInit;
 
+        private final SaProposal mSaProposal;
+        private final String mPrfAlgorithm;
+        private final byte[] mSkD;
+        private final byte[] mSkAi;
+        private final byte[] mSkAr;
+        private final byte[] mSkEi;
+        private final byte[] mSkEr;
+        private final byte[] mSkPi;
+        private final byte[] mSkPr;
+
+        // Requests sent by IKE library on this IKE SA that are waiting for responses.
+        private final IkeLocalRequestWindow mLocalRequestWindow = new IkeLocalRequestWindow(0);
+        // Requests received from the remote on this IKE SA. SET_WINDOW_SIZE is never sent, so
+        // the remote sends one request at a time.
+        private final IkeRemoteRequestWindow mRemoteRequestWindow =
+                new IkeRemoteRequestWindow(0, 1 /*windowSize*/);
+
+        // Answers empty INFORMATIONAL requests on this IKE SA. Built on first use, and stays null
+        // if the negotiated algorithms are not supported.
+        private IkeLivenessResponder mLivenessResponder;
+        private boolean mIsLivenessResponderBuilt;
+
         /** Package private */
         IkeSaRecord(
                 long initSpi, long respSpi, boolean localInit, byte[] nonceInit, byte[] nonceResp) {
+            this(
+                    initSpi,
+                    respSpi,
+                    localInit,
+                    nonceInit,
+                    nonceResp,
+                    null /*saProposal*/,
+                    null /*prfAlgorithm*/,
+                    null /*skD*/,
+                    null /*skAi*/,
+                    null /*skAr*/,
+                    null /*skEi*/,
+                    null /*skEr*/,
+                    null /*skPi*/,
+                    null /*skPr*/);
+        }
+
+        /** Package private */
+        IkeSaRecord(
+                long initSpi,
+                long respSpi,
+                boolean localInit,
+                byte[] nonceInit,
+                byte[] nonceResp,
+                SaProposal saProposal,
+                String prfAlgorithm,
+                byte[] skD,
+                byte[] skAi,
+                byte[] skAr,
+                byte[] skEi,
+                byte[] skEr,
+                byte[] skPi,
+                byte[] skPr) {
             super(nonceInit, nonceResp);
             initiatorSpi = initSpi;
             responderSpi = respSpi;
             isLocalInit = localInit;
-            // TODO: Impement constructor. There will be more input parameters.
+            mSaProposal = saProposal;
+            mPrfAlgorithm = prfAlgorithm;
+            mSkD = skD;
+            mSkAi = skAi;
+            mSkAr = skAr;
+            mSkEi = skEi;
+            mSkEr = skEr;
+            mSkPi = skPi;
+            mSkPr = skPr;
         }
 
         /** Package private */
-        static IkeSaRecord makeFirstIkeSaRecord(IkeMessage initRequest, IkeMessage initResponse) {
+        static IkeSaRecord makeFirstIkeSaRecord(IkeMessage initRequest, IkeMessage initResponse)
+                throws IkeException {
             return sSaRecordHelper.makeFirstIkeSaRecord(initRequest, initResponse);
         }
 
         /** Package private */
         static IkeSaRecord makeNewIkeSaRecord(
-                IkeSaRecord oldSaRecord, IkeMessage rekeyRequest, IkeMessage rekeyResponse) {
+                IkeSaRecord oldSaRecord, IkeMessage rekeyRequest, IkeMessage rekeyResponse)
+                throws IkeException {
             return sSaRecordHelper.makeNewIkeSaRecord(oldSaRecord, rekeyRequest, rekeyResponse);
         }
 
+        /** Package private */
+        static IkeSaRecord makeResumedIkeSaRecord(
+                IkeSessionTicket ticket, IkeMessage resumeRequest, IkeMessage resumeResponse)
+                throws IkeException {
+            return sSaRecordHelper.makeResumedIkeSaRecord(ticket, resumeRequest, resumeResponse);
+        }
+
+        /** Package private */
+        long getLocalSpi() {
+            if (isLocalInit) {
+                return initiatorSpi;
+            } else {
+                return responderSpi;
+            }
+        }
+
         /** Package private */
         long getRemoteSpi() {
             if (isLocalInit) {
@@ -120,6 +310,178 @@ public abstract class SaRecord {
             }
         }
 
+        /** Package private */
+        SaProposal getSaProposal() {
+            return mSaProposal;
+        }
+
+        /** Package private */
+        String getPrfAlgorithm() {
+            return mPrfAlgorithm;
+        }
+
+        /** Package private */
+        byte[] getSkD() {
+            return mSkD;
+        }
+
+        /** Package private */
+        byte[] getSkAi() {
+            return mSkAi;
+        }
+
+        /** Package private */
+        byte[] getSkAr() {
+            return mSkAr;
+        }
+
+        /** Package private */
+        byte[] getSkEi() {
+            return mSkEi;
+        }
+
+        /** Package private */
+        byte[] getSkEr() {
+            return mSkEr;
+        }
+
+        /** Package private */
+        byte[] getSkPi() {
+            return mSkPi;
+        }
+
+        /** Package private */
+        byte[] getSkPr() {
+            return mSkPr;
+        }
+
+        /** Package private method for getting the Message ID of the next local request. */
+        int getLocalRequestMessageId() {
+            return mLocalRequestWindow.getNextMessageId();
+        }
+
+        /**
+         * Package private method for tracking a request sent on this IKE SA until it is answered.
+         *
+         * @return the Message ID of the request.
+         * @throws IllegalStateException if the window of the remote is full.
+         */
+        int addLocalRequest() {
+            return mLocalRequestWindow.add();
+        }
+
+        /** Package private method for checking whether a response answers a pending request. */
+        boolean isLocalRequestOutstanding(int messageId) {
+            return mLocalRequestWindow.isOutstanding(messageId);
+        }
+
+        /**
+         * Package private method for marking a request as answered once its response is accepted.
+         *
+         * @return false if the response is a duplicate or was not solicited.
+         */
+        boolean onLocalResponseReceived(int messageId) {
+            return mLocalRequestWindow.remove(messageId);
+        }
+
+        /**
+         * Package private method for withdrawing a request that never reached the remote, so that
+         * its Message ID is used again.
+         */
+        void cancelLocalRequest(int messageId) {
+            mLocalRequestWindow.cancel(messageId);
+        }
+
+        /** Package private method for applying the window size announced in SET_WINDOW_SIZE. */
+        void setPeerWindowSize(int windowSize) {
+            mLocalRequestWindow.setWindowSize(windowSize);
+        }
+
+        /** Package private */
+        int getPeerWindowSize() {
+            return mLocalRequestWindow.getWindowSize();
+        }
+
+        /**
+         * Package private method for classifying a request received on this IKE SA.
+         *
+         * @return the {@link IkeRemoteRequestWindow.RequestStatus} of the request.
+         */
+        @IkeRemoteRequestWindow.RequestStatus
+        int onRemoteRequestReceived(int messageId) {
+            return mRemoteRequestWindow.onRequestReceived(messageId);
+        }
+
+        /** Package private method for keeping a sent response for answering retransmissions. */
+        void onRemoteResponseSent(int messageId, byte[] responsePacket) {
+            mRemoteRequestWindow.onResponseSent(messageId, responsePacket);
+        }
+
+        /** Package private */
+        byte[] getRemoteResponse(int messageId) {
+            return mRemoteRequestWindow.getResponse(messageId);
+        }
+
+        /**
+         * Package private method for getting the responder of empty INFORMATIONAL requests.
+         *
+         * @return the IkeLivenessResponder, or null if this IKE SA has no keys or uses algorithms
+         *     that the responder does not support.
+         */
+        IkeLivenessResponder getLivenessResponder() {
+            if (!mIsLivenessResponderBuilt) {
+                mIsLivenessResponderBuilt = true;
+                mLivenessResponder = makeLivenessResponder();
+            }
+            return mLivenessResponder;
+        }
+
+        /** Package private */
+        @VisibleForTesting
+        void setLivenessResponder(IkeLivenessResponder livenessResponder) {
+            mIsLivenessResponderBuilt = true;
+            mLivenessResponder = livenessResponder;
+        }
+
+        private IkeLivenessResponder makeLivenessResponder() {
+            if (mSaProposal == null || mSkAi == null || mSkEi == null) return null;
+
+            IntegrityTransform[] integrityTransforms = mSaProposal.getIntegrityTransforms();
+            EncryptionTransform encryptionTransform = mSaProposal.getEncryptionTransforms()[0];
+            // TODO: Support AES-XCBC-96 and combined-mode encryption algorithms.
+            if (integrityTransforms.length == 0) return null;
+            String integrityAlgorithm = getIntegrityMacAlgorithm(integrityTransforms[0].id);
+            String encryptionAlgorithm = getEncryptionCipherAlgorithm(encryptionTransform.id);
+            if (integrityAlgorithm == null || encryptionAlgorithm == null) return null;
+
+            try {
+                Mac inboundMac = CryptoProviderRegistry.getMac(integrityAlgorithm);
+                inboundMac.init(
+                        new SecretKeySpec(isLocalInit ? mSkAr : mSkAi, integrityAlgorithm));
+                Mac outboundMac = CryptoProviderRegistry.getMac(integrityAlgorithm);
+                outboundMac.init(
+                        new SecretKeySpec(isLocalInit ? mSkAi : mSkAr, integrityAlgorithm));
+                Cipher encryptCipher = CryptoProviderRegistry.getCipher(encryptionAlgorithm);
+                SecretKey eKey =
+                        new SecretKeySpec(
+                                isLocalInit ? mSkEi : mSkEr,
+                                getEncryptionKeyAlgorithm(encryptionTransform.id));
+
+                return new IkeLivenessResponder(
+                        initiatorSpi,
+                        responderSpi,
+                        isLocalInit,
+                        inboundMac,
+                        outboundMac,
+                        getIntegrityChecksumLength(integrityTransforms[0].id),
+                        encryptCipher,
+                        eKey);
+            } catch (GeneralSecurityException | IllegalArgumentException e) {
+                // Requests are then decoded and answered by the states as usual.
+                return null;
+            }
+        }
+
         /**
          * Compare with a specific IkeSaRecord
          *
@@ -182,8 +544,11 @@ public abstract class SaRecord {
          * @param initRequest IKE_INIT request.
          * @param initResponse IKE_INIT request.
          * @return ikeSaRecord for initial IKE SA.
+         * @throws IkeException if the keys of the IKE SA cannot be derived from the messages, e.g.
+         *     because the remote KE payload is invalid.
          */
-        IkeSaRecord makeFirstIkeSaRecord(IkeMessage initRequest, IkeMessage initResponse);
+        IkeSaRecord makeFirstIkeSaRecord(IkeMessage initRequest, IkeMessage initResponse)
+                throws IkeException;
 
         /**
          * Construct new IkeSaRecord when doing rekey.
@@ -192,9 +557,26 @@ public abstract class SaRecord {
          * @param rekeyRequest Rekey IKE request.
          * @param rekeyResponse Rekey IKE response.
          * @return ikeSaRecord for new IKE SA.
+         * @throws IkeException if the keys of the new IKE SA cannot be derived from the messages,
+         *     e.g. because the remote KE payload is invalid.
          */
         IkeSaRecord makeNewIkeSaRecord(
-                IkeSaRecord oldSaRecord, IkeMessage rekeyRequest, IkeMessage rekeyResponse);
+                IkeSaRecord oldSaRecord, IkeMessage rekeyRequest, IkeMessage rekeyResponse)
+                throws IkeException;
+
+        /**
+         * Construct IkeSaRecord as results of IKE_SESSION_RESUME exchange.
+         *
+         * @param ticket the ticket sent in IKE_SESSION_RESUME request.
+         * @param resumeRequest IKE_SESSION_RESUME request.
+         * @param resumeResponse IKE_SESSION_RESUME response.
+         * @return ikeSaRecord for resumed IKE SA.
+         * @throws IkeException if the keys of the resumed IKE SA cannot be derived, e.g. because
+         *     the PRF of the ticket is not supported.
+         */
+        IkeSaRecord makeResumedIkeSaRecord(
+                IkeSessionTicket ticket, IkeMessage resumeRequest, IkeMessage resumeResponse)
+                throws IkeException;
 
         /**
          * Construct ChildSaRecord and generate IpSecTransform pairs.
@@ -207,6 +589,246 @@ public abstract class SaRecord {
                 List<IkePayload> reqPayloads, List<IkePayload> respPayloads);
     }
 
+    /**
+     * Calculate the shared DH key from the KE payloads of an exchange.
+     *
+     * @param localPayloads payload list in the locally built message.
+     * @param remotePayloads payload list in the received message.
+     * @return the shared DH key.
+     * @throws InvalidKeyException if a KE payload is missing, the DH groups do not match or the
+     *     remote public value is invalid.
+     * @throws GeneralSecurityException for other security-related exception.
+     */
+    @VisibleForTesting
+    static byte[] calculateSharedDhKey(
+            List<IkePayload> localPayloads, List<IkePayload> remotePayloads)
+            throws GeneralSecurityException {
+        IkeKePayload localKePayload = getPayload(localPayloads, IkeKePayload.class);
+        IkeKePayload remoteKePayload = getPayload(remotePayloads, IkeKePayload.class);
+        if (localKePayload == null || !localKePayload.isOutbound || remoteKePayload == null) {
+            throw new InvalidKeyException("Missing KE payload");
+        }
+        if (localKePayload.dhGroup != remoteKePayload.dhGroup) {
+            throw new InvalidKeyException(
+                    "Mismatched DH groups: " + localKePayload.dhGroup + " and "
+                            + remoteKePayload.dhGroup);
+        }
+
+        return IkeKePayload.getSharedKey(
+                localKePayload.dhGroup,
+                localKePayload.localPrivateKey,
+                remoteKePayload.keyExchangeData);
+    }
+
+    // Report an invalid remote KE payload, e.g. a public value that is out of range or not on the
+    // curve, as a syntax error of the received message.
+    private static byte[] getSharedDhKey(
+            List<IkePayload> localPayloads, List<IkePayload> remotePayloads)
+            throws InvalidSyntaxException {
+        try {
+            return calculateSharedDhKey(localPayloads, remotePayloads);
+        } catch (GeneralSecurityException e) {
+            throw new InvalidSyntaxException(e);
+        }
+    }
+
+    private static SaProposal getNegotiatedProposal(IkeMessage request, IkeMessage response)
+            throws IkeException {
+        IkeSaPayload reqSaPayload = getPayloadOrThrow(request, IkeSaPayload.class);
+        IkeSaPayload respSaPayload = getPayloadOrThrow(response, IkeSaPayload.class);
+        return respSaPayload.getVerifiedNegotiatedProposal(reqSaPayload);
+    }
+
+    private static <T extends IkePayload> T getPayload(
+            List<IkePayload> payloadList, Class<T> payloadType) {
+        for (IkePayload payload : payloadList) {
+            if (payloadType.isInstance(payload)) return payloadType.cast(payload);
+        }
+        return null;
+    }
+
+    private static <T extends IkePayload> T getPayloadOrThrow(
+            IkeMessage ikeMessage, Class<T> payloadType) throws InvalidSyntaxException {
+        T payload = getPayload(ikeMessage.ikePayloadList, payloadType);
+        if (payload == null) {
+            throw new InvalidSyntaxException("Missing " + payloadType.getSimpleName());
+        }
+        return payload;
+    }
+
+    private static String getPrfAlgorithm(SaProposal saProposal)
+            throws NoValidProposalChosenException {
+        int prfId = saProposal.getPrfTransforms()[0].id;
+        switch (prfId) {
+            case SaProposal.PSEUDORANDOM_FUNCTION_HMAC_SHA1:
+                return PRF_HMAC_SHA1_ALGO_NAME;
+            default:
+                // TODO: Support PRF_AES128_XCBC, which has no JCA Mac implementation.
+                throw new NoValidProposalChosenException(
+                        "Cannot derive keys with negotiated PRF: " + prfId);
+        }
+    }
+
+    private static int getIntegrityKeyLength(SaProposal saProposal) {
+        IntegrityTransform[] integrityTransforms = saProposal.getIntegrityTransforms();
+        // Combined-mode encryption algorithms do not use a separate integrity key.
+        if (integrityTransforms.length == 0) return 0;
+
+        switch (integrityTransforms[0].id) {
+            case SaProposal.INTEGRITY_ALGORITHM_NONE:
+                return 0;
+            case SaProposal.INTEGRITY_ALGORITHM_HMAC_SHA1_96:
+                return 20;
+            case SaProposal.INTEGRITY_ALGORITHM_AES_XCBC_96:
+                return 16;
+            case SaProposal.INTEGRITY_ALGORITHM_HMAC_SHA2_256_128:
+                return 32;
+            case SaProposal.INTEGRITY_ALGORITHM_HMAC_SHA2_384_192:
+                return 48;
+            case SaProposal.INTEGRITY_ALGORITHM_HMAC_SHA2_512_256:
+                return 64;
+            default:
+                throw new IllegalArgumentException(
+                        "Unrecognized integrity algorithm: " + integrityTransforms[0].id);
+        }
+    }
+
+    // Return the JCA name of the integrity algorithm, or null if it has no JCA Mac implementation.
+    private static String getIntegrityMacAlgorithm(int integrityId) {
+        switch (integrityId) {
+            case SaProposal.INTEGRITY_ALGORITHM_HMAC_SHA1_96:
+                return INTEGRITY_HMAC_SHA1_ALGO_NAME;
+            case SaProposal.INTEGRITY_ALGORITHM_HMAC_SHA2_256_128:
+                return INTEGRITY_HMAC_SHA256_ALGO_NAME;
+            case SaProposal.INTEGRITY_ALGORITHM_HMAC_SHA2_384_192:
+                return INTEGRITY_HMAC_SHA384_ALGO_NAME;
+            case SaProposal.INTEGRITY_ALGORITHM_HMAC_SHA2_512_256:
+                return INTEGRITY_HMAC_SHA512_ALGO_NAME;
+            default:
+                return null;
+        }
+    }
+
+    // Checksum lengths as per RFC 2404 and RFC 4868 section 2.3.
+    private static int getIntegrityChecksumLength(int integrityId) {
+        switch (integrityId) {
+            case SaProposal.INTEGRITY_ALGORITHM_HMAC_SHA1_96:
+                return 12;
+            case SaProposal.INTEGRITY_ALGORITHM_HMAC_SHA2_256_128:
+                return 16;
+            case SaProposal.INTEGRITY_ALGORITHM_HMAC_SHA2_384_192:
+                return 24;
+            case SaProposal.INTEGRITY_ALGORITHM_HMAC_SHA2_512_256:
+                return 32;
+            default:
+                throw new IllegalArgumentException(
+                        "Unrecognized integrity algorithm: " + integrityId);
+        }
+    }
+
+    // Return the JCA transformation of the encryption algorithm, or null if it is not a block
+    // cipher in CBC mode.
+    private static String getEncryptionCipherAlgorithm(int encryptionId) {
+        switch (encryptionId) {
+            case SaProposal.ENCRYPTION_ALGORITHM_3DES:
+                return ENCRYPTION_3DES_ALGO_NAME;
+            case SaProposal.ENCRYPTION_ALGORITHM_AES_CBC:
+                return ENCRYPTION_AES_CBC_ALGO_NAME;
+            default:
+                return null;
+        }
+    }
+
+    private static String getEncryptionKeyAlgorithm(int encryptionId) {
+        switch (encryptionId) {
+            case SaProposal.ENCRYPTION_ALGORITHM_3DES:
+                return KEY_3DES_ALGO_NAME;
+            case SaProposal.ENCRYPTION_ALGORITHM_AES_CBC:
+                return KEY_AES_ALGO_NAME;
+            default:
+                throw new IllegalArgumentException(
+                        "Unrecognized encryption algorithm: " + encryptionId);
+        }
+    }
+
+    private static int getEncryptionKeyLength(SaProposal saProposal) {
+        EncryptionTransform encryptionTransform = saProposal.getEncryptionTransforms()[0];
+        switch (encryptionTransform.id) {
+            case SaProposal.ENCRYPTION_ALGORITHM_3DES:
+                return 24;
+            case SaProposal.ENCRYPTION_ALGORITHM_AES_CBC:
+                return encryptionTransform.getSpecifiedKeyLength() / 8;
+            case SaProposal.ENCRYPTION_ALGORITHM_AES_GCM_8:
+                // fall through
+            case SaProposal.ENCRYPTION_ALGORITHM_AES_GCM_12:
+                // fall through
+            case SaProposal.ENCRYPTION_ALGORITHM_AES_GCM_16:
+                // Keying material of AES-GCM includes a 4-octet salt as per RFC 5282 section 7.1.
+                return encryptionTransform.getSpecifiedKeyLength() / 8 + AES_GCM_SALT_LEN;
+            default:
+                throw new IllegalArgumentException(
+                        "Unrecognized encryption algorithm: " + encryptionTransform.id);
+        }
+    }
+
+    // Generate keying material of an IKE SA from SKEYSEED and split it into the keys of the SA.
+    private static IkeSaRecord makeIkeSaRecord(
+            SaProposal saProposal,
+            String prfAlgorithm,
+            byte[] sKeySeed,
+            long initSpi,
+            long respSpi,
+            boolean localInit,
+            byte[] nonceInit,
+            byte[] nonceResp) {
+        // The preferred key size of all supported PRFs is their output length.
+        int prfKeyLen = sKeySeed.length;
+        int integrityKeyLen = getIntegrityKeyLength(saProposal);
+        int encryptionKeyLen = getEncryptionKeyLength(saProposal);
+
+        ByteBuffer dataToSign =
+                ByteBuffer.allocate(nonceInit.length + nonceResp.length + 2 * IKE_SPI_LEN);
+        dataToSign.put(nonceInit).put(nonceResp).putLong(initSpi).putLong(respSpi);
+
+        int keyMaterialLen = prfKeyLen * 3 + integrityKeyLen * 2 + encryptionKeyLen * 2;
+        ByteBuffer keyMat;
+        try {
+            keyMat =
+                    ByteBuffer.wrap(
+                            generateKeyMat(
+                                    prfAlgorithm, sKeySeed, dataToSign.array(), keyMaterialLen));
+        } catch (InvalidKeyException e) {
+            throw new IllegalArgumentException("Failed to generate keying material", e);
+        }
+
+        // {SK_d | SK_ai | SK_ar | SK_ei | SK_er | SK_pi | SK_pr} = prf+(SKEYSEED, Ni | Nr | SPIi |
+        // SPIr)
+        byte[] skD = new byte[prfKeyLen];
+        byte[] skAi = new byte[integrityKeyLen];
+        byte[] skAr = new byte[integrityKeyLen];
+        byte[] skEi = new byte[encryptionKeyLen];
+        byte[] skEr = new byte[encryptionKeyLen];
+        byte[] skPi = new byte[prfKeyLen];
+        byte[] skPr = new byte[prfKeyLen];
+        keyMat.get(skD).get(skAi).get(skAr).get(skEi).get(skEr).get(skPi).get(skPr);
+
+        return new IkeSaRecord(
+                initSpi,
+                respSpi,
+                localInit,
+                nonceInit,
+                nonceResp,
+                saProposal,
+                prfAlgorithm,
+                skD,
+                skAi,
+                skAr,
+                skEi,
+                skEr,
+                skPi,
+                skPr);
+    }
+
     /** Generate SKEYSEED using negotiated PRF. */
     @VisibleForTesting
     static byte[] generateSKeySeed(
@@ -216,7 +838,7 @@ public abstract class SaRecord {
             keyBuffer.put(nonceInit).put(nonceResp);
             SecretKeySpec prfKeySpec = new SecretKeySpec(keyBuffer.array(), prfAlgorithm);
 
-            Mac prfMac = Mac.getInstance(prfAlgorithm, IkeMessage.getSecurityProvider());
+            Mac prfMac = CryptoProviderRegistry.getMac(prfAlgorithm);
             prfMac.init(prfKeySpec);
 
             ByteBuffer sharedKeyBuffer = ByteBuffer.wrap(sharedDhKey);
@@ -228,6 +850,61 @@ public abstract class SaRecord {
         }
     }
 
+    /**
+     * Generate SKEYSEED of a new IKE SA when rekeying.
+     *
+     * <p>SKEYSEED = prf(SK_d (old), g^ir (new) | Ni | Nr), where prf is the PRF of the old IKE SA.
+     *
+     * @see <a href="https://tools.ietf.org/html/rfc7296#section-2.18">RFC 7296, Internet Key
+     *     Exchange Protocol Version 2 (IKEv2) 2.18. Rekeying IKE SAs Using a CREATE_CHILD_SA
+     *     Exchange</a>
+     */
+    @VisibleForTesting
+    static byte[] generateRekeySKeySeed(
+            String prfAlgorithm,
+            byte[] oldSkD,
+            byte[] sharedDhKey,
+            byte[] nonceInit,
+            byte[] nonceResp) {
+        try {
+            Mac prfMac = CryptoProviderRegistry.getMac(prfAlgorithm);
+            prfMac.init(new SecretKeySpec(oldSkD, prfAlgorithm));
+
+            prfMac.update(sharedDhKey);
+            prfMac.update(nonceInit);
+            prfMac.update(nonceResp);
+            return prfMac.doFinal();
+        } catch (InvalidKeyException | NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Failed to generate SKEYSEED", e);
+        }
+    }
+
+    /**
+     * Generate SKEYSEED of a resumed IKE SA using negotiated PRF.
+     *
+     * <p>SKEYSEED = prf(SK_d (old), "Resumption" | Ni | Nr). No Diffie-Hellman shared secret is
+     * involved.
+     *
+     * @see <a href="https://tools.ietf.org/html/rfc5723#section-5.1">RFC 5723, Internet Key
+     *     Exchange Protocol Version 2 (IKEv2) Session Resumption 5.1. Generating Keying Material
+     *     for the IKE SA</a>
+     */
+    @VisibleForTesting
+    static byte[] generateResumptionSKeySeed(
+            String prfAlgorithm, byte[] oldSkD, byte[] nonceInit, byte[] nonceResp) {
+        try {
+            Mac prfMac = CryptoProviderRegistry.getMac(prfAlgorithm);
+            prfMac.init(new SecretKeySpec(oldSkD, prfAlgorithm));
+
+            prfMac.update(RESUMPTION_LABEL);
+            prfMac.update(nonceInit);
+            prfMac.update(nonceResp);
+            return prfMac.doFinal();
+        } catch (InvalidKeyException | NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Failed to generate SKEYSEED", e);
+        }
+    }
+
     /**
      * Derives key materials using negotiated PRF.
      *
@@ -243,7 +920,7 @@ public abstract class SaRecord {
             throws InvalidKeyException {
         try {
             SecretKeySpec prfKeySpec = new SecretKeySpec(prfKey, prfAlgorithm);
-            Mac prfMac = Mac.getInstance(prfAlgorithm, IkeMessage.getSecurityProvider());
+            Mac prfMac = CryptoProviderRegistry.getMac(prfAlgorithm);
 
             ByteBuffer keyMatBuffer = ByteBuffer.allocate(keyMaterialLen);
 
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ike.ikev2.crypto;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.cert.TrustAnchor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * CertPathValidationCache caches results of successful certification path validations.
+ *
+ * <p>Building and validating a certification path involves parsing every certificate, searching
+ * for issuers and verifying a signature for each certificate in the path. Sessions to the same
+ * gateway receive the same certificates and validate them against the same trust anchors, so the
+ * result is reused until the earliest notAfter of the validated path or until the configured TTL
+ * expires, whichever comes first. Failed validations are never cached.
+ *
+ * <p>Entries are keyed by the SHA-256 digest of the end certificate's DER encoding, the digest of
+ * the unordered set of other certificates, the identity of the trust anchor set and the trust
+ * anchor version. Entries do not keep the trust anchor set alive. A caller that modifies a trust
+ * anchor set in place, or changes the trust anchors used by sessions, MUST call {@link
+ * #onTrustAnchorsChanged()}; results of validations that are in progress at that time are dropped.
+ *
+ * <p>CertPathValidationCache is thread-safe.
+ */
+public final class CertPathValidationCache {
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    @VisibleForTesting static final int DEFAULT_MAX_ENTRIES = 128;
+    @VisibleForTesting static final long DEFAULT_TTL_MS = TimeUnit.HOURS.toMillis(1L);
+
+    private static final CertPathValidationCache sInstance =
+            new CertPathValidationCache(
+                    DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MS, System::currentTimeMillis);
+
+    // MessageDigest is not thread-safe. Each thread keeps its own.
+    private static final ThreadLocal<MessageDigest> sMessageDigest = new ThreadLocal<>();
+
+    private final int mMaxEntries;
+    private final LongSupplier mClock;
+
+    // Least recently used first. Guarded by "this".
+    private final LinkedHashMap<CacheKey, Long> mExpiryTimes =
+            new LinkedHashMap<>(16, 0.75f, true /*accessOrder*/);
+    private long mTtlMs;
+    private long mTrustAnchorVersion;
+    private long mHitCount;
+    private long mMissCount;
+
+    /** Package private constructor for configuring bounds and time source in tests. */
+    @VisibleForTesting
+    CertPathValidationCache(int maxEntries, long ttlMs, LongSupplier clock) {
+        mMaxEntries = maxEntries;
+        mTtlMs = ttlMs;
+        mClock = clock;
+    }
+
+    /** Get the CertPathValidationCache shared by all IKE sessions. */
+    public static CertPathValidationCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Run a certification path validation unless the same path has been validated successfully.
+     *
+     * @param endCertData the DER encoding of the end certificate.
+     * @param otherCertData the DER encodings of other certificates in any order.
+     * @param trustAnchors the trust anchors used for validation.
+     * @param validation the validation to run on a cache miss.
+     * @throws E if the validation failed.
+     */
+    public <E extends Exception> void validate(
+            ByteBuffer endCertData,
+            List<ByteBuffer> otherCertData,
+            Set<TrustAnchor> trustAnchors,
+            ICertPathValidation<E> validation)
+            throws E {
+        long trustAnchorVersion;
+        synchronized (this) {
+            trustAnchorVersion = mTrustAnchorVersion;
+        }
+        CacheKey cacheKey =
+                new CacheKey(
+                        digest(endCertData),
+                        digestUnordered(otherCertData),
+                        trustAnchors,
+                        trustAnchorVersion);
+
+        synchronized (this) {
+            Long expiryTime = mExpiryTimes.get(cacheKey);
+            if (expiryTime != null && mClock.getAsLong() < expiryTime) {
+                mHitCount++;
+                return;
+            }
+            if (expiryTime != null) mExpiryTimes.remove(cacheKey);
+            mMissCount++;
+        }
+
+        // Validate without holding the lock.
+        long notAfter = validation.validate();
+
+        synchronized (this) {
+            if (trustAnchorVersion != mTrustAnchorVersion) return;
+            long expiryTime = Math.min(notAfter, mClock.getAsLong() + mTtlMs);
+            mExpiryTimes.put(cacheKey, expiryTime);
+            trimToBounds();
+        }
+    }
+
+    /**
+     * Set the maximum time a validation result is reused for.
+     *
+     * <p>Cached results keep the expiry time calculated when they were added.
+     *
+     * @param ttlMs the time to live in milliseconds.
+     */
+    public synchronized void setTtlMillis(long ttlMs) {
+        if (ttlMs < 0L) {
+            throw new IllegalArgumentException("Invalid TTL: " + ttlMs);
+        }
+        mTtlMs = ttlMs;
+    }
+
+    /** Remove all cached results and ignore results of validations that are in progress. */
+    public synchronized void onTrustAnchorsChanged() {
+        mTrustAnchorVersion++;
+        mExpiryTimes.clear();
+    }
+
+    /** Remove all cached results and reset metrics. */
+    public synchronized void clear() {
+        mExpiryTimes.clear();
+        mHitCount = 0L;
+        mMissCount = 0L;
+    }
+
+    /** Return the number of cached results. */
+    public synchronized int size() {
+        return mExpiryTimes.size();
+    }
+
+    /** Return the number of validations that were served by a cached result. */
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /** Return the number of validations that were run. */
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    // Must be called with lock held.
+    private void trimToBounds() {
+        long now = mClock.getAsLong();
+        mExpiryTimes.values().removeIf((Long expiryTime) -> expiryTime <= now);
+
+        Iterator<Map.Entry<CacheKey, Long>> iterator = mExpiryTimes.entrySet().iterator();
+        while (mExpiryTimes.size() > mMaxEntries) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    private static byte[] digest(ByteBuffer data) {
+        MessageDigest messageDigest = getMessageDigest();
+        messageDigest.update(data.duplicate());
+        return messageDigest.digest();
+    }
+
+    // Digest of the sorted digests of all elements, so that the order of elements does not matter.
+    private static byte[] digestUnordered(List<ByteBuffer> dataList) {
+        List<ByteBuffer> digests = new ArrayList<>(dataList.size());
+        for (ByteBuffer data : dataList) {
+            digests.add(ByteBuffer.wrap(digest(data)));
+        }
+        Collections.sort(digests);
+
+        MessageDigest messageDigest = getMessageDigest();
+        for (ByteBuffer digest : digests) {
+            messageDigest.update(digest);
+        }
+        return messageDigest.digest();
+    }
+
+    private static MessageDigest getMessageDigest() {
+        MessageDigest digest = sMessageDigest.get();
+        if (digest == null) {
+            try {
+                digest = CryptoProviderRegistry.getMessageDigest(DIGEST_ALGORITHM);
+            } catch (GeneralSecurityException e) {
+                // SHA-256 is mandatory for every Java platform.
+                throw new IllegalStateException(e);
+            }
+            sMessageDigest.set(digest);
+        }
+        return digest;
+    }
+
+    /** CacheKey identifies a certification path, a trust anchor set and its version. */
+    private static final class CacheKey {
+        final byte[] endCertDigest;
+        final byte[] otherCertsDigest;
+        final WeakReference<Set<TrustAnchor>> trustAnchorsRef;
+        final long trustAnchorVersion;
+        private final int mHashCode;
+
+        CacheKey(
+                byte[] endCertDigest,
+                byte[] otherCertsDigest,
+                Set<TrustAnchor> trustAnchors,
+                long trustAnchorVersion) {
+            this.endCertDigest = endCertDigest;
+            this.otherCertsDigest = otherCertsDigest;
+            trustAnchorsRef = new WeakReference<>(trustAnchors);
+            this.trustAnchorVersion = trustAnchorVersion;
+            mHashCode =
+                    31 * (31 * Arrays.hashCode(endCertDigest) + Arrays.hashCode(otherCertsDigest))
+                            + System.identityHashCode(trustAnchors);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CacheKey)) return false;
+            CacheKey other = (CacheKey) o;
+            Set<TrustAnchor> trustAnchors = trustAnchorsRef.get();
+            return trustAnchors != null
+                    && trustAnchors == other.trustAnchorsRef.get()
+                    && trustAnchorVersion == other.trustAnchorVersion
+                    && Arrays.equals(endCertDigest, other.endCertDigest)
+                    && Arrays.equals(otherCertsDigest, other.otherCertsDigest);
+        }
+    }
+
+    /** ICertPathValidation is a certification path validation that runs on a cache miss. */
+    public interface ICertPathValidation<E extends Exception> {
+        /**
+         * Build and validate the certification path.
+         *
+         * @return the earliest notAfter of certificates in the validated path in milliseconds
+         *     since the epoch.
+         * @throws E if the validation failed.
+         */
+        long validate() throws E;
+    }
+}
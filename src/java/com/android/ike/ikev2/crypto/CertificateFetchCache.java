@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ike.ikev2.crypto;
+
+import com.android.ike.ikev2.utils.HttpCertificateFetcher;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.cert.CertificateException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * CertificateFetchCache fetches certificates and certificate bundles sent as "Hash and URL", and
+ * caches them by their SHA-1 hash.
+ *
+ * <p>The SHA-1 hash in a "Hash and URL" Certificate Payload identifies the content behind the URL,
+ * so content that has been fetched before is returned without fetching it again, even if it is
+ * referenced by a different URL. Fetched content only enters the cache after its SHA-1 hash has
+ * been verified.
+ *
+ * <p>The cache is bounded by both the number of entries and the total length of the content, and
+ * evicts the least recently used entries first.
+ *
+ * <p>CertificateFetchCache is thread-safe.
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc7296#section-3.6">RFC 7296, Internet Key Exchange
+ *     Protocol Version 2 (IKEv2) 3.6. Certificate Payload</a>
+ */
+public final class CertificateFetchCache {
+    private static final String DIGEST_ALGORITHM = "SHA-1";
+
+    /** Length of the SHA-1 hash in "Hash and URL" encodings in octets. */
+    public static final int HASH_LEN = 20;
+
+    @VisibleForTesting static final int DEFAULT_MAX_ENTRIES = 32;
+    @VisibleForTesting static final int DEFAULT_MAX_CONTENT_BYTES = 256 * 1024;
+
+    private static final CertificateFetchCache sInstance =
+            new CertificateFetchCache(
+                    new HttpCertificateFetcher(), DEFAULT_MAX_ENTRIES, DEFAULT_MAX_CONTENT_BYTES);
+
+    private final int mMaxEntries;
+    private final int mMaxContentBytes;
+
+    // Least recently used first. Guarded by "this".
+    private final LinkedHashMap<ByteBuffer, byte[]> mContents =
+            new LinkedHashMap<>(16, 0.75f, true /*accessOrder*/);
+    private ICertificateFetcher mFetcher;
+    private long mContentBytes;
+    private long mHitCount;
+    private long mMissCount;
+
+    /** Package private constructor for configuring fetcher and bounds in tests. */
+    @VisibleForTesting
+    CertificateFetchCache(ICertificateFetcher fetcher, int maxEntries, int maxContentBytes) {
+        mFetcher = fetcher;
+        mMaxEntries = maxEntries;
+        mMaxContentBytes = maxContentBytes;
+    }
+
+    /** Get the CertificateFetchCache shared by all IKE sessions. */
+    public static CertificateFetchCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Replace the fetcher that retrieves content on cache misses.
+     *
+     * @param fetcher the fetcher.
+     */
+    public synchronized void setFetcher(ICertificateFetcher fetcher) {
+        if (fetcher == null) {
+            throw new IllegalArgumentException("Fetcher must not be null");
+        }
+        mFetcher = fetcher;
+    }
+
+    /**
+     * Return the content identified by the SHA-1 hash, fetching it from the URL if it is not
+     * cached.
+     *
+     * <p>This method may block on network I/O and MUST NOT be called on the IKE working thread.
+     *
+     * @param hash the SHA-1 hash of the content.
+     * @param url the URL where the content can be retrieved.
+     * @return the DER-encoded certificate or certificate bundle. It MUST NOT be modified.
+     * @throws IOException if the content cannot be fetched.
+     * @throws CertificateException if the fetched content does not match the hash.
+     */
+    public byte[] fetch(byte[] hash, String url) throws IOException, CertificateException {
+        if (hash.length != HASH_LEN) {
+            throw new IllegalArgumentException("Invalid SHA-1 hash length: " + hash.length);
+        }
+        ByteBuffer cacheKey = ByteBuffer.wrap(hash.clone());
+
+        ICertificateFetcher fetcher;
+        synchronized (this) {
+            byte[] content = mContents.get(cacheKey);
+            if (content != null) {
+                mHitCount++;
+                return content;
+            }
+            mMissCount++;
+            fetcher = mFetcher;
+        }
+
+        // Fetch without holding the lock.
+        byte[] content = fetcher.fetch(url);
+        if (!Arrays.equals(hash, digest(content))) {
+            throw new CertificateException("Fetched content does not match the hash: " + url);
+        }
+
+        synchronized (this) {
+            if (content.length <= mMaxContentBytes && mContents.put(cacheKey, content) == null) {
+                mContentBytes += content.length;
+                trimToBounds();
+            }
+        }
+        return content;
+    }
+
+    /** Remove all cached content and reset metrics. */
+    public synchronized void clear() {
+        mContents.clear();
+        mContentBytes = 0L;
+        mHitCount = 0L;
+        mMissCount = 0L;
+    }
+
+    /** Return the number of cached entries. */
+    public synchronized int size() {
+        return mContents.size();
+    }
+
+    /** Return the number of lookups that were served by cached content. */
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /** Return the number of lookups that fetched content. */
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    // Must be called with lock held.
+    private void trimToBounds() {
+        Iterator<byte[]> iterator = mContents.values().iterator();
+        while (mContents.size() > mMaxEntries || mContentBytes > mMaxContentBytes) {
+            mContentBytes -= iterator.next().length;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Calculate the SHA-1 hash used in "Hash and URL" encodings.
+     *
+     * @param content the DER-encoded certificate or certificate bundle.
+     * @return the SHA-1 hash.
+     */
+    public static byte[] digest(byte[] content) {
+        try {
+            return CryptoProviderRegistry.getMessageDigest(DIGEST_ALGORITHM).digest(content);
+        } catch (GeneralSecurityException e) {
+            // SHA-1 is mandatory for every Java platform.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** ICertificateFetcher retrieves a certificate or a certificate bundle from a URL. */
+    public interface ICertificateFetcher {
+        /**
+         * Retrieve the content at the URL.
+         *
+         * @param url the URL.
+         * @return the retrieved content.
+         * @throws IOException if the content cannot be retrieved.
+         */
+        byte[] fetch(String url) throws IOException;
+    }
+}
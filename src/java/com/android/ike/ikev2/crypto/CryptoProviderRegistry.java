@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ike.ikev2.crypto;
+
+import android.annotation.StringDef;
+import android.util.ArrayMap;
+
+import com.android.ike.ikev2.message.IkeMessage;
+import com.android.ike.ikev2.utils.RandomnessFactory;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.Security;
+import java.security.Signature;
+import java.security.cert.CertPathBuilder;
+import java.security.cert.CertStore;
+import java.security.cert.CertStoreParameters;
+import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * CryptoProviderRegistry chooses the security provider of each cryptographic primitive used by the
+ * IKE library.
+ *
+ * <p>A primitive is identified by its JCA service type and algorithm name, e.g. "Mac" and
+ * "HmacSHA1". Its provider is resolved once and cached, in this order:
+ *
+ * <ol>
+ *   <li>The provider configured by {@link #setPreferredProvider}, or chosen by {@link
+ *       #calibrate}.
+ *   <li>The first provider in the fallback chain that supports the primitive. By default the chain
+ *       starts with {@link IkeMessage#getSecurityProvider()} and is followed by all installed
+ *       providers.
+ * </ol>
+ *
+ * <p>Calibration is only allowed for Mac, Cipher and MessageDigest, which do not exchange key
+ * objects with other primitives. Primitives that create or consume asymmetric keys should stay
+ * with one provider unless configured explicitly.
+ */
+public final class CryptoProviderRegistry {
+    @Retention(RetentionPolicy.SOURCE)
+    @StringDef({
+        SERVICE_TYPE_ALGORITHM_PARAMETERS,
+        SERVICE_TYPE_CERTIFICATE_FACTORY,
+        SERVICE_TYPE_CERT_PATH_BUILDER,
+        SERVICE_TYPE_CERT_STORE,
+        SERVICE_TYPE_CIPHER,
+        SERVICE_TYPE_KEY_AGREEMENT,
+        SERVICE_TYPE_KEY_FACTORY,
+        SERVICE_TYPE_KEY_PAIR_GENERATOR,
+        SERVICE_TYPE_MAC,
+        SERVICE_TYPE_MESSAGE_DIGEST,
+        SERVICE_TYPE_SIGNATURE
+    })
+    public @interface ServiceType {}
+
+    public static final String SERVICE_TYPE_ALGORITHM_PARAMETERS = "AlgorithmParameters";
+    public static final String SERVICE_TYPE_CERTIFICATE_FACTORY = "CertificateFactory";
+    public static final String SERVICE_TYPE_CERT_PATH_BUILDER = "CertPathBuilder";
+    public static final String SERVICE_TYPE_CERT_STORE = "CertStore";
+    public static final String SERVICE_TYPE_CIPHER = "Cipher";
+    public static final String SERVICE_TYPE_KEY_AGREEMENT = "KeyAgreement";
+    public static final String SERVICE_TYPE_KEY_FACTORY = "KeyFactory";
+    public static final String SERVICE_TYPE_KEY_PAIR_GENERATOR = "KeyPairGenerator";
+    public static final String SERVICE_TYPE_MAC = "Mac";
+    public static final String SERVICE_TYPE_MESSAGE_DIGEST = "MessageDigest";
+    public static final String SERVICE_TYPE_SIGNATURE = "Signature";
+
+    /** Primitives calibrated by {@link #calibrateDefaultAlgorithms()}. */
+    private static final String[][] DEFAULT_CALIBRATED_PRIMITIVES = {
+        {SERVICE_TYPE_MAC, "HmacSHA1"},
+        {SERVICE_TYPE_MAC, "HmacSHA256"},
+        {SERVICE_TYPE_MAC, "HmacSHA384"},
+        {SERVICE_TYPE_MAC, "HmacSHA512"},
+        {SERVICE_TYPE_CIPHER, "AES/CBC/NoPadding"},
+        {SERVICE_TYPE_MESSAGE_DIGEST, "SHA-1"}
+    };
+
+    private static final int CALIBRATION_DATA_LEN = 1024;
+    private static final int CALIBRATION_WARM_UP_ROUNDS = 20;
+    @VisibleForTesting static final int CALIBRATION_ROUNDS = 100;
+
+    private static final Object LOCK = new Object();
+
+    // Providers tried in order when no provider is configured. Guarded by LOCK.
+    private static List<Provider> sFallbackChain = createDefaultFallbackChain();
+    // Configured or calibrated providers keyed by primitive. Guarded by LOCK.
+    private static final Map<String, Provider> sPreferredProviders = new ArrayMap<>();
+    // Cache of resolved providers keyed by primitive.
+    private static final Map<String, Provider> sResolvedProviders = new ConcurrentHashMap<>();
+
+    private CryptoProviderRegistry() {}
+
+    private static List<Provider> createDefaultFallbackChain() {
+        List<Provider> chain = new ArrayList<>();
+        chain.add(IkeMessage.getSecurityProvider());
+        for (Provider provider : Security.getProviders()) {
+            if (!chain.contains(provider)) chain.add(provider);
+        }
+        return chain;
+    }
+
+    private static String getPrimitiveKey(@ServiceType String type, String algorithm) {
+        return type + "/" + algorithm;
+    }
+
+    /**
+     * Replace the fallback chain.
+     *
+     * @param providers the providers to try in order. Passing null restores the default chain.
+     */
+    public static void setFallbackChain(List<Provider> providers) {
+        synchronized (LOCK) {
+            sFallbackChain =
+                    (providers == null) ? createDefaultFallbackChain() : new ArrayList<>(providers);
+            sResolvedProviders.clear();
+        }
+    }
+
+    /**
+     * Configure the provider of a primitive.
+     *
+     * <p>If the configured provider does not support the primitive, the fallback chain is used.
+     *
+     * @param type the JCA service type.
+     * @param algorithm the algorithm name or Cipher transformation.
+     * @param provider the preferred provider. Passing null removes the configuration.
+     */
+    public static void setPreferredProvider(
+            @ServiceType String type, String algorithm, Provider provider) {
+        String primitive = getPrimitiveKey(type, algorithm);
+        synchronized (LOCK) {
+            if (provider == null) {
+                sPreferredProviders.remove(primitive);
+            } else {
+                sPreferredProviders.put(primitive, provider);
+            }
+            sResolvedProviders.remove(primitive);
+        }
+    }
+
+    /**
+     * Prefer the fastest provider in the fallback chain for a primitive.
+     *
+     * <p>Each provider in the chain that supports the primitive processes a short run of data, and
+     * the fastest one becomes the preferred provider. Calibration takes milliseconds and should be
+     * done once at startup, before IKE sessions are created.
+     *
+     * @param type the JCA service type. Only Mac, Cipher and MessageDigest are supported.
+     * @param algorithm the algorithm name or Cipher transformation.
+     * @return the chosen provider.
+     * @throws NoSuchAlgorithmException if no provider in the chain supports the primitive.
+     * @throws IllegalArgumentException if type cannot be calibrated.
+     */
+    public static Provider calibrate(@ServiceType String type, String algorithm)
+            throws NoSuchAlgorithmException {
+        if (!SERVICE_TYPE_MAC.equals(type)
+                && !SERVICE_TYPE_CIPHER.equals(type)
+                && !SERVICE_TYPE_MESSAGE_DIGEST.equals(type)) {
+            throw new IllegalArgumentException("Calibration not supported for " + type);
+        }
+
+        List<Provider> chain;
+        synchronized (LOCK) {
+            chain = new ArrayList<>(sFallbackChain);
+        }
+
+        Provider fastestProvider = null;
+        long fastestTime = Long.MAX_VALUE;
+        for (Provider provider : chain) {
+            long time;
+            try {
+                time = measure(type, algorithm, provider);
+            } catch (GeneralSecurityException | RuntimeException e) {
+                // Provider does not support the primitive
+                continue;
+            }
+            if (time < fastestTime) {
+                fastestTime = time;
+                fastestProvider = provider;
+            }
+        }
+
+        if (fastestProvider == null) {
+            throw new NoSuchAlgorithmException(
+                    "No provider supports " + getPrimitiveKey(type, algorithm));
+        }
+        setPreferredProvider(type, algorithm, fastestProvider);
+        return fastestProvider;
+    }
+
+    /**
+     * Calibrate the Mac, Cipher and MessageDigest algorithms commonly used by the IKE library.
+     *
+     * <p>Algorithms that no provider supports are skipped.
+     */
+    public static void calibrateDefaultAlgorithms() {
+        for (String[] primitive : DEFAULT_CALIBRATED_PRIMITIVES) {
+            try {
+                calibrate(primitive[0], primitive[1]);
+            } catch (NoSuchAlgorithmException e) {
+                // Leave the primitive to the fallback chain
+            }
+        }
+    }
+
+    /**
+     * Report the provider that serves each resolved primitive.
+     *
+     * @return a map from "type/algorithm" to the provider name, sorted by primitive.
+     */
+    public static Map<String, String> getProviderReport() {
+        Map<String, String> report = new TreeMap<>();
+        for (Map.Entry<String, Provider> entry : sResolvedProviders.entrySet()) {
+            report.put(entry.getKey(), entry.getValue().getName());
+        }
+        return report;
+    }
+
+    /** Remove all configuration and restore the default fallback chain. */
+    @VisibleForTesting
+    public static void reset() {
+        synchronized (LOCK) {
+            sPreferredProviders.clear();
+        }
+        setFallbackChain(null);
+    }
+
+    /** Get a Mac instance for the algorithm from the resolved provider. */
+    public static Mac getMac(String algorithm) throws NoSuchAlgorithmException {
+        return getInstance(SERVICE_TYPE_MAC, algorithm, Mac::getInstance);
+    }
+
+    /** Get a Cipher instance for the transformation from the resolved provider. */
+    public static Cipher getCipher(String transformation) throws NoSuchAlgorithmException {
+        return getInstance(SERVICE_TYPE_CIPHER, transformation, Cipher::getInstance);
+    }
+
+    /** Get a MessageDigest instance for the algorithm from the resolved provider. */
+    public static MessageDigest getMessageDigest(String algorithm)
+            throws NoSuchAlgorithmException {
+        return getInstance(SERVICE_TYPE_MESSAGE_DIGEST, algorithm, MessageDigest::getInstance);
+    }
+
+    /** Get a KeyAgreement instance for the algorithm from the resolved provider. */
+    public static KeyAgreement getKeyAgreement(String algorithm) throws NoSuchAlgorithmException {
+        return getInstance(SERVICE_TYPE_KEY_AGREEMENT, algorithm, KeyAgreement::getInstance);
+    }
+
+    /** Get a KeyFactory instance for the algorithm from the resolved provider. */
+    public static KeyFactory getKeyFactory(String algorithm) throws NoSuchAlgorithmException {
+        return getInstance(SERVICE_TYPE_KEY_FACTORY, algorithm, KeyFactory::getInstance);
+    }
+
+    /** Get a KeyPairGenerator instance for the algorithm from the resolved provider. */
+    public static KeyPairGenerator getKeyPairGenerator(String algorithm)
+            throws NoSuchAlgorithmException {
+        return getInstance(
+                SERVICE_TYPE_KEY_PAIR_GENERATOR, algorithm, KeyPairGenerator::getInstance);
+    }
+
+    /** Get an AlgorithmParameters instance for the algorithm from the resolved provider. */
+    public static AlgorithmParameters getAlgorithmParameters(String algorithm)
+            throws NoSuchAlgorithmException {
+        return getInstance(
+                SERVICE_TYPE_ALGORITHM_PARAMETERS, algorithm, AlgorithmParameters::getInstance);
+    }
+
+    /** Get a Signature instance for the algorithm from the resolved provider. */
+    public static Signature getSignature(String algorithm) throws NoSuchAlgorithmException {
+        return getInstance(SERVICE_TYPE_SIGNATURE, algorithm, Signature::getInstance);
+    }
+
+    /** Get a CertificateFactory instance for the type from the resolved provider. */
+    public static CertificateFactory getCertificateFactory(String certType)
+            throws NoSuchAlgorithmException {
+        return getInstance(
+                SERVICE_TYPE_CERTIFICATE_FACTORY, certType, CertificateFactory::getInstance);
+    }
+
+    /** Get a CertPathBuilder instance for the algorithm from the resolved provider. */
+    public static CertPathBuilder getCertPathBuilder(String algorithm)
+            throws NoSuchAlgorithmException {
+        return getInstance(SERVICE_TYPE_CERT_PATH_BUILDER, algorithm, CertPathBuilder::getInstance);
+    }
+
+    /** Get a CertStore instance of the type with the parameters from the resolved provider. */
+    public static CertStore getCertStore(String storeType, CertStoreParameters params)
+            throws NoSuchAlgorithmException {
+        return getInstance(
+                SERVICE_TYPE_CERT_STORE,
+                storeType,
+                (type, provider) -> CertStore.getInstance(type, params, provider));
+    }
+
+    private static <T> T getInstance(
+            @ServiceType String type, String algorithm, IInstanceFactory<T> factory)
+            throws NoSuchAlgorithmException {
+        String primitive = getPrimitiveKey(type, algorithm);
+
+        Provider resolvedProvider = sResolvedProviders.get(primitive);
+        if (resolvedProvider != null) {
+            try {
+                return factory.getInstance(algorithm, resolvedProvider);
+            } catch (GeneralSecurityException e) {
+                // Provider stopped serving the primitive. Resolve it again.
+                sResolvedProviders.remove(primitive, resolvedProvider);
+            }
+        }
+
+        List<Provider> candidates = new ArrayList<>();
+        synchronized (LOCK) {
+            Provider preferredProvider = sPreferredProviders.get(primitive);
+            if (preferredProvider != null) candidates.add(preferredProvider);
+            candidates.addAll(sFallbackChain);
+        }
+
+        GeneralSecurityException lastException = null;
+        for (Provider provider : candidates) {
+            try {
+                T instance = factory.getInstance(algorithm, provider);
+                sResolvedProviders.put(primitive, provider);
+                return instance;
+            } catch (GeneralSecurityException e) {
+                lastException = e;
+            }
+        }
+
+        NoSuchAlgorithmException exception =
+                new NoSuchAlgorithmException("No provider supports " + primitive);
+        if (lastException != null) exception.initCause(lastException);
+        throw exception;
+    }
+
+    // Return the time in nanoseconds the provider takes to process calibration data.
+    private static long measure(@ServiceType String type, String algorithm, Provider provider)
+            throws GeneralSecurityException {
+        final byte[] data = new byte[CALIBRATION_DATA_LEN];
+        ICalibrationOperation operation;
+
+        switch (type) {
+            case SERVICE_TYPE_MAC:
+                Mac mac = Mac.getInstance(algorithm, provider);
+                mac.init(new SecretKeySpec(RandomnessFactory.generateRandomBytes(32), algorithm));
+                operation = () -> mac.doFinal(data);
+                break;
+            case SERVICE_TYPE_CIPHER:
+                Cipher cipher = Cipher.getInstance(algorithm, provider);
+                String keyAlgorithm = algorithm.split("/")[0];
+                byte[] key =
+                        RandomnessFactory.generateRandomBytes(getCalibrationKeyLen(keyAlgorithm));
+                cipher.init(
+                        Cipher.ENCRYPT_MODE,
+                        new SecretKeySpec(key, keyAlgorithm),
+                        RandomnessFactory.getRandom());
+                operation = () -> cipher.update(data);
+                break;
+            case SERVICE_TYPE_MESSAGE_DIGEST:
+                MessageDigest digest = MessageDigest.getInstance(algorithm, provider);
+                operation = () -> digest.digest(data);
+                break;
+            default:
+                throw new IllegalArgumentException("Calibration not supported for " + type);
+        }
+
+        for (int i = 0; i < CALIBRATION_WARM_UP_ROUNDS; i++) {
+            operation.run();
+        }
+        long startTime = System.nanoTime();
+        for (int i = 0; i < CALIBRATION_ROUNDS; i++) {
+            operation.run();
+        }
+        return System.nanoTime() - startTime;
+    }
+
+    private static int getCalibrationKeyLen(String keyAlgorithm) {
+        switch (keyAlgorithm) {
+            case "AES":
+                return 16;
+            case "DESede":
+                return 24;
+            default:
+                throw new IllegalArgumentException("Unknown key algorithm: " + keyAlgorithm);
+        }
+    }
+
+    /** IInstanceFactory is the getInstance method of a JCA engine class. */
+    private interface IInstanceFactory<T> {
+        T getInstance(String algorithm, Provider provider) throws GeneralSecurityException;
+    }
+
+    /** ICalibrationOperation is one round of a calibration microbenchmark. */
+    private interface ICalibrationOperation {
+        void run() throws GeneralSecurityException;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ike.ikev2.crypto;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CryptoWorkerPool runs expensive cryptographic operations of IKE sessions on a bounded pool of
+ * worker threads.
+ *
+ * <p>All IKE sessions share one working thread. Calculating a Diffie-Hellman shared secret and
+ * deriving keying material takes milliseconds during which no other IKE session can make progress.
+ * An IKE session with crypto offload enabled submits this operation to this pool and receives the
+ * result as a message on its working thread.
+ *
+ * <p>The pool has a fixed number of threads and a bounded queue. When the queue is full, the
+ * operation is rejected, and the submitting IKE session retries it later. It is never run on the
+ * submitting thread, since that would block the IKE working thread again.
+ *
+ * <p>CryptoWorkerPool is thread-safe.
+ */
+public final class CryptoWorkerPool implements Executor {
+    private static final String TAG = "CryptoWorkerPool";
+
+    private static final int MAX_WORKER_THREADS = 4;
+    @VisibleForTesting static final int DEFAULT_QUEUE_CAPACITY = 32;
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 30L;
+
+    private static final CryptoWorkerPool sInstance =
+            new CryptoWorkerPool(
+                    Math.min(MAX_WORKER_THREADS, Runtime.getRuntime().availableProcessors()),
+                    DEFAULT_QUEUE_CAPACITY);
+
+    private final ThreadPoolExecutor mWorkerExecutor;
+
+    private final AtomicLong mOffloadedCount = new AtomicLong();
+    private final AtomicLong mRejectedCount = new AtomicLong();
+
+    /** Package private constructor for configuring pool size in tests. */
+    @VisibleForTesting
+    CryptoWorkerPool(int numThreads, int queueCapacity) {
+        ThreadFactory threadFactory =
+                (Runnable r) -> {
+                    Thread thread = new Thread(r, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                };
+        mWorkerExecutor =
+                new ThreadPoolExecutor(
+                        numThreads,
+                        numThreads,
+                        WORKER_KEEP_ALIVE_SECONDS,
+                        TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<>(queueCapacity),
+                        threadFactory);
+        mWorkerExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /** Get the CryptoWorkerPool shared by all IKE sessions. */
+    public static CryptoWorkerPool getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Run an operation on a worker thread.
+     *
+     * @param operation the operation to run.
+     * @throws RejectedExecutionException if the pool is saturated.
+     */
+    @Override
+    public void execute(Runnable operation) {
+        try {
+            mWorkerExecutor.execute(operation);
+            mOffloadedCount.incrementAndGet();
+        } catch (RejectedExecutionException e) {
+            mRejectedCount.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /** Return the number of operations that were run on a worker thread. */
+    public long getOffloadedCount() {
+        return mOffloadedCount.get();
+    }
+
+    /** Return the number of operations that were rejected because the pool was saturated. */
+    public long getRejectedCount() {
+        return mRejectedCount.get();
+    }
+}
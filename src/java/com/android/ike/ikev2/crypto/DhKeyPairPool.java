@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ike.ikev2.crypto;
+
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.ike.ikev2.SaProposal;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.security.KeyPair;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.DestroyFailedException;
+
+/**
+ * DhKeyPairPool keeps ephemeral Diffie-Hellman key pairs that are generated in advance by
+ * background worker threads.
+ *
+ * <p>Generating a key pair, especially for a MODP group, takes milliseconds and would otherwise
+ * block the IKE working thread, which is shared by all IKE sessions. Building a KE payload for
+ * IKE_SA_INIT or for a rekey with PFS takes a ready key pair from the pool instead. If there is no
+ * ready key pair, a key pair is generated synchronously and counted as a miss.
+ *
+ * <p>Each DH group has its own pool, created when a key pair of that group is first requested.
+ * When the number of ready key pairs drops below the low watermark, a worker refills the pool up to
+ * the high watermark. Each key pair is handed out at most once.
+ *
+ * <p>Disposal of key pairs dropped from the pool is best-effort. The pool calls destroy() on the
+ * private key and then drops its reference, but it does not erase the key material. Private values
+ * are held as immutable BigIntegers or as provider keys, and most providers, including the one used
+ * by {@link ModpEngine}, only drop their own reference or do not support destroy() at all. Key
+ * material stays in memory until it is garbage collected and overwritten.
+ *
+ * <p>DhKeyPairPool is thread-safe.
+ */
+public final class DhKeyPairPool {
+    private static final String TAG = "DhKeyPairPool";
+
+    @VisibleForTesting static final int DEFAULT_LOW_WATERMARK = 1;
+    @VisibleForTesting static final int DEFAULT_HIGH_WATERMARK = 4;
+
+    private static final int NUM_WORKER_THREADS = 2;
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 30L;
+
+    private static final DhKeyPairPool sInstance =
+            new DhKeyPairPool(createWorkerExecutor(), new DhKeyPairGenerator());
+
+    private final Executor mWorkerExecutor;
+    private final IDhKeyPairGenerator mKeyPairGenerator;
+
+    // Pools of ready key pairs, keyed by DH group. Guarded by "this".
+    private final SparseArray<GroupPool> mGroupPools = new SparseArray<>();
+    private int mLowWatermark = DEFAULT_LOW_WATERMARK;
+    private int mHighWatermark = DEFAULT_HIGH_WATERMARK;
+
+    /** Package private constructor for injecting executor and key pair generator in tests. */
+    @VisibleForTesting
+    DhKeyPairPool(Executor workerExecutor, IDhKeyPairGenerator keyPairGenerator) {
+        mWorkerExecutor = workerExecutor;
+        mKeyPairGenerator = keyPairGenerator;
+    }
+
+    /** Get the DhKeyPairPool shared by all IKE sessions. */
+    public static DhKeyPairPool getInstance() {
+        return sInstance;
+    }
+
+    private static Executor createWorkerExecutor() {
+        ThreadFactory threadFactory =
+                (Runnable r) -> {
+                    Thread thread = new Thread(r, TAG);
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                };
+        ThreadPoolExecutor executor =
+                new ThreadPoolExecutor(
+                        NUM_WORKER_THREADS,
+                        NUM_WORKER_THREADS,
+                        WORKER_KEEP_ALIVE_SECONDS,
+                        TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<>(),
+                        threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Take a key pair for the provided DH group.
+     *
+     * <p>The returned key pair is removed from the pool and will never be returned again.
+     *
+     * @param dhGroup the DH group.
+     * @return a new key pair for dhGroup.
+     * @throws IllegalArgumentException if dhGroup is not supported.
+     */
+    public KeyPair acquireKeyPair(@SaProposal.DhGroup int dhGroup) {
+        KeyPair keyPair = null;
+        synchronized (this) {
+            GroupPool groupPool = mGroupPools.get(dhGroup);
+            if (groupPool != null) {
+                keyPair = groupPool.readyKeyPairs.pollFirst();
+                if (keyPair != null) {
+                    groupPool.hitCount++;
+                } else {
+                    groupPool.missCount++;
+                }
+                scheduleRefillIfNeeded(dhGroup, groupPool);
+            }
+        }
+        if (keyPair != null) return keyPair;
+
+        // Throws IllegalArgumentException for unsupported DH group before a pool is created.
+        keyPair = mKeyPairGenerator.generateKeyPair(dhGroup);
+
+        synchronized (this) {
+            if (mGroupPools.get(dhGroup) == null) {
+                GroupPool groupPool = new GroupPool();
+                groupPool.missCount++;
+                mGroupPools.put(dhGroup, groupPool);
+                scheduleRefillIfNeeded(dhGroup, groupPool);
+            }
+        }
+        return keyPair;
+    }
+
+    /**
+     * Configure the watermarks of every DH group pool.
+     *
+     * <p>Setting both watermarks to zero disables pre-generation. Ready key pairs above the new
+     * high watermark are discarded.
+     *
+     * @param lowWatermark a refill is started when fewer key pairs than this are ready.
+     * @param highWatermark a refill stops when this many key pairs are ready.
+     * @throws IllegalArgumentException if watermarks are negative or lowWatermark is larger than
+     *     highWatermark.
+     */
+    public synchronized void setWatermarks(int lowWatermark, int highWatermark) {
+        if (lowWatermark < 0 || lowWatermark > highWatermark) {
+            throw new IllegalArgumentException(
+                    "Invalid watermarks: low " + lowWatermark + " high " + highWatermark);
+        }
+        mLowWatermark = lowWatermark;
+        mHighWatermark = highWatermark;
+
+        for (int i = 0; i < mGroupPools.size(); i++) {
+            ArrayDeque<KeyPair> readyKeyPairs = mGroupPools.valueAt(i).readyKeyPairs;
+            while (readyKeyPairs.size() > mHighWatermark) {
+                destroyKeyPair(readyKeyPairs.pollLast());
+            }
+        }
+    }
+
+    /** Discard all ready key pairs and reset metrics. */
+    public synchronized void clear() {
+        for (int i = 0; i < mGroupPools.size(); i++) {
+            ArrayDeque<KeyPair> readyKeyPairs = mGroupPools.valueAt(i).readyKeyPairs;
+            while (!readyKeyPairs.isEmpty()) {
+                destroyKeyPair(readyKeyPairs.pollFirst());
+            }
+        }
+        mGroupPools.clear();
+    }
+
+    /** Return the number of requests for dhGroup that were served by a ready key pair. */
+    public synchronized long getHitCount(@SaProposal.DhGroup int dhGroup) {
+        GroupPool groupPool = mGroupPools.get(dhGroup);
+        return groupPool == null ? 0L : groupPool.hitCount;
+    }
+
+    /** Return the number of requests for dhGroup that generated a key pair synchronously. */
+    public synchronized long getMissCount(@SaProposal.DhGroup int dhGroup) {
+        GroupPool groupPool = mGroupPools.get(dhGroup);
+        return groupPool == null ? 0L : groupPool.missCount;
+    }
+
+    /** Return the number of ready key pairs for dhGroup. */
+    public synchronized int getReadyCount(@SaProposal.DhGroup int dhGroup) {
+        GroupPool groupPool = mGroupPools.get(dhGroup);
+        return groupPool == null ? 0 : groupPool.readyKeyPairs.size();
+    }
+
+    // Must be called with lock held.
+    private void scheduleRefillIfNeeded(int dhGroup, GroupPool groupPool) {
+        if (groupPool.isRefilling || groupPool.readyKeyPairs.size() >= mLowWatermark) return;
+
+        groupPool.isRefilling = true;
+        mWorkerExecutor.execute(() -> refill(dhGroup, groupPool));
+    }
+
+    private void refill(int dhGroup, GroupPool groupPool) {
+        try {
+            while (true) {
+                synchronized (this) {
+                    if (mGroupPools.get(dhGroup) != groupPool
+                            || groupPool.readyKeyPairs.size() >= mHighWatermark) {
+                        return;
+                    }
+                }
+
+                // Generate key pair without holding the lock.
+                KeyPair keyPair = mKeyPairGenerator.generateKeyPair(dhGroup);
+
+                synchronized (this) {
+                    if (mGroupPools.get(dhGroup) != groupPool
+                            || groupPool.readyKeyPairs.size() >= mHighWatermark) {
+                        destroyKeyPair(keyPair);
+                        return;
+                    }
+                    groupPool.readyKeyPairs.addLast(keyPair);
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to pre-generate key pair for DH group " + dhGroup, e);
+        } finally {
+            synchronized (this) {
+                groupPool.isRefilling = false;
+            }
+        }
+    }
+
+    // Best-effort disposal. This does not erase the private value. See the class documentation.
+    private static void destroyKeyPair(KeyPair keyPair) {
+        try {
+            keyPair.getPrivate().destroy();
+        } catch (DestroyFailedException e) {
+            // Provider does not support destroying its keys. The key pair is only dropped.
+        }
+    }
+
+    /** GroupPool contains ready key pairs and metrics for one DH group. */
+    private static final class GroupPool {
+        final ArrayDeque<KeyPair> readyKeyPairs = new ArrayDeque<>();
+        boolean isRefilling;
+        long hitCount;
+        long missCount;
+    }
+
+    /**
+     * IDhKeyPairGenerator provides a package private interface for generating key pairs.
+     *
+     * <p>IDhKeyPairGenerator exists so that the interface is injectable for testing.
+     */
+    @VisibleForTesting
+    interface IDhKeyPairGenerator {
+        /**
+         * Generate a new key pair.
+         *
+         * @param dhGroup the DH group.
+         * @return the generated key pair.
+         * @throws IllegalArgumentException if dhGroup is not supported.
+         */
+        KeyPair generateKeyPair(@SaProposal.DhGroup int dhGroup);
+    }
+
+    /** DhKeyPairGenerator generates key pairs using {@link KeyExchangeGroup}. */
+    @VisibleForTesting
+    static final class DhKeyPairGenerator implements IDhKeyPairGenerator {
+        @Override
+        public KeyPair generateKeyPair(@SaProposal.DhGroup int dhGroup) {
+            return KeyExchangeGroup.getInstance(dhGroup).generateKeyPair();
+        }
+    }
+}
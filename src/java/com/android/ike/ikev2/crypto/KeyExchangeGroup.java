@@ -0,0 +1,388 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ike.ikev2.crypto;
+
+import android.util.SparseArray;
+
+import com.android.ike.ikev2.IkeDhParams;
+import com.android.ike.ikev2.SaProposal;
+import com.android.ike.ikev2.utils.BigIntegerUtils;
+import com.android.ike.ikev2.utils.RandomnessFactory;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.ProviderException;
+import java.security.PublicKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.ECFieldFp;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.EllipticCurve;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.interfaces.DHPrivateKey;
+import javax.crypto.interfaces.DHPublicKey;
+import javax.crypto.spec.DHParameterSpec;
+
+/**
+ * KeyExchangeGroup implements key pair generation, public value encoding and shared secret
+ * calculation for a Diffie-Hellman group.
+ *
+ * <p>Supported groups are MODP groups 2 and 14, ECP groups 19, 20 and 21, and Curve25519.
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc7296#section-3.4">RFC 7296, Internet Key Exchange
+ *     Protocol Version 2 (IKEv2)</a>
+ * @see <a href="https://tools.ietf.org/html/rfc5903">RFC 5903, Elliptic Curve Groups modulo a
+ *     Prime (ECP Groups) for IKE and IKEv2</a>
+ * @see <a href="https://tools.ietf.org/html/rfc8031">RFC 8031, Curve25519 and Curve448 for the
+ *     Internet Key Exchange Protocol Version 2 (IKEv2) Key Agreement</a>
+ * @see <a href="https://tools.ietf.org/html/rfc6989">RFC 6989, Additional Diffie-Hellman Tests
+ *     for the Internet Key Exchange Protocol Version 2 (IKEv2)</a>
+ */
+public abstract class KeyExchangeGroup {
+    // Bit length of MODP private values. RFC 3526 section 8 estimates 220 to 320 bits for the
+    // 2048-bit group, and a shorter exponent is safe for the safe prime groups in use.
+    private static final int MODP_PRIVATE_VALUE_BITS = 256;
+
+    private static final SparseArray<KeyExchangeGroup> SUPPORTED_GROUPS = new SparseArray<>();
+
+    static {
+        SUPPORTED_GROUPS.put(
+                SaProposal.DH_GROUP_1024_BIT_MODP,
+                new ModpGroup(IkeDhParams.PRIME_1024_BIT_MODP, 128 /*publicValueLen*/));
+        SUPPORTED_GROUPS.put(
+                SaProposal.DH_GROUP_2048_BIT_MODP,
+                new ModpGroup(IkeDhParams.PRIME_2048_BIT_MODP, 256 /*publicValueLen*/));
+        SUPPORTED_GROUPS.put(
+                SaProposal.DH_GROUP_256_BIT_ECP, new EcpGroup("secp256r1", 32 /*coordinateLen*/));
+        SUPPORTED_GROUPS.put(
+                SaProposal.DH_GROUP_384_BIT_ECP, new EcpGroup("secp384r1", 48 /*coordinateLen*/));
+        SUPPORTED_GROUPS.put(
+                SaProposal.DH_GROUP_521_BIT_ECP, new EcpGroup("secp521r1", 66 /*coordinateLen*/));
+        SUPPORTED_GROUPS.put(SaProposal.DH_GROUP_CURVE_25519, new Curve25519Group());
+    }
+
+    /**
+     * Get the KeyExchangeGroup of the provided DH group.
+     *
+     * @param dhGroup the DH group.
+     * @return the KeyExchangeGroup of dhGroup.
+     * @throws IllegalArgumentException if dhGroup is not supported.
+     */
+    public static KeyExchangeGroup getInstance(@SaProposal.DhGroup int dhGroup) {
+        KeyExchangeGroup group = SUPPORTED_GROUPS.get(dhGroup);
+        if (group == null) {
+            throw new IllegalArgumentException("DH group not supported: " + dhGroup);
+        }
+        return group;
+    }
+
+    /**
+     * Check if the provided DH group has a KeyExchangeGroup.
+     *
+     * @param dhGroup the DH group.
+     * @return true if dhGroup is supported. DH_GROUP_NONE is not supported.
+     */
+    public static boolean isSupported(@SaProposal.DhGroup int dhGroup) {
+        return SUPPORTED_GROUPS.get(dhGroup) != null;
+    }
+
+    /** Return the length in octets of the public value in a KE payload. */
+    public abstract int getPublicValueLength();
+
+    /** Generate a new ephemeral key pair. */
+    public abstract KeyPair generateKeyPair();
+
+    /**
+     * Encode the public key as the key exchange data of a KE payload.
+     *
+     * @param publicKey a public key generated by this group.
+     * @return the public value with length of {@link #getPublicValueLength()}.
+     */
+    public abstract byte[] encodePublicKey(PublicKey publicKey);
+
+    /**
+     * Validate the remote public value and calculate the shared secret.
+     *
+     * @param localPrivateKey a private key generated by this group.
+     * @param remotePublicValue the key exchange data of the remote KE payload.
+     * @return the shared secret.
+     * @throws InvalidKeyException if the remote public value is invalid.
+     * @throws GeneralSecurityException for other security-related exception.
+     */
+    public abstract byte[] calculateSharedSecret(
+            PrivateKey localPrivateKey, byte[] remotePublicValue) throws GeneralSecurityException;
+
+    private static void checkPublicValueLength(byte[] publicValue, int expectedLen)
+            throws InvalidKeyException {
+        if (publicValue.length != expectedLen) {
+            throw new InvalidKeyException(
+                    "Invalid public value length: " + publicValue.length + ". Expected "
+                            + expectedLen);
+        }
+    }
+
+    // Return the shared secret left-padded with zeros to the required length.
+    private static byte[] padSharedSecret(byte[] sharedSecret, int len) {
+        if (sharedSecret.length == len) return sharedSecret;
+        return BigIntegerUtils.bigIntegerToUnsignedByteArray(
+                BigIntegerUtils.unsignedByteArrayToBigInteger(sharedSecret), len);
+    }
+
+    /** ModpGroup implements MODP Diffie-Hellman groups defined in RFC 3526 with ModpEngine. */
+    private static final class ModpGroup extends KeyExchangeGroup {
+        private final ModpEngine mModpEngine;
+        private final int mPublicValueLen;
+
+        ModpGroup(String primeHex, int publicValueLen) {
+            BigInteger prime = BigIntegerUtils.unsignedHexStringToBigInteger(primeHex);
+            BigInteger baseGen = BigInteger.valueOf(IkeDhParams.BASE_GENERATOR_MODP);
+            mModpEngine =
+                    new ModpEngine(
+                            new DHParameterSpec(prime, baseGen),
+                            MODP_PRIVATE_VALUE_BITS,
+                            publicValueLen);
+            mPublicValueLen = publicValueLen;
+        }
+
+        @Override
+        public int getPublicValueLength() {
+            return mPublicValueLen;
+        }
+
+        @Override
+        public KeyPair generateKeyPair() {
+            return mModpEngine.generateKeyPair();
+        }
+
+        @Override
+        public byte[] encodePublicKey(PublicKey publicKey) {
+            return mModpEngine.encodePublicKey((DHPublicKey) publicKey);
+        }
+
+        @Override
+        public byte[] calculateSharedSecret(PrivateKey localPrivateKey, byte[] remotePublicValue)
+                throws GeneralSecurityException {
+            return mModpEngine.calculateSharedSecret(
+                    (DHPrivateKey) localPrivateKey, remotePublicValue);
+        }
+    }
+
+    /**
+     * EcpGroup implements elliptic curve groups modulo a prime.
+     *
+     * <p>The public value is the concatenation of the x and y coordinates of the public point,
+     * and the shared secret is the x coordinate of the shared point, as specified by RFC 5903.
+     */
+    private static final class EcpGroup extends KeyExchangeGroup {
+        private static final String KEY_PAIR_ALGORITHM = "EC";
+        private static final String KEY_EXCHANGE_ALGORITHM = "ECDH";
+
+        private final ECGenParameterSpec mCurveSpec;
+        private final int mCoordinateLen;
+
+        // Resolved lazily so that an unavailable curve does not break other groups.
+        private volatile ECParameterSpec mEcParams;
+
+        EcpGroup(String curveName, int coordinateLen) {
+            mCurveSpec = new ECGenParameterSpec(curveName);
+            mCoordinateLen = coordinateLen;
+        }
+
+        private ECParameterSpec getEcParams() {
+            if (mEcParams == null) {
+                try {
+                    AlgorithmParameters params =
+                            CryptoProviderRegistry.getAlgorithmParameters(KEY_PAIR_ALGORITHM);
+                    params.init(mCurveSpec);
+                    mEcParams = params.getParameterSpec(ECParameterSpec.class);
+                } catch (GeneralSecurityException e) {
+                    throw new ProviderException("Failed to obtain " + mCurveSpec.getName(), e);
+                }
+            }
+            return mEcParams;
+        }
+
+        @Override
+        public int getPublicValueLength() {
+            return 2 * mCoordinateLen;
+        }
+
+        @Override
+        public KeyPair generateKeyPair() {
+            return generateKeyPairWithParams(KEY_PAIR_ALGORITHM, mCurveSpec);
+        }
+
+        @Override
+        public byte[] encodePublicKey(PublicKey publicKey) {
+            ECPoint point = ((ECPublicKey) publicKey).getW();
+
+            return ByteBuffer.allocate(2 * mCoordinateLen)
+                    .put(BigIntegerUtils.bigIntegerToUnsignedByteArray(
+                            point.getAffineX(), mCoordinateLen))
+                    .put(BigIntegerUtils.bigIntegerToUnsignedByteArray(
+                            point.getAffineY(), mCoordinateLen))
+                    .array();
+        }
+
+        @Override
+        public byte[] calculateSharedSecret(PrivateKey localPrivateKey, byte[] remotePublicValue)
+                throws GeneralSecurityException {
+            checkPublicValueLength(remotePublicValue, 2 * mCoordinateLen);
+
+            BigInteger x =
+                    BigIntegerUtils.unsignedByteArrayToBigInteger(
+                            Arrays.copyOfRange(remotePublicValue, 0, mCoordinateLen));
+            BigInteger y =
+                    BigIntegerUtils.unsignedByteArrayToBigInteger(
+                            Arrays.copyOfRange(
+                                    remotePublicValue, mCoordinateLen, 2 * mCoordinateLen));
+
+            ECParameterSpec ecParams = getEcParams();
+            validatePointOnCurve(x, y, ecParams.getCurve());
+
+            KeyFactory ecKeyFactory = CryptoProviderRegistry.getKeyFactory(KEY_PAIR_ALGORITHM);
+            PublicKey remotePublicKey =
+                    ecKeyFactory.generatePublic(new ECPublicKeySpec(new ECPoint(x, y), ecParams));
+
+            return padSharedSecret(
+                    agree(KEY_EXCHANGE_ALGORITHM, localPrivateKey, remotePublicKey),
+                    mCoordinateLen);
+        }
+
+        // As instructed by RFC 6989 section 2.3, check that the point is on the curve. All
+        // supported curves have a cofactor of one, so no further test is needed. The point at
+        // infinity cannot be encoded and is never on the curve.
+        private static void validatePointOnCurve(BigInteger x, BigInteger y, EllipticCurve curve)
+                throws InvalidKeyException {
+            BigInteger p = ((ECFieldFp) curve.getField()).getP();
+            if (x.compareTo(p) >= 0 || y.compareTo(p) >= 0) {
+                throw new InvalidKeyException("ECP public value coordinate is out of range");
+            }
+
+            BigInteger lhs = y.multiply(y).mod(p);
+            BigInteger rhs =
+                    x.multiply(x).add(curve.getA()).multiply(x).add(curve.getB()).mod(p);
+            if (!lhs.equals(rhs)) {
+                throw new InvalidKeyException("ECP public value is not on the curve");
+            }
+        }
+    }
+
+    /**
+     * Curve25519Group implements X25519 key agreement as specified by RFC 8031.
+     *
+     * <p>The public value is the 32-octet little-endian u-coordinate.
+     */
+    private static final class Curve25519Group extends KeyExchangeGroup {
+        private static final String KEY_EXCHANGE_ALGORITHM = "X25519";
+        private static final int PUBLIC_VALUE_LEN = 32;
+        private static final int CURVE_25519_KEY_SIZE = 255;
+
+        // DER encoding of SubjectPublicKeyInfo for X25519 without the trailing raw public value.
+        private static final byte[] X509_PUBLIC_KEY_PREFIX = {
+            0x30, 0x2a, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x6e, 0x03, 0x21, 0x00
+        };
+
+        @Override
+        public int getPublicValueLength() {
+            return PUBLIC_VALUE_LEN;
+        }
+
+        @Override
+        public KeyPair generateKeyPair() {
+            try {
+                KeyPairGenerator keyPairGen =
+                        CryptoProviderRegistry.getKeyPairGenerator(KEY_EXCHANGE_ALGORITHM);
+                keyPairGen.initialize(CURVE_25519_KEY_SIZE, RandomnessFactory.getRandom());
+                return keyPairGen.generateKeyPair();
+            } catch (GeneralSecurityException e) {
+                throw new ProviderException("Failed to obtain " + KEY_EXCHANGE_ALGORITHM, e);
+            }
+        }
+
+        @Override
+        public byte[] encodePublicKey(PublicKey publicKey) {
+            byte[] encoded = publicKey.getEncoded();
+            if (encoded.length != X509_PUBLIC_KEY_PREFIX.length + PUBLIC_VALUE_LEN) {
+                throw new ProviderException("Unexpected X25519 public key encoding");
+            }
+            return Arrays.copyOfRange(encoded, X509_PUBLIC_KEY_PREFIX.length, encoded.length);
+        }
+
+        @Override
+        public byte[] calculateSharedSecret(PrivateKey localPrivateKey, byte[] remotePublicValue)
+                throws GeneralSecurityException {
+            checkPublicValueLength(remotePublicValue, PUBLIC_VALUE_LEN);
+
+            byte[] encoded = new byte[X509_PUBLIC_KEY_PREFIX.length + PUBLIC_VALUE_LEN];
+            System.arraycopy(X509_PUBLIC_KEY_PREFIX, 0, encoded, 0, X509_PUBLIC_KEY_PREFIX.length);
+            System.arraycopy(
+                    remotePublicValue, 0, encoded, X509_PUBLIC_KEY_PREFIX.length, PUBLIC_VALUE_LEN);
+
+            KeyFactory keyFactory = CryptoProviderRegistry.getKeyFactory(KEY_EXCHANGE_ALGORITHM);
+            PublicKey remotePublicKey = keyFactory.generatePublic(new X509EncodedKeySpec(encoded));
+
+            byte[] sharedSecret;
+            try {
+                sharedSecret = agree(KEY_EXCHANGE_ALGORITHM, localPrivateKey, remotePublicKey);
+            } catch (IllegalStateException e) {
+                // Some providers reject low order points during agreement.
+                throw new InvalidKeyException("Invalid Curve25519 public value", e);
+            }
+
+            // As instructed by RFC 8031 section 2.3, reject the all-zero shared secret that
+            // results from low order points.
+            int accumulator = 0;
+            for (byte b : sharedSecret) accumulator |= b;
+            if (accumulator == 0) {
+                throw new InvalidKeyException("Curve25519 shared secret is all zeros");
+            }
+            return sharedSecret;
+        }
+    }
+
+    private static KeyPair generateKeyPairWithParams(
+            String algorithm, AlgorithmParameterSpec params) {
+        try {
+            KeyPairGenerator keyPairGen = CryptoProviderRegistry.getKeyPairGenerator(algorithm);
+            keyPairGen.initialize(params, RandomnessFactory.getRandom());
+            return keyPairGen.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new ProviderException("Failed to obtain " + algorithm, e);
+        }
+    }
+
+    private static byte[] agree(String algorithm, PrivateKey privateKey, PublicKey publicKey)
+            throws GeneralSecurityException {
+        KeyAgreement keyAgreement = CryptoProviderRegistry.getKeyAgreement(algorithm);
+        keyAgreement.init(privateKey);
+        keyAgreement.doPhase(publicKey, true/** Last phase */);
+        return keyAgreement.generateSecret();
+    }
+}
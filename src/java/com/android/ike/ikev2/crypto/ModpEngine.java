@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ike.ikev2.crypto;
+
+import com.android.ike.ikev2.utils.BigIntegerUtils;
+import com.android.ike.ikev2.utils.RandomnessFactory;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.math.BigInteger;
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+
+import javax.crypto.interfaces.DHPrivateKey;
+import javax.crypto.interfaces.DHPublicKey;
+import javax.crypto.spec.DHParameterSpec;
+
+/**
+ * ModpEngine performs Diffie-Hellman key exchange in a MODP group without going through the
+ * security provider.
+ *
+ * <p>Public values are computed with a precomputed fixed-base window table, which replaces all
+ * modular squarings of a generic exponentiation with table lookups. Private values have a fixed
+ * bit length as allowed for safe prime groups by RFC 3526 section 8, which also bounds the size of
+ * the table.
+ *
+ * <p>Shared secrets are computed directly from the raw public value, after the recipient tests
+ * required by RFC 6989 section 2.1.
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc3526#section-8">RFC 3526, More Modular
+ *     Exponential (MODP) Diffie-Hellman groups for Internet Key Exchange (IKE)</a>
+ * @see <a href="https://tools.ietf.org/html/rfc6989#section-2.1">RFC 6989, Additional
+ *     Diffie-Hellman Tests for the Internet Key Exchange Protocol Version 2 (IKEv2)</a>
+ */
+public final class ModpEngine {
+    private static final String KEY_EXCHANGE_ALGORITHM = "DH";
+
+    // Number of exponent bits consumed by each table lookup.
+    @VisibleForTesting static final int WINDOW_BITS = 4;
+    private static final int WINDOW_SIZE = 1 << WINDOW_BITS;
+    private static final int WINDOW_MASK = WINDOW_SIZE - 1;
+
+    private final DHParameterSpec mDhParams;
+    private final BigInteger mPrime;
+    private final int mPrivateValueBits;
+    private final int mPublicValueLen;
+
+    // mFixedBaseTable[i][j - 1] is g^(j * 2^(WINDOW_BITS * i)) mod p. Built lazily on first use.
+    private volatile BigInteger[][] mFixedBaseTable;
+
+    /**
+     * Construct a ModpEngine.
+     *
+     * @param dhParams the prime and generator of the group.
+     * @param privateValueBits the bit length of generated private values.
+     * @param publicValueLen the length in octets of public values and shared secrets.
+     */
+    public ModpEngine(DHParameterSpec dhParams, int privateValueBits, int publicValueLen) {
+        mDhParams = dhParams;
+        mPrime = dhParams.getP();
+        mPrivateValueBits = privateValueBits;
+        mPublicValueLen = publicValueLen;
+    }
+
+    /** Generate a new ephemeral key pair using the fixed-base table. */
+    public KeyPair generateKeyPair() {
+        BigInteger privateValue;
+        do {
+            privateValue = new BigInteger(mPrivateValueBits, RandomnessFactory.getRandom());
+        } while (privateValue.compareTo(BigInteger.ONE) <= 0);
+
+        return new KeyPair(
+                new ModpPublicKey(fixedBaseExp(privateValue), mDhParams),
+                new ModpPrivateKey(privateValue, mDhParams));
+    }
+
+    /** Return the public value of the public key, zero-padded to the public value length. */
+    public byte[] encodePublicKey(DHPublicKey publicKey) {
+        return BigIntegerUtils.bigIntegerToUnsignedByteArray(publicKey.getY(), mPublicValueLen);
+    }
+
+    /**
+     * Validate the remote public value and calculate the shared secret.
+     *
+     * @param localPrivateKey the local private key.
+     * @param remotePublicValue the key exchange data of the remote KE payload.
+     * @return the shared secret, zero-padded to the public value length.
+     * @throws InvalidKeyException if the remote public value is invalid.
+     */
+    public byte[] calculateSharedSecret(DHPrivateKey localPrivateKey, byte[] remotePublicValue)
+            throws InvalidKeyException {
+        if (remotePublicValue.length != mPublicValueLen) {
+            throw new InvalidKeyException(
+                    "Invalid public value length: " + remotePublicValue.length + ". Expected "
+                            + mPublicValueLen);
+        }
+        return calculateSharedSecret(
+                mPrime, localPrivateKey.getX(), remotePublicValue, mPublicValueLen);
+    }
+
+    /**
+     * Validate the remote public value and calculate the shared secret with explicit parameters.
+     *
+     * @param prime the prime of the group.
+     * @param privateValue the local private value.
+     * @param remotePublicValue the remote public value.
+     * @param sharedSecretLen the length in octets of the returned shared secret.
+     * @return the shared secret, zero-padded to sharedSecretLen.
+     * @throws InvalidKeyException if the remote public value is invalid.
+     */
+    public static byte[] calculateSharedSecret(
+            BigInteger prime,
+            BigInteger privateValue,
+            byte[] remotePublicValue,
+            int sharedSecretLen)
+            throws InvalidKeyException {
+        BigInteger publicValue = BigIntegerUtils.unsignedByteArrayToBigInteger(remotePublicValue);
+
+        // Recipient tests as instructed by RFC 6989 section 2.1. All supported MODP groups use
+        // safe primes, so checking 1 < y < p - 1 is sufficient.
+        if (publicValue.compareTo(BigInteger.ONE) <= 0
+                || publicValue.compareTo(prime.subtract(BigInteger.ONE)) >= 0) {
+            throw new InvalidKeyException("MODP public value is out of range");
+        }
+
+        BigInteger sharedSecret = publicValue.modPow(privateValue, prime);
+        return BigIntegerUtils.bigIntegerToUnsignedByteArray(sharedSecret, sharedSecretLen);
+    }
+
+    /**
+     * Compute g^exponent mod p using the fixed-base table.
+     *
+     * <p>One multiplication is done per window regardless of the exponent value. BigInteger
+     * arithmetic itself is not constant time, so this does not remove every timing difference.
+     */
+    @VisibleForTesting
+    BigInteger fixedBaseExp(BigInteger exponent) {
+        BigInteger[][] table = getFixedBaseTable();
+        if (exponent.bitLength() > table.length * WINDOW_BITS) {
+            return mDhParams.getG().modPow(exponent, mPrime);
+        }
+
+        BigInteger result = BigInteger.ONE;
+        for (int i = 0; i < table.length; i++) {
+            int digit = 0;
+            for (int bit = 0; bit < WINDOW_BITS; bit++) {
+                if (exponent.testBit(i * WINDOW_BITS + bit)) digit |= 1 << bit;
+            }
+            // Multiply on every window so that the number of multiplications does not depend on
+            // the zero windows of the private value. A zero digit multiplies by a full size table
+            // entry and discards the product, since multiplying by one would be much cheaper.
+            BigInteger product = result.multiply(table[i][Math.max(digit, 1) - 1]).mod(mPrime);
+            if (digit != 0) result = product;
+        }
+        return result;
+    }
+
+    private BigInteger[][] getFixedBaseTable() {
+        BigInteger[][] table = mFixedBaseTable;
+        if (table != null) return table;
+
+        synchronized (this) {
+            if (mFixedBaseTable == null) {
+                int numWindows = (mPrivateValueBits + WINDOW_BITS - 1) / WINDOW_BITS;
+                table = new BigInteger[numWindows][WINDOW_MASK];
+
+                BigInteger windowBase = mDhParams.getG();
+                for (int i = 0; i < numWindows; i++) {
+                    table[i][0] = windowBase;
+                    for (int j = 1; j < WINDOW_MASK; j++) {
+                        table[i][j] = table[i][j - 1].multiply(windowBase).mod(mPrime);
+                    }
+                    // g^(2^(WINDOW_BITS * (i + 1))) = g^(15 * 2^(WINDOW_BITS * i)) * windowBase
+                    windowBase = table[i][WINDOW_MASK - 1].multiply(windowBase).mod(mPrime);
+                }
+                mFixedBaseTable = table;
+            }
+            return mFixedBaseTable;
+        }
+    }
+
+    /** ModpPublicKey is a DH public key that is not bound to any security provider. */
+    private static final class ModpPublicKey implements DHPublicKey {
+        private final BigInteger mY;
+        private final DHParameterSpec mParams;
+
+        ModpPublicKey(BigInteger y, DHParameterSpec params) {
+            mY = y;
+            mParams = params;
+        }
+
+        @Override
+        public BigInteger getY() {
+            return mY;
+        }
+
+        @Override
+        public DHParameterSpec getParams() {
+            return mParams;
+        }
+
+        @Override
+        public String getAlgorithm() {
+            return KEY_EXCHANGE_ALGORITHM;
+        }
+
+        @Override
+        public String getFormat() {
+            return null;
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            return null;
+        }
+    }
+
+    /** ModpPrivateKey is a DH private key that is not bound to any security provider. */
+    private static final class ModpPrivateKey implements DHPrivateKey {
+        private BigInteger mX;
+        private final DHParameterSpec mParams;
+
+        ModpPrivateKey(BigInteger x, DHParameterSpec params) {
+            mX = x;
+            mParams = params;
+        }
+
+        @Override
+        public synchronized BigInteger getX() {
+            if (mX == null) throw new IllegalStateException("Private key has been destroyed");
+            return mX;
+        }
+
+        @Override
+        public DHParameterSpec getParams() {
+            return mParams;
+        }
+
+        @Override
+        public String getAlgorithm() {
+            return KEY_EXCHANGE_ALGORITHM;
+        }
+
+        @Override
+        public String getFormat() {
+            return null;
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            return null;
+        }
+
+        // BigInteger is immutable and cannot be zeroed, so destroying only drops the reference. The
+        // private value stays in memory until it is garbage collected.
+        @Override
+        public synchronized void destroy() {
+            mX = null;
+        }
+
+        @Override
+        public synchronized boolean isDestroyed() {
+            return mX == null;
+        }
+    }
+}
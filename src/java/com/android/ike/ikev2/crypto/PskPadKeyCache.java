@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ike.ikev2.crypto;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.lang.ref.WeakReference;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+
+/**
+ * PskPadKeyCache caches the keys derived from pre-shared keys for calculating PSK signatures.
+ *
+ * <p>A PSK signature is prf(prf(Shared Secret, "Key Pad for IKEv2"), SignedOctets). The inner
+ * value only depends on the pre-shared key and the negotiated PRF, so it is calculated once and
+ * reused for signing and verifying in all IKE sessions configured with the same pre-shared key.
+ *
+ * <p>Entries are keyed by the identity of the pre-shared key byte array and the PRF algorithm.
+ * They do not keep the pre-shared key alive and are dropped after it is garbage collected. A
+ * caller that modifies a pre-shared key in place MUST call {@link #invalidate(byte[])}. Derived
+ * keys are zeroed when they are evicted or invalidated.
+ *
+ * <p>PskPadKeyCache is thread-safe.
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc7296#section-2.15">RFC 7296, Internet Key Exchange
+ *     Protocol Version 2 (IKEv2) 2.15. Authentication of the IKE SA</a>
+ */
+public final class PskPadKeyCache {
+    // Hex of ASCII characters "Key Pad for IKEv2" for calculating PSK signature.
+    private static final byte[] IKE_KEY_PAD_STRING_ASCII_HEX_BYTES = {
+        (byte) 0x4b, (byte) 0x65, (byte) 0x79, (byte) 0x20,
+        (byte) 0x50, (byte) 0x61, (byte) 0x64, (byte) 0x20,
+        (byte) 0x66, (byte) 0x6f, (byte) 0x72, (byte) 0x20,
+        (byte) 0x49, (byte) 0x4b, (byte) 0x45, (byte) 0x76,
+        (byte) 0x32
+    };
+
+    @VisibleForTesting static final int MAX_ENTRIES = 16;
+
+    private static final PskPadKeyCache sInstance = new PskPadKeyCache();
+
+    // Least recently used entry first. Guarded by "this".
+    private final LinkedHashMap<CacheKey, CacheEntry> mEntries =
+            new LinkedHashMap<CacheKey, CacheEntry>(MAX_ENTRIES, 0.75f, true /*accessOrder*/) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<CacheKey, CacheEntry> eldest) {
+                    if (size() <= MAX_ENTRIES) return false;
+                    eldest.getValue().destroy();
+                    return true;
+                }
+            };
+
+    private long mHitCount;
+    private long mMissCount;
+
+    /** Package private constructor for creating isolated caches in tests. */
+    @VisibleForTesting
+    PskPadKeyCache() {}
+
+    /** Get the PskPadKeyCache shared by all IKE sessions. */
+    public static PskPadKeyCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Return a PRF that is keyed with prf(psk, "Key Pad for IKEv2").
+     *
+     * <p>The returned Mac is ready for update() and doFinal(). It is owned by the caller and must
+     * not be shared across threads. If the provider of prfMac supports cloning, the returned Mac
+     * is a clone of a cached initialized Mac; otherwise prfMac itself is initialized with the
+     * cached key and returned.
+     *
+     * @param psk the pre-shared key.
+     * @param prfMac the negotiated PRF.
+     * @return a Mac initialized with the derived pad key.
+     * @throws InvalidKeyException if psk is not a valid key for prfMac.
+     */
+    public Mac getPadKeyedPrf(byte[] psk, Mac prfMac) throws InvalidKeyException {
+        CacheKey cacheKey = new CacheKey(psk, prfMac.getAlgorithm());
+        synchronized (this) {
+            CacheEntry entry = mEntries.get(cacheKey);
+            if (entry != null) {
+                mHitCount++;
+                return entry.getKeyedPrf(prfMac);
+            }
+            mMissCount++;
+        }
+
+        // Derive the key without holding the lock.
+        CacheEntry entry = createEntry(psk, prfMac);
+        synchronized (this) {
+            purgeCollectedEntries();
+            CacheEntry existing = mEntries.put(cacheKey, entry);
+            if (existing != null) existing.destroy();
+            return entry.getKeyedPrf(prfMac);
+        }
+    }
+
+    /**
+     * Remove and erase all cached keys derived from the provided pre-shared key.
+     *
+     * @param psk the pre-shared key that has been changed or is no longer used.
+     */
+    public synchronized void invalidate(byte[] psk) {
+        Iterator<Map.Entry<CacheKey, CacheEntry>> iterator = mEntries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<CacheKey, CacheEntry> mapEntry = iterator.next();
+            if (mapEntry.getKey().pskRef.get() == psk) {
+                mapEntry.getValue().destroy();
+                iterator.remove();
+            }
+        }
+    }
+
+    /** Remove and erase all cached keys, and reset metrics. */
+    public synchronized void invalidateAll() {
+        for (CacheEntry entry : mEntries.values()) {
+            entry.destroy();
+        }
+        mEntries.clear();
+        mHitCount = 0L;
+        mMissCount = 0L;
+    }
+
+    /** Return the number of cached keys. */
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /** Return the number of requests that were served by a cached key. */
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /** Return the number of requests that derived a new key. */
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    private static CacheEntry createEntry(byte[] psk, Mac prfMac) throws InvalidKeyException {
+        ErasableSecretKey pskKey = new ErasableSecretKey(psk.clone(), prfMac.getAlgorithm());
+        ErasableSecretKey padKey;
+        try {
+            prfMac.init(pskKey);
+            padKey =
+                    new ErasableSecretKey(
+                            prfMac.doFinal(IKE_KEY_PAD_STRING_ASCII_HEX_BYTES),
+                            prfMac.getAlgorithm());
+        } finally {
+            pskKey.destroy();
+        }
+
+        Mac prototype = null;
+        try {
+            prototype = (Mac) prfMac.clone();
+            prototype.init(padKey);
+        } catch (CloneNotSupportedException e) {
+            // Provider does not support cloning. Initialize prfMac with the cached key each time.
+        }
+        return new CacheEntry(padKey, prototype);
+    }
+
+    // Must be called with lock held.
+    private void purgeCollectedEntries() {
+        Iterator<Map.Entry<CacheKey, CacheEntry>> iterator = mEntries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<CacheKey, CacheEntry> mapEntry = iterator.next();
+            if (mapEntry.getKey().pskRef.get() == null) {
+                mapEntry.getValue().destroy();
+                iterator.remove();
+            }
+        }
+    }
+
+    /** CacheKey identifies a pre-shared key instance and a PRF algorithm. */
+    private static final class CacheKey {
+        final WeakReference<byte[]> pskRef;
+        final String prfAlgorithm;
+        private final int mHashCode;
+
+        CacheKey(byte[] psk, String prfAlgorithm) {
+            pskRef = new WeakReference<>(psk);
+            this.prfAlgorithm = prfAlgorithm;
+            mHashCode = 31 * System.identityHashCode(psk) + prfAlgorithm.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CacheKey)) return false;
+            CacheKey other = (CacheKey) o;
+            byte[] psk = pskRef.get();
+            return psk != null
+                    && psk == other.pskRef.get()
+                    && prfAlgorithm.equals(other.prfAlgorithm);
+        }
+    }
+
+    /** CacheEntry contains a derived pad key and optionally a Mac initialized with it. */
+    private static final class CacheEntry {
+        final ErasableSecretKey padKey;
+        // Never updated, only cloned. Null if the provider does not support cloning.
+        private Mac mPrototype;
+
+        CacheEntry(ErasableSecretKey padKey, Mac prototype) {
+            this.padKey = padKey;
+            mPrototype = prototype;
+        }
+
+        Mac getKeyedPrf(Mac prfMac) throws InvalidKeyException {
+            if (mPrototype != null) {
+                try {
+                    return (Mac) mPrototype.clone();
+                } catch (CloneNotSupportedException e) {
+                    mPrototype = null;
+                }
+            }
+            prfMac.init(padKey);
+            return prfMac;
+        }
+
+        void destroy() {
+            padKey.destroy();
+            // The initialized Mac keeps its own copy of key state that cannot be erased. Drop it.
+            mPrototype = null;
+        }
+    }
+
+    /** ErasableSecretKey is a raw secret key whose key material can be zeroed. */
+    private static final class ErasableSecretKey implements SecretKey {
+        private final byte[] mKeyBytes;
+        private final String mAlgorithm;
+        private boolean mIsDestroyed;
+
+        ErasableSecretKey(byte[] keyBytes, String algorithm) {
+            mKeyBytes = keyBytes;
+            mAlgorithm = algorithm;
+        }
+
+        @Override
+        public String getAlgorithm() {
+            return mAlgorithm;
+        }
+
+        @Override
+        public String getFormat() {
+            return "RAW";
+        }
+
+        @Override
+        public synchronized byte[] getEncoded() {
+            if (mIsDestroyed) throw new IllegalStateException("Key has been destroyed");
+            return mKeyBytes.clone();
+        }
+
+        @Override
+        public synchronized void destroy() {
+            Arrays.fill(mKeyBytes, (byte) 0);
+            mIsDestroyed = true;
+        }
+
+        @Override
+        public synchronized boolean isDestroyed() {
+            return mIsDestroyed;
+        }
+    }
+}
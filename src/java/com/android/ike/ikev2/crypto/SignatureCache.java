@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ike.ikev2.crypto;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.cert.X509Certificate;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * SignatureCache caches public keys of certificates and initialized Signature objects for each
+ * credential used in signature-based authentication.
+ *
+ * <p>Extracting the public key from a certificate and initializing a Signature with a key both
+ * involve parsing and translating the key into the provider's own representation. A Signature
+ * returns to its initialized state after it signs or verifies, so it can be reused for the same key
+ * without initializing it again.
+ *
+ * <p>Signature objects are not thread-safe. Each cached Signature is lent to one caller at a time
+ * by {@link #withSigner} and {@link #withVerifier}; concurrent callers for the same key get a new
+ * Signature. Entries are keyed by the identity of the key object and the signature algorithm, and
+ * the least recently used entries are evicted first.
+ *
+ * <p>SignatureCache is thread-safe.
+ */
+public final class SignatureCache {
+    @VisibleForTesting static final int MAX_ENTRIES = 32;
+
+    private static final SignatureCache sInstance = new SignatureCache();
+
+    // Idle initialized Signature objects. Least recently used first. Guarded by "this".
+    private final LinkedHashMap<CacheKey, Signature> mIdleSignatures =
+            new LinkedHashMap<CacheKey, Signature>(MAX_ENTRIES, 0.75f, true /*accessOrder*/) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<CacheKey, Signature> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    // Public keys of certificates. Least recently used first. Guarded by "this".
+    private final LinkedHashMap<X509Certificate, PublicKey> mPublicKeys =
+            new LinkedHashMap<X509Certificate, PublicKey>(
+                    MAX_ENTRIES, 0.75f, true /*accessOrder*/) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<X509Certificate, PublicKey> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    private long mHitCount;
+    private long mMissCount;
+
+    /** Package private constructor for creating isolated caches in tests. */
+    @VisibleForTesting
+    SignatureCache() {}
+
+    /** Get the SignatureCache shared by all IKE sessions. */
+    public static SignatureCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Return the public key of a certificate.
+     *
+     * @param certificate the certificate.
+     * @return the public key of the certificate.
+     */
+    public PublicKey getPublicKey(X509Certificate certificate) {
+        synchronized (this) {
+            PublicKey publicKey = mPublicKeys.get(certificate);
+            if (publicKey != null) return publicKey;
+        }
+
+        PublicKey publicKey = certificate.getPublicKey();
+        synchronized (this) {
+            mPublicKeys.put(certificate, publicKey);
+        }
+        return publicKey;
+    }
+
+    /**
+     * Run a signing operation with a Signature initialized with the provided private key.
+     *
+     * @param algorithm the signature algorithm.
+     * @param privateKey the private key.
+     * @param operation the operation to run. It MUST finish with {@link Signature#sign()}.
+     * @return the value returned by operation.
+     * @throws NoSuchAlgorithmException if algorithm is not supported.
+     * @throws InvalidKeyException if privateKey cannot be used with algorithm.
+     * @throws SignatureException if operation failed.
+     */
+    public <T> T withSigner(
+            String algorithm, PrivateKey privateKey, ISignatureOperation<T> operation)
+            throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        return runWithSignature(algorithm, privateKey, operation);
+    }
+
+    /**
+     * Run a verifying operation with a Signature initialized with the provided public key.
+     *
+     * @param algorithm the signature algorithm.
+     * @param publicKey the public key.
+     * @param operation the operation to run. It MUST finish with {@link Signature#verify(byte[])}.
+     * @return the value returned by operation.
+     * @throws NoSuchAlgorithmException if algorithm is not supported.
+     * @throws InvalidKeyException if publicKey cannot be used with algorithm.
+     * @throws SignatureException if operation failed.
+     */
+    public <T> T withVerifier(
+            String algorithm, PublicKey publicKey, ISignatureOperation<T> operation)
+            throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        return runWithSignature(algorithm, publicKey, operation);
+    }
+
+    /**
+     * Remove all cached Signature objects initialized with the provided key.
+     *
+     * @param key the key that is no longer used.
+     */
+    public synchronized void invalidate(Key key) {
+        Iterator<CacheKey> iterator = mIdleSignatures.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().key == key) iterator.remove();
+        }
+        mPublicKeys.values().removeIf((PublicKey publicKey) -> publicKey == key);
+    }
+
+    /** Remove all cached entries and reset metrics. */
+    public synchronized void clear() {
+        mIdleSignatures.clear();
+        mPublicKeys.clear();
+        mHitCount = 0L;
+        mMissCount = 0L;
+    }
+
+    /** Return the number of operations that reused a cached Signature. */
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /** Return the number of operations that initialized a new Signature. */
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    private <T> T runWithSignature(String algorithm, Key key, ISignatureOperation<T> operation)
+            throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        CacheKey cacheKey = new CacheKey(key, algorithm);
+        Signature signature;
+        synchronized (this) {
+            // Take the Signature out so that no other caller can use it concurrently.
+            signature = mIdleSignatures.remove(cacheKey);
+            if (signature != null) {
+                mHitCount++;
+            } else {
+                mMissCount++;
+            }
+        }
+
+        if (signature == null) {
+            signature = CryptoProviderRegistry.getSignature(algorithm);
+            // Do not pass the SecureRandom of the calling thread since the Signature can be used
+            // by other threads later. The provider's default SecureRandom is used instead.
+            if (key instanceof PrivateKey) {
+                signature.initSign((PrivateKey) key);
+            } else {
+                signature.initVerify((PublicKey) key);
+            }
+        }
+
+        // A Signature whose operation threw may be left in an unknown state, and is dropped.
+        T result = operation.run(signature);
+        synchronized (this) {
+            mIdleSignatures.putIfAbsent(cacheKey, signature);
+        }
+        return result;
+    }
+
+    /** CacheKey identifies a key instance and a signature algorithm. */
+    private static final class CacheKey {
+        final Key key;
+        final String algorithm;
+
+        CacheKey(Key key, String algorithm) {
+            this.key = key;
+            this.algorithm = algorithm;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(key) + algorithm.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CacheKey)) return false;
+            CacheKey other = (CacheKey) o;
+            return key == other.key && algorithm.equals(other.algorithm);
+        }
+    }
+
+    /**
+     * ISignatureOperation is an operation that updates an initialized Signature and then signs or
+     * verifies.
+     */
+    public interface ISignatureOperation<T> {
+        /** Run the operation with the provided Signature. */
+        T run(Signature signature) throws SignatureException;
+    }
+}
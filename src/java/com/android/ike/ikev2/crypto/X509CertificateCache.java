@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ike.ikev2.crypto;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * X509CertificateCache caches parsed X.509 certificates, keyed by the SHA-256 digest of their DER
+ * encoding.
+ *
+ * <p>IKE_AUTH exchanges with the same gateway carry the same end and intermediate certificates
+ * again and again. A certificate whose DER encoding has been parsed before is returned without
+ * parsing it or checking it for trailing bytes again; a certificate only enters the cache after
+ * both succeeded.
+ *
+ * <p>The cache is bounded by both the number of certificates and the total length of their DER
+ * encodings, and evicts the least recently used certificates first. The DER length is used as the
+ * estimate of memory footprint since a parsed certificate keeps its encoding.
+ *
+ * <p>X509CertificateCache is thread-safe.
+ */
+public final class X509CertificateCache {
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final String CERTIFICATE_TYPE = "X.509";
+
+    @VisibleForTesting static final int DEFAULT_MAX_ENTRIES = 64;
+    @VisibleForTesting static final int DEFAULT_MAX_ENCODED_BYTES = 256 * 1024;
+
+    private static final X509CertificateCache sInstance =
+            new X509CertificateCache(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_ENCODED_BYTES);
+
+    // CertificateFactory and MessageDigest are not thread-safe. Each thread keeps its own.
+    private static final ThreadLocal<CertificateFactory> sCertificateFactory = new ThreadLocal<>();
+    private static final ThreadLocal<MessageDigest> sMessageDigest = new ThreadLocal<>();
+
+    private final int mMaxEntries;
+    private final int mMaxEncodedBytes;
+
+    // Least recently used first. Guarded by "this".
+    private final LinkedHashMap<ByteBuffer, CacheEntry> mCertificates =
+            new LinkedHashMap<>(16, 0.75f, true /*accessOrder*/);
+    private long mEncodedBytes;
+    private long mHitCount;
+    private long mMissCount;
+
+    /** Package private constructor for configuring bounds in tests. */
+    @VisibleForTesting
+    X509CertificateCache(int maxEntries, int maxEncodedBytes) {
+        mMaxEntries = maxEntries;
+        mMaxEncodedBytes = maxEncodedBytes;
+    }
+
+    /** Get the X509CertificateCache shared by all IKE sessions. */
+    public static X509CertificateCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Return the certificate encoded in derBytes, parsing it if it is not cached.
+     *
+     * @param derBytes the DER encoding of exactly one X.509 certificate.
+     * @return the parsed certificate.
+     * @throws CertificateException if derBytes cannot be parsed or has trailing bytes.
+     */
+    public X509Certificate getCertificate(byte[] derBytes) throws CertificateException {
+        ByteBuffer digest = ByteBuffer.wrap(getMessageDigest().digest(derBytes));
+        synchronized (this) {
+            CacheEntry entry = mCertificates.get(digest);
+            if (entry != null) {
+                mHitCount++;
+                return entry.certificate;
+            }
+            mMissCount++;
+        }
+
+        X509Certificate certificate = parse(derBytes);
+        synchronized (this) {
+            if (derBytes.length <= mMaxEncodedBytes
+                    && mCertificates.put(digest, new CacheEntry(certificate, derBytes.length))
+                            == null) {
+                mEncodedBytes += derBytes.length;
+                trimToBounds();
+            }
+        }
+        return certificate;
+    }
+
+    /** Remove all cached certificates and reset metrics. */
+    public synchronized void clear() {
+        mCertificates.clear();
+        mEncodedBytes = 0L;
+        mHitCount = 0L;
+        mMissCount = 0L;
+    }
+
+    /** Return the number of cached certificates. */
+    public synchronized int size() {
+        return mCertificates.size();
+    }
+
+    /** Return the total length of DER encodings of cached certificates in octets. */
+    public synchronized long getEncodedBytes() {
+        return mEncodedBytes;
+    }
+
+    /** Return the number of lookups that were served by a cached certificate. */
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /** Return the number of lookups that parsed a certificate. */
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /** Return the ratio of lookups served by a cached certificate, or zero if there was none. */
+    public synchronized double getHitRate() {
+        long total = mHitCount + mMissCount;
+        return total == 0L ? 0.0 : (double) mHitCount / total;
+    }
+
+    // Must be called with lock held.
+    private void trimToBounds() {
+        Iterator<CacheEntry> iterator = mCertificates.values().iterator();
+        while (mCertificates.size() > mMaxEntries || mEncodedBytes > mMaxEncodedBytes) {
+            mEncodedBytes -= iterator.next().encodedLength;
+            iterator.remove();
+        }
+    }
+
+    private static X509Certificate parse(byte[] derBytes) throws CertificateException {
+        X509Certificate certificate =
+                (X509Certificate)
+                        getCertificateFactory()
+                                .generateCertificate(new ByteArrayInputStream(derBytes));
+        // Parsing InputStream error
+        if (certificate == null) {
+            throw new CertificateException("No certificate parsed from received data.");
+        }
+        if (certificate.getEncoded().length < derBytes.length) {
+            throw new CertificateException("Unexpected trailing bytes.");
+        }
+        return certificate;
+    }
+
+    private static CertificateFactory getCertificateFactory() throws CertificateException {
+        CertificateFactory factory = sCertificateFactory.get();
+        if (factory == null) {
+            try {
+                factory = CryptoProviderRegistry.getCertificateFactory(CERTIFICATE_TYPE);
+            } catch (GeneralSecurityException e) {
+                throw new CertificateException(e);
+            }
+            sCertificateFactory.set(factory);
+        }
+        return factory;
+    }
+
+    private static MessageDigest getMessageDigest() {
+        MessageDigest digest = sMessageDigest.get();
+        if (digest == null) {
+            try {
+                digest = CryptoProviderRegistry.getMessageDigest(DIGEST_ALGORITHM);
+            } catch (GeneralSecurityException e) {
+                // SHA-256 is mandatory for every Java platform.
+                throw new IllegalStateException(e);
+            }
+            sMessageDigest.set(digest);
+        }
+        return digest;
+    }
+
+    /** CacheEntry contains a parsed certificate and the length of its DER encoding. */
+    private static final class CacheEntry {
+        final X509Certificate certificate;
+        final int encodedLength;
+
+        CacheEntry(X509Certificate certificate, int encodedLength) {
+            this.certificate = certificate;
+            this.encodedLength = encodedLength;
+        }
+    }
+}
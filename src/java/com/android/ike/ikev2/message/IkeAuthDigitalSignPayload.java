@@ -18,6 +18,7 @@ package com.android.ike.ikev2.message;
 
 import android.annotation.StringDef;
 
+import com.android.ike.ikev2.crypto.SignatureCache;
 import com.android.ike.ikev2.exceptions.AuthenticationFailedException;
 import com.android.ike.ikev2.exceptions.IkeException;
 import com.android.ike.ikev2.message.IkeAuthPayload.AuthMethod;
@@ -25,15 +26,27 @@ import com.android.ike.ikev2.message.IkeAuthPayload.AuthMethod;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
 import java.util.Arrays;
 
+import javax.crypto.Mac;
+
 /**
  * IkeAuthDigitalSignPayload represents Authentication Payload using a specific or generic digital
  * signature authentication method.
  *
  * <p>If AUTH_METHOD_RSA_DIGITAL_SIGN is used, then the hash algorithm is SHA1. If
  * AUTH_METHOD_GENERIC_DIGITAL_SIGN is used, the signature algorihtm and hash algorithm are
- * extracted from authentication data.
+ * extracted from authentication data. RSASSA-PKCS1-v1_5, RSASSA-PSS and ECDSA with SHA-2 are
+ * supported for the generic method.
+ *
+ * <p>Outbound IkeAuthDigitalSignPayload always uses AUTH_METHOD_GENERIC_DIGITAL_SIGN. Signature
+ * objects are reused across IKE sessions through {@link SignatureCache}.
  *
  * @see <a href="https://tools.ietf.org/html/rfc7296#section-3.8">RFC 7296, Internet Key Exchange
  *     Protocol Version 2 (IKEv2)</a>
@@ -70,17 +83,104 @@ public class IkeAuthDigitalSignPayload extends IkeAuthPayload {
         (byte) 0xf7, (byte) 0x0d, (byte) 0x01, (byte) 0x01,
         (byte) 0x0d, (byte) 0x05, (byte) 0x00
     };
+    // RSASSA-PSS identifiers carry MGF1 with the same hash and a salt as long as the hash output.
+    private static final byte[] PKI_ALGO_ID_DER_BYTES_RSA_PSS_SHA2_256 = {
+        (byte) 0x30, (byte) 0x46, (byte) 0x06, (byte) 0x09,
+        (byte) 0x2a, (byte) 0x86, (byte) 0x48, (byte) 0x86,
+        (byte) 0xf7, (byte) 0x0d, (byte) 0x01, (byte) 0x01,
+        (byte) 0x0a, (byte) 0x30, (byte) 0x39, (byte) 0xa0,
+        (byte) 0x0f, (byte) 0x30, (byte) 0x0d, (byte) 0x06,
+        (byte) 0x09, (byte) 0x60, (byte) 0x86, (byte) 0x48,
+        (byte) 0x01, (byte) 0x65, (byte) 0x03, (byte) 0x04,
+        (byte) 0x02, (byte) 0x01, (byte) 0x05, (byte) 0x00,
+        (byte) 0xa1, (byte) 0x1c, (byte) 0x30, (byte) 0x1a,
+        (byte) 0x06, (byte) 0x09, (byte) 0x2a, (byte) 0x86,
+        (byte) 0x48, (byte) 0x86, (byte) 0xf7, (byte) 0x0d,
+        (byte) 0x01, (byte) 0x01, (byte) 0x08, (byte) 0x30,
+        (byte) 0x0d, (byte) 0x06, (byte) 0x09, (byte) 0x60,
+        (byte) 0x86, (byte) 0x48, (byte) 0x01, (byte) 0x65,
+        (byte) 0x03, (byte) 0x04, (byte) 0x02, (byte) 0x01,
+        (byte) 0x05, (byte) 0x00, (byte) 0xa2, (byte) 0x03,
+        (byte) 0x02, (byte) 0x01, (byte) 0x20, (byte) 0xa3,
+        (byte) 0x03, (byte) 0x02, (byte) 0x01, (byte) 0x01
+    };
+    private static final byte[] PKI_ALGO_ID_DER_BYTES_RSA_PSS_SHA2_384 = {
+        (byte) 0x30, (byte) 0x46, (byte) 0x06, (byte) 0x09,
+        (byte) 0x2a, (byte) 0x86, (byte) 0x48, (byte) 0x86,
+        (byte) 0xf7, (byte) 0x0d, (byte) 0x01, (byte) 0x01,
+        (byte) 0x0a, (byte) 0x30, (byte) 0x39, (byte) 0xa0,
+        (byte) 0x0f, (byte) 0x30, (byte) 0x0d, (byte) 0x06,
+        (byte) 0x09, (byte) 0x60, (byte) 0x86, (byte) 0x48,
+        (byte) 0x01, (byte) 0x65, (byte) 0x03, (byte) 0x04,
+        (byte) 0x02, (byte) 0x02, (byte) 0x05, (byte) 0x00,
+        (byte) 0xa1, (byte) 0x1c, (byte) 0x30, (byte) 0x1a,
+        (byte) 0x06, (byte) 0x09, (byte) 0x2a, (byte) 0x86,
+        (byte) 0x48, (byte) 0x86, (byte) 0xf7, (byte) 0x0d,
+        (byte) 0x01, (byte) 0x01, (byte) 0x08, (byte) 0x30,
+        (byte) 0x0d, (byte) 0x06, (byte) 0x09, (byte) 0x60,
+        (byte) 0x86, (byte) 0x48, (byte) 0x01, (byte) 0x65,
+        (byte) 0x03, (byte) 0x04, (byte) 0x02, (byte) 0x02,
+        (byte) 0x05, (byte) 0x00, (byte) 0xa2, (byte) 0x03,
+        (byte) 0x02, (byte) 0x01, (byte) 0x30, (byte) 0xa3,
+        (byte) 0x03, (byte) 0x02, (byte) 0x01, (byte) 0x01
+    };
+    private static final byte[] PKI_ALGO_ID_DER_BYTES_RSA_PSS_SHA2_512 = {
+        (byte) 0x30, (byte) 0x46, (byte) 0x06, (byte) 0x09,
+        (byte) 0x2a, (byte) 0x86, (byte) 0x48, (byte) 0x86,
+        (byte) 0xf7, (byte) 0x0d, (byte) 0x01, (byte) 0x01,
+        (byte) 0x0a, (byte) 0x30, (byte) 0x39, (byte) 0xa0,
+        (byte) 0x0f, (byte) 0x30, (byte) 0x0d, (byte) 0x06,
+        (byte) 0x09, (byte) 0x60, (byte) 0x86, (byte) 0x48,
+        (byte) 0x01, (byte) 0x65, (byte) 0x03, (byte) 0x04,
+        (byte) 0x02, (byte) 0x03, (byte) 0x05, (byte) 0x00,
+        (byte) 0xa1, (byte) 0x1c, (byte) 0x30, (byte) 0x1a,
+        (byte) 0x06, (byte) 0x09, (byte) 0x2a, (byte) 0x86,
+        (byte) 0x48, (byte) 0x86, (byte) 0xf7, (byte) 0x0d,
+        (byte) 0x01, (byte) 0x01, (byte) 0x08, (byte) 0x30,
+        (byte) 0x0d, (byte) 0x06, (byte) 0x09, (byte) 0x60,
+        (byte) 0x86, (byte) 0x48, (byte) 0x01, (byte) 0x65,
+        (byte) 0x03, (byte) 0x04, (byte) 0x02, (byte) 0x03,
+        (byte) 0x05, (byte) 0x00, (byte) 0xa2, (byte) 0x03,
+        (byte) 0x02, (byte) 0x01, (byte) 0x40, (byte) 0xa3,
+        (byte) 0x03, (byte) 0x02, (byte) 0x01, (byte) 0x01
+    };
+    private static final byte[] PKI_ALGO_ID_DER_BYTES_ECDSA_SHA2_256 = {
+        (byte) 0x30, (byte) 0x0a, (byte) 0x06, (byte) 0x08,
+        (byte) 0x2a, (byte) 0x86, (byte) 0x48, (byte) 0xce,
+        (byte) 0x3d, (byte) 0x04, (byte) 0x03, (byte) 0x02
+    };
+    private static final byte[] PKI_ALGO_ID_DER_BYTES_ECDSA_SHA2_384 = {
+        (byte) 0x30, (byte) 0x0a, (byte) 0x06, (byte) 0x08,
+        (byte) 0x2a, (byte) 0x86, (byte) 0x48, (byte) 0xce,
+        (byte) 0x3d, (byte) 0x04, (byte) 0x03, (byte) 0x03
+    };
+    private static final byte[] PKI_ALGO_ID_DER_BYTES_ECDSA_SHA2_512 = {
+        (byte) 0x30, (byte) 0x0a, (byte) 0x06, (byte) 0x08,
+        (byte) 0x2a, (byte) 0x86, (byte) 0x48, (byte) 0xce,
+        (byte) 0x3d, (byte) 0x04, (byte) 0x03, (byte) 0x04
+    };
+
+    // RFC 7427 encodes the default trailerField of RSASSA-PSS explicitly, while DER requires it to
+    // be omitted. Accept both encodings from the remote.
+    private static final int PSS_TRAILER_FIELD_LEN = 5;
+    private static final int PSS_ALGO_ID_SEQ_LEN_OFFSET = 1;
+    private static final int PSS_PARAMS_SEQ_LEN_OFFSET = 14;
 
     // Length of ASN.1 object length field.
     private static final int SIGNATURE_ALGO_ASN1_LEN_LEN = 1;
 
-    // Currently we only support RSA for signature algorithm.
     @Retention(RetentionPolicy.SOURCE)
     @StringDef({
         SIGNATURE_ALGO_RSA_SHA1,
         SIGNATURE_ALGO_RSA_SHA2_256,
         SIGNATURE_ALGO_RSA_SHA2_384,
-        SIGNATURE_ALGO_RSA_SHA2_512
+        SIGNATURE_ALGO_RSA_SHA2_512,
+        SIGNATURE_ALGO_RSA_PSS_SHA2_256,
+        SIGNATURE_ALGO_RSA_PSS_SHA2_384,
+        SIGNATURE_ALGO_RSA_PSS_SHA2_512,
+        SIGNATURE_ALGO_ECDSA_SHA2_256,
+        SIGNATURE_ALGO_ECDSA_SHA2_384,
+        SIGNATURE_ALGO_ECDSA_SHA2_512
     })
     public @interface SignatureAlgo {}
 
@@ -88,6 +188,12 @@ public class IkeAuthDigitalSignPayload extends IkeAuthPayload {
     public static final String SIGNATURE_ALGO_RSA_SHA2_256 = "SHA256withRSA";
     public static final String SIGNATURE_ALGO_RSA_SHA2_384 = "SHA384withRSA";
     public static final String SIGNATURE_ALGO_RSA_SHA2_512 = "SHA512withRSA";
+    public static final String SIGNATURE_ALGO_RSA_PSS_SHA2_256 = "SHA256withRSA/PSS";
+    public static final String SIGNATURE_ALGO_RSA_PSS_SHA2_384 = "SHA384withRSA/PSS";
+    public static final String SIGNATURE_ALGO_RSA_PSS_SHA2_512 = "SHA512withRSA/PSS";
+    public static final String SIGNATURE_ALGO_ECDSA_SHA2_256 = "SHA256withECDSA";
+    public static final String SIGNATURE_ALGO_ECDSA_SHA2_384 = "SHA384withECDSA";
+    public static final String SIGNATURE_ALGO_ECDSA_SHA2_512 = "SHA512withECDSA";
     // TODO: Allow users to configure authentication method using @SignatureAlgo
 
     public final String signatureAlgoAndHash;
@@ -120,6 +226,66 @@ public class IkeAuthDigitalSignPayload extends IkeAuthPayload {
         }
     }
 
+    /**
+     * Construct IkeAuthDigitalSignPayload for an outbound IKE packet.
+     *
+     * <p>Since IKE library is always a client, outbound IkeAuthDigitalSignPayload always signs IKE
+     * initiator's SignedOctets, which is concatenation of the IKE_INIT request message, the Nonce
+     * of IKE responder and the signed ID-Initiator payload body.
+     *
+     * @param signatureAlgoAndHash the signature algorithm and hash algorithm.
+     * @param privateKey the private key of the local certificate.
+     * @param ikeInitBytes IKE_INIT request for calculating IKE initiator's SignedOctets.
+     * @param nonce nonce of IKE responder for calculating IKE initiator's SignedOctets.
+     * @param idPayloadBodyBytes ID-Initiator payload body for calculating IKE initiator's
+     *     SignedOctets.
+     * @param prfMac locally stored PRF
+     * @param prfKeyBytes locally stored PRF keys
+     */
+    public IkeAuthDigitalSignPayload(
+            @SignatureAlgo String signatureAlgoAndHash,
+            PrivateKey privateKey,
+            byte[] ikeInitBytes,
+            byte[] nonce,
+            byte[] idPayloadBodyBytes,
+            Mac prfMac,
+            byte[] prfKeyBytes) {
+        super(false, AUTH_METHOD_GENERIC_DIGITAL_SIGN);
+        this.signatureAlgoAndHash = signatureAlgoAndHash;
+        try {
+            byte[] signedIdPayloadBodyBytes =
+                    signWithPrf(prfMac, prfKeyBytes, idPayloadBodyBytes);
+            signature =
+                    SignatureCache.getInstance()
+                            .withSigner(
+                                    signatureAlgoAndHash,
+                                    privateKey,
+                                    (Signature signer) -> {
+                                        updateWithSignedOctets(
+                                                signer::update,
+                                                ikeInitBytes,
+                                                nonce,
+                                                signedIdPayloadBodyBytes);
+                                        return signer.sign();
+                                    });
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException(
+                    "Failed to sign with locally stored key and algorithm", e);
+        }
+    }
+
+    // Match RSASSA-PSS identifier with or without the explicit trailerField.
+    private static boolean isRsaPssAlgoId(byte[] expectedAlgoIdBytes, byte[] signAlgoBytes) {
+        if (Arrays.equals(expectedAlgoIdBytes, signAlgoBytes)) return true;
+
+        byte[] derAlgoIdBytes =
+                Arrays.copyOf(
+                        expectedAlgoIdBytes, expectedAlgoIdBytes.length - PSS_TRAILER_FIELD_LEN);
+        derAlgoIdBytes[PSS_ALGO_ID_SEQ_LEN_OFFSET] -= PSS_TRAILER_FIELD_LEN;
+        derAlgoIdBytes[PSS_PARAMS_SEQ_LEN_OFFSET] -= PSS_TRAILER_FIELD_LEN;
+        return Arrays.equals(derAlgoIdBytes, signAlgoBytes);
+    }
+
     private String bytesToSignAlgoName(byte[] signAlgoBytes) throws AuthenticationFailedException {
         if (Arrays.equals(PKI_ALGO_ID_DER_BYTES_RSA_SHA1, signAlgoBytes)) {
             return SIGNATURE_ALGO_RSA_SHA1;
@@ -129,26 +295,127 @@ public class IkeAuthDigitalSignPayload extends IkeAuthPayload {
             return SIGNATURE_ALGO_RSA_SHA2_384;
         } else if (Arrays.equals(PKI_ALGO_ID_DER_BYTES_RSA_SHA2_512, signAlgoBytes)) {
             return SIGNATURE_ALGO_RSA_SHA2_512;
+        } else if (isRsaPssAlgoId(PKI_ALGO_ID_DER_BYTES_RSA_PSS_SHA2_256, signAlgoBytes)) {
+            return SIGNATURE_ALGO_RSA_PSS_SHA2_256;
+        } else if (isRsaPssAlgoId(PKI_ALGO_ID_DER_BYTES_RSA_PSS_SHA2_384, signAlgoBytes)) {
+            return SIGNATURE_ALGO_RSA_PSS_SHA2_384;
+        } else if (isRsaPssAlgoId(PKI_ALGO_ID_DER_BYTES_RSA_PSS_SHA2_512, signAlgoBytes)) {
+            return SIGNATURE_ALGO_RSA_PSS_SHA2_512;
+        } else if (Arrays.equals(PKI_ALGO_ID_DER_BYTES_ECDSA_SHA2_256, signAlgoBytes)) {
+            return SIGNATURE_ALGO_ECDSA_SHA2_256;
+        } else if (Arrays.equals(PKI_ALGO_ID_DER_BYTES_ECDSA_SHA2_384, signAlgoBytes)) {
+            return SIGNATURE_ALGO_ECDSA_SHA2_384;
+        } else if (Arrays.equals(PKI_ALGO_ID_DER_BYTES_ECDSA_SHA2_512, signAlgoBytes)) {
+            return SIGNATURE_ALGO_ECDSA_SHA2_512;
         } else {
             throw new AuthenticationFailedException(
                     "Unrecognized ASN.1 objects for Signature algorithm and Hash");
         }
     }
 
-    // TODO: Add methods for generating and validating signature.
+    private static byte[] signAlgoNameToBytes(@SignatureAlgo String signatureAlgoAndHash) {
+        switch (signatureAlgoAndHash) {
+            case SIGNATURE_ALGO_RSA_SHA1:
+                return PKI_ALGO_ID_DER_BYTES_RSA_SHA1;
+            case SIGNATURE_ALGO_RSA_SHA2_256:
+                return PKI_ALGO_ID_DER_BYTES_RSA_SHA2_256;
+            case SIGNATURE_ALGO_RSA_SHA2_384:
+                return PKI_ALGO_ID_DER_BYTES_RSA_SHA2_384;
+            case SIGNATURE_ALGO_RSA_SHA2_512:
+                return PKI_ALGO_ID_DER_BYTES_RSA_SHA2_512;
+            case SIGNATURE_ALGO_RSA_PSS_SHA2_256:
+                return PKI_ALGO_ID_DER_BYTES_RSA_PSS_SHA2_256;
+            case SIGNATURE_ALGO_RSA_PSS_SHA2_384:
+                return PKI_ALGO_ID_DER_BYTES_RSA_PSS_SHA2_384;
+            case SIGNATURE_ALGO_RSA_PSS_SHA2_512:
+                return PKI_ALGO_ID_DER_BYTES_RSA_PSS_SHA2_512;
+            case SIGNATURE_ALGO_ECDSA_SHA2_256:
+                return PKI_ALGO_ID_DER_BYTES_ECDSA_SHA2_256;
+            case SIGNATURE_ALGO_ECDSA_SHA2_384:
+                return PKI_ALGO_ID_DER_BYTES_ECDSA_SHA2_384;
+            case SIGNATURE_ALGO_ECDSA_SHA2_512:
+                return PKI_ALGO_ID_DER_BYTES_ECDSA_SHA2_512;
+            default:
+                throw new IllegalArgumentException(
+                        "Unsupported signature algorithm: " + signatureAlgoAndHash);
+        }
+    }
+
+    /**
+     * Verify received signature in inbound IKE packet.
+     *
+     * <p>Since IKE library is always a client, inbound IkeAuthDigitalSignPayload always signs IKE
+     * responder's SignedOctets, which is concatenation of the IKE_INIT response message, the Nonce
+     * of IKE initiator and the signed ID-Responder payload body.
+     *
+     * @param certificate received end certificate of the remote.
+     * @param ikeInitBytes IKE_INIT response for calculating IKE responder's SignedOctets.
+     * @param nonce nonce of IKE initiator for calculating IKE responder's SignedOctets.
+     * @param idPayloadBodyBytes ID-Responder payload body for calculating IKE responder's
+     *     SignedOctets.
+     * @param prfMac locally stored PRF
+     * @param prfKeyBytes locally stored PRF keys
+     * @throws AuthenticationFailedException if the signature is invalid or does not match the
+     *     public key of certificate.
+     */
+    public void verifyInboundSignature(
+            X509Certificate certificate,
+            byte[] ikeInitBytes,
+            byte[] nonce,
+            byte[] idPayloadBodyBytes,
+            Mac prfMac,
+            byte[] prfKeyBytes)
+            throws AuthenticationFailedException {
+        byte[] signedIdPayloadBodyBytes;
+        try {
+            signedIdPayloadBodyBytes = signWithPrf(prfMac, prfKeyBytes, idPayloadBodyBytes);
+        } catch (InvalidKeyException e) {
+            throw new IllegalArgumentException("Locally stored PRF key is invalid: ", e);
+        }
+
+        boolean isValid;
+        try {
+            SignatureCache signatureCache = SignatureCache.getInstance();
+            PublicKey publicKey = signatureCache.getPublicKey(certificate);
+            isValid =
+                    signatureCache.withVerifier(
+                            signatureAlgoAndHash,
+                            publicKey,
+                            (Signature verifier) -> {
+                                updateWithSignedOctets(
+                                        verifier::update,
+                                        ikeInitBytes,
+                                        nonce,
+                                        signedIdPayloadBodyBytes);
+                                return verifier.verify(signature);
+                            });
+        } catch (GeneralSecurityException e) {
+            // Signature algorithm does not match the key, or the signature is malformed.
+            throw new AuthenticationFailedException(e);
+        }
+
+        if (!isValid) {
+            throw new AuthenticationFailedException("Signature verification failed.");
+        }
+    }
 
     @Override
     protected void encodeAuthDataToByteBuffer(ByteBuffer byteBuffer) {
-        // TODO: Implement it.
-        throw new UnsupportedOperationException(
-                "It is not supported to encode a " + getTypeString());
+        if (authMethod == AUTH_METHOD_GENERIC_DIGITAL_SIGN) {
+            byte[] signAlgoBytes = signAlgoNameToBytes(signatureAlgoAndHash);
+            byteBuffer.put((byte) signAlgoBytes.length).put(signAlgoBytes);
+        }
+        byteBuffer.put(signature);
     }
 
     @Override
     protected int getAuthDataLength() {
-        // TODO: Implement it.
-        throw new UnsupportedOperationException(
-                "It is not supported to get payload length of " + getTypeString());
+        if (authMethod == AUTH_METHOD_GENERIC_DIGITAL_SIGN) {
+            return SIGNATURE_ALGO_ASN1_LEN_LEN
+                    + signAlgoNameToBytes(signatureAlgoAndHash).length
+                    + signature.length;
+        }
+        return signature.length;
     }
 
     @Override
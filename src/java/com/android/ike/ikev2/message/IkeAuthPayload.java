@@ -125,11 +125,44 @@ public abstract class IkeAuthPayload extends IkePayload {
         ByteBuffer buffer =
                 ByteBuffer.allocate(
                         ikeInitBytes.length + nonce.length + signedidPayloadBodyBytes.length);
-        buffer.put(ikeInitBytes).put(nonce).put(signedidPayloadBodyBytes);
+        updateWithSignedOctets(buffer::put, ikeInitBytes, nonce, signedidPayloadBodyBytes);
 
         return buffer.array();
     }
 
+    /**
+     * Feed SignedOctets piece by piece into a consumer such as a Mac or a Signature.
+     *
+     * <p>SignedOctets are never concatenated into a single buffer. The signed ID payload body must
+     * be calculated by {@link #signWithPrf(Mac, byte[], byte[])} in advance, so that the negotiated
+     * PRF can be reused by the consumer.
+     *
+     * @param consumer the consumer of SignedOctets, e.g. Mac::update or Signature::update.
+     * @param ikeInitBytes the retained IKE_INIT request or response message.
+     * @param nonce the Nonce of the peer.
+     * @param signedIdPayloadBodyBytes prf(SK_p, IDx') of the signer.
+     */
+    protected static <E extends Exception> void updateWithSignedOctets(
+            ISignedOctetsConsumer<E> consumer,
+            byte[] ikeInitBytes,
+            byte[] nonce,
+            byte[] signedIdPayloadBodyBytes)
+            throws E {
+        consumer.update(ikeInitBytes);
+        consumer.update(nonce);
+        consumer.update(signedIdPayloadBodyBytes);
+    }
+
+    /**
+     * ISignedOctetsConsumer accepts a part of SignedOctets.
+     *
+     * @param <E> the exception thrown by the consumer, e.g. SignatureException.
+     */
+    protected interface ISignedOctetsConsumer<E extends Exception> {
+        /** Consume the next part of SignedOctets. */
+        void update(byte[] input) throws E;
+    }
+
     @Override
     protected void encodeToByteBuffer(@PayloadType int nextPayload, ByteBuffer byteBuffer) {
         encodePayloadHeaderToByteBuffer(nextPayload, getPayloadLength(), byteBuffer);
@@ -16,6 +16,7 @@
 
 package com.android.ike.ikev2.message;
 
+import com.android.ike.ikev2.crypto.PskPadKeyCache;
 import com.android.ike.ikev2.exceptions.AuthenticationFailedException;
 
 import java.nio.ByteBuffer;
@@ -31,15 +32,6 @@ import javax.crypto.Mac;
  *     Protocol Version 2 (IKEv2)</a>
  */
 public final class IkeAuthPskPayload extends IkeAuthPayload {
-    // Hex of ASCII characters "Key Pad for IKEv2" for calculating PSK signature.
-    private static final byte[] IKE_KEY_PAD_STRING_ASCII_HEX_BYTES = {
-        (byte) 0x4b, (byte) 0x65, (byte) 0x79, (byte) 0x20,
-        (byte) 0x50, (byte) 0x61, (byte) 0x64, (byte) 0x20,
-        (byte) 0x66, (byte) 0x6f, (byte) 0x72, (byte) 0x20,
-        (byte) 0x49, (byte) 0x4b, (byte) 0x45, (byte) 0x76,
-        (byte) 0x32
-    };
-
     public final byte[] signature;
 
     /**
@@ -87,10 +79,13 @@ public final class IkeAuthPskPayload extends IkeAuthPayload {
             Mac prfMac,
             byte[] prfKeyBytes) {
         try {
-            byte[] signingKeyBytes = signWithPrf(prfMac, psk, IKE_KEY_PAD_STRING_ASCII_HEX_BYTES);
-            byte[] dataToSignBytes =
-                    getSignedOctets(ikeInitBytes, nonce, idPayloadBodyBytes, prfMac, prfKeyBytes);
-            return signWithPrf(prfMac, signingKeyBytes, dataToSignBytes);
+            byte[] signedIdPayloadBodyBytes =
+                    signWithPrf(prfMac, prfKeyBytes, idPayloadBodyBytes);
+            // prf(Shared Secret, "Key Pad for IKEv2") is only calculated once per pre-shared key.
+            Mac padKeyedPrf = PskPadKeyCache.getInstance().getPadKeyedPrf(psk, prfMac);
+            updateWithSignedOctets(
+                    padKeyedPrf::update, ikeInitBytes, nonce, signedIdPayloadBodyBytes);
+            return padKeyedPrf.doFinal();
         } catch (InvalidKeyException e) {
             throw new IllegalArgumentException("Locally stored PRF key is invalid: ", e);
         }
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ike.ikev2.message;
+
+import com.android.ike.ikev2.crypto.CertificateFetchCache;
+import com.android.ike.ikev2.crypto.CryptoProviderRegistry;
+import com.android.ike.ikev2.crypto.X509CertificateCache;
+import com.android.ike.ikev2.exceptions.AuthenticationFailedException;
+import com.android.ike.ikev2.exceptions.InvalidSyntaxException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * IkeCertHashAndUrlPayload represents a Certificate Payload carrying the SHA-1 hash and the URL of
+ * a DER-encoded X.509 certificate or certificate bundle.
+ *
+ * <p>Sending "Hash and URL" instead of the certificates keeps IKE_AUTH messages small. It MUST only
+ * be sent to a peer that has sent HTTP_CERT_LOOKUP_SUPPORTED.
+ *
+ * <p>A bundle is retrieved as a PKCS#7 SignedData or a sequence of DER-encoded certificates. The
+ * ASN.1 CertBundle structure of RFC 4306 is not supported.
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc7296#section-3.6">RFC 7296, Internet Key Exchange
+ *     Protocol Version 2 (IKEv2)</a>
+ */
+public final class IkeCertHashAndUrlPayload extends IkeCertPayload {
+    private static final String CERTIFICATE_TYPE = "X.509";
+
+    public final byte[] certHash;
+    public final String url;
+
+    /**
+     * Construct an instance of IkeCertHashAndUrlPayload in the context of {@link
+     * IkeCertPayload#getIkeCertPayload(boolean, byte[])}.
+     *
+     * @param critical indicates if this payload is critical.
+     * @param encodingType either {@link #CERTIFICATE_ENCODING_X509_CERT_HASH_URL} or {@link
+     *     #CERTIFICATE_ENCODING_X509_BUNDLE_HASH_URL}.
+     * @param certData the SHA-1 hash followed by the URL.
+     * @throws InvalidSyntaxException if the hash or the URL is missing.
+     */
+    protected IkeCertHashAndUrlPayload(
+            boolean critical, @CertificateEncoding int encodingType, ByteBuffer certData)
+            throws InvalidSyntaxException {
+        super(critical, encodingType);
+        if (certData.remaining() <= CertificateFetchCache.HASH_LEN) {
+            throw new InvalidSyntaxException(
+                    "Hash and URL certificate data too short: " + certData.remaining());
+        }
+
+        certHash = new byte[CertificateFetchCache.HASH_LEN];
+        certData.get(certHash);
+        byte[] urlBytes = new byte[certData.remaining()];
+        certData.get(urlBytes);
+        url = new String(urlBytes, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Construct an instance of IkeCertHashAndUrlPayload for building an outbound packet.
+     *
+     * @param encodingType either {@link #CERTIFICATE_ENCODING_X509_CERT_HASH_URL} or {@link
+     *     #CERTIFICATE_ENCODING_X509_BUNDLE_HASH_URL}.
+     * @param certHash the SHA-1 hash of the DER-encoded certificate or bundle.
+     * @param url the URL where the certificate or bundle can be retrieved.
+     */
+    public IkeCertHashAndUrlPayload(
+            @CertificateEncoding int encodingType, byte[] certHash, String url) {
+        super(false, encodingType);
+        if (encodingType != CERTIFICATE_ENCODING_X509_CERT_HASH_URL
+                && encodingType != CERTIFICATE_ENCODING_X509_BUNDLE_HASH_URL) {
+            throw new IllegalArgumentException("Invalid Hash and URL encoding: " + encodingType);
+        }
+        if (certHash.length != CertificateFetchCache.HASH_LEN) {
+            throw new IllegalArgumentException("Invalid SHA-1 hash length: " + certHash.length);
+        }
+        if (url.isEmpty() || !StandardCharsets.US_ASCII.newEncoder().canEncode(url)) {
+            throw new IllegalArgumentException("Invalid URL: " + url);
+        }
+        this.certHash = certHash.clone();
+        this.url = url;
+    }
+
+    /**
+     * Construct an instance of IkeCertHashAndUrlPayload referring to a certificate.
+     *
+     * @param certificate the X.509 certificate.
+     * @param url the URL where the DER-encoded certificate can be retrieved.
+     * @return the IkeCertHashAndUrlPayload.
+     * @throws CertificateEncodingException if the certificate cannot be encoded.
+     */
+    public static IkeCertHashAndUrlPayload createForCertificate(
+            X509Certificate certificate, String url) throws CertificateEncodingException {
+        return new IkeCertHashAndUrlPayload(
+                CERTIFICATE_ENCODING_X509_CERT_HASH_URL,
+                CertificateFetchCache.digest(certificate.getEncoded()),
+                url);
+    }
+
+    /**
+     * Retrieve and parse the certificates referred to by this payload.
+     *
+     * <p>Content that has been retrieved before is served from {@link CertificateFetchCache}.
+     * Otherwise this method blocks on network I/O and MUST NOT be called on the IKE working thread.
+     *
+     * @return the certificate, or the certificates in the bundle.
+     * @throws AuthenticationFailedException if the content cannot be retrieved, does not match the
+     *     hash or cannot be parsed.
+     */
+    public List<X509Certificate> fetchCertificates() throws AuthenticationFailedException {
+        try {
+            byte[] content = CertificateFetchCache.getInstance().fetch(certHash, url);
+            if (certEncodingType == CERTIFICATE_ENCODING_X509_CERT_HASH_URL) {
+                return Collections.singletonList(
+                        X509CertificateCache.getInstance().getCertificate(content));
+            }
+            return parseBundle(content);
+        } catch (IOException | GeneralSecurityException e) {
+            throw new AuthenticationFailedException(e);
+        }
+    }
+
+    private static List<X509Certificate> parseBundle(byte[] content)
+            throws GeneralSecurityException {
+        Collection<? extends Certificate> certs =
+                CryptoProviderRegistry.getCertificateFactory(CERTIFICATE_TYPE)
+                        .generateCertificates(new ByteArrayInputStream(content));
+        if (certs.isEmpty()) {
+            throw new CertificateException("No certificate parsed from bundle.");
+        }
+
+        List<X509Certificate> certList = new ArrayList<>(certs.size());
+        for (Certificate cert : certs) {
+            certList.add((X509Certificate) cert);
+        }
+        return certList;
+    }
+
+    /**
+     * Encode IkeCertHashAndUrlPayload to ByteBuffer.
+     *
+     * @param nextPayload type of payload that follows this payload.
+     * @param byteBuffer destination ByteBuffer that stores encoded payload.
+     */
+    @Override
+    protected void encodeToByteBuffer(@PayloadType int nextPayload, ByteBuffer byteBuffer) {
+        encodePayloadHeaderToByteBuffer(nextPayload, getPayloadLength(), byteBuffer);
+        byteBuffer
+                .put((byte) certEncodingType)
+                .put(certHash)
+                .put(url.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Get entire payload length.
+     *
+     * @return entire payload length.
+     */
+    @Override
+    protected int getPayloadLength() {
+        return GENERIC_HEADER_LENGTH + CERT_ENCODING_LEN + certHash.length + url.length();
+    }
+
+    /**
+     * Return the payload type as a String.
+     *
+     * @return the payload type as a String.
+     */
+    @Override
+    public String getTypeString() {
+        return certEncodingType == CERTIFICATE_ENCODING_X509_CERT_HASH_URL
+                ? "Certificate Payload Carrying Hash and URL of X.509 Certificate"
+                : "Certificate Payload Carrying Hash and URL of X.509 Bundle";
+    }
+}
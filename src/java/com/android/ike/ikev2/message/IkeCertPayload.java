@@ -18,12 +18,25 @@ package com.android.ike.ikev2.message;
 
 import android.annotation.IntDef;
 
+import com.android.ike.ikev2.crypto.CertPathValidationCache;
+import com.android.ike.ikev2.crypto.CryptoProviderRegistry;
 import com.android.ike.ikev2.exceptions.AuthenticationFailedException;
 import com.android.ike.ikev2.exceptions.IkeException;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.cert.Certificate;
+import java.security.cert.CollectionCertStoreParameters;
+import java.security.cert.PKIXBuilderParameters;
+import java.security.cert.PKIXCertPathBuilderResult;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509CertSelector;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 
 /**
  * IkeCertPayload is an abstract class that represents the common information for all Certificate
@@ -37,19 +50,24 @@ import java.nio.ByteBuffer;
  */
 public abstract class IkeCertPayload extends IkePayload {
     // Length of certificate encoding type field in octets.
-    private static final int CERT_ENCODING_LEN = 1;
+    protected static final int CERT_ENCODING_LEN = 1;
+
+    private static final String CERT_PATH_ALGO_PKIX = "PKIX";
+    private static final String CERT_STORE_TYPE_COLLECTION = "Collection";
 
     @Retention(RetentionPolicy.SOURCE)
     @IntDef({
         CERTIFICATE_ENCODING_X509_CERT_SIGNATURE,
         CERTIFICATE_ENCODING_CRL,
         CERTIFICATE_ENCODING_X509_CERT_HASH_URL,
+        CERTIFICATE_ENCODING_X509_BUNDLE_HASH_URL,
     })
     public @interface CertificateEncoding {}
 
     public static final int CERTIFICATE_ENCODING_X509_CERT_SIGNATURE = 4;
     public static final int CERTIFICATE_ENCODING_CRL = 7;
     public static final int CERTIFICATE_ENCODING_X509_CERT_HASH_URL = 12;
+    public static final int CERTIFICATE_ENCODING_X509_BUNDLE_HASH_URL = 13;
 
     @CertificateEncoding public final int certEncodingType;
 
@@ -63,20 +81,94 @@ public abstract class IkeCertPayload extends IkePayload {
         ByteBuffer inputBuffer = ByteBuffer.wrap(payloadBody);
 
         int certEncodingType = Byte.toUnsignedInt(inputBuffer.get());
-        byte[] certData = new byte[payloadBody.length - CERT_ENCODING_LEN];
-        inputBuffer.get(certData);
+        // Certificate data is not copied or parsed until it is used.
+        ByteBuffer certData = inputBuffer.slice();
         switch (certEncodingType) {
             case CERTIFICATE_ENCODING_X509_CERT_SIGNATURE:
                 return new IkeCertX509CertPayload(critical, certData);
-                // TODO: Support decoding CRL and "Hash and URL".
+            case CERTIFICATE_ENCODING_X509_CERT_HASH_URL:
+                // Fall through
+            case CERTIFICATE_ENCODING_X509_BUNDLE_HASH_URL:
+                return new IkeCertHashAndUrlPayload(critical, certEncodingType, certData);
+                // TODO: Support decoding CRL.
             case CERTIFICATE_ENCODING_CRL:
                 throw new AuthenticationFailedException(
                         "CERTIFICATE_ENCODING_CRL decoding is unsupported.");
-            case CERTIFICATE_ENCODING_X509_CERT_HASH_URL:
-                throw new AuthenticationFailedException(
-                        "CERTIFICATE_ENCODING_X509_CERT_HASH_URL decoding is unsupported");
             default:
                 throw new AuthenticationFailedException("Unrecognized certificate encoding type.");
         }
     }
+
+    /**
+     * Validate the certification path from an end certificate to one of the trust anchors.
+     *
+     * <p>Other certificates are treated as unordered candidates for building the path. Revocation
+     * is not checked. A path that has been validated successfully against the same trust anchor set
+     * is not built or validated again until it expires from {@link CertPathValidationCache}.
+     *
+     * @param endCertPayload the Certificate Payload carrying the end certificate.
+     * @param otherCertPayloads Certificate Payloads carrying intermediate certificates.
+     * @param trustAnchors the trust anchors.
+     * @throws AuthenticationFailedException if no valid certification path can be built.
+     */
+    public static void validateCertificates(
+            IkeCertX509CertPayload endCertPayload,
+            List<IkeCertX509CertPayload> otherCertPayloads,
+            Set<TrustAnchor> trustAnchors)
+            throws AuthenticationFailedException {
+        List<ByteBuffer> otherCertData = new ArrayList<>(otherCertPayloads.size());
+        for (IkeCertX509CertPayload certPayload : otherCertPayloads) {
+            otherCertData.add(certPayload.getCertData());
+        }
+
+        CertPathValidationCache.getInstance()
+                .validate(
+                        endCertPayload.getCertData(),
+                        otherCertData,
+                        trustAnchors,
+                        () -> buildCertPath(endCertPayload, otherCertPayloads, trustAnchors));
+    }
+
+    // Return the earliest notAfter of certificates in the path in milliseconds since the epoch.
+    private static long buildCertPath(
+            IkeCertX509CertPayload endCertPayload,
+            List<IkeCertX509CertPayload> otherCertPayloads,
+            Set<TrustAnchor> trustAnchors)
+            throws AuthenticationFailedException {
+        List<X509Certificate> certList = new ArrayList<>(otherCertPayloads.size() + 1);
+        X509Certificate endCert = endCertPayload.getCertificate();
+        certList.add(endCert);
+        for (IkeCertX509CertPayload certPayload : otherCertPayloads) {
+            certList.add(certPayload.getCertificate());
+        }
+
+        try {
+            X509CertSelector targetSelector = new X509CertSelector();
+            targetSelector.setCertificate(endCert);
+            PKIXBuilderParameters builderParams =
+                    new PKIXBuilderParameters(trustAnchors, targetSelector);
+            builderParams.addCertStore(
+                    CryptoProviderRegistry.getCertStore(
+                            CERT_STORE_TYPE_COLLECTION,
+                            new CollectionCertStoreParameters(certList)));
+            builderParams.setRevocationEnabled(false);
+
+            PKIXCertPathBuilderResult result =
+                    (PKIXCertPathBuilderResult)
+                            CryptoProviderRegistry.getCertPathBuilder(CERT_PATH_ALGO_PKIX)
+                                    .build(builderParams);
+
+            long notAfter = Long.MAX_VALUE;
+            for (Certificate cert : result.getCertPath().getCertificates()) {
+                notAfter = Math.min(notAfter, ((X509Certificate) cert).getNotAfter().getTime());
+            }
+            X509Certificate trustedCert = result.getTrustAnchor().getTrustedCert();
+            if (trustedCert != null) {
+                notAfter = Math.min(notAfter, trustedCert.getNotAfter().getTime());
+            }
+            return notAfter;
+        } catch (GeneralSecurityException e) {
+            throw new AuthenticationFailedException(e);
+        }
+    }
 }
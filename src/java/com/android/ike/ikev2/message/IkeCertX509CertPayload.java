@@ -16,13 +16,12 @@
 
 package com.android.ike.ikev2.message;
 
+import com.android.ike.ikev2.crypto.X509CertificateCache;
 import com.android.ike.ikev2.exceptions.AuthenticationFailedException;
-import com.android.ike.ikev2.exceptions.IkeException;
+import com.android.internal.annotations.VisibleForTesting;
 
-import java.io.ByteArrayInputStream;
 import java.nio.ByteBuffer;
-import java.security.GeneralSecurityException;
-import java.security.cert.CertificateFactory;
+import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 
 /**
@@ -33,31 +32,54 @@ import java.security.cert.X509Certificate;
  * an inbound packet, IKE library should take first certificate as the target certificate but treat
  * the rest unordered.
  *
+ * <p>An inbound IkeCertX509CertPayload only keeps a view of the DER-encoded certificate when it is
+ * decoded. The certificate is parsed when it is first accessed, so that certificates of a message
+ * that is dropped before authentication are never parsed.
+ *
  * @see <a href="https://tools.ietf.org/html/rfc7296#section-3.6">RFC 7296, Internet Key Exchange
  *     Protocol Version 2 (IKEv2)</a>
  */
 public final class IkeCertX509CertPayload extends IkeCertPayload {
-    public final X509Certificate certificate;
+    // Read-only view of the DER-encoded certificate in the received payload body.
+    private final ByteBuffer mCertData;
+    // Parsed on first access.
+    private X509Certificate mCertificate;
 
-    protected IkeCertX509CertPayload(boolean critical, byte[] certData) throws IkeException {
+    protected IkeCertX509CertPayload(boolean critical, ByteBuffer certData) {
         super(critical, CERTIFICATE_ENCODING_X509_CERT_SIGNATURE);
-        try {
-            CertificateFactory factory =
-                    CertificateFactory.getInstance("X.509", IkeMessage.getSecurityProvider());
-            certificate =
-                    (X509Certificate)
-                            factory.generateCertificate(new ByteArrayInputStream(certData));
-            // Parsing InputStream error
-            if (certificate == null) {
-                throw new AuthenticationFailedException(
-                        "No certificate parsed from received data.");
-            }
-            if (certificate.getEncoded().length < certData.length) {
-                throw new AuthenticationFailedException("Unexpected trailing bytes.");
+        mCertData = certData.asReadOnlyBuffer();
+    }
+
+    /**
+     * Return the X.509 certificate carried by this payload, parsing it on first access.
+     *
+     * @return the X.509 certificate.
+     * @throws AuthenticationFailedException if the certificate data cannot be parsed or has
+     *     trailing bytes.
+     */
+    public X509Certificate getCertificate() throws AuthenticationFailedException {
+        if (mCertificate == null) {
+            byte[] certData = new byte[mCertData.remaining()];
+            mCertData.duplicate().get(certData);
+            try {
+                // Certificates that have been received before are not parsed again.
+                mCertificate = X509CertificateCache.getInstance().getCertificate(certData);
+            } catch (CertificateException e) {
+                throw new AuthenticationFailedException(e);
             }
-        } catch (GeneralSecurityException e) {
-            throw new AuthenticationFailedException(e);
         }
+        return mCertificate;
+    }
+
+    /** Return a read-only view of the DER-encoded certificate. */
+    ByteBuffer getCertData() {
+        return mCertData.duplicate();
+    }
+
+    /** Return whether the certificate has been parsed. */
+    @VisibleForTesting
+    boolean isCertificateParsed() {
+        return mCertificate != null;
     }
 
     /**
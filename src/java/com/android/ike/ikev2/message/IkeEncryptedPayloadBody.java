@@ -17,11 +17,13 @@
 package com.android.ike.ikev2.message;
 
 import com.android.ike.ikev2.exceptions.IkeException;
+import com.android.ike.ikev2.exceptions.InvalidSyntaxException;
+import com.android.ike.ikev2.utils.RandomnessFactory;
 import com.android.internal.annotations.VisibleForTesting;
 
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
-import java.security.SecureRandom;
+import java.security.MessageDigest;
 import java.util.Arrays;
 
 import javax.crypto.Cipher;
@@ -46,44 +48,76 @@ final class IkeEncryptedPayloadBody {
     // Length of pad length field.
     private static final int PAD_LEN_LEN = 1;
 
-    private final byte[] mUnencryptedData;
-    private final byte[] mEncryptedAndPaddedData;
-    private final byte[] mIv;
-    private final byte[] mIntegrityChecksum;
+    // Views of the protected message. For an inbound packet, the iv, encrypted data and checksum
+    // wrap the received byte array so that no section of the packet is copied before it is
+    // authenticated and decrypted.
+    private final ByteBuffer mUnencryptedData;
+    private final ByteBuffer mEncryptedAndPaddedData;
+    private final ByteBuffer mIv;
+    private final ByteBuffer mIntegrityChecksum;
 
     /**
      * Package private constructor for constructing an instance of IkeEncryptedPayloadBody from
      * decrypting an incoming packet.
+     *
+     * <p>Integrity checksum is calculated directly over the received message and the encrypted
+     * data is decrypted from its offset in the received message. Only the decrypted data is
+     * written to a newly allocated buffer.
      */
     IkeEncryptedPayloadBody(
             byte[] message, Mac integrityMac, int checksumLen, Cipher decryptCipher, SecretKey dKey)
             throws IkeException, GeneralSecurityException {
-        ByteBuffer inputBuffer = ByteBuffer.wrap(message);
-
         // Skip IKE header and SK payload header
-        byte[] tempArray = new byte[IkeHeader.IKE_HEADER_LENGTH + IkePayload.GENERIC_HEADER_LENGTH];
-        inputBuffer.get(tempArray);
+        this(
+                message,
+                IkeHeader.IKE_HEADER_LENGTH + IkePayload.GENERIC_HEADER_LENGTH,
+                integrityMac,
+                checksumLen,
+                decryptCipher,
+                dKey);
+    }
 
-        // Extract bytes for authentication and decryption.
+    /**
+     * Package private constructor for constructing an instance of IkeEncryptedPayloadBody from
+     * decrypting an incoming packet whose iv starts at ivOffset.
+     *
+     * <p>An SKF payload carries the Fragment Number and Total Fragments fields between the payload
+     * header and the iv. These fields are authenticated together with the rest of the message.
+     */
+    IkeEncryptedPayloadBody(
+            byte[] message,
+            int ivOffset,
+            Mac integrityMac,
+            int checksumLen,
+            Cipher decryptCipher,
+            SecretKey dKey)
+            throws IkeException, GeneralSecurityException {
+        // Locate bytes for authentication and decryption.
         int expectedIvLen = decryptCipher.getBlockSize();
-        mIv = new byte[expectedIvLen];
-
-        int encryptedDataLen =
-                message.length
-                        - (IkeHeader.IKE_HEADER_LENGTH
-                                + IkePayload.GENERIC_HEADER_LENGTH
-                                + expectedIvLen
-                                + checksumLen);
-        // IkeMessage will catch exception if encryptedDataLen is negative.
-        mEncryptedAndPaddedData = new byte[encryptedDataLen];
+        int encryptedDataOffset = ivOffset + expectedIvLen;
+        int encryptedDataLen = message.length - (encryptedDataOffset + checksumLen);
+        if (encryptedDataLen < 0) {
+            throw new InvalidSyntaxException("Encrypted payload is too short.");
+        }
+        int checksumOffset = encryptedDataOffset + encryptedDataLen;
 
-        mIntegrityChecksum = new byte[checksumLen];
-        inputBuffer.get(mIv).get(mEncryptedAndPaddedData).get(mIntegrityChecksum);
+        mIv = ByteBuffer.wrap(message, ivOffset, expectedIvLen).slice();
+        mEncryptedAndPaddedData =
+                ByteBuffer.wrap(message, encryptedDataOffset, encryptedDataLen).slice();
+        mIntegrityChecksum = ByteBuffer.wrap(message, checksumOffset, checksumLen).slice();
 
         // Authenticate and decrypt.
-        byte[] dataToAuthenticate = Arrays.copyOfRange(message, 0, message.length - checksumLen);
-        validateChecksumOrThrow(dataToAuthenticate, integrityMac, mIntegrityChecksum);
-        mUnencryptedData = decrypt(mEncryptedAndPaddedData, decryptCipher, dKey, mIv);
+        validateChecksumOrThrow(
+                message, checksumOffset, integrityMac, message, checksumOffset, checksumLen);
+        mUnencryptedData =
+                decrypt(
+                        message,
+                        encryptedDataOffset,
+                        encryptedDataLen,
+                        decryptCipher,
+                        dKey,
+                        message,
+                        ivOffset);
     }
 
     /**
@@ -101,12 +135,40 @@ final class IkeEncryptedPayloadBody {
         this(
                 ikeHeader,
                 firstPayloadType,
+                new byte[0],
+                unencryptedPayloads,
+                integrityMac,
+                checksumLen,
+                encryptCipher,
+                eKey);
+    }
+
+    /**
+     * Package private constructor for constructing an instance of IkeEncryptedPayloadBody for
+     * building an outbound packet with payload specific fields preceding the iv.
+     *
+     * <p>skfHeader holds the Fragment Number and Total Fragments fields of an SKF payload, or is
+     * empty for an SK payload.
+     */
+    IkeEncryptedPayloadBody(
+            IkeHeader ikeHeader,
+            @IkePayload.PayloadType int firstPayloadType,
+            byte[] skfHeader,
+            byte[] unencryptedPayloads,
+            Mac integrityMac,
+            int checksumLen,
+            Cipher encryptCipher,
+            SecretKey eKey) {
+        this(
+                ikeHeader,
+                firstPayloadType,
+                skfHeader,
                 unencryptedPayloads,
                 integrityMac,
                 checksumLen,
                 encryptCipher,
                 eKey,
-                encryptCipher.getIV(),
+                RandomnessFactory.generateRandomBytes(encryptCipher.getBlockSize()),
                 calculatePadding(unencryptedPayloads.length, encryptCipher.getBlockSize()));
     }
 
@@ -122,46 +184,73 @@ final class IkeEncryptedPayloadBody {
             SecretKey eKey,
             byte[] iv,
             byte[] padding) {
-        mUnencryptedData = unencryptedPayloads;
+        this(
+                ikeHeader,
+                firstPayloadType,
+                new byte[0],
+                unencryptedPayloads,
+                integrityMac,
+                checksumLen,
+                encryptCipher,
+                eKey,
+                iv,
+                padding);
+    }
+
+    /** Package private constructor only for testing. */
+    @VisibleForTesting
+    IkeEncryptedPayloadBody(
+            IkeHeader ikeHeader,
+            @IkePayload.PayloadType int firstPayloadType,
+            byte[] skfHeader,
+            byte[] unencryptedPayloads,
+            Mac integrityMac,
+            int checksumLen,
+            Cipher encryptCipher,
+            SecretKey eKey,
+            byte[] iv,
+            byte[] padding) {
+        mUnencryptedData = ByteBuffer.wrap(unencryptedPayloads);
 
         // Encrypt data
-        mIv = iv;
-        mEncryptedAndPaddedData = encrypt(unencryptedPayloads, encryptCipher, eKey, iv, padding);
+        byte[] encryptedAndPaddedData =
+                encrypt(unencryptedPayloads, encryptCipher, eKey, iv, padding);
+        mIv = ByteBuffer.wrap(iv);
+        mEncryptedAndPaddedData = ByteBuffer.wrap(encryptedAndPaddedData);
 
         // Build authenticated section using ByteBuffer. Authenticated section includes bytes from
         // beginning of IKE header to the pad length, which are concatenation of IKE header, current
-        // payload header, iv and encrypted and padded data.
+        // payload header, SKF specific fields if any, iv and encrypted and padded data.
         int dataToAuthenticateLength =
                 IkeHeader.IKE_HEADER_LENGTH
                         + IkePayload.GENERIC_HEADER_LENGTH
+                        + skfHeader.length
                         + iv.length
-                        + mEncryptedAndPaddedData.length;
+                        + encryptedAndPaddedData.length;
         ByteBuffer authenticatedSectionBuffer = ByteBuffer.allocate(dataToAuthenticateLength);
 
         // Encode IKE header
         int encryptedPayloadLength =
                 IkePayload.GENERIC_HEADER_LENGTH
+                        + skfHeader.length
                         + iv.length
-                        + mEncryptedAndPaddedData.length
+                        + encryptedAndPaddedData.length
                         + checksumLen;
         ikeHeader.encodeToByteBuffer(authenticatedSectionBuffer, encryptedPayloadLength);
 
         // Encode payload header. The next payload type field indicates the first payload nested in
         // this SkPayload/SkfPayload.
-        int payloadLength =
-                IkePayload.GENERIC_HEADER_LENGTH
-                        + iv.length
-                        + mEncryptedAndPaddedData.length
-                        + checksumLen;
         IkePayload.encodePayloadHeaderToByteBuffer(
-                firstPayloadType, payloadLength, authenticatedSectionBuffer);
+                firstPayloadType, encryptedPayloadLength, authenticatedSectionBuffer);
 
-        // Encode iv and padded encrypted data.
-        authenticatedSectionBuffer.put(iv).put(mEncryptedAndPaddedData);
+        // Encode SKF specific fields, iv and padded encrypted data.
+        authenticatedSectionBuffer.put(skfHeader).put(iv).put(encryptedAndPaddedData);
 
         // Calculate checksum
         mIntegrityChecksum =
-                calculateChecksum(authenticatedSectionBuffer.array(), integrityMac, checksumLen);
+                ByteBuffer.wrap(
+                        calculateChecksum(
+                                authenticatedSectionBuffer.array(), integrityMac, checksumLen));
     }
 
     // TODO: Add another constructor for AEAD protected payload.
@@ -171,8 +260,15 @@ final class IkeEncryptedPayloadBody {
     /** Package private for testing */
     @VisibleForTesting
     static byte[] calculateChecksum(byte[] dataToAuthenticate, Mac integrityMac, int checksumLen) {
-        ByteBuffer inputBuffer = ByteBuffer.wrap(dataToAuthenticate);
-        integrityMac.update(inputBuffer);
+        return calculateChecksum(
+                dataToAuthenticate, dataToAuthenticate.length, integrityMac, checksumLen);
+    }
+
+    // Package private method for calculating checksum over the first authenticatedLen bytes of the
+    // input array.
+    static byte[] calculateChecksum(
+            byte[] dataToAuthenticate, int authenticatedLen, Mac integrityMac, int checksumLen) {
+        integrityMac.update(dataToAuthenticate, 0, authenticatedLen);
         byte[] calculatedChecksum = Arrays.copyOfRange(integrityMac.doFinal(), 0, checksumLen);
         return calculatedChecksum;
     }
@@ -182,12 +278,33 @@ final class IkeEncryptedPayloadBody {
     static void validateChecksumOrThrow(
             byte[] dataToAuthenticate, Mac integrityMac, byte[] integrityChecksum)
             throws GeneralSecurityException {
-        // TODO: Make it package private and add test.
-        int checkSumLen = integrityChecksum.length;
+        validateChecksumOrThrow(
+                dataToAuthenticate,
+                dataToAuthenticate.length,
+                integrityMac,
+                integrityChecksum,
+                0,
+                integrityChecksum.length);
+    }
+
+    // Package private method for validating the checksum of the first authenticatedLen bytes of
+    // the input array against the checksum at checksumOffset of integrityChecksum.
+    static void validateChecksumOrThrow(
+            byte[] dataToAuthenticate,
+            int authenticatedLen,
+            Mac integrityMac,
+            byte[] integrityChecksum,
+            int checksumOffset,
+            int checksumLen)
+            throws GeneralSecurityException {
         byte[] calculatedChecksum =
-                calculateChecksum(dataToAuthenticate, integrityMac, checkSumLen);
+                calculateChecksum(dataToAuthenticate, authenticatedLen, integrityMac, checksumLen);
+
+        byte[] receivedChecksum =
+                Arrays.copyOfRange(integrityChecksum, checksumOffset, checksumOffset + checksumLen);
 
-        if (!Arrays.equals(integrityChecksum, calculatedChecksum)) {
+        // MessageDigest.isEqual() takes time that does not depend on where the checksums differ.
+        if (!MessageDigest.isEqual(calculatedChecksum, receivedChecksum)) {
             throw new GeneralSecurityException("Message authentication failed.");
         }
     }
@@ -217,20 +334,40 @@ final class IkeEncryptedPayloadBody {
     @VisibleForTesting
     static byte[] decrypt(byte[] encryptedData, Cipher decryptCipher, SecretKey dKey, byte[] iv)
             throws GeneralSecurityException {
-        // TODO: Make it package private and add test.
-        decryptCipher.init(Cipher.DECRYPT_MODE, dKey, new IvParameterSpec(iv));
+        ByteBuffer decryptedData =
+                decrypt(encryptedData, 0, encryptedData.length, decryptCipher, dKey, iv, 0);
 
-        ByteBuffer inputBuffer = ByteBuffer.wrap(encryptedData);
-        ByteBuffer outputBuffer = ByteBuffer.allocate(encryptedData.length);
-        decryptCipher.doFinal(inputBuffer, outputBuffer);
+        byte[] decryptedBytes = new byte[decryptedData.remaining()];
+        decryptedData.get(decryptedBytes);
+        return decryptedBytes;
+    }
 
-        // Remove padding
-        outputBuffer.rewind();
-        int padLength = Byte.toUnsignedInt(outputBuffer.get(encryptedData.length - PAD_LEN_LEN));
-        byte[] decryptedData = new byte[encryptedData.length - padLength - PAD_LEN_LEN];
+    // Decrypt encryptedLen bytes of input array starting from encryptedOffset. Return a view of the
+    // decrypted data with padding and pad length field excluded.
+    private static ByteBuffer decrypt(
+            byte[] input,
+            int encryptedOffset,
+            int encryptedLen,
+            Cipher decryptCipher,
+            SecretKey dKey,
+            byte[] iv,
+            int ivOffset)
+            throws GeneralSecurityException {
+        decryptCipher.init(
+                Cipher.DECRYPT_MODE,
+                dKey,
+                new IvParameterSpec(iv, ivOffset, decryptCipher.getBlockSize()));
+
+        byte[] output = new byte[encryptedLen];
+        decryptCipher.doFinal(input, encryptedOffset, encryptedLen, output, 0);
 
-        outputBuffer.get(decryptedData);
-        return decryptedData;
+        // Remove padding
+        int padLength = Byte.toUnsignedInt(output[encryptedLen - PAD_LEN_LEN]);
+        int decryptedDataLen = encryptedLen - padLength - PAD_LEN_LEN;
+        if (decryptedDataLen < 0) {
+            throw new GeneralSecurityException("Invalid pad length: " + padLength);
+        }
+        return ByteBuffer.wrap(output, 0, decryptedDataLen).slice();
     }
 
     /** Package private for testing */
@@ -242,25 +379,42 @@ final class IkeEncryptedPayloadBody {
         byte[] padding = new byte[padLength];
 
         // According to RFC 7296, "Padding MAY contain any value".
-        new SecureRandom().nextBytes(padding);
+        RandomnessFactory.getRandom().nextBytes(padding);
 
         return padding;
     }
 
     /** Package private */
     byte[] getUnencryptedData() {
-        return mUnencryptedData;
+        ByteBuffer unencryptedData = getUnencryptedDataBuffer();
+        byte[] unencryptedBytes = new byte[unencryptedData.remaining()];
+        unencryptedData.get(unencryptedBytes);
+        return unencryptedBytes;
+    }
+
+    /**
+     * Package private method for reading the unencrypted data without copying it.
+     *
+     * @return a new view of the unencrypted data; its position and limit are independent of this
+     *     IkeEncryptedPayloadBody.
+     */
+    ByteBuffer getUnencryptedDataBuffer() {
+        return mUnencryptedData.duplicate();
     }
 
     /** Package private */
     int getLength() {
-        return (mIv.length + mEncryptedAndPaddedData.length + mIntegrityChecksum.length);
+        return (mIv.remaining()
+                + mEncryptedAndPaddedData.remaining()
+                + mIntegrityChecksum.remaining());
     }
 
     /** Package private */
     byte[] encode() {
         ByteBuffer buffer = ByteBuffer.allocate(getLength());
-        buffer.put(mIv).put(mEncryptedAndPaddedData).put(mIntegrityChecksum);
+        buffer.put(mIv.duplicate())
+                .put(mEncryptedAndPaddedData.duplicate())
+                .put(mIntegrityChecksum.duplicate());
         return buffer.array();
     }
 }
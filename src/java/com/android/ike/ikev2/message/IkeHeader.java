@@ -52,7 +52,8 @@ public final class IkeHeader {
         EXCHANGE_TYPE_IKE_SA_INIT,
         EXCHANGE_TYPE_IKE_AUTH,
         EXCHANGE_TYPE_CREATE_CHILD_SA,
-        EXCHANGE_TYPE_INFORMATIONAL
+        EXCHANGE_TYPE_INFORMATIONAL,
+        EXCHANGE_TYPE_IKE_SESSION_RESUME
     })
     public @interface ExchangeType {}
 
@@ -60,6 +61,7 @@ public final class IkeHeader {
     public static final int EXCHANGE_TYPE_IKE_AUTH = 35;
     public static final int EXCHANGE_TYPE_CREATE_CHILD_SA = 36;
     public static final int EXCHANGE_TYPE_INFORMATIONAL = 37;
+    public static final int EXCHANGE_TYPE_IKE_SESSION_RESUME = 38;
 
     public final long ikeInitiatorSpi;
     public final long ikeResponderSpi;
@@ -169,7 +171,7 @@ public final class IkeHeader {
             throw new InvalidSyntaxException("Major version is smaller than 2.");
         }
         if (exchangeType < EXCHANGE_TYPE_IKE_SA_INIT
-                || exchangeType > EXCHANGE_TYPE_INFORMATIONAL) {
+                || exchangeType > EXCHANGE_TYPE_IKE_SESSION_RESUME) {
             throw new InvalidSyntaxException("Invalid IKE Exchange Type.");
         }
         if (mEncodedMessageLength != packetLength) {
@@ -18,29 +18,22 @@ package com.android.ike.ikev2.message;
 
 import android.annotation.Nullable;
 
-import com.android.ike.ikev2.IkeDhParams;
 import com.android.ike.ikev2.SaProposal;
+import com.android.ike.ikev2.crypto.DhKeyPairPool;
+import com.android.ike.ikev2.crypto.KeyExchangeGroup;
+import com.android.ike.ikev2.crypto.ModpEngine;
 import com.android.ike.ikev2.exceptions.IkeException;
 import com.android.ike.ikev2.exceptions.InvalidSyntaxException;
-import com.android.ike.ikev2.utils.BigIntegerUtils;
 
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.KeyFactory;
+import java.security.InvalidKeyException;
 import java.security.KeyPair;
-import java.security.KeyPairGenerator;
-import java.security.NoSuchAlgorithmException;
-import java.security.ProviderException;
-import java.security.SecureRandom;
+import java.security.PrivateKey;
 
-import javax.crypto.KeyAgreement;
 import javax.crypto.interfaces.DHPrivateKey;
-import javax.crypto.interfaces.DHPublicKey;
-import javax.crypto.spec.DHParameterSpec;
 import javax.crypto.spec.DHPrivateKeySpec;
-import javax.crypto.spec.DHPublicKeySpec;
 
 /**
  * IkeKePayload represents a Key Exchange payload
@@ -55,15 +48,6 @@ public final class IkeKePayload extends IkePayload {
     private static final int KE_HEADER_LEN = 4;
     private static final int KE_HEADER_RESERVED = 0;
 
-    // Key exchange data length in octets
-    private static final int DH_GROUP_1024_BIT_MODP_DATA_LEN = 128;
-    private static final int DH_GROUP_2048_BIT_MODP_DATA_LEN = 256;
-
-    // Algorithm name of Diffie-Hellman
-    private static final String KEY_EXCHANGE_ALGORITHM = "DH";
-
-    // TODO: Create a library initializer that checks if Provider supports DH algorithm.
-
     /** Supported dhGroup falls into {@link DhGroup} */
     public final int dhGroup;
 
@@ -78,10 +62,13 @@ public final class IkeKePayload extends IkePayload {
      * payload. It will not be sent out. It is only used to calculate DH shared
      * key when IKE library receives a public key from the remote server.
      *
+     * <p>For MODP groups localPrivateKey is a {@link DHPrivateKey}. For ECP groups it is an
+     * {@link java.security.interfaces.ECPrivateKey}.
+     *
      * <p>localPrivateKey of a inbound payload will be set to null. Caller MUST ensure its an
      * outbound payload before using localPrivateKey.
      */
-    @Nullable public final DHPrivateKeySpec localPrivateKey;
+    @Nullable public final PrivateKey localPrivateKey;
 
     /**
      * Construct an instance of IkeKePayload in the context of IkePayloadFactory
@@ -106,20 +93,10 @@ public final class IkeKePayload extends IkePayload {
         inputBuffer.getShort();
 
         int dataSize = payloadBody.length - KE_HEADER_LEN;
-        // Check if dataSize matches the DH group type
-        boolean isValidSyntax = true;
-        switch (dhGroup) {
-            case SaProposal.DH_GROUP_1024_BIT_MODP:
-                isValidSyntax = DH_GROUP_1024_BIT_MODP_DATA_LEN == dataSize;
-                break;
-            case SaProposal.DH_GROUP_2048_BIT_MODP:
-                isValidSyntax = DH_GROUP_2048_BIT_MODP_DATA_LEN == dataSize;
-                break;
-            default:
-                // For unsupported DH group, we cannot check its syntax. Upper layer will ingore
-                // this payload.
-        }
-        if (!isValidSyntax) {
+        // Check if dataSize matches the DH group type. For unsupported DH group, we cannot check its
+        // syntax. Upper layer will ingore this payload.
+        if (KeyExchangeGroup.isSupported(dhGroup)
+                && KeyExchangeGroup.getInstance(dhGroup).getPublicValueLength() != dataSize) {
             throw new InvalidSyntaxException("Invalid KE payload length for provided DH group.");
         }
 
@@ -130,8 +107,8 @@ public final class IkeKePayload extends IkePayload {
     /**
      * Construct an instance of IkeKePayload for building an outbound packet.
      *
-     * <p>Generate a DH key pair. Cache the private key and and send out the public key as
-     * keyExchangeData.
+     * <p>Take a key pair of the DH group from {@link DhKeyPairPool}. Cache the private key and send
+     * out the public key as keyExchangeData.
      *
      * <p>Critical bit in this payload must not be set as instructed in RFC 7296.
      *
@@ -145,52 +122,15 @@ public final class IkeKePayload extends IkePayload {
         dhGroup = dh;
         isOutbound = true;
 
-        BigInteger prime = BigInteger.ZERO;
-        int keySize = 0;
-        switch (dhGroup) {
-            case SaProposal.DH_GROUP_1024_BIT_MODP:
-                prime =
-                        BigIntegerUtils.unsignedHexStringToBigInteger(
-                                IkeDhParams.PRIME_1024_BIT_MODP);
-                keySize = DH_GROUP_1024_BIT_MODP_DATA_LEN;
-                break;
-            case SaProposal.DH_GROUP_2048_BIT_MODP:
-                prime =
-                        BigIntegerUtils.unsignedHexStringToBigInteger(
-                                IkeDhParams.PRIME_2048_BIT_MODP);
-                keySize = DH_GROUP_2048_BIT_MODP_DATA_LEN;
-                break;
-            default:
-                throw new IllegalArgumentException("DH group not supported: " + dh);
-        }
-
-        try {
-            BigInteger baseGen = BigInteger.valueOf(IkeDhParams.BASE_GENERATOR_MODP);
-            DHParameterSpec dhParams = new DHParameterSpec(prime, baseGen);
-
-            KeyPairGenerator dhKeyPairGen =
-                    KeyPairGenerator.getInstance(
-                            KEY_EXCHANGE_ALGORITHM, IkeMessage.getSecurityProvider());
-            // By default SecureRandom uses AndroidOpenSSL provided SHA1PRNG Algorithm, which takes
-            // /dev/urandom as seed source.
-            dhKeyPairGen.initialize(dhParams, new SecureRandom());
+        // Throws IllegalArgumentException for unsupported DH group.
+        KeyExchangeGroup keyExchangeGroup = KeyExchangeGroup.getInstance(dhGroup);
 
-            KeyPair keyPair = dhKeyPairGen.generateKeyPair();
+        // Take a pre-generated key pair so that the IKE working thread does not wait for key
+        // generation. Falls back to synchronous generation if the pool is empty.
+        KeyPair keyPair = DhKeyPairPool.getInstance().acquireKeyPair(dhGroup);
 
-            DHPrivateKey privateKey = (DHPrivateKey) keyPair.getPrivate();
-            DHPrivateKeySpec dhPrivateKeyspec =
-                    new DHPrivateKeySpec(privateKey.getX(), prime, baseGen);
-            DHPublicKey publicKey = (DHPublicKey) keyPair.getPublic();
-
-            // Zero-pad the public key without the sign bit
-            keyExchangeData =
-                    BigIntegerUtils.bigIntegerToUnsignedByteArray(publicKey.getY(), keySize);
-            localPrivateKey = dhPrivateKeyspec;
-        } catch (NoSuchAlgorithmException e) {
-            throw new ProviderException("Failed to obtain " + KEY_EXCHANGE_ALGORITHM, e);
-        } catch (InvalidAlgorithmParameterException e) {
-            throw new IllegalArgumentException("Failed to initialize key generator", e);
-        }
+        keyExchangeData = keyExchangeGroup.encodePublicKey(keyPair.getPublic());
+        localPrivateKey = keyPair.getPrivate();
     }
 
     /**
@@ -219,7 +159,24 @@ public final class IkeKePayload extends IkePayload {
     }
 
     /**
-     * Calculate the shared secret.
+     * Validate the remote public key and calculate the shared secret.
+     *
+     * @param dhGroup the DH group of both KE payloads.
+     * @param localPrivateKey the private key of the outbound KE payload.
+     * @param remotePublicKey the key exchange data of the inbound KE payload.
+     * @return the shared secret.
+     * @throws InvalidKeyException if the remote public key is invalid.
+     * @throws GeneralSecurityException for other security-related exception.
+     */
+    public static byte[] getSharedKey(
+            @SaProposal.DhGroup int dhGroup, PrivateKey localPrivateKey, byte[] remotePublicKey)
+            throws GeneralSecurityException {
+        return KeyExchangeGroup.getInstance(dhGroup)
+                .calculateSharedSecret(localPrivateKey, remotePublicKey);
+    }
+
+    /**
+     * Calculate the shared secret with explicit MODP parameters.
      *
      * @param privateKeySpec contains the local private key, DH prime and DH base generator.
      * @param remotePublicKey the public key from remote server.
@@ -227,26 +184,11 @@ public final class IkeKePayload extends IkePayload {
      */
     public static byte[] getSharedKey(DHPrivateKeySpec privateKeySpec, byte[] remotePublicKey)
             throws GeneralSecurityException {
-        BigInteger publicKeyValue = BigIntegerUtils.unsignedByteArrayToBigInteger(remotePublicKey);
         BigInteger primeValue = privateKeySpec.getP();
-        // TODO: Add recipient test of remotePublicKey, as instructed by RFC6989 section 2.1
-
-        BigInteger baseGenValue = privateKeySpec.getG();
-
-        DHPublicKeySpec publicKeySpec =
-                new DHPublicKeySpec(publicKeyValue, primeValue, baseGenValue);
-        KeyFactory dhKeyFactory =
-                KeyFactory.getInstance(KEY_EXCHANGE_ALGORITHM, IkeMessage.getSecurityProvider());
-        DHPublicKey publicKey = (DHPublicKey) dhKeyFactory.generatePublic(publicKeySpec);
-        DHPrivateKey privateKey = (DHPrivateKey) dhKeyFactory.generatePrivate(privateKeySpec);
-
-        // Calculate shared secret
-        KeyAgreement dhKeyAgreement =
-                KeyAgreement.getInstance(KEY_EXCHANGE_ALGORITHM, IkeMessage.getSecurityProvider());
-        dhKeyAgreement.init(privateKey);
-        dhKeyAgreement.doPhase(publicKey, true/** Last phase */);
+        int sharedKeyLen = (primeValue.bitLength() + 7) / 8;
 
-        return dhKeyAgreement.generateSecret();
+        return ModpEngine.calculateSharedSecret(
+                primeValue, privateKeySpec.getX(), remotePublicKey, sharedKeyLen);
     }
 
     /**
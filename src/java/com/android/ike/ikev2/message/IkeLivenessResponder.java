@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ike.ikev2.message;
+
+import static com.android.ike.ikev2.message.IkeHeader.EXCHANGE_TYPE_INFORMATIONAL;
+import static com.android.ike.ikev2.message.IkeHeader.IKE_HEADER_LENGTH;
+import static com.android.ike.ikev2.message.IkePayload.GENERIC_HEADER_LENGTH;
+import static com.android.ike.ikev2.message.IkePayload.PAYLOAD_TYPE_NO_NEXT;
+import static com.android.ike.ikev2.message.IkePayload.PAYLOAD_TYPE_SK;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+
+/**
+ * IkeLivenessResponder answers empty INFORMATIONAL requests on an IKE SA without decoding them.
+ *
+ * <p>Remote servers check the liveness of idle IKE SAs with empty INFORMATIONAL requests, which
+ * makes them the most common messages received. Such a request has no payloads nested in its SK
+ * Payload, which is indicated by the authenticated Next Payload field of the SK Payload. It is
+ * recognized once its integrity checksum is verified, without decrypting it or decoding any
+ * payload.
+ *
+ * <p>The response is built from a template that is encrypted once for the IKE SA. Answering a
+ * request only writes its Message ID into the template and recalculates the integrity checksum.
+ * The encrypted data of the template only consists of padding, so sending it again with the same
+ * iv reveals nothing more than the length of the response does.
+ *
+ * <p>The checksum proves that a request was sent by the remote, but not that it is new. Callers
+ * MUST check the Message ID of a recognized request against the window of remote requests before
+ * answering it, re-send the cached response to a retransmitted request, and drop other requests,
+ * so that a captured request cannot be replayed to get fresh responses.
+ *
+ * <p>IkeLivenessResponder is not thread-safe and MUST only be used on the IKE working thread.
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc7296#section-1.4">RFC 7296, Internet Key Exchange
+ *     Protocol Version 2 (IKEv2) 1.4. The INFORMATIONAL Exchange</a>
+ */
+public final class IkeLivenessResponder {
+    private static final int MESSAGE_ID_OFFSET = 20;
+    private static final int SK_PAYLOAD_HEADER_OFFSET = IKE_HEADER_LENGTH;
+    private static final int SK_PAYLOAD_LENGTH_OFFSET = IKE_HEADER_LENGTH + 2;
+
+    private final long mInitiatorSpi;
+    private final long mResponderSpi;
+    private final boolean mIsLocalInit;
+    private final Mac mInboundIntegrityMac;
+    private final Mac mOutboundIntegrityMac;
+    private final int mChecksumLen;
+    private final int mBlockSize;
+
+    // Encoded response. Its Message ID and integrity checksum are overwritten for each request.
+    private final byte[] mResponseTemplate;
+
+    /**
+     * Construct an IkeLivenessResponder for an IKE SA.
+     *
+     * @param initiatorSpi the SPI of the IKE SA initiator.
+     * @param responderSpi the SPI of the IKE SA responder.
+     * @param isLocalInit whether the IKE SA is locally initiated.
+     * @param inboundIntegrityMac the initialized Mac for checking integrity of inbound messages.
+     * @param outboundIntegrityMac the initialized Mac for protecting integrity of outbound
+     *     messages.
+     * @param checksumLen the checksum length of negotiated integrity algorithm.
+     * @param encryptCipher the uninitialized Cipher for encrypting outbound messages.
+     * @param eKey the encryption key.
+     */
+    public IkeLivenessResponder(
+            long initiatorSpi,
+            long responderSpi,
+            boolean isLocalInit,
+            Mac inboundIntegrityMac,
+            Mac outboundIntegrityMac,
+            int checksumLen,
+            Cipher encryptCipher,
+            SecretKey eKey) {
+        mInitiatorSpi = initiatorSpi;
+        mResponderSpi = responderSpi;
+        mIsLocalInit = isLocalInit;
+        mInboundIntegrityMac = inboundIntegrityMac;
+        mOutboundIntegrityMac = outboundIntegrityMac;
+        mChecksumLen = checksumLen;
+        mBlockSize = encryptCipher.getBlockSize();
+
+        IkeHeader responseHeader =
+                new IkeHeader(
+                        initiatorSpi,
+                        responderSpi,
+                        PAYLOAD_TYPE_SK,
+                        EXCHANGE_TYPE_INFORMATIONAL,
+                        true /*isResp*/,
+                        isLocalInit,
+                        0 /*msgId*/);
+        IkeSkPayload skPayload =
+                new IkeSkPayload(
+                        responseHeader,
+                        PAYLOAD_TYPE_NO_NEXT,
+                        new byte[0],
+                        outboundIntegrityMac,
+                        checksumLen,
+                        encryptCipher,
+                        eKey);
+
+        ByteBuffer buffer =
+                ByteBuffer.allocate(IKE_HEADER_LENGTH + skPayload.getPayloadLength());
+        responseHeader.encodeToByteBuffer(buffer, skPayload.getPayloadLength());
+        skPayload.encodeToByteBuffer(PAYLOAD_TYPE_NO_NEXT, buffer);
+        mResponseTemplate = buffer.array();
+    }
+
+    /**
+     * Check if a received packet is an authenticated empty INFORMATIONAL request on this IKE SA.
+     *
+     * <p>Packets failing any check are left to be decoded and handled as usual.
+     *
+     * @param ikeHeader the decoded IKE header.
+     * @param ikePacketBytes the byte array of the entire received IKE packet.
+     * @return whether the packet is an empty INFORMATIONAL request.
+     */
+    public boolean isEmptyInformationalRequest(IkeHeader ikeHeader, byte[] ikePacketBytes) {
+        if (ikeHeader.exchangeType != EXCHANGE_TYPE_INFORMATIONAL
+                || ikeHeader.isResponseMsg
+                || ikeHeader.fromIkeInitiator == mIsLocalInit
+                || ikeHeader.majorVersion != 2
+                || ikeHeader.nextPayloadType != PAYLOAD_TYPE_SK
+                || ikeHeader.ikeInitiatorSpi != mInitiatorSpi
+                || ikeHeader.ikeResponderSpi != mResponderSpi
+                || ikeHeader.getInboundMessageLength() != ikePacketBytes.length) {
+            return false;
+        }
+
+        int encryptedDataLen =
+                ikePacketBytes.length
+                        - IKE_HEADER_LENGTH
+                        - GENERIC_HEADER_LENGTH
+                        - mBlockSize
+                        - mChecksumLen;
+        ByteBuffer packetBuffer = ByteBuffer.wrap(ikePacketBytes);
+        if (encryptedDataLen <= 0
+                || encryptedDataLen % mBlockSize != 0
+                || ikePacketBytes[SK_PAYLOAD_HEADER_OFFSET] != PAYLOAD_TYPE_NO_NEXT
+                || Short.toUnsignedInt(packetBuffer.getShort(SK_PAYLOAD_LENGTH_OFFSET))
+                        != ikePacketBytes.length - IKE_HEADER_LENGTH) {
+            return false;
+        }
+
+        int checksumOffset = ikePacketBytes.length - mChecksumLen;
+        try {
+            IkeEncryptedPayloadBody.validateChecksumOrThrow(
+                    ikePacketBytes,
+                    checksumOffset,
+                    mInboundIntegrityMac,
+                    ikePacketBytes,
+                    checksumOffset,
+                    mChecksumLen);
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Build the response to an empty INFORMATIONAL request.
+     *
+     * <p>The Message ID MUST have been checked against the window of remote requests.
+     *
+     * @param messageId the Message ID of the request.
+     * @return the encoded response, which can be cached for answering retransmissions.
+     */
+    public byte[] buildResponse(int messageId) {
+        ByteBuffer.wrap(mResponseTemplate).putInt(MESSAGE_ID_OFFSET, messageId);
+
+        int checksumOffset = mResponseTemplate.length - mChecksumLen;
+        byte[] checksum =
+                IkeEncryptedPayloadBody.calculateChecksum(
+                        mResponseTemplate, checksumOffset, mOutboundIntegrityMac, mChecksumLen);
+        System.arraycopy(checksum, 0, mResponseTemplate, checksumOffset, mChecksumLen);
+        return mResponseTemplate.clone();
+    }
+}
@@ -35,7 +35,6 @@ import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.Provider;
-import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -62,6 +61,9 @@ public final class IkeMessage {
         MESSAGE_TYPE_DELETE_IKE_RESP,
         MESSAGE_TYPE_REKEY_IKE_REQ,
         MESSAGE_TYPE_REKEY_IKE_RESP,
+        MESSAGE_TYPE_IKE_SESSION_RESUME_RESP,
+        MESSAGE_TYPE_UPDATE_SA_ADDRESSES_RESP,
+        MESSAGE_TYPE_DPD_RESP,
         MESSAGE_TYPE_UNSUPPORTED_CRITICAL_PAYLOAD,
         MESSAGE_TYPE_INVALID_MAJOR_VERSION,
         MESSAGE_TYPE_INVALID_SYNTAX
@@ -77,6 +79,9 @@ public final class IkeMessage {
     public static final int MESSAGE_TYPE_DELETE_IKE_RESP = PROCEDURE_TYPE_BASE + 4;
     public static final int MESSAGE_TYPE_REKEY_IKE_REQ = PROCEDURE_TYPE_BASE + 5;
     public static final int MESSAGE_TYPE_REKEY_IKE_RESP = PROCEDURE_TYPE_BASE + 6;
+    public static final int MESSAGE_TYPE_IKE_SESSION_RESUME_RESP = PROCEDURE_TYPE_BASE + 7;
+    public static final int MESSAGE_TYPE_UPDATE_SA_ADDRESSES_RESP = PROCEDURE_TYPE_BASE + 8;
+    public static final int MESSAGE_TYPE_DPD_RESP = PROCEDURE_TYPE_BASE + 9;
 
     public static final int NOTIFICATION_TYPE_BASE = PROCEDURE_TYPE_BASE + 100;
     public static final int MESSAGE_TYPE_UNSUPPORTED_CRITICAL_PAYLOAD =
@@ -106,12 +111,13 @@ public final class IkeMessage {
     /**
      * Get security provider for IKE library
      *
-     * <p>Use BouncyCastleProvider as the default security provider.
+     * <p>Use BouncyCastleProvider as the default security provider. It is the first provider in
+     * the fallback chain of {@link com.android.ike.ikev2.crypto.CryptoProviderRegistry}, which
+     * should be used to obtain cryptographic primitives.
      *
      * @return the security provider of IKE library.
      */
     public static Provider getSecurityProvider() {
-        // TODO: Move this getter out of IKE message package since not only this package uses it.
         return SECURITY_PROVIDER;
     }
 
@@ -150,9 +156,8 @@ public final class IkeMessage {
     }
 
     private static List<IkePayload> decodePayloadList(
-            @PayloadType int firstPayloadType, boolean isResp, byte[] unencryptedPayloads)
+            @PayloadType int firstPayloadType, boolean isResp, ByteBuffer inputBuffer)
             throws IkeException {
-        ByteBuffer inputBuffer = ByteBuffer.wrap(unencryptedPayloads);
         int currentPayloadType = firstPayloadType;
         // For supported payload
         List<IkePayload> supportedPayloadList = new LinkedList<>();
@@ -362,9 +367,11 @@ public final class IkeMessage {
         public IkeMessage decode(IkeHeader header, byte[] inputPacket) throws IkeException {
             header.checkInboundValidOrThrow(inputPacket.length);
 
-            byte[] unencryptedPayloads =
-                    Arrays.copyOfRange(
-                            inputPacket, IkeHeader.IKE_HEADER_LENGTH, inputPacket.length);
+            ByteBuffer unencryptedPayloads =
+                    ByteBuffer.wrap(
+                            inputPacket,
+                            IkeHeader.IKE_HEADER_LENGTH,
+                            inputPacket.length - IkeHeader.IKE_HEADER_LENGTH);
 
             try {
                 List<IkePayload> supportedPayloadList =
@@ -415,7 +422,7 @@ public final class IkeMessage {
                         decodePayloadList(
                                 firstPayloadType,
                                 header.isResponseMsg,
-                                skPayload.getUnencryptedPayloads());
+                                skPayload.getUnencryptedPayloadsBuffer());
 
                 return new IkeMessage(header, supportedPayloadList);
             } catch (NegativeArraySizeException | BufferUnderflowException e) {
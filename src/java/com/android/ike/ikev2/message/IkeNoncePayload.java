@@ -18,9 +18,9 @@ package com.android.ike.ikev2.message;
 
 import com.android.ike.ikev2.exceptions.IkeException;
 import com.android.ike.ikev2.exceptions.InvalidSyntaxException;
+import com.android.ike.ikev2.utils.RandomnessFactory;
 
 import java.nio.ByteBuffer;
-import java.security.SecureRandom;
 
 /**
  * IkeNoncePayload represents a Nonce payload.
@@ -67,8 +67,7 @@ public final class IkeNoncePayload extends IkePayload {
     /** Generate Nonce data and construct an instance of IkeNoncePayload. */
     public IkeNoncePayload() {
         super(PAYLOAD_TYPE_NONCE, false);
-        nonceData = new byte[GENERATED_NONCE_LEN];
-        new SecureRandom().nextBytes(nonceData);
+        nonceData = RandomnessFactory.generateRandomBytes(GENERATED_NONCE_LEN);
     }
 
     /**
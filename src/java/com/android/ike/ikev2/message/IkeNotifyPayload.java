@@ -19,6 +19,7 @@ package com.android.ike.ikev2.message;
 import android.annotation.IntDef;
 import android.util.ArraySet;
 
+import com.android.ike.ikev2.crypto.CryptoProviderRegistry;
 import com.android.ike.ikev2.exceptions.IkeException;
 import com.android.ike.ikev2.exceptions.InvalidSyntaxException;
 
@@ -50,11 +51,23 @@ public final class IkeNotifyPayload extends IkePayload {
         NOTIFY_TYPE_INVALID_MAJOR_VERSION,
         NOTIFY_TYPE_INVALID_SYNTAX,
         NOTIFY_TYPE_NO_PROPOSAL_CHOSEN,
+        NOTIFY_TYPE_INVALID_KE_PAYLOAD,
         NOTIFY_TYPE_INVALID_SELECTORS,
         NOTIFY_TYPE_CHILD_SA_NOT_FOUND,
+        NOTIFY_TYPE_SET_WINDOW_SIZE,
         NOTIFY_TYPE_NAT_DETECTION_SOURCE_IP,
         NOTIFY_TYPE_NAT_DETECTION_DESTINATION_IP,
-        NOTIFY_TYPE_REKEY_SA
+        NOTIFY_TYPE_HTTP_CERT_LOOKUP_SUPPORTED,
+        NOTIFY_TYPE_REKEY_SA,
+        NOTIFY_TYPE_MOBIKE_SUPPORTED,
+        NOTIFY_TYPE_UPDATE_SA_ADDRESSES,
+        NOTIFY_TYPE_COOKIE2,
+        NOTIFY_TYPE_TICKET_LT_OPAQUE,
+        NOTIFY_TYPE_TICKET_REQUEST,
+        NOTIFY_TYPE_TICKET_ACK,
+        NOTIFY_TYPE_TICKET_NACK,
+        NOTIFY_TYPE_TICKET_OPAQUE,
+        NOTIFY_TYPE_IKEV2_FRAGMENTATION_SUPPORTED
     })
     public @interface NotifyType {}
 
@@ -62,15 +75,30 @@ public final class IkeNotifyPayload extends IkePayload {
     public static final int NOTIFY_TYPE_INVALID_MAJOR_VERSION = 5;
     public static final int NOTIFY_TYPE_INVALID_SYNTAX = 7;
     public static final int NOTIFY_TYPE_NO_PROPOSAL_CHOSEN = 14;
+    public static final int NOTIFY_TYPE_INVALID_KE_PAYLOAD = 17;
     public static final int NOTIFY_TYPE_AUTHENTICATION_FAILED = 24;
     public static final int NOTIFY_TYPE_INVALID_SELECTORS = 39;
     public static final int NOTIFY_TYPE_CHILD_SA_NOT_FOUND = 44;
 
+    public static final int NOTIFY_TYPE_SET_WINDOW_SIZE = 16385;
     public static final int NOTIFY_TYPE_NAT_DETECTION_SOURCE_IP = 16388;
     public static final int NOTIFY_TYPE_NAT_DETECTION_DESTINATION_IP = 16389;
+    public static final int NOTIFY_TYPE_HTTP_CERT_LOOKUP_SUPPORTED = 16392;
     public static final int NOTIFY_TYPE_REKEY_SA = 16393;
+    public static final int NOTIFY_TYPE_MOBIKE_SUPPORTED = 16396;
+    public static final int NOTIFY_TYPE_UPDATE_SA_ADDRESSES = 16400;
+    public static final int NOTIFY_TYPE_COOKIE2 = 16401;
+    public static final int NOTIFY_TYPE_TICKET_LT_OPAQUE = 16409;
+    public static final int NOTIFY_TYPE_TICKET_REQUEST = 16410;
+    public static final int NOTIFY_TYPE_TICKET_ACK = 16411;
+    public static final int NOTIFY_TYPE_TICKET_NACK = 16412;
+    public static final int NOTIFY_TYPE_TICKET_OPAQUE = 16413;
+    public static final int NOTIFY_TYPE_IKEV2_FRAGMENTATION_SUPPORTED = 16430;
     // TODO: List all supported notify types.
 
+    // Notify types below this value are error types; others are status types.
+    private static final int NOTIFY_TYPE_STATUS_MIN = 16384;
+
     private static final int NOTIFY_HEADER_LEN = 4;
 
     private static final String NAT_DETECTION_DIGEST_ALGORITHM = "SHA-1";
@@ -167,7 +195,7 @@ public final class IkeNotifyPayload extends IkePayload {
      * @param ipAddress the IP address
      * @param port the port
      * @return the generated NAT DETECTION notification data as a byte array.
-     * @throws NoSuchAlgorithmException when "SHA-1" is not supported by the security provider.
+     * @throws NoSuchAlgorithmException when "SHA-1" is not supported by any security provider.
      */
     public static byte[] generateNatDetectionData(
             long initiatorIkeSpi, long responderIkeSpi, InetAddress ipAddress, int port)
@@ -183,8 +211,7 @@ public final class IkeNotifyPayload extends IkePayload {
                 .putShort((short) port);
 
         MessageDigest natDetectionDataDigest =
-                MessageDigest.getInstance(
-                        NAT_DETECTION_DIGEST_ALGORITHM, IkeMessage.getSecurityProvider());
+                CryptoProviderRegistry.getMessageDigest(NAT_DETECTION_DIGEST_ALGORITHM);
         return natDetectionDataDigest.digest(byteBuffer.array());
     }
 
@@ -262,6 +289,15 @@ public final class IkeNotifyPayload extends IkePayload {
         }
     }
 
+    /**
+     * Return whether this notification reports an error.
+     *
+     * @return true if the notify type is an error type.
+     */
+    public boolean isErrorNotify() {
+        return notifyType < NOTIFY_TYPE_STATUS_MIN;
+    }
+
     /**
      * Return the payload type as a String.
      *
@@ -57,7 +57,8 @@ public abstract class IkePayload {
         PAYLOAD_TYPE_VENDOR,
         PAYLOAD_TYPE_TS_INITIATOR,
         PAYLOAD_TYPE_TS_RESPONDER,
-        PAYLOAD_TYPE_SK
+        PAYLOAD_TYPE_SK,
+        PAYLOAD_TYPE_SKF
     })
     public @interface PayloadType {}
 
@@ -89,6 +90,8 @@ public abstract class IkePayload {
     public static final int PAYLOAD_TYPE_TS_RESPONDER = 45;
     /** Encrypted and Authenticated Payload */
     public static final int PAYLOAD_TYPE_SK = 46;
+    /** Encrypted and Authenticated Fragment Payload */
+    public static final int PAYLOAD_TYPE_SKF = 53;
 
     // TODO: List all payload types.
 
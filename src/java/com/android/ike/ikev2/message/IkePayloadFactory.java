@@ -145,42 +145,95 @@ final class IkePayloadFactory {
             Cipher decryptCipher,
             SecretKey dKey)
             throws IkeException, GeneralSecurityException {
-        ByteBuffer input =
-                ByteBuffer.wrap(
+        ByteBuffer input = getEncryptedPayloadHeader(message, "SK");
+        int nextPayloadType = (int) input.get();
+        // read critical bit
+        boolean isCritical = isCriticalPayload(input.get());
+
+        IkeSkPayload payload =
+                new IkeSkPayload(
+                        isCritical,
                         message,
-                        IkeHeader.IKE_HEADER_LENGTH,
-                        message.length - IkeHeader.IKE_HEADER_LENGTH);
+                        integrityMac,
+                        checksumLen,
+                        decryptCipher,
+                        dKey);
+        return new Pair(payload, nextPayloadType);
+    }
 
+    /**
+     * Construct an instance of IkeSkfPayload by decrypting the received message.
+     *
+     * @param message the byte array contains the whole IKE message.
+     * @param integrityMac the initialized Mac for integrity check.
+     * @param checksumLen the checksum length of negotiated integrity algorithm.
+     * @param decryptCipher the uninitialized Cipher for doing decryption.
+     * @param dKey the decryption key.
+     * @return a pair including IkeSkfPayload and next payload type.
+     * @throws IkeException for decoding errors.
+     * @throws GeneralSecurityException if there is any error during integrity check or decryption.
+     */
+    protected static Pair<IkeSkfPayload, Integer> getIkeSkfPayload(
+            byte[] message,
+            Mac integrityMac,
+            int checksumLen,
+            Cipher decryptCipher,
+            SecretKey dKey)
+            throws IkeException, GeneralSecurityException {
+        ByteBuffer input = getEncryptedPayloadHeader(message, "SKF");
         int nextPayloadType = (int) input.get();
         // read critical bit
         boolean isCritical = isCriticalPayload(input.get());
 
-        int payloadLength = Short.toUnsignedInt(input.getShort());
+        if (message.length
+                < IkeHeader.IKE_HEADER_LENGTH
+                        + IkePayload.GENERIC_HEADER_LENGTH
+                        + IkeSkfPayload.SKF_HEADER_LEN) {
+            throw new InvalidSyntaxException("Invalid length of SKF Payload: Payload too short.");
+        }
+
+        IkeSkfPayload payload =
+                new IkeSkfPayload(
+                        isCritical,
+                        message,
+                        integrityMac,
+                        checksumLen,
+                        decryptCipher,
+                        dKey);
+        return new Pair(payload, nextPayloadType);
+    }
+
+    // Validate that the SK or SKF Payload is the only payload in the message. Return a view of the
+    // generic payload header.
+    private static ByteBuffer getEncryptedPayloadHeader(byte[] message, String payloadName)
+            throws InvalidSyntaxException {
+        ByteBuffer input =
+                ByteBuffer.wrap(
+                        message,
+                        IkeHeader.IKE_HEADER_LENGTH,
+                        message.length - IkeHeader.IKE_HEADER_LENGTH);
+        int payloadLength = Short.toUnsignedInt(input.getShort(input.position() + 2));
 
         int bodyLength = message.length - IkeHeader.IKE_HEADER_LENGTH;
         if (bodyLength < payloadLength) {
             throw new InvalidSyntaxException(
-                    "Invalid length of SK Payload: Payload length is too long.");
+                    "Invalid length of " + payloadName + " Payload: Payload length is too long.");
         } else if (bodyLength > payloadLength) {
             // According to RFC 7296, SK Payload must be the last payload and for CREATE_CHILD_SA,
             // IKE_AUTH and INFORMATIONAL exchanges, message following the header is encrypted. Thus
             // this implementaion only accepts that SK Payload to be the only payload. Any IKE
             // packet violating this format will be treated as invalid. A request violating this
-            // format will be rejected and replied with an error notification.
+            // format will be rejected and replied with an error notification. RFC 7383 has the
+            // same requirement for SKF Payload.
             throw new InvalidSyntaxException(
-                    "Invalid length of SK Payload: Payload length is too short"
-                            + " or SK Payload is not the only payload.");
+                    "Invalid length of "
+                            + payloadName
+                            + " Payload: Payload length is too short"
+                            + " or "
+                            + payloadName
+                            + " Payload is not the only payload.");
         }
-
-        IkeSkPayload payload =
-                new IkeSkPayload(
-                        isCritical,
-                        message,
-                        integrityMac,
-                        checksumLen,
-                        decryptCipher,
-                        dKey);
-        return new Pair(payload, nextPayloadType);
+        return input;
     }
 
     /**
@@ -613,6 +613,15 @@ public final class IkeSaPayload extends IkePayload {
             }
         }
 
+        /**
+         * Return the specified key length in bits.
+         *
+         * @return the key length in bits, or 0 if this encryption algorithm has a fixed key length.
+         */
+        public int getSpecifiedKeyLength() {
+            return mSpecifiedKeyLength;
+        }
+
         @Override
         public int hashCode() {
             return Objects.hash(type, id, mSpecifiedKeyLength);
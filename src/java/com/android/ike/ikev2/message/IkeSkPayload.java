@@ -106,6 +106,15 @@ public final class IkeSkPayload extends IkePayload {
         return mIkeEncryptedPayloadBody.getUnencryptedData();
     }
 
+    /**
+     * Package private method for reading unencrypted payload list without copying it.
+     *
+     * @return a view of unencrypted payload list.
+     */
+    ByteBuffer getUnencryptedPayloadsBuffer() {
+        return mIkeEncryptedPayloadBody.getUnencryptedDataBuffer();
+    }
+
     // TODO: Add another constructor for AEAD protected payload.
 
     /**
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ike.ikev2.message;
+
+import com.android.ike.ikev2.exceptions.IkeException;
+import com.android.ike.ikev2.exceptions.InvalidSyntaxException;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+
+/**
+ * IkeSkfPayload represents an Encrypted Fragment Payload.
+ *
+ * <p>It contains one fragment of the payloads of an IKE message in encrypted form. Each fragment
+ * is protected independently, so that a fragment can be authenticated and decrypted as soon as it
+ * is received. It must be the only payload in the message.
+ *
+ * <p>Critical bit must be ignored when doing decoding.
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc7383#section-2.5">RFC 7383, Internet Key Exchange
+ *     Protocol Version 2 (IKEv2) Message Fragmentation</a>
+ */
+public final class IkeSkfPayload extends IkePayload {
+    // Length of Fragment Number field and Total Fragments field.
+    public static final int SKF_HEADER_LEN = 4;
+
+    /** Maximum value of Fragment Number field and Total Fragments field. */
+    public static final int MAX_FRAGMENTS = 0xffff;
+
+    public final int fragmentNum;
+    public final int totalFragments;
+
+    private final IkeEncryptedPayloadBody mIkeEncryptedPayloadBody;
+
+    /**
+     * Construct an instance of IkeSkfPayload from decrypting an incoming packet.
+     *
+     * @param critical indicates if it is a critical payload.
+     * @param message the byte array contains the whole IKE message.
+     * @param integrityMac the initialized Mac for integrity check.
+     * @param checksumLen the checksum length of negotiated integrity algorithm.
+     * @param decryptCipher the uninitialized Cipher for doing decryption.
+     * @param dKey the decryption key.
+     * @throws InvalidSyntaxException if Fragment Number or Total Fragments is invalid.
+     */
+    IkeSkfPayload(
+            boolean critical,
+            byte[] message,
+            Mac integrityMac,
+            int checksumLen,
+            Cipher decryptCipher,
+            SecretKey dKey)
+            throws IkeException, GeneralSecurityException {
+        super(PAYLOAD_TYPE_SKF, critical);
+
+        ByteBuffer inputBuffer =
+                ByteBuffer.wrap(
+                        message,
+                        IkeHeader.IKE_HEADER_LENGTH + GENERIC_HEADER_LENGTH,
+                        SKF_HEADER_LEN);
+        fragmentNum = Short.toUnsignedInt(inputBuffer.getShort());
+        totalFragments = Short.toUnsignedInt(inputBuffer.getShort());
+        if (fragmentNum < 1 || fragmentNum > totalFragments) {
+            throw new InvalidSyntaxException(
+                    "Invalid fragment " + fragmentNum + " of " + totalFragments);
+        }
+
+        mIkeEncryptedPayloadBody =
+                new IkeEncryptedPayloadBody(
+                        message,
+                        IkeHeader.IKE_HEADER_LENGTH + GENERIC_HEADER_LENGTH + SKF_HEADER_LEN,
+                        integrityMac,
+                        checksumLen,
+                        decryptCipher,
+                        dKey);
+    }
+
+    /**
+     * Construct an instance of IkeSkfPayload for building outbound packet.
+     *
+     * @param ikeHeader the IKE header.
+     * @param firstPayloadType the type of first payload nested in the first fragment, or {@link
+     *     #PAYLOAD_TYPE_NO_NEXT} for other fragments.
+     * @param fragmentNum the index of this fragment, starting from 1.
+     * @param totalFragments the number of fragments of the IKE message.
+     * @param unencryptedFragment the part of encoded payload list to protect.
+     * @param integrityMac the initialized Mac for calculating integrity checksum
+     * @param checksumLen the checksum length of negotiated integrity algorithm.
+     * @param encryptCipher the uninitialized Cipher for doing encryption.
+     * @param eKey the encryption key.
+     */
+    IkeSkfPayload(
+            IkeHeader ikeHeader,
+            @PayloadType int firstPayloadType,
+            int fragmentNum,
+            int totalFragments,
+            byte[] unencryptedFragment,
+            Mac integrityMac,
+            int checksumLen,
+            Cipher encryptCipher,
+            SecretKey eKey) {
+        super(PAYLOAD_TYPE_SKF, false);
+        if (fragmentNum < 1 || totalFragments > MAX_FRAGMENTS || fragmentNum > totalFragments) {
+            throw new IllegalArgumentException(
+                    "Invalid fragment " + fragmentNum + " of " + totalFragments);
+        }
+
+        this.fragmentNum = fragmentNum;
+        this.totalFragments = totalFragments;
+        mIkeEncryptedPayloadBody =
+                new IkeEncryptedPayloadBody(
+                        ikeHeader,
+                        firstPayloadType,
+                        encodeSkfHeader(fragmentNum, totalFragments),
+                        unencryptedFragment,
+                        integrityMac,
+                        checksumLen,
+                        encryptCipher,
+                        eKey);
+    }
+
+    private static byte[] encodeSkfHeader(int fragmentNum, int totalFragments) {
+        return ByteBuffer.allocate(SKF_HEADER_LEN)
+                .putShort((short) fragmentNum)
+                .putShort((short) totalFragments)
+                .array();
+    }
+
+    /**
+     * Return unencrypted fragment of payload list
+     *
+     * @return unencrypted fragment in a byte array.
+     */
+    public byte[] getUnencryptedFragment() {
+        return mIkeEncryptedPayloadBody.getUnencryptedData();
+    }
+
+    /**
+     * Encode this payload to a ByteBuffer.
+     *
+     * @param nextPayload type of payload that follows this payload.
+     * @param byteBuffer destination ByteBuffer that stores encoded payload.
+     */
+    @Override
+    protected void encodeToByteBuffer(@PayloadType int nextPayload, ByteBuffer byteBuffer) {
+        encodePayloadHeaderToByteBuffer(nextPayload, getPayloadLength(), byteBuffer);
+        byteBuffer
+                .putShort((short) fragmentNum)
+                .putShort((short) totalFragments)
+                .put(mIkeEncryptedPayloadBody.encode());
+    }
+
+    /**
+     * Get entire payload length.
+     *
+     * @return entire payload length.
+     */
+    @Override
+    protected int getPayloadLength() {
+        return GENERIC_HEADER_LENGTH + SKF_HEADER_LEN + mIkeEncryptedPayloadBody.getLength();
+    }
+
+    /**
+     * Return the payload type as a String.
+     *
+     * @return the payload type as a String.
+     */
+    @Override
+    public String getTypeString() {
+        return "Encrypted and Authenticated Fragment Payload";
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ike.ikev2.utils;
+
+import com.android.ike.ikev2.crypto.CertificateFetchCache.ICertificateFetcher;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HttpCertificateFetcher retrieves certificates and certificate bundles sent as "Hash and URL"
+ * with HTTP GET.
+ *
+ * <p>Only "http" URLs are accepted as required by RFC 7296. Redirects are not followed, and the
+ * response body is bounded so that a peer cannot make IKE library download arbitrary content.
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc7296#section-3.6">RFC 7296, Internet Key Exchange
+ *     Protocol Version 2 (IKEv2) 3.6. Certificate Payload</a>
+ */
+public final class HttpCertificateFetcher implements ICertificateFetcher {
+    private static final String URL_PROTOCOL_HTTP = "http";
+
+    @VisibleForTesting static final int DEFAULT_TIMEOUT_MS = (int) TimeUnit.SECONDS.toMillis(5L);
+    @VisibleForTesting static final int DEFAULT_MAX_CONTENT_LEN = 64 * 1024;
+
+    private static final int READ_BUFFER_LEN = 4096;
+
+    private final int mTimeoutMs;
+    private final int mMaxContentLen;
+
+    /** Construct an instance of HttpCertificateFetcher with default timeout and size limit. */
+    public HttpCertificateFetcher() {
+        this(DEFAULT_TIMEOUT_MS, DEFAULT_MAX_CONTENT_LEN);
+    }
+
+    /**
+     * Construct an instance of HttpCertificateFetcher.
+     *
+     * @param timeoutMs the timeout for connecting and for each read in milliseconds.
+     * @param maxContentLen the maximum length of the response body in octets.
+     */
+    public HttpCertificateFetcher(int timeoutMs, int maxContentLen) {
+        mTimeoutMs = timeoutMs;
+        mMaxContentLen = maxContentLen;
+    }
+
+    @Override
+    public byte[] fetch(String url) throws IOException {
+        URL certUrl = new URL(url);
+        if (!URL_PROTOCOL_HTTP.equals(certUrl.getProtocol())) {
+            throw new IOException("Unsupported URL protocol: " + certUrl.getProtocol());
+        }
+
+        HttpURLConnection connection = (HttpURLConnection) certUrl.openConnection();
+        try {
+            connection.setConnectTimeout(mTimeoutMs);
+            connection.setReadTimeout(mTimeoutMs);
+            connection.setInstanceFollowRedirects(false);
+            connection.setUseCaches(false);
+
+            int responseCode = connection.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unexpected HTTP response code: " + responseCode);
+            }
+            if (connection.getContentLengthLong() > mMaxContentLen) {
+                throw new IOException("Content too long: " + connection.getContentLengthLong());
+            }
+
+            try (InputStream inputStream = connection.getInputStream()) {
+                return readBounded(inputStream);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private byte[] readBounded(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[READ_BUFFER_LEN];
+        int len;
+        while ((len = inputStream.read(buffer)) != -1) {
+            if (outputStream.size() + len > mMaxContentLen) {
+                throw new IOException("Content exceeds " + mMaxContentLen + " octets");
+            }
+            outputStream.write(buffer, 0, len);
+        }
+        return outputStream.toByteArray();
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ike.ikev2.utils;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.security.SecureRandom;
+import java.security.SecureRandomSpi;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * RandomnessFactory provides the source of randomness for the whole IKE library.
+ *
+ * <p>Nonces, paddings, IVs, SPIs and Diffie-Hellman private values are all drawn from a per-thread
+ * {@link SecureRandom} returned by {@link #getRandom()}. Each instance serves small requests from a
+ * pre-filled buffer and refills the buffer in bulk, so that callers neither construct and seed a
+ * new SecureRandom nor call into the underlying generator for every few bytes.
+ *
+ * <p>The underlying {@link IRandomnessSource} can be replaced by a deterministic one to make tests
+ * and benchmarks reproducible. It MUST NOT be replaced in production.
+ */
+public final class RandomnessFactory {
+    // Size of the buffer of pre-generated random bytes in each thread. It is large enough to serve
+    // several IKE_SA_INIT exchanges, each of which consumes an SPI and a nonce.
+    @VisibleForTesting static final int RANDOM_BUFFER_LEN = 512;
+
+    private static volatile IRandomnessSource sRandomnessSource = new SecureRandomnessSource();
+
+    // Incremented when the randomness source is replaced so that threads discard bytes that have
+    // been buffered from the previous source.
+    private static volatile int sSourceGeneration = 0;
+
+    private static final ThreadLocal<BufferedSecureRandom> sThreadRandom =
+            new ThreadLocal<BufferedSecureRandom>() {
+                @Override
+                protected BufferedSecureRandom initialValue() {
+                    return new BufferedSecureRandom();
+                }
+            };
+
+    private RandomnessFactory() {}
+
+    /**
+     * Get the SecureRandom instance of the calling thread.
+     *
+     * <p>The returned instance can also be passed to JCA APIs (e.g. {@link
+     * java.security.KeyPairGenerator#initialize}) that take a SecureRandom. It MUST NOT be shared
+     * with other threads.
+     *
+     * @return the SecureRandom instance of the calling thread.
+     */
+    public static SecureRandom getRandom() {
+        BufferedSecureRandom random = sThreadRandom.get();
+        if (random.generation != sSourceGeneration) {
+            random = new BufferedSecureRandom();
+            sThreadRandom.set(random);
+        }
+        return random;
+    }
+
+    /**
+     * Generate random bytes.
+     *
+     * @param len the number of random bytes.
+     * @return a byte array filled with random bytes.
+     */
+    public static byte[] generateRandomBytes(int len) {
+        byte[] randomBytes = new byte[len];
+        getRandom().nextBytes(randomBytes);
+        return randomBytes;
+    }
+
+    /**
+     * Replace the source of randomness for all threads.
+     *
+     * <p>Only for tests and benchmarks that need reproducible output.
+     *
+     * @param source the new randomness source, or null to restore the default SecureRandom source.
+     */
+    @VisibleForTesting
+    public static void setRandomnessSource(IRandomnessSource source) {
+        sRandomnessSource = (source == null) ? new SecureRandomnessSource() : source;
+        sSourceGeneration++;
+    }
+
+    /**
+     * IRandomnessSource provides the random bytes that are buffered by {@link RandomnessFactory}.
+     *
+     * <p>IRandomnessSource exists so that the source is injectable for testing and benchmarking.
+     */
+    public interface IRandomnessSource {
+        /**
+         * Fill the whole byte array with random bytes.
+         *
+         * @param bytes the byte array to fill.
+         */
+        void nextBytes(byte[] bytes);
+    }
+
+    /** SecureRandomnessSource is the default source that reads from a per-thread SecureRandom. */
+    private static final class SecureRandomnessSource implements IRandomnessSource {
+        // By default SecureRandom uses AndroidOpenSSL provided SHA1PRNG Algorithm, which takes
+        // /dev/urandom as seed source. Constructing and seeding it is expensive, so each thread
+        // does it only once.
+        private final ThreadLocal<SecureRandom> mSecureRandom =
+                new ThreadLocal<SecureRandom>() {
+                    @Override
+                    protected SecureRandom initialValue() {
+                        return new SecureRandom();
+                    }
+                };
+
+        @Override
+        public void nextBytes(byte[] bytes) {
+            mSecureRandom.get().nextBytes(bytes);
+        }
+    }
+
+    /**
+     * DeterministicRandomnessSource generates a reproducible byte stream from a seed.
+     *
+     * <p>It is NOT cryptographically secure and is only for tests and benchmarks.
+     */
+    @VisibleForTesting
+    public static final class DeterministicRandomnessSource implements IRandomnessSource {
+        private final Random mRandom;
+
+        // Bytes of the last generated int that have not been handed out. Keeping them makes the
+        // byte stream independent of how it is split into requests.
+        private int mCurrentInt;
+        private int mRemainingBytesInCurrentInt;
+
+        /**
+         * Construct a DeterministicRandomnessSource.
+         *
+         * @param seed the seed of the generated byte stream.
+         */
+        public DeterministicRandomnessSource(long seed) {
+            mRandom = new Random(seed);
+        }
+
+        @Override
+        public synchronized void nextBytes(byte[] bytes) {
+            for (int i = 0; i < bytes.length; i++) {
+                if (mRemainingBytesInCurrentInt == 0) {
+                    mCurrentInt = mRandom.nextInt();
+                    mRemainingBytesInCurrentInt = Integer.BYTES;
+                }
+                bytes[i] = (byte) mCurrentInt;
+                mCurrentInt >>>= Byte.SIZE;
+                mRemainingBytesInCurrentInt--;
+            }
+        }
+    }
+
+    /**
+     * BufferedSecureRandom is a SecureRandom that serves random bytes from a buffer filled by the
+     * current IRandomnessSource.
+     */
+    private static final class BufferedSecureRandom extends SecureRandom {
+        final int generation;
+
+        BufferedSecureRandom() {
+            super(new BufferedSecureRandomSpi(sRandomnessSource), null);
+            generation = sSourceGeneration;
+        }
+    }
+
+    /** BufferedSecureRandomSpi implements buffering for BufferedSecureRandom. */
+    private static final class BufferedSecureRandomSpi extends SecureRandomSpi {
+        private final IRandomnessSource mSource;
+        private final byte[] mBuffer = new byte[RANDOM_BUFFER_LEN];
+        // Offset of the first unused byte in mBuffer. The buffer is empty when it equals the buffer
+        // length.
+        private int mOffset = RANDOM_BUFFER_LEN;
+
+        BufferedSecureRandomSpi(IRandomnessSource source) {
+            mSource = source;
+        }
+
+        @Override
+        protected void engineNextBytes(byte[] bytes) {
+            int filled = takeFromBuffer(bytes, 0, bytes.length);
+            if (filled == bytes.length) return;
+
+            int remaining = bytes.length - filled;
+            if (remaining >= RANDOM_BUFFER_LEN) {
+                // Serve large requests directly from the source. Byte order of the output stream
+                // stays the same as if they were served from the buffer.
+                byte[] directBytes = new byte[remaining];
+                mSource.nextBytes(directBytes);
+                System.arraycopy(directBytes, 0, bytes, filled, remaining);
+                Arrays.fill(directBytes, (byte) 0);
+                return;
+            }
+
+            mSource.nextBytes(mBuffer);
+            mOffset = 0;
+            takeFromBuffer(bytes, filled, remaining);
+        }
+
+        // Copy at most len bytes from the buffer to the output and return the number copied. Bytes
+        // are zeroed once they are handed out so that past output does not stay in memory.
+        private int takeFromBuffer(byte[] output, int outputOffset, int len) {
+            int copyLen = Math.min(len, RANDOM_BUFFER_LEN - mOffset);
+            System.arraycopy(mBuffer, mOffset, output, outputOffset, copyLen);
+            Arrays.fill(mBuffer, mOffset, mOffset + copyLen, (byte) 0);
+            mOffset += copyLen;
+            return copyLen;
+        }
+
+        @Override
+        protected void engineSetSeed(byte[] seed) {
+            // Seeds are ignored. The source is responsible for its own seeding.
+        }
+
+        @Override
+        protected byte[] engineGenerateSeed(int numBytes) {
+            byte[] seed = new byte[numBytes];
+            mSource.nextBytes(seed);
+            return seed;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ike.ikev2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.ike.ikev2.SaRecord.ChildSaRecord;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+public final class ChildSaGroupTest {
+    private static final int TARGET_SIZE = 2;
+
+    private ChildSaRecord mFirstChildSaRecord;
+    private ChildSaRecord mSecondChildSaRecord;
+
+    private ChildSaGroup mChildSaGroup;
+
+    @Before
+    public void setUp() throws Exception {
+        mFirstChildSaRecord = new ChildSaRecord(0x1, 0x2, null, null);
+        mSecondChildSaRecord = new ChildSaRecord(0x3, 0x4, null, null);
+        mChildSaGroup = new ChildSaGroup(TARGET_SIZE);
+    }
+
+    @Test
+    public void testAddUntilComplete() throws Exception {
+        assertNull(mChildSaGroup.selectChildSaRecord(0));
+
+        mChildSaGroup.add(mFirstChildSaRecord);
+        assertFalse(mChildSaGroup.isComplete());
+        mChildSaGroup.add(mSecondChildSaRecord);
+        assertTrue(mChildSaGroup.isComplete());
+
+        try {
+            mChildSaGroup.add(new ChildSaRecord(0x5, 0x6, null, null));
+            fail("Expected failure because Child SA group is complete.");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void testSelectChildSaRecord() throws Exception {
+        mChildSaGroup.add(mFirstChildSaRecord);
+        mChildSaGroup.add(mSecondChildSaRecord);
+
+        assertEquals(mFirstChildSaRecord, mChildSaGroup.selectChildSaRecord(0));
+        assertEquals(mSecondChildSaRecord, mChildSaGroup.selectChildSaRecord(1));
+        assertEquals(mSecondChildSaRecord, mChildSaGroup.selectChildSaRecord(-1));
+    }
+
+    @Test
+    public void testReplaceKeepsPosition() throws Exception {
+        mChildSaGroup.add(mFirstChildSaRecord);
+        mChildSaGroup.add(mSecondChildSaRecord);
+
+        ChildSaRecord newRecord = new ChildSaRecord(0x5, 0x6, null, null);
+        mChildSaGroup.replace(mFirstChildSaRecord, newRecord);
+
+        assertEquals(newRecord, mChildSaGroup.selectChildSaRecord(0));
+        assertEquals(mSecondChildSaRecord, mChildSaGroup.selectChildSaRecord(1));
+    }
+
+    @Test
+    public void testReplaceAll() throws Exception {
+        mChildSaGroup.add(mFirstChildSaRecord);
+        mChildSaGroup.add(mSecondChildSaRecord);
+
+        List<ChildSaRecord> newRecords =
+                Arrays.asList(
+                        new ChildSaRecord(0x5, 0x6, null, null),
+                        new ChildSaRecord(0x7, 0x8, null, null));
+        List<ChildSaRecord> oldRecords = mChildSaGroup.replaceAll(newRecords);
+
+        assertEquals(Arrays.asList(mFirstChildSaRecord, mSecondChildSaRecord), oldRecords);
+        assertEquals(newRecords, mChildSaGroup.getChildSaRecords());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReplaceAllWithMismatchedSize() throws Exception {
+        mChildSaGroup.add(mFirstChildSaRecord);
+        mChildSaGroup.replaceAll(Arrays.asList(mFirstChildSaRecord, mSecondChildSaRecord));
+    }
+}
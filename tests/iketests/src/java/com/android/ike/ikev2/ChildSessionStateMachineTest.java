@@ -38,9 +38,11 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Random;
 
 public final class ChildSessionStateMachineTest {
     private static final String IKE_AUTH_REQ_SA_PAYLOAD =
@@ -53,6 +55,11 @@ public final class ChildSessionStateMachineTest {
     private static final String CURRENT_CHILD_SA_SPI_IN = "2ad4c0a2";
     private static final String CURRENT_CHILD_SA_SPI_OUT = "cae7019f";
 
+    private static final String SERVER_ADDRESS = "192.0.2.100";
+    // Soft lifetime is at most 90% of the hard lifetime.
+    private static final long CHILD_SOFT_LIFETIME_MS_MAX =
+            IkeRekeyScheduler.CHILD_HARD_LIFETIME_MS_DEFAULT * 9 / 10;
+
     private TestLooper mLooper;
     private ChildSessionStateMachine mChildSessionStateMachine;
 
@@ -64,6 +71,7 @@ public final class ChildSessionStateMachineTest {
     private ISaRecordHelper mMockSaRecordHelper;
     private IChildSessionCallback mMockChildSessionCallback;
     private ChildSessionOptions mChildSessionOptions;
+    private IkeRekeyScheduler mRekeyScheduler;
 
     public ChildSessionStateMachineTest() {
         mMockSaRecordHelper = mock(SaRecord.ISaRecordHelper.class);
@@ -76,9 +84,19 @@ public final class ChildSessionStateMachineTest {
     public void setup() throws Exception {
         // Setup thread and looper
         mLooper = new TestLooper();
+        mRekeyScheduler =
+                new IkeRekeyScheduler(
+                        1 /*maxConcurrentRekeys*/,
+                        1 /*maxConcurrentRekeysPerPeer*/,
+                        () -> 0L,
+                        new Random());
+        ChildSessionStateMachine.setRekeyScheduler(mRekeyScheduler);
         mChildSessionStateMachine =
                 new ChildSessionStateMachine(
-                        "ChildSessionStateMachine", mLooper.getLooper(), mChildSessionOptions);
+                        "ChildSessionStateMachine",
+                        mLooper.getLooper(),
+                        InetAddress.getByName(SERVER_ADDRESS),
+                        mChildSessionOptions);
         mChildSessionStateMachine.setDbg(true);
         SaRecord.setSaRecordHelper(mMockSaRecordHelper);
 
@@ -119,6 +137,7 @@ public final class ChildSessionStateMachineTest {
         mChildSessionStateMachine.setDbg(false);
 
         SaRecord.setSaRecordHelper(new SaRecordHelper());
+        ChildSessionStateMachine.setRekeyScheduler(IkeRekeyScheduler.getInstance());
     }
 
     @Test
@@ -135,5 +154,63 @@ public final class ChildSessionStateMachineTest {
                 mChildSessionStateMachine.getCurrentState()
                         instanceof ChildSessionStateMachine.Idle);
         assertEquals(mSpyCurrentChildSaRecord, mChildSessionStateMachine.mCurrentChildSaRecord);
+        assertEquals(1, mChildSessionStateMachine.getChildSaGroup().size());
+        assertEquals(
+                mSpyCurrentChildSaRecord,
+                mChildSessionStateMachine.getChildSaGroup().selectChildSaRecord(0));
+    }
+
+    @Test
+    public void testChildSoftLifetimeReleasesRekeyPermit() throws Exception {
+        when(mMockSaRecordHelper.makeChildSaRecord(any(), any()))
+                .thenReturn(mSpyCurrentChildSaRecord);
+        mChildSessionStateMachine.handleFirstChildExchange(
+                mAuthReqSaNegoPayloads, mAuthRespSaNegoPayloads, mMockChildSessionCallback);
+        mLooper.dispatchAll();
+
+        mLooper.moveTimeForward(CHILD_SOFT_LIFETIME_MS_MAX);
+        mLooper.dispatchAll();
+
+        // Rekeying Child SAs is not supported yet, so the permit is not held.
+        assertEquals(1L, mRekeyScheduler.getStartedRekeyCount());
+        assertEquals(0, mRekeyScheduler.getActiveRekeyCount());
+        assertTrue(
+                mChildSessionStateMachine.getCurrentState()
+                        instanceof ChildSessionStateMachine.Idle);
+    }
+
+    @Test
+    public void testCloseWhenChildHardLifetimeExpires() throws Exception {
+        when(mMockSaRecordHelper.makeChildSaRecord(any(), any()))
+                .thenReturn(mSpyCurrentChildSaRecord);
+        mChildSessionStateMachine.handleFirstChildExchange(
+                mAuthReqSaNegoPayloads, mAuthRespSaNegoPayloads, mMockChildSessionCallback);
+        mLooper.dispatchAll();
+
+        mLooper.moveTimeForward(IkeRekeyScheduler.CHILD_HARD_LIFETIME_MS_DEFAULT);
+        mLooper.dispatchAll();
+
+        assertTrue(
+                mChildSessionStateMachine.getCurrentState()
+                        instanceof ChildSessionStateMachine.Closed);
+        verify(mMockChildSessionCallback).onDeleteChildSa(mSpyCurrentChildSaRecord.outboundSpi);
+        assertEquals(0, mRekeyScheduler.getActiveRekeyCount());
+    }
+
+    @Test
+    public void testKillSession() throws Exception {
+        when(mMockSaRecordHelper.makeChildSaRecord(any(), any()))
+                .thenReturn(mSpyCurrentChildSaRecord);
+        mChildSessionStateMachine.handleFirstChildExchange(
+                mAuthReqSaNegoPayloads, mAuthRespSaNegoPayloads, mMockChildSessionCallback);
+        mLooper.dispatchAll();
+
+        mChildSessionStateMachine.killSession();
+        mLooper.dispatchAll();
+
+        assertTrue(
+                mChildSessionStateMachine.getCurrentState()
+                        instanceof ChildSessionStateMachine.Closed);
+        verify(mMockChildSessionCallback).onDeleteChildSa(mSpyCurrentChildSaRecord.outboundSpi);
     }
 }
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ike.ikev2;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public final class IkeLivenessMonitorTest {
+    private static final long DPD_DELAY_MS = 1000L;
+
+    private long mNow;
+    private IkeLivenessMonitor mLivenessMonitor;
+
+    @Before
+    public void setUp() throws Exception {
+        mLivenessMonitor = new IkeLivenessMonitor(DPD_DELAY_MS, () -> mNow);
+    }
+
+    // Probe the remote and receive the response after the delay until the probe expires.
+    private void probeWhenDue() {
+        mNow += mLivenessMonitor.getDelayUntilProbeMs();
+        assertEquals(0L, mLivenessMonitor.getDelayUntilProbeMs());
+        mLivenessMonitor.onProbeSent();
+        mLivenessMonitor.onProbeAnswered();
+    }
+
+    @Test
+    public void testInboundActivityDefersProbe() throws Exception {
+        mNow += 400L;
+        mLivenessMonitor.onInboundActivity();
+        mNow += 400L;
+
+        assertEquals(DPD_DELAY_MS - 400L, mLivenessMonitor.getDelayUntilProbeMs());
+    }
+
+    @Test
+    public void testBackOffWhileIdle() throws Exception {
+        probeWhenDue();
+        assertEquals(DPD_DELAY_MS, mLivenessMonitor.getDelayUntilProbeMs());
+
+        long expectedDelayMs = DPD_DELAY_MS;
+        for (int i = 0; i < 4; i++) {
+            probeWhenDue();
+            expectedDelayMs =
+                    Math.min(
+                            expectedDelayMs * 2,
+                            DPD_DELAY_MS * IkeLivenessMonitor.MAX_BACKOFF_MULTIPLIER);
+            assertEquals(expectedDelayMs, mLivenessMonitor.getDelayUntilProbeMs());
+        }
+        assertEquals(
+                DPD_DELAY_MS * IkeLivenessMonitor.MAX_BACKOFF_MULTIPLIER,
+                mLivenessMonitor.getDelayUntilProbeMs());
+    }
+
+    @Test
+    public void testResetBackOffWithInboundActivity() throws Exception {
+        probeWhenDue();
+        probeWhenDue();
+        assertEquals(DPD_DELAY_MS * 2, mLivenessMonitor.getDelayUntilProbeMs());
+
+        mNow += 1L;
+        mLivenessMonitor.onInboundActivity();
+        assertEquals(DPD_DELAY_MS, mLivenessMonitor.getDelayUntilProbeMs());
+
+        probeWhenDue();
+        assertEquals(DPD_DELAY_MS, mLivenessMonitor.getDelayUntilProbeMs());
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ike.ikev2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public final class IkeLocalRequestWindowTest {
+    private static final int FIRST_MESSAGE_ID = 2;
+    private static final int WINDOW_SIZE = 3;
+
+    private IkeLocalRequestWindow mWindow;
+
+    @Before
+    public void setUp() throws Exception {
+        mWindow = new IkeLocalRequestWindow(FIRST_MESSAGE_ID);
+    }
+
+    @Test
+    public void testDefaultWindowSize() throws Exception {
+        assertEquals(FIRST_MESSAGE_ID, mWindow.add());
+        assertTrue(mWindow.isFull());
+        assertTrue(mWindow.isOutstanding(FIRST_MESSAGE_ID));
+
+        assertTrue(mWindow.remove(FIRST_MESSAGE_ID));
+        assertFalse(mWindow.isFull());
+        assertEquals(FIRST_MESSAGE_ID + 1, mWindow.getNextMessageId());
+    }
+
+    @Test
+    public void testMatchResponsesOutOfOrder() throws Exception {
+        mWindow.setWindowSize(WINDOW_SIZE);
+        for (int i = 0; i < WINDOW_SIZE; i++) {
+            assertEquals(FIRST_MESSAGE_ID + i, mWindow.add());
+        }
+        assertTrue(mWindow.isFull());
+
+        // Window does not slide until the lowest request is answered.
+        assertTrue(mWindow.remove(FIRST_MESSAGE_ID + 2));
+        assertTrue(mWindow.remove(FIRST_MESSAGE_ID + 1));
+        assertTrue(mWindow.isFull());
+
+        assertTrue(mWindow.remove(FIRST_MESSAGE_ID));
+        assertFalse(mWindow.isFull());
+        assertEquals(0, mWindow.getOutstandingCount());
+    }
+
+    @Test
+    public void testIgnoreDuplicateAndUnsolicitedResponses() throws Exception {
+        mWindow.add();
+
+        assertFalse(mWindow.isOutstanding(FIRST_MESSAGE_ID + 1));
+        assertFalse(mWindow.remove(FIRST_MESSAGE_ID + 1));
+        assertTrue(mWindow.remove(FIRST_MESSAGE_ID));
+        assertFalse(mWindow.isOutstanding(FIRST_MESSAGE_ID));
+        assertFalse(mWindow.remove(FIRST_MESSAGE_ID));
+    }
+
+    @Test
+    public void testCancelReusesMessageId() throws Exception {
+        mWindow.cancel(mWindow.add());
+
+        assertFalse(mWindow.isFull());
+        assertEquals(FIRST_MESSAGE_ID, mWindow.add());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testCancelAnsweredRequest() throws Exception {
+        mWindow.remove(mWindow.add());
+        mWindow.cancel(FIRST_MESSAGE_ID);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAddToFullWindow() throws Exception {
+        mWindow.add();
+        mWindow.add();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetInvalidWindowSize() throws Exception {
+        mWindow.setWindowSize(0);
+    }
+}
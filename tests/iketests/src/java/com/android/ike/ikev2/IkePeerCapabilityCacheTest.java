@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ike.ikev2;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.android.ike.ikev2.IkePeerCapabilityCache.PeerCapabilities;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+public final class IkePeerCapabilityCacheTest {
+    private static final int MAX_ENTRIES = 2;
+    private static final long TTL_MS = 1000L;
+
+    private static final InetAddress SERVER_ADDRESS_A = InetAddress.getLoopbackAddress();
+    private static final InetAddress SERVER_ADDRESS_B;
+    private static final InetAddress SERVER_ADDRESS_C;
+
+    static {
+        try {
+            SERVER_ADDRESS_B = InetAddress.getByName("192.0.2.1");
+            SERVER_ADDRESS_C = InetAddress.getByName("192.0.2.2");
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private SaProposal mModp1024Proposal;
+    private SaProposal mModp2048Proposal;
+
+    private long mNow;
+    private IkePeerCapabilityCache mCache;
+
+    @Before
+    public void setUp() throws Exception {
+        mModp1024Proposal = buildIkeSaProposal(SaProposal.DH_GROUP_1024_BIT_MODP);
+        mModp2048Proposal = buildIkeSaProposal(SaProposal.DH_GROUP_2048_BIT_MODP);
+        mCache = new IkePeerCapabilityCache(MAX_ENTRIES, TTL_MS, () -> mNow);
+    }
+
+    private static SaProposal buildIkeSaProposal(int dhGroup) {
+        return SaProposal.Builder.newIkeSaProposalBuilder()
+                .addEncryptionAlgorithm(
+                        SaProposal.ENCRYPTION_ALGORITHM_AES_CBC, SaProposal.KEY_LEN_AES_128)
+                .addIntegrityAlgorithm(SaProposal.INTEGRITY_ALGORITHM_HMAC_SHA1_96)
+                .addPseudorandomFunction(SaProposal.PSEUDORANDOM_FUNCTION_HMAC_SHA1)
+                .addDhGroup(dhGroup)
+                .build();
+    }
+
+    @Test
+    public void testGetExpiredCapabilities() throws Exception {
+        PeerCapabilities capabilities = new PeerCapabilities(SaProposal.DH_GROUP_2048_BIT_MODP);
+        mCache.put(SERVER_ADDRESS_A, capabilities);
+
+        mNow += TTL_MS - 1;
+        assertSame(capabilities, mCache.get(SERVER_ADDRESS_A));
+
+        mNow += 1;
+        assertNull(mCache.get(SERVER_ADDRESS_A));
+        assertEquals(0, mCache.size());
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() throws Exception {
+        PeerCapabilities capabilities = new PeerCapabilities(SaProposal.DH_GROUP_2048_BIT_MODP);
+        mCache.put(SERVER_ADDRESS_A, capabilities);
+        mCache.put(SERVER_ADDRESS_B, capabilities);
+        mCache.get(SERVER_ADDRESS_A);
+        mCache.put(SERVER_ADDRESS_C, capabilities);
+
+        assertEquals(MAX_ENTRIES, mCache.size());
+        assertNull(mCache.get(SERVER_ADDRESS_B));
+        assertSame(capabilities, mCache.get(SERVER_ADDRESS_A));
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        mCache.put(SERVER_ADDRESS_A, new PeerCapabilities(SaProposal.DH_GROUP_2048_BIT_MODP));
+        mCache.invalidate(SERVER_ADDRESS_A);
+
+        assertNull(mCache.get(SERVER_ADDRESS_A));
+    }
+
+    @Test
+    public void testOrderSaProposalsByDhGroup() throws Exception {
+        PeerCapabilities capabilities = new PeerCapabilities(SaProposal.DH_GROUP_2048_BIT_MODP);
+        SaProposal[] ordered =
+                capabilities.orderSaProposals(
+                        new SaProposal[] {mModp1024Proposal, mModp2048Proposal});
+
+        assertArrayEquals(new SaProposal[] {mModp2048Proposal, mModp1024Proposal}, ordered);
+        assertEquals(SaProposal.DH_GROUP_2048_BIT_MODP, capabilities.selectDhGroup(ordered[0]));
+    }
+
+    @Test
+    public void testOrderSaProposalsByNegotiatedProposal() throws Exception {
+        PeerCapabilities capabilities =
+                new PeerCapabilities(
+                        SaProposal.DH_GROUP_1024_BIT_MODP,
+                        mModp1024Proposal,
+                        false /*isHttpCertLookupSupported*/);
+        SaProposal[] ordered =
+                capabilities.orderSaProposals(
+                        new SaProposal[] {mModp2048Proposal, mModp1024Proposal});
+
+        assertArrayEquals(new SaProposal[] {mModp1024Proposal, mModp2048Proposal}, ordered);
+    }
+
+    @Test
+    public void testSelectDhGroupNotInFirstProposal() throws Exception {
+        PeerCapabilities capabilities = new PeerCapabilities(SaProposal.DH_GROUP_256_BIT_ECP);
+
+        assertEquals(
+                SaProposal.DH_GROUP_1024_BIT_MODP, capabilities.selectDhGroup(mModp1024Proposal));
+    }
+}
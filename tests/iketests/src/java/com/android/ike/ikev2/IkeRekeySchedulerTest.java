@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ike.ikev2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.ike.ikev2.IkeRekeyScheduler.IRekeyCallback;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+public final class IkeRekeySchedulerTest {
+    private static final int MAX_CONCURRENT_REKEYS = 2;
+    private static final int MAX_CONCURRENT_REKEYS_PER_PEER = 1;
+    private static final long HARD_LIFETIME_MS = 1000L;
+
+    private static final InetAddress SERVER_ADDRESS_A = InetAddress.getLoopbackAddress();
+    private static final InetAddress SERVER_ADDRESS_B;
+
+    static {
+        try {
+            SERVER_ADDRESS_B = InetAddress.getByName("192.0.2.1");
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private long mNow;
+    private double mJitter;
+    private IkeRekeyScheduler mScheduler;
+
+    @Before
+    public void setUp() throws Exception {
+        Random random =
+                new Random() {
+                    @Override
+                    public double nextDouble() {
+                        return mJitter;
+                    }
+                };
+        mScheduler =
+                new IkeRekeyScheduler(
+                        MAX_CONCURRENT_REKEYS, MAX_CONCURRENT_REKEYS_PER_PEER, () -> mNow, random);
+    }
+
+    private static final class TestRekeyCallback implements IRekeyCallback {
+        int permittedCount;
+
+        @Override
+        public void onRekeyPermitted() {
+            permittedCount++;
+        }
+    }
+
+    @Test
+    public void testComputeSoftLifetime() throws Exception {
+        mJitter = 0.0;
+        assertEquals(900L, mScheduler.computeSoftLifetimeMs(HARD_LIFETIME_MS));
+
+        mJitter = 0.5;
+        assertEquals(850L, mScheduler.computeSoftLifetimeMs(HARD_LIFETIME_MS));
+    }
+
+    @Test
+    public void testDeferRekeyToSamePeer() throws Exception {
+        TestRekeyCallback firstCallback = new TestRekeyCallback();
+        TestRekeyCallback secondCallback = new TestRekeyCallback();
+
+        mScheduler.requestRekey(SERVER_ADDRESS_A, firstCallback);
+        mScheduler.requestRekey(SERVER_ADDRESS_A, secondCallback);
+        assertEquals(1, firstCallback.permittedCount);
+        assertEquals(0, secondCallback.permittedCount);
+        assertEquals(1, mScheduler.getPendingRekeyCount());
+
+        mNow += 100L;
+        mScheduler.finishRekey(firstCallback);
+        assertEquals(1, secondCallback.permittedCount);
+        assertTrue(mScheduler.isRekeyPermitted(secondCallback));
+        assertFalse(mScheduler.isRekeyPermitted(firstCallback));
+
+        assertEquals(2L, mScheduler.getStartedRekeyCount());
+        assertEquals(1L, mScheduler.getDeferredRekeyCount());
+        assertEquals(100L, mScheduler.getMaxDeferralMillis());
+        assertEquals(50L, mScheduler.getAverageDeferralMillis());
+    }
+
+    @Test
+    public void testGrantDeferredRekeyToAvailablePeer() throws Exception {
+        TestRekeyCallback callbackA1 = new TestRekeyCallback();
+        TestRekeyCallback callbackA2 = new TestRekeyCallback();
+        TestRekeyCallback callbackB1 = new TestRekeyCallback();
+        TestRekeyCallback callbackB2 = new TestRekeyCallback();
+
+        mScheduler.requestRekey(SERVER_ADDRESS_A, callbackA1);
+        mScheduler.requestRekey(SERVER_ADDRESS_A, callbackA2);
+        mScheduler.requestRekey(SERVER_ADDRESS_B, callbackB1);
+        mScheduler.requestRekey(SERVER_ADDRESS_B, callbackB2);
+        assertEquals(MAX_CONCURRENT_REKEYS, mScheduler.getActiveRekeyCount());
+
+        // Releasing the permit for server B skips the earlier request for server A, which is still
+        // at its cap.
+        mScheduler.finishRekey(callbackB1);
+        assertEquals(0, callbackA2.permittedCount);
+        assertEquals(1, callbackB2.permittedCount);
+    }
+
+    @Test
+    public void testFinishWithdrawsDeferredRekey() throws Exception {
+        TestRekeyCallback firstCallback = new TestRekeyCallback();
+        TestRekeyCallback secondCallback = new TestRekeyCallback();
+
+        mScheduler.requestRekey(SERVER_ADDRESS_A, firstCallback);
+        mScheduler.requestRekey(SERVER_ADDRESS_A, secondCallback);
+        mScheduler.finishRekey(secondCallback);
+        mScheduler.finishRekey(firstCallback);
+
+        assertEquals(0, secondCallback.permittedCount);
+        assertEquals(0, mScheduler.getPendingRekeyCount());
+        assertEquals(0, mScheduler.getActiveRekeyCount());
+    }
+
+    @Test
+    public void testRekeyRatePerMinute() throws Exception {
+        TestRekeyCallback callback = new TestRekeyCallback();
+        mScheduler.requestRekey(SERVER_ADDRESS_A, callback);
+        mScheduler.requestRekey(SERVER_ADDRESS_A, callback);
+        mScheduler.finishRekey(callback);
+        mScheduler.requestRekey(SERVER_ADDRESS_A, callback);
+        assertEquals(2, callback.permittedCount);
+        assertEquals(2, mScheduler.getRekeyRatePerMinute());
+
+        mNow += TimeUnit.MINUTES.toMillis(1L);
+        assertEquals(0, mScheduler.getRekeyRatePerMinute());
+    }
+}
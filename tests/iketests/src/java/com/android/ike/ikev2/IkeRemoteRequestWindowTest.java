@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ike.ikev2;
+
+import static com.android.ike.ikev2.IkeRemoteRequestWindow.REQUEST_DROPPED;
+import static com.android.ike.ikev2.IkeRemoteRequestWindow.REQUEST_NEW;
+import static com.android.ike.ikev2.IkeRemoteRequestWindow.REQUEST_RETRANSMITTED;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public final class IkeRemoteRequestWindowTest {
+    private static final int WINDOW_SIZE = 2;
+
+    private static final byte[] RESPONSE_0 = new byte[] {0};
+    private static final byte[] RESPONSE_1 = new byte[] {1};
+
+    private IkeRemoteRequestWindow mWindow;
+
+    @Before
+    public void setUp() throws Exception {
+        mWindow = new IkeRemoteRequestWindow(0, WINDOW_SIZE);
+    }
+
+    @Test
+    public void testProcessRequestsOutOfOrder() throws Exception {
+        assertEquals(REQUEST_NEW, mWindow.onRequestReceived(1));
+        assertEquals(REQUEST_NEW, mWindow.onRequestReceived(0));
+        assertEquals(REQUEST_DROPPED, mWindow.onRequestReceived(2));
+
+        mWindow.onResponseSent(1, RESPONSE_1);
+        assertEquals(0, mWindow.getLowestUnansweredId());
+        mWindow.onResponseSent(0, RESPONSE_0);
+        assertEquals(2, mWindow.getLowestUnansweredId());
+
+        assertEquals(REQUEST_NEW, mWindow.onRequestReceived(3));
+    }
+
+    @Test
+    public void testDetectRetransmittedRequest() throws Exception {
+        mWindow.onRequestReceived(0);
+        assertEquals(REQUEST_DROPPED, mWindow.onRequestReceived(0));
+
+        mWindow.onResponseSent(0, RESPONSE_0);
+        assertEquals(REQUEST_RETRANSMITTED, mWindow.onRequestReceived(0));
+        assertArrayEquals(RESPONSE_0, mWindow.getResponse(0));
+    }
+
+    @Test
+    public void testDiscardResponsesBelowWindow() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            mWindow.onRequestReceived(i);
+            mWindow.onResponseSent(i, new byte[] {(byte) i});
+        }
+
+        assertNull(mWindow.getResponse(1));
+        assertEquals(REQUEST_DROPPED, mWindow.onRequestReceived(1));
+        assertEquals(REQUEST_RETRANSMITTED, mWindow.onRequestReceived(2));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSendResponseToUnknownRequest() throws Exception {
+        mWindow.onResponseSent(0, RESPONSE_0);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ike.ikev2;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+public final class IkeRttEstimatorTest {
+    private static final int MAX_ENTRIES = 2;
+
+    private InetAddress mServerOne;
+    private InetAddress mServerTwo;
+    private InetAddress mServerThree;
+
+    private IkeRttEstimator mRttEstimator;
+
+    @Before
+    public void setUp() throws Exception {
+        mServerOne = InetAddress.getByName("192.0.2.1");
+        mServerTwo = InetAddress.getByName("192.0.2.2");
+        mServerThree = InetAddress.getByName("192.0.2.3");
+
+        mRttEstimator = new IkeRttEstimator(MAX_ENTRIES);
+    }
+
+    @Test
+    public void testInitialTimeoutWithoutSample() throws Exception {
+        assertEquals(
+                IkeRttEstimator.INITIAL_RTO_MS, mRttEstimator.getRetransmitTimeoutMs(mServerOne));
+        assertEquals(-1L, mRttEstimator.getSmoothedRttMillis(mServerOne));
+    }
+
+    @Test
+    public void testFirstSample() throws Exception {
+        mRttEstimator.onRttSample(mServerOne, 100L);
+
+        assertEquals(100L, mRttEstimator.getSmoothedRttMillis(mServerOne));
+        // 100 ms + 4 * 50 ms of variance.
+        assertEquals(300L, mRttEstimator.getRetransmitTimeoutMs(mServerOne));
+    }
+
+    @Test
+    public void testSmoothSamples() throws Exception {
+        mRttEstimator.onRttSample(mServerOne, 100L);
+        mRttEstimator.onRttSample(mServerOne, 180L);
+
+        // Variance is 50 ms + (80 ms - 50 ms) / 4 and smoothed RTT is 100 ms + 80 ms / 8.
+        assertEquals(110L, mRttEstimator.getSmoothedRttMillis(mServerOne));
+        assertEquals(110L + 4 * 57L, mRttEstimator.getRetransmitTimeoutMs(mServerOne));
+    }
+
+    @Test
+    public void testTimeoutIsCapped() throws Exception {
+        mRttEstimator.onRttSample(mServerOne, IkeRttEstimator.MAX_RTO_MS);
+
+        assertEquals(
+                IkeRttEstimator.MAX_RTO_MS, mRttEstimator.getRetransmitTimeoutMs(mServerOne));
+    }
+
+    @Test
+    public void testServersAreIndependent() throws Exception {
+        mRttEstimator.onRttSample(mServerOne, 100L);
+
+        assertEquals(
+                IkeRttEstimator.INITIAL_RTO_MS, mRttEstimator.getRetransmitTimeoutMs(mServerTwo));
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() throws Exception {
+        mRttEstimator.onRttSample(mServerOne, 100L);
+        mRttEstimator.onRttSample(mServerTwo, 100L);
+        mRttEstimator.getRetransmitTimeoutMs(mServerOne);
+        mRttEstimator.onRttSample(mServerThree, 100L);
+
+        assertEquals(100L, mRttEstimator.getSmoothedRttMillis(mServerOne));
+        assertEquals(-1L, mRttEstimator.getSmoothedRttMillis(mServerTwo));
+        assertEquals(100L, mRttEstimator.getSmoothedRttMillis(mServerThree));
+    }
+}
@@ -72,7 +72,19 @@ public final class IkeSessionOptionsTest {
         assertEquals(IPV4_ADDRESS, sessionOptions.getServerAddress());
         assertEquals(mUdpEncapSocket, sessionOptions.getUdpEncapsulationSocket());
         assertArrayEquals(new SaProposal[] {saProposal}, sessionOptions.getSaProposals());
-        assertFalse(sessionOptions.isIkeFragmentationSupported());
+        assertFalse(sessionOptions.isDpdEnabled());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetInvalidDpdDelay() throws Exception {
+        new IkeSessionOptions.Builder(IPV4_ADDRESS, mUdpEncapSocket)
+                .setDpdDelaySeconds(IkeSessionOptions.IKE_DPD_DELAY_SEC_MIN - 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetInvalidRetransTimeoutBounds() throws Exception {
+        new IkeSessionOptions.Builder(IPV4_ADDRESS, mUdpEncapSocket)
+                .setRetransTimeoutBoundsMillis(1000L, 500L);
     }
 
     @Test
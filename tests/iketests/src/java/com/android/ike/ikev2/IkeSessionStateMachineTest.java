@@ -16,12 +16,17 @@
 
 package com.android.ike.ikev2;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
@@ -39,15 +44,23 @@ import androidx.test.InstrumentationRegistry;
 
 import com.android.ike.ikev2.ChildSessionStateMachineFactory.ChildSessionFactoryHelper;
 import com.android.ike.ikev2.ChildSessionStateMachineFactory.IChildSessionFactoryHelper;
+import com.android.ike.ikev2.IkeSessionStateMachine.IChildSessionCallback;
 import com.android.ike.ikev2.IkeSessionStateMachine.ReceivedIkePacket;
 import com.android.ike.ikev2.SaRecord.ISaRecordHelper;
 import com.android.ike.ikev2.SaRecord.IkeSaRecord;
 import com.android.ike.ikev2.SaRecord.SaRecordHelper;
+import com.android.ike.ikev2.crypto.CryptoWorkerPool;
+import com.android.ike.ikev2.exceptions.NoValidProposalChosenException;
 import com.android.ike.ikev2.message.IkeHeader;
+import com.android.ike.ikev2.message.IkeKePayload;
+import com.android.ike.ikev2.message.IkeLivenessResponder;
 import com.android.ike.ikev2.message.IkeMessage;
 import com.android.ike.ikev2.message.IkeMessage.IIkeMessageHelper;
 import com.android.ike.ikev2.message.IkeMessage.IkeMessageHelper;
+import com.android.ike.ikev2.message.IkeNoncePayload;
+import com.android.ike.ikev2.message.IkeNotifyPayload;
 import com.android.ike.ikev2.message.IkePayload;
+import com.android.ike.ikev2.message.TestUtils;
 
 import org.junit.After;
 import org.junit.Before;
@@ -55,16 +68,50 @@ import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 
 public final class IkeSessionStateMachineTest {
 
     private static final String SERVER_ADDRESS = "192.0.2.100";
+    // Address that the remote server sees packets of IKE library coming from behind a NAT.
+    private static final String NAT_ADDRESS = "198.51.100.1";
+    // Message IDs of requests on the first IKE SA. IKE_INIT request uses Message ID 0.
+    private static final int IKE_AUTH_REQ_MESSAGE_ID = 1;
+    private static final int NEXT_LOCAL_REQ_MESSAGE_ID = 2;
+    private static final int FIRST_REMOTE_REQ_MESSAGE_ID = 0;
+    private static final int DPD_DELAY_SEC = 120;
+
+    // Keys of the current IKE SA for answering empty INFORMATIONAL requests.
+    private static final String ENCR_ALGO_AES_CBC = "AES/CBC/NoPadding";
+    private static final String INTE_ALGO_HMAC_SHA1 = "HmacSHA1";
+    private static final String ENCR_KEY_FROM_INIT_TO_RESP = "5cbfd33f75796c0188c4a3a546aec4a1";
+    private static final String INTE_KEY_FROM_INIT_TO_RESP =
+            "554fbf5a05b7f511e05a30ce23d874db9ef55e51";
+    private static final String INTE_KEY_FROM_RESP_TO_INIT =
+            "36d83420788337ca32ecaa46892c48808dcd58b1";
+    private static final int AES_BLOCK_SIZE = 16;
+    private static final int HMAC_SHA1_CHECKSUM_LEN = 12;
+    private static final long DPD_DELAY_MS = TimeUnit.SECONDS.toMillis(DPD_DELAY_SEC);
+    // Soft lifetime is at most 90% of the hard lifetime.
+    private static final long IKE_SOFT_LIFETIME_MS_MAX =
+            IkeRekeyScheduler.IKE_HARD_LIFETIME_MS_DEFAULT * 9 / 10;
 
     private UdpEncapsulationSocket mUdpEncapSocket;
 
     private TestLooper mLooper;
+    private long mNow;
     private IkeSessionStateMachine mIkeSessionStateMachine;
 
     private IkeSessionOptions mIkeSessionOptions;
@@ -80,12 +127,21 @@ public final class IkeSessionStateMachineTest {
     private IkeSaRecord mSpyLocalInitIkeSaRecord;
     private IkeSaRecord mSpyRemoteInitIkeSaRecord;
 
+    private final List<Runnable> mPendingCryptoOperations = new LinkedList<>();
+
     private ArgumentCaptor<IkeMessage> mIkeMessageCaptor =
             ArgumentCaptor.forClass(IkeMessage.class);
 
     private ReceivedIkePacket makeDummyUnencryptedReceivedIkePacket(int packetType)
             throws Exception {
-        IkeMessage dummyIkeMessage = makeDummyIkeMessageForTest(0, 0, false, false);
+        return makeDummyUnencryptedReceivedIkePacket(packetType, new LinkedList<>());
+    }
+
+    private ReceivedIkePacket makeDummyUnencryptedReceivedIkePacket(
+            int packetType, List<IkePayload> payloadList) throws Exception {
+        IkeMessage dummyIkeMessage =
+                makeDummyIkeMessageForTest(0, 0, false, false, true /*isResponse*/, 0);
+        dummyIkeMessage.ikePayloadList.addAll(payloadList);
         byte[] dummyIkePacketBytes = new byte[0];
 
         when(mMockIkeMessageHelper.decode(dummyIkeMessage.ikeHeader, dummyIkePacketBytes))
@@ -95,11 +151,29 @@ public final class IkeSessionStateMachineTest {
     }
 
     private ReceivedIkePacket makeDummyEncryptedReceivedIkePacket(
-            int packetType, IkeSaRecord ikeSaRecord) throws Exception {
+            int packetType, IkeSaRecord ikeSaRecord, boolean isResponse, int messageId)
+            throws Exception {
+        return makeDummyEncryptedReceivedIkePacket(
+                packetType, ikeSaRecord, isResponse, messageId, new LinkedList<>());
+    }
+
+    private ReceivedIkePacket makeDummyEncryptedReceivedIkePacket(
+            int packetType,
+            IkeSaRecord ikeSaRecord,
+            boolean isResponse,
+            int messageId,
+            List<IkePayload> payloadList)
+            throws Exception {
         boolean fromIkeInit = !ikeSaRecord.isLocalInit;
         IkeMessage dummyIkeMessage =
                 makeDummyIkeMessageForTest(
-                        ikeSaRecord.initiatorSpi, ikeSaRecord.responderSpi, fromIkeInit, true);
+                        ikeSaRecord.initiatorSpi,
+                        ikeSaRecord.responderSpi,
+                        fromIkeInit,
+                        true,
+                        isResponse,
+                        messageId);
+        dummyIkeMessage.ikePayloadList.addAll(payloadList);
         byte[] dummyIkePacketBytes = new byte[0];
 
         when(mMockIkeMessageHelper.decode(
@@ -113,11 +187,17 @@ public final class IkeSessionStateMachineTest {
     }
 
     private IkeMessage makeDummyIkeMessageForTest(
-            long initSpi, long respSpi, boolean fromikeInit, boolean isEncrypted) {
+            long initSpi,
+            long respSpi,
+            boolean fromikeInit,
+            boolean isEncrypted,
+            boolean isResponse,
+            int messageId) {
         int firstPayloadType =
                 isEncrypted ? IkePayload.PAYLOAD_TYPE_SK : IkePayload.PAYLOAD_TYPE_NO_NEXT;
         IkeHeader header =
-                new IkeHeader(initSpi, respSpi, firstPayloadType, 0, true, fromikeInit, 0);
+                new IkeHeader(
+                        initSpi, respSpi, firstPayloadType, 0, isResponse, fromikeInit, messageId);
         return new IkeMessage(header, new LinkedList<IkePayload>());
     }
 
@@ -140,7 +220,8 @@ public final class IkeSessionStateMachineTest {
 
         when(mMockIkeMessageHelper.encode(any())).thenReturn(new byte[0]);
         when(mMockIkeMessageHelper.encode(any(), any(), any())).thenReturn(new byte[0]);
-        when(mMockChildSessionFactoryHelper.makeChildSessionStateMachine(any(), any(), any()))
+        when(mMockChildSessionFactoryHelper.makeChildSessionStateMachine(
+                        any(), any(), any(), any()))
                 .thenReturn(mMockChildSessionStateMachine);
     }
 
@@ -168,6 +249,7 @@ public final class IkeSessionStateMachineTest {
         SaRecord.setSaRecordHelper(mMockSaRecordHelper);
         ChildSessionStateMachineFactory.setChildSessionFactoryHelper(
                 mMockChildSessionFactoryHelper);
+        IkeSessionStateMachine.setCryptoExecutor(mPendingCryptoOperations::add);
     }
 
     @After
@@ -180,9 +262,19 @@ public final class IkeSessionStateMachineTest {
         SaRecord.setSaRecordHelper(new SaRecordHelper());
         ChildSessionStateMachineFactory.setChildSessionFactoryHelper(
                 new ChildSessionFactoryHelper());
+        IkeSessionStateMachine.setCryptoExecutor(CryptoWorkerPool.getInstance());
+        IkeSessionTicketStore.getInstance().clear();
+        IkePeerCapabilityCache.getInstance().clear();
+        IkeRttEstimator.getInstance().clear();
+        IkeSessionStateMachine.setRekeyScheduler(IkeRekeyScheduler.getInstance());
     }
 
     private IkeSessionOptions buildIkeSessionOptions() throws Exception {
+        return buildIkeSessionOptions(false /*isCryptoOffloadEnabled*/);
+    }
+
+    private IkeSessionOptions buildIkeSessionOptions(boolean isCryptoOffloadEnabled)
+            throws Exception {
         SaProposal saProposal =
                 SaProposal.Builder.newIkeSaProposalBuilder()
                         .addEncryptionAlgorithm(
@@ -196,6 +288,8 @@ public final class IkeSessionStateMachineTest {
         IkeSessionOptions sessionOptions =
                 new IkeSessionOptions.Builder(serveAddress, mUdpEncapSocket)
                         .addSaProposal(saProposal)
+                        .setCryptoOffloadEnabled(isCryptoOffloadEnabled)
+                        .setDpdDelaySeconds(DPD_DELAY_SEC)
                         .build();
         return sessionOptions;
     }
@@ -208,6 +302,43 @@ public final class IkeSessionStateMachineTest {
         return false;
     }
 
+    private static boolean isNotifyExist(
+            List<IkePayload> payloadList, @IkeNotifyPayload.NotifyType int notifyType) {
+        for (IkePayload payload : payloadList) {
+            if (payload instanceof IkeNotifyPayload
+                    && ((IkeNotifyPayload) payload).notifyType == notifyType) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Make NAT detection payloads of a dummy IKE_INIT response, whose SPIs are zero. The remote
+    // server reports that packets of IKE library come from localAddress.
+    private List<IkePayload> makeNatDetectionPayloads(InetAddress localAddress, int localPort)
+            throws Exception {
+        List<IkePayload> payloadList = new LinkedList<>();
+        payloadList.add(
+                new IkeNotifyPayload(
+                        IkeNotifyPayload.NOTIFY_TYPE_NAT_DETECTION_SOURCE_IP,
+                        IkeNotifyPayload.generateNatDetectionData(
+                                0L,
+                                0L,
+                                InetAddress.getByName(SERVER_ADDRESS),
+                                IkeSocket.IKE_SERVER_PORT)));
+        payloadList.add(
+                new IkeNotifyPayload(
+                        IkeNotifyPayload.NOTIFY_TYPE_NAT_DETECTION_DESTINATION_IP,
+                        IkeNotifyPayload.generateNatDetectionData(
+                                0L, 0L, localAddress, localPort)));
+        return payloadList;
+    }
+
+    private List<IkePayload> makeNatDetectionPayloadsBehindNat() throws Exception {
+        return makeNatDetectionPayloads(
+                InetAddress.getByName(NAT_ADDRESS), IkeSocket.IKE_SERVER_PORT);
+    }
+
     @Test
     public void testCreateIkeLocalIkeInit() throws Exception {
         if (Looper.myLooper() == null) Looper.myLooper().prepare();
@@ -236,6 +367,11 @@ public final class IkeSessionStateMachineTest {
         assertTrue(isIkePayloadExist(payloadList, IkePayload.PAYLOAD_TYPE_SA));
         assertTrue(isIkePayloadExist(payloadList, IkePayload.PAYLOAD_TYPE_KE));
         assertTrue(isIkePayloadExist(payloadList, IkePayload.PAYLOAD_TYPE_NONCE));
+        assertTrue(
+                isNotifyExist(payloadList, IkeNotifyPayload.NOTIFY_TYPE_NAT_DETECTION_SOURCE_IP));
+        assertTrue(
+                isNotifyExist(
+                        payloadList, IkeNotifyPayload.NOTIFY_TYPE_NAT_DETECTION_DESTINATION_IP));
 
         IkeSocket ikeSocket = mIkeSessionStateMachine.mIkeSocket;
         assertNotNull(ikeSocket);
@@ -246,23 +382,425 @@ public final class IkeSessionStateMachineTest {
                 .decode(dummyReceivedIkePacket.ikeHeader, dummyReceivedIkePacket.ikePacketBytes);
         verify(mMockIkeMessageHelper).getMessageType(any());
 
+        // Encoded IKE_INIT messages are retained for IKE_AUTH.
+        assertNotNull(mIkeSessionStateMachine.mIkeInitRequestBytes);
+        assertSame(
+                dummyReceivedIkePacket.ikePacketBytes,
+                mIkeSessionStateMachine.mIkeInitResponseBytes);
+        assertFalse(mIkeSessionStateMachine.mIsPeerHttpCertLookupSupported);
+        // IKE_INIT response is not authenticated yet.
+        assertNull(
+                IkePeerCapabilityCache.getInstance().get(mIkeSessionOptions.getServerAddress()));
+        assertEquals(
+                -1L,
+                IkeRttEstimator.getInstance()
+                        .getSmoothedRttMillis(mIkeSessionOptions.getServerAddress()));
+
+        assertTrue(
+                mIkeSessionStateMachine.getCurrentState()
+                        instanceof IkeSessionStateMachine.CreateIkeLocalIkeAuth);
+    }
+
+    @Test
+    public void testCreateIkeLocalIkeInitWithHttpCertLookupSupported() throws Exception {
+        if (Looper.myLooper() == null) Looper.myLooper().prepare();
+        // Mock IKE_INIT response carrying HTTP_CERT_LOOKUP_SUPPORTED.
+        ReceivedIkePacket dummyReceivedIkePacket =
+                makeDummyUnencryptedReceivedIkePacket(IkeMessage.MESSAGE_TYPE_IKE_INIT_RESP);
+        IkeMessage dummyIkeInitResp =
+                mMockIkeMessageHelper.decode(
+                        dummyReceivedIkePacket.ikeHeader, dummyReceivedIkePacket.ikePacketBytes);
+        dummyIkeInitResp.ikePayloadList.add(
+                new IkeNotifyPayload(
+                        IkeNotifyPayload.NOTIFY_TYPE_HTTP_CERT_LOOKUP_SUPPORTED, new byte[0]));
+        when(mMockSaRecordHelper.makeFirstIkeSaRecord(any(), any()))
+                .thenReturn(mSpyCurrentIkeSaRecord);
+
+        mIkeSessionStateMachine.sendMessage(IkeSessionStateMachine.CMD_LOCAL_REQUEST_CREATE_IKE);
+        mIkeSessionStateMachine.sendMessage(
+                IkeSessionStateMachine.CMD_RECEIVE_IKE_PACKET, dummyReceivedIkePacket);
+        mLooper.dispatchAll();
+
+        assertTrue(mIkeSessionStateMachine.mIsPeerHttpCertLookupSupported);
+    }
+
+    @Test
+    public void testCreateIkeLocalIkeInitWithInvalidKe() throws Exception {
+        if (Looper.myLooper() == null) Looper.myLooper().prepare();
+        mIkeSessionStateMachine.quit();
+        IkeSessionOptions baseOptions = buildIkeSessionOptions();
+        SaProposal modp2048Proposal =
+                SaProposal.Builder.newIkeSaProposalBuilder()
+                        .addEncryptionAlgorithm(
+                                SaProposal.ENCRYPTION_ALGORITHM_AES_CBC, SaProposal.KEY_LEN_AES_128)
+                        .addIntegrityAlgorithm(SaProposal.INTEGRITY_ALGORITHM_HMAC_SHA1_96)
+                        .addPseudorandomFunction(SaProposal.PSEUDORANDOM_FUNCTION_HMAC_SHA1)
+                        .addDhGroup(SaProposal.DH_GROUP_2048_BIT_MODP)
+                        .build();
+        mIkeSessionOptions =
+                new IkeSessionOptions.Builder(baseOptions.getServerAddress(), mUdpEncapSocket)
+                        .addSaProposal(baseOptions.getSaProposals()[0])
+                        .addSaProposal(modp2048Proposal)
+                        .build();
+        mIkeSessionStateMachine =
+                new IkeSessionStateMachine(
+                        "IkeSessionStateMachine",
+                        mLooper.getLooper(),
+                        mIkeSessionOptions,
+                        mChildSessionOptions);
+        mIkeSessionStateMachine.start();
+
+        // Mock IKE_INIT response requesting 2048-bit MODP group.
+        ReceivedIkePacket dummyReceivedIkePacket =
+                makeDummyUnencryptedReceivedIkePacket(IkeMessage.MESSAGE_TYPE_IKE_INIT_RESP);
+        IkeMessage dummyIkeInitResp =
+                mMockIkeMessageHelper.decode(
+                        dummyReceivedIkePacket.ikeHeader, dummyReceivedIkePacket.ikePacketBytes);
+        dummyIkeInitResp.ikePayloadList.add(
+                new IkeNotifyPayload(
+                        IkeNotifyPayload.NOTIFY_TYPE_INVALID_KE_PAYLOAD,
+                        new byte[] {0, (byte) SaProposal.DH_GROUP_2048_BIT_MODP}));
+
+        mIkeSessionStateMachine.sendMessage(IkeSessionStateMachine.CMD_LOCAL_REQUEST_CREATE_IKE);
+        mIkeSessionStateMachine.sendMessage(
+                IkeSessionStateMachine.CMD_RECEIVE_IKE_PACKET, dummyReceivedIkePacket);
+        mLooper.dispatchAll();
+
+        // IKE_INIT request is resent with the requested DH group, which is not remembered for later
+        // sessions before the remote server is authenticated.
+        verify(mMockIkeMessageHelper, times(2)).encode(mIkeMessageCaptor.capture());
+        IkeMessage retriedRequest = mIkeMessageCaptor.getAllValues().get(1);
+        for (IkePayload payload : retriedRequest.ikePayloadList) {
+            if (payload instanceof IkeKePayload) {
+                assertEquals(
+                        SaProposal.DH_GROUP_2048_BIT_MODP, ((IkeKePayload) payload).dhGroup);
+            }
+        }
+        assertNull(
+                IkePeerCapabilityCache.getInstance().get(mIkeSessionOptions.getServerAddress()));
+        assertTrue(
+                mIkeSessionStateMachine.getCurrentState()
+                        instanceof IkeSessionStateMachine.CreateIkeLocalIkeInit);
+    }
+
+    private void startIkeSessionWithResumptionEnabled() throws Exception {
+        if (Looper.myLooper() == null) Looper.myLooper().prepare();
+        mIkeSessionStateMachine.quit();
+        IkeSessionOptions baseOptions = buildIkeSessionOptions();
+        mIkeSessionOptions =
+                new IkeSessionOptions.Builder(baseOptions.getServerAddress(), mUdpEncapSocket)
+                        .addSaProposal(baseOptions.getSaProposals()[0])
+                        .setSessionResumptionEnabled(true)
+                        .build();
+        mIkeSessionStateMachine =
+                new IkeSessionStateMachine(
+                        "IkeSessionStateMachine",
+                        mLooper.getLooper(),
+                        mIkeSessionOptions,
+                        mChildSessionOptions);
+        mIkeSessionStateMachine.start();
+    }
+
+    private void startIkeSessionWithStoredTicket() throws Exception {
+        startIkeSessionWithResumptionEnabled();
+        IkeSessionTicketStore.getInstance()
+                .put(
+                        mIkeSessionOptions.getServerAddress(),
+                        new IkeSessionTicket(
+                                new byte[] {1, 2, 3, 4}, new byte[0], null, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testCreateIkeLocalIkeAuthStoresTicket() throws Exception {
+        startIkeSessionWithResumptionEnabled();
+        byte[] skD = new byte[] {5, 6, 7, 8};
+        when(mSpyCurrentIkeSaRecord.getSkD()).thenReturn(skD);
+        when(mMockSaRecordHelper.makeFirstIkeSaRecord(any(), any()))
+                .thenReturn(mSpyCurrentIkeSaRecord);
+
+        // Mock IKE_AUTH response carrying a ticket with a lifetime of 60 seconds.
+        byte[] ticketLtOpaqueData = new byte[] {0, 0, 0, 60, 1, 2, 3, 4};
+        List<IkePayload> ikeAuthRespPayloads = new LinkedList<>();
+        ikeAuthRespPayloads.add(
+                new IkeNotifyPayload(
+                        IkeNotifyPayload.NOTIFY_TYPE_TICKET_LT_OPAQUE, ticketLtOpaqueData));
+        ReceivedIkePacket dummyIkeInitRespReceivedPacket =
+                makeDummyUnencryptedReceivedIkePacket(IkeMessage.MESSAGE_TYPE_IKE_INIT_RESP);
+        ReceivedIkePacket dummyIkeAuthRespReceivedPacket =
+                makeDummyEncryptedReceivedIkePacket(
+                        IkeMessage.MESSAGE_TYPE_IKE_AUTH_RESP,
+                        mSpyCurrentIkeSaRecord,
+                        true /*isResponse*/,
+                        IKE_AUTH_REQ_MESSAGE_ID,
+                        ikeAuthRespPayloads);
+
+        mIkeSessionStateMachine.sendMessage(IkeSessionStateMachine.CMD_LOCAL_REQUEST_CREATE_IKE);
+        mIkeSessionStateMachine.sendMessage(
+                IkeSessionStateMachine.CMD_RECEIVE_IKE_PACKET, dummyIkeInitRespReceivedPacket);
+        mIkeSessionStateMachine.sendMessage(
+                IkeSessionStateMachine.CMD_RECEIVE_IKE_PACKET, dummyIkeAuthRespReceivedPacket);
+        mLooper.dispatchAll();
+
+        assertTrue(
+                mIkeSessionStateMachine.getCurrentState() instanceof IkeSessionStateMachine.Idle);
+        IkeSessionTicket ticket =
+                IkeSessionTicketStore.getInstance().take(mIkeSessionOptions.getServerAddress());
+        assertNotNull(ticket);
+        assertArrayEquals(new byte[] {1, 2, 3, 4}, ticket.ticket);
+        assertArrayEquals(skD, ticket.skD);
+    }
+
+    @Test
+    public void testCreateIkeLocalIkeAuthIgnoresMalformedTicket() throws Exception {
+        startIkeSessionWithResumptionEnabled();
+
+        // Mock IKE_AUTH response carrying a TICKET_LT_OPAQUE notification without a ticket.
+        List<IkePayload> ikeAuthRespPayloads = new LinkedList<>();
+        ikeAuthRespPayloads.add(
+                new IkeNotifyPayload(
+                        IkeNotifyPayload.NOTIFY_TYPE_TICKET_LT_OPAQUE, new byte[] {0, 0, 0, 60}));
+        when(mMockSaRecordHelper.makeFirstIkeSaRecord(any(), any()))
+                .thenReturn(mSpyCurrentIkeSaRecord);
+        ReceivedIkePacket dummyIkeInitRespReceivedPacket =
+                makeDummyUnencryptedReceivedIkePacket(IkeMessage.MESSAGE_TYPE_IKE_INIT_RESP);
+        ReceivedIkePacket dummyIkeAuthRespReceivedPacket =
+                makeDummyEncryptedReceivedIkePacket(
+                        IkeMessage.MESSAGE_TYPE_IKE_AUTH_RESP,
+                        mSpyCurrentIkeSaRecord,
+                        true /*isResponse*/,
+                        IKE_AUTH_REQ_MESSAGE_ID,
+                        ikeAuthRespPayloads);
+
+        mIkeSessionStateMachine.sendMessage(IkeSessionStateMachine.CMD_LOCAL_REQUEST_CREATE_IKE);
+        mIkeSessionStateMachine.sendMessage(
+                IkeSessionStateMachine.CMD_RECEIVE_IKE_PACKET, dummyIkeInitRespReceivedPacket);
+        mIkeSessionStateMachine.sendMessage(
+                IkeSessionStateMachine.CMD_RECEIVE_IKE_PACKET, dummyIkeAuthRespReceivedPacket);
+        mLooper.dispatchAll();
+
+        // The IKE session is established without a ticket.
+        assertTrue(
+                mIkeSessionStateMachine.getCurrentState() instanceof IkeSessionStateMachine.Idle);
+        assertEquals(0, IkeSessionTicketStore.getInstance().size());
+    }
+
+    @Test
+    public void testCreateIkeLocalIkeResumeWithRejectedTicket() throws Exception {
+        startIkeSessionWithStoredTicket();
+
+        // Mock IKE_SESSION_RESUME response rejecting the ticket.
+        ReceivedIkePacket dummyReceivedIkePacket =
+                makeDummyUnencryptedReceivedIkePacket(
+                        IkeMessage.MESSAGE_TYPE_IKE_SESSION_RESUME_RESP);
+        IkeMessage dummyIkeResumeResp =
+                mMockIkeMessageHelper.decode(
+                        dummyReceivedIkePacket.ikeHeader, dummyReceivedIkePacket.ikePacketBytes);
+        dummyIkeResumeResp.ikePayloadList.add(
+                new IkeNotifyPayload(IkeNotifyPayload.NOTIFY_TYPE_TICKET_NACK, new byte[0]));
+
+        mIkeSessionStateMachine.sendMessage(IkeSessionStateMachine.CMD_LOCAL_REQUEST_CREATE_IKE);
+        mIkeSessionStateMachine.sendMessage(
+                IkeSessionStateMachine.CMD_RECEIVE_IKE_PACKET, dummyReceivedIkePacket);
+        mLooper.dispatchAll();
+
+        // Ticket is used once, and IKE_INIT request is sent after it is rejected.
+        verify(mMockIkeMessageHelper, times(2)).encode(mIkeMessageCaptor.capture());
+        List<IkeMessage> requests = mIkeMessageCaptor.getAllValues();
+        assertEquals(
+                IkeHeader.EXCHANGE_TYPE_IKE_SESSION_RESUME, requests.get(0).ikeHeader.exchangeType);
+        assertEquals(IkeHeader.EXCHANGE_TYPE_IKE_SA_INIT, requests.get(1).ikeHeader.exchangeType);
+        assertEquals(0, IkeSessionTicketStore.getInstance().size());
+        assertNull(mIkeSessionStateMachine.mResumptionTicket);
+        assertTrue(
+                mIkeSessionStateMachine.getCurrentState()
+                        instanceof IkeSessionStateMachine.CreateIkeLocalIkeInit);
+    }
+
+    @Test
+    public void testCreateIkeLocalIkeResumeWithUnderivableKeys() throws Exception {
+        startIkeSessionWithStoredTicket();
+        when(mMockSaRecordHelper.makeResumedIkeSaRecord(any(), any(), any()))
+                .thenThrow(new NoValidProposalChosenException("Unsupported PRF"));
+
+        // Mock IKE_SESSION_RESUME response accepting the ticket.
+        ReceivedIkePacket dummyReceivedIkePacket =
+                makeDummyUnencryptedReceivedIkePacket(
+                        IkeMessage.MESSAGE_TYPE_IKE_SESSION_RESUME_RESP);
+        IkeMessage dummyIkeResumeResp =
+                mMockIkeMessageHelper.decode(
+                        dummyReceivedIkePacket.ikeHeader, dummyReceivedIkePacket.ikePacketBytes);
+        dummyIkeResumeResp.ikePayloadList.add(new IkeNoncePayload());
+
+        mIkeSessionStateMachine.sendMessage(IkeSessionStateMachine.CMD_LOCAL_REQUEST_CREATE_IKE);
+        mIkeSessionStateMachine.sendMessage(
+                IkeSessionStateMachine.CMD_RECEIVE_IKE_PACKET, dummyReceivedIkePacket);
+        mLooper.dispatchAll();
+
+        // IKE_INIT request is sent since the resumed IKE SA cannot be derived.
+        verify(mMockIkeMessageHelper, times(2)).encode(mIkeMessageCaptor.capture());
+        assertEquals(
+                IkeHeader.EXCHANGE_TYPE_IKE_SA_INIT,
+                mIkeMessageCaptor.getAllValues().get(1).ikeHeader.exchangeType);
+        assertNull(mIkeSessionStateMachine.mCurrentIkeSaRecord);
+        assertNull(mIkeSessionStateMachine.mResumptionTicket);
+        assertTrue(
+                mIkeSessionStateMachine.getCurrentState()
+                        instanceof IkeSessionStateMachine.CreateIkeLocalIkeInit);
+    }
+
+    private void receiveIkeInitRespWithCryptoOffload() throws Exception {
+        if (Looper.myLooper() == null) Looper.myLooper().prepare();
+        mIkeSessionStateMachine.quit();
+        mIkeSessionOptions = buildIkeSessionOptions(true /*isCryptoOffloadEnabled*/);
+        mIkeSessionStateMachine =
+                new IkeSessionStateMachine(
+                        "IkeSessionStateMachine",
+                        mLooper.getLooper(),
+                        mIkeSessionOptions,
+                        mChildSessionOptions);
+        mIkeSessionStateMachine.start();
+
+        // Mock IKE_INIT response.
+        ReceivedIkePacket dummyReceivedIkePacket =
+                makeDummyUnencryptedReceivedIkePacket(IkeMessage.MESSAGE_TYPE_IKE_INIT_RESP);
+
+        mIkeSessionStateMachine.sendMessage(IkeSessionStateMachine.CMD_LOCAL_REQUEST_CREATE_IKE);
+        mIkeSessionStateMachine.sendMessage(
+                IkeSessionStateMachine.CMD_RECEIVE_IKE_PACKET, dummyReceivedIkePacket);
+        mLooper.dispatchAll();
+    }
+
+    @Test
+    public void testCreateIkeLocalIkeInitWithCryptoOffload() throws Exception {
+        when(mMockSaRecordHelper.makeFirstIkeSaRecord(any(), any()))
+                .thenReturn(mSpyCurrentIkeSaRecord);
+        receiveIkeInitRespWithCryptoOffload();
+
+        // IKE SA is derived on the crypto executor, not on the IKE working thread.
+        assertTrue(
+                mIkeSessionStateMachine.getCurrentState()
+                        instanceof IkeSessionStateMachine.CreateIkeLocalIkeInitAwaitingDh);
+        verify(mMockSaRecordHelper, times(0)).makeFirstIkeSaRecord(any(), any());
+        assertEquals(1, mPendingCryptoOperations.size());
+
+        // Local request received while awaiting is deferred.
+        mIkeSessionStateMachine.sendMessage(IkeSessionStateMachine.CMD_LOCAL_REQUEST_REKEY_IKE);
+        mLooper.dispatchAll();
+        assertTrue(
+                mIkeSessionStateMachine.getCurrentState()
+                        instanceof IkeSessionStateMachine.CreateIkeLocalIkeInitAwaitingDh);
+
+        mPendingCryptoOperations.remove(0).run();
+        mLooper.dispatchAll();
+
+        verify(mMockSaRecordHelper).makeFirstIkeSaRecord(any(), any());
+        assertEquals(mSpyCurrentIkeSaRecord, mIkeSessionStateMachine.mCurrentIkeSaRecord);
+        assertTrue(
+                mIkeSessionStateMachine.getCurrentState()
+                        instanceof IkeSessionStateMachine.CreateIkeLocalIkeAuth);
+    }
+
+    @Test
+    public void testCreateIkeLocalIkeInitWithCryptoOffloadFailure() throws Exception {
+        when(mMockSaRecordHelper.makeFirstIkeSaRecord(any(), any()))
+                .thenAnswer(
+                        (invocation) -> {
+                            throw new GeneralSecurityException("Failed to derive keys.");
+                        });
+        receiveIkeInitRespWithCryptoOffload();
+
+        mPendingCryptoOperations.remove(0).run();
+        mLooper.dispatchAll();
+
+        assertTrue(
+                mIkeSessionStateMachine.getCurrentState() instanceof IkeSessionStateMachine.Closed);
+        assertNull(mIkeSessionStateMachine.mCurrentIkeSaRecord);
+        assertNull(mIkeSessionStateMachine.mIkeSocket);
+    }
+
+    @Test
+    public void testCreateIkeLocalIkeInitWithCryptoOffloadNoIkeSaRecord() throws Exception {
+        when(mMockSaRecordHelper.makeFirstIkeSaRecord(any(), any())).thenReturn(null);
+        receiveIkeInitRespWithCryptoOffload();
+
+        mPendingCryptoOperations.remove(0).run();
+        mLooper.dispatchAll();
+
+        assertTrue(
+                mIkeSessionStateMachine.getCurrentState() instanceof IkeSessionStateMachine.Closed);
+        assertNull(mIkeSessionStateMachine.mCurrentIkeSaRecord);
+    }
+
+    @Test
+    public void testCreateIkeLocalIkeInitWithCryptoOffloadRuntimeException() throws Exception {
+        when(mMockSaRecordHelper.makeFirstIkeSaRecord(any(), any()))
+                .thenThrow(new IllegalArgumentException("Failed to derive keys."));
+        receiveIkeInitRespWithCryptoOffload();
+
+        mPendingCryptoOperations.remove(0).run();
+        mLooper.dispatchAll();
+
+        // Only this IKE session is closed.
+        assertTrue(
+                mIkeSessionStateMachine.getCurrentState() instanceof IkeSessionStateMachine.Closed);
+        assertNull(mIkeSessionStateMachine.mIkeSocket);
+    }
+
+    @Test
+    public void testCreateIkeLocalIkeInitWithCryptoExecutorSaturated() throws Exception {
+        when(mMockSaRecordHelper.makeFirstIkeSaRecord(any(), any()))
+                .thenReturn(mSpyCurrentIkeSaRecord);
+        IkeSessionStateMachine.setCryptoExecutor(
+                (operation) -> {
+                    throw new RejectedExecutionException();
+                });
+        receiveIkeInitRespWithCryptoOffload();
+
+        // The operation is not run on the IKE working thread.
+        verify(mMockSaRecordHelper, times(0)).makeFirstIkeSaRecord(any(), any());
+        assertTrue(
+                mIkeSessionStateMachine.getCurrentState()
+                        instanceof IkeSessionStateMachine.CreateIkeLocalIkeInitAwaitingDh);
+
+        IkeSessionStateMachine.setCryptoExecutor(mPendingCryptoOperations::add);
+        mLooper.moveTimeForward(IkeSessionStateMachine.CRYPTO_RETRY_DELAY_MS);
+        mLooper.dispatchAll();
+        assertEquals(1, mPendingCryptoOperations.size());
+
+        mPendingCryptoOperations.remove(0).run();
+        mLooper.dispatchAll();
         assertTrue(
                 mIkeSessionStateMachine.getCurrentState()
                         instanceof IkeSessionStateMachine.CreateIkeLocalIkeAuth);
     }
 
     private void mockIkeSetup() throws Exception {
+        mockIkeSetup(new LinkedList<>());
+    }
+
+    private void mockIkeSetup(List<IkePayload> ikeInitRespPayloads) throws Exception {
+        mockIkeSetup(ikeInitRespPayloads, new LinkedList<>());
+    }
+
+    private void mockIkeSetup(
+            List<IkePayload> ikeInitRespPayloads, List<IkePayload> ikeAuthRespPayloads)
+            throws Exception {
         if (Looper.myLooper() == null) Looper.myLooper().prepare();
         // Mock IKE_INIT response
         ReceivedIkePacket dummyIkeInitRespReceivedPacket =
-                makeDummyUnencryptedReceivedIkePacket(IkeMessage.MESSAGE_TYPE_IKE_INIT_RESP);
+                makeDummyUnencryptedReceivedIkePacket(
+                        IkeMessage.MESSAGE_TYPE_IKE_INIT_RESP, ikeInitRespPayloads);
         when(mMockSaRecordHelper.makeFirstIkeSaRecord(any(), any()))
                 .thenReturn(mSpyCurrentIkeSaRecord);
 
         // Mock IKE_AUTH response
         ReceivedIkePacket dummyIkeAuthRespReceivedPacket =
                 makeDummyEncryptedReceivedIkePacket(
-                        IkeMessage.MESSAGE_TYPE_IKE_AUTH_RESP, mSpyCurrentIkeSaRecord);
+                        IkeMessage.MESSAGE_TYPE_IKE_AUTH_RESP,
+                        mSpyCurrentIkeSaRecord,
+                        true /*isResponse*/,
+                        IKE_AUTH_REQ_MESSAGE_ID,
+                        ikeAuthRespPayloads);
 
         mIkeSessionStateMachine.sendMessage(IkeSessionStateMachine.CMD_LOCAL_REQUEST_CREATE_IKE);
         mIkeSessionStateMachine.sendMessage(
@@ -281,6 +819,242 @@ public final class IkeSessionStateMachineTest {
         verify(mMockChildSessionStateMachine).handleFirstChildExchange(any(), any(), any());
         assertTrue(
                 mIkeSessionStateMachine.getCurrentState() instanceof IkeSessionStateMachine.Idle);
+        // No NAT is detected, so no NAT-keepalive packets are sent.
+        assertFalse(mIkeSessionStateMachine.mIsNatKeepaliveStarted);
+        assertNotNull(
+                IkePeerCapabilityCache.getInstance().get(mIkeSessionOptions.getServerAddress()));
+        // Round-trip time of IKE_INIT exchange is measured once the remote server is
+        // authenticated.
+        assertTrue(
+                IkeRttEstimator.getInstance()
+                                .getSmoothedRttMillis(mIkeSessionOptions.getServerAddress())
+                        >= 0L);
+    }
+
+    @Test
+    public void testCreateIkeLocalIkeAuthWithPeerWindowSize() throws Exception {
+        List<IkePayload> ikeAuthRespPayloads = new LinkedList<>();
+        ikeAuthRespPayloads.add(
+                new IkeNotifyPayload(
+                        IkeNotifyPayload.NOTIFY_TYPE_SET_WINDOW_SIZE, new byte[] {0, 0, 0, 64}));
+        mockIkeSetup(new LinkedList<>(), ikeAuthRespPayloads);
+
+        mLooper.dispatchAll();
+        assertTrue(
+                mIkeSessionStateMachine.getCurrentState() instanceof IkeSessionStateMachine.Idle);
+        // Outstanding requests are capped regardless of the window size of the remote.
+        assertEquals(
+                IkeSessionStateMachine.MAX_PEER_WINDOW_SIZE,
+                mSpyCurrentIkeSaRecord.getPeerWindowSize());
+        assertEquals(NEXT_LOCAL_REQ_MESSAGE_ID, mSpyCurrentIkeSaRecord.getLocalRequestMessageId());
+    }
+
+    @Test
+    public void testCreateIkeLocalIkeInitNoNat() throws Exception {
+        if (Looper.myLooper() == null) Looper.myLooper().prepare();
+        List<IkePayload> natDetectionPayloads = new LinkedList<>();
+        ReceivedIkePacket dummyReceivedIkePacket =
+                makeDummyUnencryptedReceivedIkePacket(
+                        IkeMessage.MESSAGE_TYPE_IKE_INIT_RESP, natDetectionPayloads);
+        when(mMockSaRecordHelper.makeFirstIkeSaRecord(any(), any()))
+                .thenReturn(mSpyCurrentIkeSaRecord);
+
+        mIkeSessionStateMachine.sendMessage(IkeSessionStateMachine.CMD_LOCAL_REQUEST_CREATE_IKE);
+        mLooper.dispatchAll();
+
+        // The remote server sees the local address and port of the IKE_INIT request.
+        InetSocketAddress localSocketAddress = mIkeSessionStateMachine.mLocalSocketAddress;
+        assertNotNull(localSocketAddress);
+        assertEquals(mUdpEncapSocket.getPort(), localSocketAddress.getPort());
+        natDetectionPayloads.addAll(
+                makeNatDetectionPayloads(
+                        localSocketAddress.getAddress(), localSocketAddress.getPort()));
+        mIkeSessionStateMachine.sendMessage(
+                IkeSessionStateMachine.CMD_RECEIVE_IKE_PACKET, dummyReceivedIkePacket);
+        mLooper.dispatchAll();
+
+        assertFalse(mIkeSessionStateMachine.mIsNatDetected);
+    }
+
+    @Test
+    public void testCreateIkeLocalIkeInitBehindNat() throws Exception {
+        if (Looper.myLooper() == null) Looper.myLooper().prepare();
+        ReceivedIkePacket dummyReceivedIkePacket =
+                makeDummyUnencryptedReceivedIkePacket(
+                        IkeMessage.MESSAGE_TYPE_IKE_INIT_RESP,
+                        makeNatDetectionPayloadsBehindNat());
+        when(mMockSaRecordHelper.makeFirstIkeSaRecord(any(), any()))
+                .thenReturn(mSpyCurrentIkeSaRecord);
+
+        mIkeSessionStateMachine.sendMessage(IkeSessionStateMachine.CMD_LOCAL_REQUEST_CREATE_IKE);
+        mIkeSessionStateMachine.sendMessage(
+                IkeSessionStateMachine.CMD_RECEIVE_IKE_PACKET, dummyReceivedIkePacket);
+        mLooper.dispatchAll();
+
+        assertTrue(mIkeSessionStateMachine.mIsNatDetected);
+    }
+
+    @Test
+    public void testCreateIkeLocalIkeAuthBehindNat() throws Exception {
+        mockIkeSetup(makeNatDetectionPayloadsBehindNat());
+
+        mLooper.dispatchAll();
+        assertTrue(mIkeSessionStateMachine.mIsNatKeepaliveStarted);
+        assertEquals(
+                1,
+                mIkeSessionStateMachine.mIkeSocket.getNatKeepaliveSessionCount(
+                        mIkeSessionOptions.getServerAddress()));
+    }
+
+    private UdpEncapsulationSocket openUdpEncapSocket() throws Exception {
+        Context context = InstrumentationRegistry.getContext();
+        IpSecManager ipSecManager = (IpSecManager) context.getSystemService(Context.IPSEC_SERVICE);
+        return ipSecManager.openUdpEncapsulationSocket();
+    }
+
+    @Test
+    public void testUpdateSaAddressesWithMobike() throws Exception {
+        mockIkeSetup();
+        mLooper.dispatchAll();
+        mIkeSessionStateMachine.mIsMobikeNegotiated = true;
+        IkeSocket oldIkeSocket = mIkeSessionStateMachine.mIkeSocket;
+
+        try (UdpEncapsulationSocket newUdpEncapSocket = openUdpEncapSocket()) {
+            mIkeSessionStateMachine.updateSaAddresses(newUdpEncapSocket);
+            mLooper.dispatchAll();
+            assertTrue(
+                    mIkeSessionStateMachine.getCurrentState()
+                            instanceof IkeSessionStateMachine.UpdateSaAddressesLocal);
+
+            // Mock UPDATE_SA_ADDRESSES response echoing COOKIE2.
+            ReceivedIkePacket dummyReceivedIkePacket =
+                    makeDummyEncryptedReceivedIkePacket(
+                            IkeMessage.MESSAGE_TYPE_UPDATE_SA_ADDRESSES_RESP,
+                            mSpyCurrentIkeSaRecord,
+                            true /*isResponse*/,
+                            NEXT_LOCAL_REQ_MESSAGE_ID);
+            IkeMessage dummyUpdateResp =
+                    mMockIkeMessageHelper.decode(
+                            mIkeSessionOptions,
+                            mSpyCurrentIkeSaRecord,
+                            dummyReceivedIkePacket.ikeHeader,
+                            dummyReceivedIkePacket.ikePacketBytes);
+            dummyUpdateResp.ikePayloadList.add(
+                    new IkeNotifyPayload(
+                            IkeNotifyPayload.NOTIFY_TYPE_COOKIE2,
+                            mIkeSessionStateMachine.mUpdateSaAddressesCookie2));
+            mIkeSessionStateMachine.sendMessage(
+                    IkeSessionStateMachine.CMD_RECEIVE_IKE_PACKET, dummyReceivedIkePacket);
+            mLooper.dispatchAll();
+
+            assertTrue(
+                    mIkeSessionStateMachine.getCurrentState()
+                            instanceof IkeSessionStateMachine.Idle);
+            assertNotEquals(oldIkeSocket, mIkeSessionStateMachine.mIkeSocket);
+            assertNull(mIkeSessionStateMachine.mUpdateSaAddressesCookie2);
+        }
+    }
+
+    @Test
+    public void testUpdateSaAddressesIgnoresResponseWithoutCookie2() throws Exception {
+        mockIkeSetup();
+        mLooper.dispatchAll();
+        mIkeSessionStateMachine.mIsMobikeNegotiated = true;
+
+        try (UdpEncapsulationSocket newUdpEncapSocket = openUdpEncapSocket()) {
+            mIkeSessionStateMachine.updateSaAddresses(newUdpEncapSocket);
+            mIkeSessionStateMachine.sendMessage(
+                    IkeSessionStateMachine.CMD_RECEIVE_IKE_PACKET,
+                    makeDummyEncryptedReceivedIkePacket(
+                            IkeMessage.MESSAGE_TYPE_UPDATE_SA_ADDRESSES_RESP,
+                            mSpyCurrentIkeSaRecord,
+                            true /*isResponse*/,
+                            NEXT_LOCAL_REQ_MESSAGE_ID));
+            mLooper.dispatchAll();
+
+            assertTrue(
+                    mIkeSessionStateMachine.getCurrentState()
+                            instanceof IkeSessionStateMachine.UpdateSaAddressesLocal);
+        }
+    }
+
+    @Test
+    public void testUpdateSaAddressesStaysOnOldSocketIfNewPathUnreachable() throws Exception {
+        mockIkeSetup();
+        mLooper.dispatchAll();
+        mIkeSessionStateMachine.mIsMobikeNegotiated = true;
+        IkeSocket oldIkeSocket = mIkeSessionStateMachine.mIkeSocket;
+
+        try (UdpEncapsulationSocket newUdpEncapSocket = openUdpEncapSocket()) {
+            mIkeSessionStateMachine.updateSaAddresses(newUdpEncapSocket);
+            mLooper.dispatchAll();
+
+            // UPDATE_SA_ADDRESSES request is never answered.
+            mLooper.moveTimeForward(IkeSessionStateMachine.RETRANSMIT_GIVE_UP_MS);
+            mLooper.dispatchAll();
+
+            assertTrue(
+                    mIkeSessionStateMachine.getCurrentState()
+                            instanceof IkeSessionStateMachine.Idle);
+            assertSame(oldIkeSocket, mIkeSessionStateMachine.mIkeSocket);
+            assertNotNull(mIkeSessionStateMachine.mCurrentIkeSaRecord);
+            // The next request reuses the Message ID since the remote may not have received it.
+            assertEquals(
+                    NEXT_LOCAL_REQ_MESSAGE_ID, mSpyCurrentIkeSaRecord.getLocalRequestMessageId());
+        }
+    }
+
+    @Test
+    public void testUpdateSaAddressesDeferredDuringDpd() throws Exception {
+        setUpIdleIkeSessionWithLivenessMonitor();
+        mIkeSessionStateMachine.mIsMobikeNegotiated = true;
+        moveTimeForward(DPD_DELAY_MS);
+        assertTrue(
+                mIkeSessionStateMachine.getCurrentState()
+                        instanceof IkeSessionStateMachine.DpdIkeLocalInfo);
+
+        try (UdpEncapsulationSocket newUdpEncapSocket = openUdpEncapSocket()) {
+            mIkeSessionStateMachine.updateSaAddresses(newUdpEncapSocket);
+            mLooper.dispatchAll();
+            assertTrue(
+                    mIkeSessionStateMachine.getCurrentState()
+                            instanceof IkeSessionStateMachine.DpdIkeLocalInfo);
+
+            mIkeSessionStateMachine.sendMessage(
+                    IkeSessionStateMachine.CMD_RECEIVE_IKE_PACKET,
+                    makeDummyEncryptedReceivedIkePacket(
+                            IkeMessage.MESSAGE_TYPE_DPD_RESP,
+                            mSpyCurrentIkeSaRecord,
+                            true /*isResponse*/,
+                            NEXT_LOCAL_REQ_MESSAGE_ID));
+            mLooper.dispatchAll();
+
+            // The update starts once the probe is answered.
+            assertTrue(
+                    mIkeSessionStateMachine.getCurrentState()
+                            instanceof IkeSessionStateMachine.UpdateSaAddressesLocal);
+        }
+    }
+
+    @Test
+    public void testUpdateSaAddressesWithoutMobike() throws Exception {
+        mockIkeSetup();
+        mLooper.dispatchAll();
+        IkeSocket oldIkeSocket = mIkeSessionStateMachine.mIkeSocket;
+
+        try (UdpEncapsulationSocket newUdpEncapSocket = openUdpEncapSocket()) {
+            try {
+                mIkeSessionStateMachine.updateSaAddresses(newUdpEncapSocket);
+                fail("Expected to fail since MOBIKE is not negotiated.");
+            } catch (IllegalStateException expected) {
+            }
+            mLooper.dispatchAll();
+
+            assertTrue(
+                    mIkeSessionStateMachine.getCurrentState()
+                            instanceof IkeSessionStateMachine.Idle);
+            assertSame(oldIkeSocket, mIkeSessionStateMachine.mIkeSocket);
+        }
     }
 
     @Test
@@ -288,13 +1062,19 @@ public final class IkeSessionStateMachineTest {
         // Mock Rekey IKE response
         ReceivedIkePacket dummyRekeyIkeRespReceivedPacket =
                 makeDummyEncryptedReceivedIkePacket(
-                        IkeMessage.MESSAGE_TYPE_REKEY_IKE_RESP, mSpyCurrentIkeSaRecord);
+                        IkeMessage.MESSAGE_TYPE_REKEY_IKE_RESP,
+                        mSpyCurrentIkeSaRecord,
+                        true /*isResponse*/,
+                        NEXT_LOCAL_REQ_MESSAGE_ID);
         when(mMockSaRecordHelper.makeNewIkeSaRecord(eq(mSpyCurrentIkeSaRecord), any(), any()))
                 .thenReturn(mSpyLocalInitIkeSaRecord);
         // Mock Delete old IKE response;
         ReceivedIkePacket dummyDeleteIkeRespReceivedPacket =
                 makeDummyEncryptedReceivedIkePacket(
-                        IkeMessage.MESSAGE_TYPE_DELETE_IKE_RESP, mSpyCurrentIkeSaRecord);
+                        IkeMessage.MESSAGE_TYPE_DELETE_IKE_RESP,
+                        mSpyCurrentIkeSaRecord,
+                        true /*isResponse*/,
+                        NEXT_LOCAL_REQ_MESSAGE_ID + 1);
 
         mockIkeSetup();
 
@@ -314,19 +1094,418 @@ public final class IkeSessionStateMachineTest {
         assertEquals(mIkeSessionStateMachine.mCurrentIkeSaRecord, mSpyLocalInitIkeSaRecord);
     }
 
+    @Test
+    public void testRekeyIkeLocalWhenSoftLifetimeExpires() throws Exception {
+        IkeRekeyScheduler rekeyScheduler =
+                new IkeRekeyScheduler(
+                        1 /*maxConcurrentRekeys*/,
+                        1 /*maxConcurrentRekeysPerPeer*/,
+                        () -> 0L,
+                        new Random());
+        IkeSessionStateMachine.setRekeyScheduler(rekeyScheduler);
+        mockIkeSetup();
+        mLooper.dispatchAll();
+
+        mLooper.moveTimeForward(IKE_SOFT_LIFETIME_MS_MAX);
+        mLooper.dispatchAll();
+        assertEquals(1, rekeyScheduler.getActiveRekeyCount());
+        assertTrue(
+                mIkeSessionStateMachine.getCurrentState()
+                        instanceof IkeSessionStateMachine.RekeyIkeLocalCreate);
+
+        mIkeSessionStateMachine.quit();
+        mLooper.dispatchAll();
+        assertEquals(0, rekeyScheduler.getActiveRekeyCount());
+    }
+
+    @Test
+    public void testCloseWhenIkeHardLifetimeExpires() throws Exception {
+        IkeRekeyScheduler rekeyScheduler =
+                new IkeRekeyScheduler(
+                        0 /*maxConcurrentRekeys*/,
+                        0 /*maxConcurrentRekeysPerPeer*/,
+                        () -> 0L,
+                        new Random());
+        IkeSessionStateMachine.setRekeyScheduler(rekeyScheduler);
+        mockIkeSetup();
+        mLooper.dispatchAll();
+
+        // Rekey permit is never granted.
+        mLooper.moveTimeForward(IKE_SOFT_LIFETIME_MS_MAX);
+        mLooper.dispatchAll();
+        assertEquals(1, rekeyScheduler.getPendingRekeyCount());
+        assertTrue(
+                mIkeSessionStateMachine.getCurrentState() instanceof IkeSessionStateMachine.Idle);
+
+        mLooper.moveTimeForward(
+                IkeRekeyScheduler.IKE_HARD_LIFETIME_MS_DEFAULT - IKE_SOFT_LIFETIME_MS_MAX);
+        mLooper.dispatchAll();
+        assertTrue(
+                mIkeSessionStateMachine.getCurrentState() instanceof IkeSessionStateMachine.Closed);
+        assertEquals(0, rekeyScheduler.getPendingRekeyCount());
+    }
+
+    private void setUpIdleIkeSessionWithLivenessMonitor() throws Exception {
+        mockIkeSetup();
+        mLooper.dispatchAll();
+        mIkeSessionStateMachine.mLivenessMonitor = new IkeLivenessMonitor(DPD_DELAY_MS, () -> mNow);
+    }
+
+    private void moveTimeForward(long timeMs) {
+        mNow += timeMs;
+        mLooper.moveTimeForward(timeMs);
+        mLooper.dispatchAll();
+    }
+
+    @Test
+    public void testDpdProbeWhenIdle() throws Exception {
+        setUpIdleIkeSessionWithLivenessMonitor();
+
+        moveTimeForward(DPD_DELAY_MS);
+        assertTrue(
+                mIkeSessionStateMachine.getCurrentState()
+                        instanceof IkeSessionStateMachine.DpdIkeLocalInfo);
+
+        ReceivedIkePacket dummyDpdRespReceivedPacket =
+                makeDummyEncryptedReceivedIkePacket(
+                        IkeMessage.MESSAGE_TYPE_DPD_RESP,
+                        mSpyCurrentIkeSaRecord,
+                        true /*isResponse*/,
+                        NEXT_LOCAL_REQ_MESSAGE_ID);
+        IkeRttEstimator.getInstance().clear();
+        mIkeSessionStateMachine.sendMessage(
+                IkeSessionStateMachine.CMD_RECEIVE_IKE_PACKET, dummyDpdRespReceivedPacket);
+        mLooper.dispatchAll();
+        assertTrue(
+                mIkeSessionStateMachine.getCurrentState() instanceof IkeSessionStateMachine.Idle);
+        // IKE_INIT, IKE_AUTH and the probe used Message ID 0, 1 and 2.
+        assertEquals(3, mSpyCurrentIkeSaRecord.getLocalRequestMessageId());
+        // Encrypted responses are not authenticated yet, so they are not measured.
+        assertEquals(
+                -1L,
+                IkeRttEstimator.getInstance()
+                        .getSmoothedRttMillis(mIkeSessionOptions.getServerAddress()));
+    }
+
+    @Test
+    public void testDpdSkippedWithInboundTraffic() throws Exception {
+        setUpIdleIkeSessionWithLivenessMonitor();
+
+        moveTimeForward(DPD_DELAY_MS / 2);
+        mIkeSessionStateMachine.mLivenessMonitor.onInboundActivity();
+        moveTimeForward(DPD_DELAY_MS / 2);
+        assertTrue(
+                mIkeSessionStateMachine.getCurrentState() instanceof IkeSessionStateMachine.Idle);
+
+        moveTimeForward(DPD_DELAY_MS / 2);
+        assertTrue(
+                mIkeSessionStateMachine.getCurrentState()
+                        instanceof IkeSessionStateMachine.DpdIkeLocalInfo);
+    }
+
+    @Test
+    public void testDpdNotPostponedByUnauthenticatedPacket() throws Exception {
+        setUpIdleIkeSessionWithLivenessMonitor();
+
+        moveTimeForward(DPD_DELAY_MS / 2);
+        ReceivedIkePacket spoofedReceivedPacket =
+                makeDummyEncryptedReceivedIkePacket(
+                        IkeMessage.MESSAGE_TYPE_DPD_RESP,
+                        mSpyCurrentIkeSaRecord,
+                        true /*isResponse*/,
+                        NEXT_LOCAL_REQ_MESSAGE_ID);
+        when(mMockIkeMessageHelper.decode(
+                        mIkeSessionOptions,
+                        mSpyCurrentIkeSaRecord,
+                        spoofedReceivedPacket.ikeHeader,
+                        spoofedReceivedPacket.ikePacketBytes))
+                .thenThrow(new GeneralSecurityException("Invalid checksum"));
+        mIkeSessionStateMachine.sendMessage(
+                IkeSessionStateMachine.CMD_RECEIVE_IKE_PACKET, spoofedReceivedPacket);
+        moveTimeForward(DPD_DELAY_MS / 2);
+
+        assertTrue(
+                mIkeSessionStateMachine.getCurrentState()
+                        instanceof IkeSessionStateMachine.DpdIkeLocalInfo);
+    }
+
+    @Test
+    public void testReturnToIdleAfterReceiving() throws Exception {
+        setUpIdleIkeSessionWithLivenessMonitor();
+
+        // A response without an outstanding request is ignored.
+        mIkeSessionStateMachine.sendMessage(
+                IkeSessionStateMachine.CMD_RECEIVE_IKE_PACKET,
+                makeDummyEncryptedReceivedIkePacket(
+                        IkeMessage.MESSAGE_TYPE_DPD_RESP,
+                        mSpyCurrentIkeSaRecord,
+                        true /*isResponse*/,
+                        NEXT_LOCAL_REQ_MESSAGE_ID));
+        mLooper.dispatchAll();
+        assertTrue(
+                mIkeSessionStateMachine.getCurrentState() instanceof IkeSessionStateMachine.Idle);
+
+        // Dead peer detection is still armed.
+        moveTimeForward(DPD_DELAY_MS);
+        assertTrue(
+                mIkeSessionStateMachine.getCurrentState()
+                        instanceof IkeSessionStateMachine.DpdIkeLocalInfo);
+    }
+
+    @Test
+    public void testDropResponseToAnsweredRequest() throws Exception {
+        setUpIdleIkeSessionWithLivenessMonitor();
+        moveTimeForward(DPD_DELAY_MS);
+
+        // A retransmitted IKE_AUTH response does not answer the probe.
+        ReceivedIkePacket duplicateReceivedPacket =
+                makeDummyEncryptedReceivedIkePacket(
+                        IkeMessage.MESSAGE_TYPE_DPD_RESP,
+                        mSpyCurrentIkeSaRecord,
+                        true /*isResponse*/,
+                        IKE_AUTH_REQ_MESSAGE_ID);
+        mIkeSessionStateMachine.sendMessage(
+                IkeSessionStateMachine.CMD_RECEIVE_IKE_PACKET, duplicateReceivedPacket);
+        mLooper.dispatchAll();
+
+        verify(mMockIkeMessageHelper, times(0))
+                .decode(
+                        mIkeSessionOptions,
+                        mSpyCurrentIkeSaRecord,
+                        duplicateReceivedPacket.ikeHeader,
+                        duplicateReceivedPacket.ikePacketBytes);
+        assertTrue(
+                mIkeSessionStateMachine.getCurrentState()
+                        instanceof IkeSessionStateMachine.DpdIkeLocalInfo);
+    }
+
+    @Test
+    public void testDropRemoteRequestOutsideWindow() throws Exception {
+        mockIkeSetup();
+        mLooper.dispatchAll();
+
+        // The remote may only send the next request after its first one has been answered.
+        mIkeSessionStateMachine.sendMessage(
+                IkeSessionStateMachine.CMD_RECEIVE_IKE_PACKET,
+                makeDummyEncryptedReceivedIkePacket(
+                        IkeMessage.MESSAGE_TYPE_REKEY_IKE_REQ,
+                        mSpyCurrentIkeSaRecord,
+                        false /*isResponse*/,
+                        FIRST_REMOTE_REQ_MESSAGE_ID + 1));
+        mLooper.dispatchAll();
+
+        verify(mMockSaRecordHelper, times(0)).makeNewIkeSaRecord(any(), any(), any());
+        assertTrue(
+                mIkeSessionStateMachine.getCurrentState() instanceof IkeSessionStateMachine.Idle);
+    }
+
+    private static Mac makeHmacSha1(String keyHex) throws Exception {
+        Mac mac = Mac.getInstance(INTE_ALGO_HMAC_SHA1, IkeMessage.getSecurityProvider());
+        mac.init(new SecretKeySpec(TestUtils.hexStringToByteArray(keyHex), INTE_ALGO_HMAC_SHA1));
+        return mac;
+    }
+
+    private void setUpIdleIkeSessionWithLivenessResponder() throws Exception {
+        mockIkeSetup();
+        mLooper.dispatchAll();
+
+        mSpyCurrentIkeSaRecord.setLivenessResponder(
+                new IkeLivenessResponder(
+                        mSpyCurrentIkeSaRecord.initiatorSpi,
+                        mSpyCurrentIkeSaRecord.responderSpi,
+                        true /*isLocalInit*/,
+                        makeHmacSha1(INTE_KEY_FROM_RESP_TO_INIT),
+                        makeHmacSha1(INTE_KEY_FROM_INIT_TO_RESP),
+                        HMAC_SHA1_CHECKSUM_LEN,
+                        Cipher.getInstance(ENCR_ALGO_AES_CBC, IkeMessage.getSecurityProvider()),
+                        new SecretKeySpec(
+                                TestUtils.hexStringToByteArray(ENCR_KEY_FROM_INIT_TO_RESP),
+                                ENCR_ALGO_AES_CBC)));
+    }
+
+    // Build an empty INFORMATIONAL request sent by the remote on the current IKE SA. The encrypted
+    // data is never decrypted by the responder, so it is left as zeros.
+    private ReceivedIkePacket makeEmptyInformationalRequest(int messageId) throws Exception {
+        IkeHeader header =
+                new IkeHeader(
+                        mSpyCurrentIkeSaRecord.initiatorSpi,
+                        mSpyCurrentIkeSaRecord.responderSpi,
+                        IkePayload.PAYLOAD_TYPE_SK,
+                        IkeHeader.EXCHANGE_TYPE_INFORMATIONAL,
+                        false /*isResp*/,
+                        false /*fromInit*/,
+                        messageId);
+        int skPayloadLen =
+                IkePayload.GENERIC_HEADER_LENGTH + AES_BLOCK_SIZE * 2 + HMAC_SHA1_CHECKSUM_LEN;
+
+        ByteBuffer buffer = ByteBuffer.allocate(IkeHeader.IKE_HEADER_LENGTH + skPayloadLen);
+        header.encodeToByteBuffer(buffer, skPayloadLen);
+        buffer.put((byte) IkePayload.PAYLOAD_TYPE_NO_NEXT).put((byte) 0);
+        buffer.putShort((short) skPayloadLen).put(new byte[AES_BLOCK_SIZE * 2]);
+
+        Mac integrityMac = makeHmacSha1(INTE_KEY_FROM_RESP_TO_INIT);
+        integrityMac.update(buffer.array(), 0, buffer.position());
+        buffer.put(integrityMac.doFinal(), 0, HMAC_SHA1_CHECKSUM_LEN);
+
+        byte[] packet = buffer.array();
+        return new ReceivedIkePacket(new IkeHeader(packet), packet);
+    }
+
+    @Test
+    public void testAnswerEmptyInformationalRequest() throws Exception {
+        setUpIdleIkeSessionWithLivenessResponder();
+
+        ReceivedIkePacket request = makeEmptyInformationalRequest(FIRST_REMOTE_REQ_MESSAGE_ID);
+        mIkeSessionStateMachine.sendMessage(IkeSessionStateMachine.CMD_RECEIVE_IKE_PACKET, request);
+        mLooper.dispatchAll();
+
+        // Answered from the template without decoding the request or leaving Idle.
+        verify(mMockIkeMessageHelper, times(0))
+                .decode(
+                        mIkeSessionOptions,
+                        mSpyCurrentIkeSaRecord,
+                        request.ikeHeader,
+                        request.ikePacketBytes);
+        byte[] response = mSpyCurrentIkeSaRecord.getRemoteResponse(FIRST_REMOTE_REQ_MESSAGE_ID);
+        assertNotNull(response);
+        IkeHeader responseHeader = new IkeHeader(response);
+        assertTrue(responseHeader.isResponseMsg);
+        assertEquals(FIRST_REMOTE_REQ_MESSAGE_ID, responseHeader.messageId);
+        assertTrue(
+                mIkeSessionStateMachine.getCurrentState() instanceof IkeSessionStateMachine.Idle);
+    }
+
+    @Test
+    public void testAnswerRetransmittedEmptyInformationalRequestWithCachedResponse()
+            throws Exception {
+        setUpIdleIkeSessionWithLivenessResponder();
+
+        for (int i = 0; i < 2; i++) {
+            mIkeSessionStateMachine.sendMessage(
+                    IkeSessionStateMachine.CMD_RECEIVE_IKE_PACKET,
+                    makeEmptyInformationalRequest(FIRST_REMOTE_REQ_MESSAGE_ID));
+            mLooper.dispatchAll();
+        }
+
+        verify(mSpyCurrentIkeSaRecord)
+                .onRemoteResponseSent(eq(FIRST_REMOTE_REQ_MESSAGE_ID), any());
+    }
+
+    @Test
+    public void testDropEmptyInformationalRequestOutsideWindow() throws Exception {
+        setUpIdleIkeSessionWithLivenessResponder();
+
+        ReceivedIkePacket request = makeEmptyInformationalRequest(FIRST_REMOTE_REQ_MESSAGE_ID + 1);
+        mIkeSessionStateMachine.sendMessage(IkeSessionStateMachine.CMD_RECEIVE_IKE_PACKET, request);
+        mLooper.dispatchAll();
+
+        verify(mSpyCurrentIkeSaRecord, times(0)).onRemoteResponseSent(anyInt(), any());
+        verify(mMockIkeMessageHelper, times(0))
+                .decode(
+                        mIkeSessionOptions,
+                        mSpyCurrentIkeSaRecord,
+                        request.ikeHeader,
+                        request.ikePacketBytes);
+    }
+
+    @Test
+    public void testDpdDeclaresPeerDead() throws Exception {
+        setUpIdleIkeSessionWithLivenessMonitor();
+        ArgumentCaptor<IChildSessionCallback> childCallbackCaptor =
+                ArgumentCaptor.forClass(IChildSessionCallback.class);
+        verify(mMockChildSessionStateMachine)
+                .handleFirstChildExchange(any(), any(), childCallbackCaptor.capture());
+        childCallbackCaptor.getValue().onCreateChildSa(1, mMockChildSessionStateMachine);
+        // Forget round-trip times measured during setup.
+        IkeRttEstimator.getInstance().clear();
+        moveTimeForward(DPD_DELAY_MS);
+
+        moveTimeForward(IkeSessionStateMachine.RETRANSMIT_GIVE_UP_MS - 1L);
+        assertTrue(
+                mIkeSessionStateMachine.getCurrentState()
+                        instanceof IkeSessionStateMachine.DpdIkeLocalInfo);
+        moveTimeForward(1L);
+        assertTrue(
+                mIkeSessionStateMachine.getCurrentState() instanceof IkeSessionStateMachine.Closed);
+        // All SAs are deleted locally.
+        verify(mMockChildSessionStateMachine).killSession();
+        assertNull(mIkeSessionStateMachine.mCurrentIkeSaRecord);
+    }
+
+    @Test
+    public void testPeerDeadDuringRekeyReleasesSharedResources() throws Exception {
+        IkeRekeyScheduler rekeyScheduler =
+                new IkeRekeyScheduler(
+                        1 /*maxConcurrentRekeys*/,
+                        1 /*maxConcurrentRekeysPerPeer*/,
+                        () -> 0L,
+                        new Random());
+        IkeSessionStateMachine.setRekeyScheduler(rekeyScheduler);
+        mockIkeSetup(makeNatDetectionPayloadsBehindNat());
+        mLooper.dispatchAll();
+        IkeSocket ikeSocket = mIkeSessionStateMachine.mIkeSocket;
+        InetAddress serverAddress = mIkeSessionOptions.getServerAddress();
+        assertEquals(1, ikeSocket.getNatKeepaliveSessionCount(serverAddress));
+
+        mLooper.moveTimeForward(IKE_SOFT_LIFETIME_MS_MAX);
+        mLooper.dispatchAll();
+        assertEquals(1, rekeyScheduler.getActiveRekeyCount());
+
+        // Rekey request is never answered.
+        mLooper.moveTimeForward(IkeSessionStateMachine.RETRANSMIT_GIVE_UP_MS);
+        mLooper.dispatchAll();
+
+        assertTrue(
+                mIkeSessionStateMachine.getCurrentState() instanceof IkeSessionStateMachine.Closed);
+        assertEquals(0, rekeyScheduler.getActiveRekeyCount());
+        assertEquals(0, ikeSocket.getNatKeepaliveSessionCount(serverAddress));
+        assertEquals(
+                -1 /*not found*/, ikeSocket.mSpiToIkeSession.indexOfValue(mIkeSessionStateMachine));
+        assertNull(mIkeSessionStateMachine.mIkeSocket);
+    }
+
+    @Test
+    public void testRetransmitGivesUpByElapsedTimeWithFastRtt() throws Exception {
+        setUpIdleIkeSessionWithLivenessMonitor();
+        IkeRttEstimator rttEstimator = IkeRttEstimator.getInstance();
+        rttEstimator.clear();
+        // Retransmission timeout is 10 ms + 4 * 5 ms of variance, which is raised to the floor.
+        rttEstimator.onRttSample(InetAddress.getByName(SERVER_ADDRESS), 10L);
+        moveTimeForward(DPD_DELAY_MS);
+
+        // Retransmissions are sent after 1, 3, 7, 15 and 25 seconds, instead of within a second as
+        // the measured round-trip time alone would allow.
+        moveTimeForward(IkeSessionStateMachine.RETRANSMIT_GIVE_UP_MS - 1L);
+        assertTrue(
+                mIkeSessionStateMachine.getCurrentState()
+                        instanceof IkeSessionStateMachine.DpdIkeLocalInfo);
+        moveTimeForward(1L);
+        assertTrue(
+                mIkeSessionStateMachine.getCurrentState() instanceof IkeSessionStateMachine.Closed);
+        // Other IKE sessions to the remote server are not slowed down by the retransmissions.
+        assertEquals(
+                30L, rttEstimator.getRetransmitTimeoutMs(InetAddress.getByName(SERVER_ADDRESS)));
+    }
+
     @Test
     public void testRekeyIkeRemote() throws Exception {
         // Mock Rekey IKE request
         ReceivedIkePacket dummyRekeyIkeRequestReceivedPacket =
                 makeDummyEncryptedReceivedIkePacket(
-                        IkeMessage.MESSAGE_TYPE_REKEY_IKE_REQ, mSpyCurrentIkeSaRecord);
+                        IkeMessage.MESSAGE_TYPE_REKEY_IKE_REQ,
+                        mSpyCurrentIkeSaRecord,
+                        false /*isResponse*/,
+                        FIRST_REMOTE_REQ_MESSAGE_ID);
         when(mMockSaRecordHelper.makeNewIkeSaRecord(eq(mSpyCurrentIkeSaRecord), any(), any()))
                 .thenReturn(mSpyRemoteInitIkeSaRecord);
 
         // Mock Delete IKE request
         ReceivedIkePacket dummyDeleteIkeRequestReceivedPacket =
                 makeDummyEncryptedReceivedIkePacket(
-                        IkeMessage.MESSAGE_TYPE_DELETE_IKE_REQ, mSpyCurrentIkeSaRecord);
+                        IkeMessage.MESSAGE_TYPE_DELETE_IKE_REQ,
+                        mSpyCurrentIkeSaRecord,
+                        false /*isResponse*/,
+                        FIRST_REMOTE_REQ_MESSAGE_ID + 1);
         mockIkeSetup();
 
         mIkeSessionStateMachine.sendMessage(
@@ -347,14 +1526,20 @@ public final class IkeSessionStateMachineTest {
         // Mock Rekey IKE response
         ReceivedIkePacket dummyRekeyIkeRespReceivedPacket =
                 makeDummyEncryptedReceivedIkePacket(
-                        IkeMessage.MESSAGE_TYPE_REKEY_IKE_RESP, mSpyCurrentIkeSaRecord);
+                        IkeMessage.MESSAGE_TYPE_REKEY_IKE_RESP,
+                        mSpyCurrentIkeSaRecord,
+                        true /*isResponse*/,
+                        NEXT_LOCAL_REQ_MESSAGE_ID);
         when(mMockSaRecordHelper.makeNewIkeSaRecord(eq(mSpyCurrentIkeSaRecord), any(), any()))
                 .thenReturn(mSpyLocalInitIkeSaRecord);
 
         // Mock Rekey IKE request
         ReceivedIkePacket dummyRekeyIkeRequestReceivedPacket =
                 makeDummyEncryptedReceivedIkePacket(
-                        IkeMessage.MESSAGE_TYPE_REKEY_IKE_REQ, mSpyCurrentIkeSaRecord);
+                        IkeMessage.MESSAGE_TYPE_REKEY_IKE_REQ,
+                        mSpyCurrentIkeSaRecord,
+                        false /*isResponse*/,
+                        FIRST_REMOTE_REQ_MESSAGE_ID);
 
         when(mMockSaRecordHelper.makeNewIkeSaRecord(eq(mSpyCurrentIkeSaRecord), any(), any()))
                 .thenReturn(mSpyRemoteInitIkeSaRecord)
@@ -366,12 +1551,18 @@ public final class IkeSessionStateMachineTest {
         // Mock Delete old IKE response;
         ReceivedIkePacket dummyDeleteIkeRespReceivedPacket =
                 makeDummyEncryptedReceivedIkePacket(
-                        IkeMessage.MESSAGE_TYPE_DELETE_IKE_RESP, mSpyCurrentIkeSaRecord);
+                        IkeMessage.MESSAGE_TYPE_DELETE_IKE_RESP,
+                        mSpyCurrentIkeSaRecord,
+                        true /*isResponse*/,
+                        NEXT_LOCAL_REQ_MESSAGE_ID + 1);
 
         // Mock Delete IKE request on remotely initiated IKE SA
         ReceivedIkePacket dummyDeleteIkeRequestReceivedPacket =
                 makeDummyEncryptedReceivedIkePacket(
-                        IkeMessage.MESSAGE_TYPE_DELETE_IKE_REQ, mSpyRemoteInitIkeSaRecord);
+                        IkeMessage.MESSAGE_TYPE_DELETE_IKE_REQ,
+                        mSpyRemoteInitIkeSaRecord,
+                        false /*isResponse*/,
+                        FIRST_REMOTE_REQ_MESSAGE_ID);
 
         mockIkeSetup();
 
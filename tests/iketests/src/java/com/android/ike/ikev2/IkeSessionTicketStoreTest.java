@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ike.ikev2;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.android.ike.ikev2.exceptions.InvalidSyntaxException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+public final class IkeSessionTicketStoreTest {
+    private static final int MAX_ENTRIES = 2;
+    private static final long EXPIRY_TIME_MS = 1000L;
+
+    private static final byte[] TICKET = {1, 2, 3, 4};
+    private static final byte[] SK_D = {5, 6, 7, 8};
+
+    private InetAddress mServerAddressA;
+    private InetAddress mServerAddressB;
+    private InetAddress mServerAddressC;
+
+    private long mNow;
+    private IkeSessionTicketStore mStore;
+
+    @Before
+    public void setUp() throws Exception {
+        mServerAddressA = InetAddress.getByName("192.0.2.1");
+        mServerAddressB = InetAddress.getByName("192.0.2.2");
+        mServerAddressC = InetAddress.getByName("192.0.2.3");
+        mStore = new IkeSessionTicketStore(MAX_ENTRIES, () -> mNow);
+    }
+
+    private static IkeSessionTicket makeTicket() {
+        return new IkeSessionTicket(TICKET, SK_D, null /*saProposal*/, EXPIRY_TIME_MS);
+    }
+
+    @Test
+    public void testTakeTicketOnce() throws Exception {
+        IkeSessionTicket ticket = makeTicket();
+        mStore.put(mServerAddressA, ticket);
+
+        assertSame(ticket, mStore.take(mServerAddressA));
+        assertNull(mStore.take(mServerAddressA));
+    }
+
+    @Test
+    public void testTakeExpiredTicket() throws Exception {
+        mStore.put(mServerAddressA, makeTicket());
+        mNow = EXPIRY_TIME_MS;
+
+        assertNull(mStore.take(mServerAddressA));
+        assertEquals(0, mStore.size());
+    }
+
+    @Test
+    public void testEvictLeastRecentlyStored() throws Exception {
+        mStore.put(mServerAddressA, makeTicket());
+        mStore.put(mServerAddressB, makeTicket());
+        mStore.put(mServerAddressA, makeTicket());
+        mStore.put(mServerAddressC, makeTicket());
+
+        assertEquals(MAX_ENTRIES, mStore.size());
+        assertNull(mStore.take(mServerAddressB));
+    }
+
+    @Test
+    public void testParseTicketLtOpaque() throws Exception {
+        byte[] notifyData = {0, 0, 0, 10, 1, 2, 3, 4};
+        IkeSessionTicket ticket =
+                IkeSessionTicket.fromTicketLtOpaque(notifyData, SK_D, null /*saProposal*/, 500L);
+
+        assertArrayEquals(TICKET, ticket.ticket);
+        assertArrayEquals(SK_D, ticket.skD);
+        assertEquals(10500L, ticket.expiryTimeMs);
+    }
+
+    @Test(expected = InvalidSyntaxException.class)
+    public void testParseTicketLtOpaqueWithoutTicket() throws Exception {
+        IkeSessionTicket.fromTicketLtOpaque(new byte[4], SK_D, null /*saProposal*/, 0L);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ike.ikev2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+public final class NatKeepaliveSchedulerTest {
+    private static final long INTERVAL_MS = 1000L;
+
+    private InetAddress mServerOne;
+    private InetAddress mServerTwo;
+
+    private long mNow;
+    private List<InetAddress> mSentKeepalives;
+    private NatKeepaliveScheduler mScheduler;
+
+    @Before
+    public void setUp() throws Exception {
+        mServerOne = InetAddress.getByName("192.0.2.1");
+        mServerTwo = InetAddress.getByName("192.0.2.2");
+
+        mSentKeepalives = new ArrayList<>();
+        mScheduler =
+                new NatKeepaliveScheduler(INTERVAL_MS, () -> mNow, mSentKeepalives::add);
+    }
+
+    @Test
+    public void testOneTimerPerServer() throws Exception {
+        assertTrue(mScheduler.addSession(mServerOne));
+        assertFalse(mScheduler.addSession(mServerOne));
+        assertTrue(mScheduler.addSession(mServerTwo));
+
+        assertFalse(mScheduler.removeSession(mServerOne));
+        assertTrue(mScheduler.removeSession(mServerOne));
+        assertFalse(mScheduler.removeSession(mServerOne));
+    }
+
+    @Test
+    public void testSendOneKeepalivePerInterval() throws Exception {
+        mScheduler.addSession(mServerOne);
+        mScheduler.addSession(mServerOne);
+
+        mNow += INTERVAL_MS;
+        assertEquals(INTERVAL_MS, mScheduler.onTimerExpired(mServerOne));
+        mNow += INTERVAL_MS;
+        assertEquals(INTERVAL_MS, mScheduler.onTimerExpired(mServerOne));
+
+        assertEquals(2, mSentKeepalives.size());
+        assertEquals(mServerOne, mSentKeepalives.get(0));
+        assertEquals(2L, mScheduler.getSentCount());
+        assertEquals(0L, mScheduler.getSuppressedCount());
+    }
+
+    @Test
+    public void testSuppressKeepaliveAfterOutboundTraffic() throws Exception {
+        mScheduler.addSession(mServerOne);
+
+        mNow += 400L;
+        mScheduler.onOutboundTraffic(mServerOne);
+        mNow += INTERVAL_MS - 400L;
+
+        assertEquals(400L, mScheduler.onTimerExpired(mServerOne));
+        assertTrue(mSentKeepalives.isEmpty());
+        assertEquals(1L, mScheduler.getSuppressedCount());
+
+        mNow += 400L;
+        assertEquals(INTERVAL_MS, mScheduler.onTimerExpired(mServerOne));
+        assertEquals(1, mSentKeepalives.size());
+        assertEquals(1L, mScheduler.getSentCount());
+    }
+
+    @Test
+    public void testOutboundTrafficToOtherServerDoesNotSuppress() throws Exception {
+        mScheduler.addSession(mServerOne);
+        mScheduler.addSession(mServerTwo);
+
+        mNow += INTERVAL_MS;
+        mScheduler.onOutboundTraffic(mServerTwo);
+        mScheduler.onTimerExpired(mServerOne);
+
+        assertEquals(1, mSentKeepalives.size());
+        assertEquals(mServerOne, mSentKeepalives.get(0));
+    }
+}
@@ -17,11 +17,21 @@
 package com.android.ike.ikev2;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
 
+import com.android.ike.ikev2.SaRecord.IkeSaRecord;
+import com.android.ike.ikev2.message.IkeKePayload;
+import com.android.ike.ikev2.message.IkePayload;
 import com.android.ike.ikev2.message.TestUtils;
 
 import org.junit.Test;
 
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+import java.util.List;
+
 public final class SaRecordTest {
     private static final String IKE_INIT_SPI = "5F54BF6D8B48E6E1";
     private static final String IKE_RESP_SPI = "909232B3D1EDCB5C";
@@ -42,6 +52,10 @@ public final class SaRecordTest {
     private static final String IKE_SKEYSEED_HEX_STRING =
             "8C42F3B1F5F81C7BAAC5F33E9A4F01987B2F9657";
     private static final String IKE_SK_D_HEX_STRING = "C86B56EFCF684DCC2877578AEF3137167FE0EBF6";
+    private static final String IKE_REKEY_SKEYSEED_HEX_STRING =
+            "E4FBB5441E152E4AF18877473AF9A2E83682DEA3";
+    private static final String IKE_RESUMPTION_SKEYSEED_HEX_STRING =
+            "98EC11A5C13F83E220CB70E8468484DA521E1260";
     private static final String IKE_SK_AUTH_INIT_HEX_STRING =
             "554FBF5A05B7F511E05A30CE23D874DB9EF55E51";
     private static final String IKE_SK_AUTH_RESP_HEX_STRING =
@@ -85,6 +99,36 @@ public final class SaRecordTest {
 
     private static final String PRF_HMAC_SHA1_ALGO_NAME = "HmacSHA1";
 
+    @Test
+    public void testCalculateRekeySKeySeed() throws Exception {
+        byte[] oldSkD = TestUtils.hexStringToByteArray(IKE_SK_D_HEX_STRING);
+        byte[] sharedDhKey = TestUtils.hexStringToByteArray(IKE_SHARED_DH_KEY_HEX_STRING);
+        byte[] nonceInit = TestUtils.hexStringToByteArray(IKE_NONCE_INIT_HEX_STRING);
+        byte[] nonceResp = TestUtils.hexStringToByteArray(IKE_NONCE_RESP_HEX_STRING);
+
+        byte[] calculatedSKeySeed =
+                SaRecord.generateRekeySKeySeed(
+                        PRF_HMAC_SHA1_ALGO_NAME, oldSkD, sharedDhKey, nonceInit, nonceResp);
+
+        byte[] expectedSKeySeed = TestUtils.hexStringToByteArray(IKE_REKEY_SKEYSEED_HEX_STRING);
+        assertArrayEquals(expectedSKeySeed, calculatedSKeySeed);
+    }
+
+    @Test
+    public void testCalculateResumptionSKeySeed() throws Exception {
+        byte[] oldSkD = TestUtils.hexStringToByteArray(IKE_SK_D_HEX_STRING);
+        byte[] nonceInit = TestUtils.hexStringToByteArray(IKE_NONCE_INIT_HEX_STRING);
+        byte[] nonceResp = TestUtils.hexStringToByteArray(IKE_NONCE_RESP_HEX_STRING);
+
+        byte[] calculatedSKeySeed =
+                SaRecord.generateResumptionSKeySeed(
+                        PRF_HMAC_SHA1_ALGO_NAME, oldSkD, nonceInit, nonceResp);
+
+        byte[] expectedSKeySeed =
+                TestUtils.hexStringToByteArray(IKE_RESUMPTION_SKEYSEED_HEX_STRING);
+        assertArrayEquals(expectedSKeySeed, calculatedSKeySeed);
+    }
+
     @Test
     public void testCalculateSKeySeed() throws Exception {
         byte[] nonceInit = TestUtils.hexStringToByteArray(IKE_NONCE_INIT_HEX_STRING);
@@ -99,6 +143,32 @@ public final class SaRecordTest {
         assertArrayEquals(expectedSKeySeed, calculatedSKeySeed);
     }
 
+    @Test
+    public void testCalculateSharedDhKey() throws Exception {
+        List<IkePayload> localPayloads =
+                Arrays.asList(new IkeKePayload(SaProposal.DH_GROUP_1024_BIT_MODP));
+        List<IkePayload> remotePayloads =
+                Arrays.asList(new IkeKePayload(SaProposal.DH_GROUP_1024_BIT_MODP));
+
+        assertArrayEquals(
+                SaRecord.calculateSharedDhKey(localPayloads, remotePayloads),
+                SaRecord.calculateSharedDhKey(remotePayloads, localPayloads));
+    }
+
+    @Test
+    public void testCalculateSharedDhKeyWithMismatchedDhGroups() throws Exception {
+        List<IkePayload> localPayloads =
+                Arrays.asList(new IkeKePayload(SaProposal.DH_GROUP_1024_BIT_MODP));
+        List<IkePayload> remotePayloads =
+                Arrays.asList(new IkeKePayload(SaProposal.DH_GROUP_2048_BIT_MODP));
+
+        try {
+            SaRecord.calculateSharedDhKey(localPayloads, remotePayloads);
+            fail("Expected InvalidKeyException: DH groups of KE payloads do not match");
+        } catch (InvalidKeyException expected) {
+        }
+    }
+
     @Test
     public void testSignWithPrfPlusForIke() throws Exception {
         byte[] prfKey = TestUtils.hexStringToByteArray(IKE_SKEYSEED_HEX_STRING);
@@ -135,4 +205,41 @@ public final class SaRecordTest {
         byte[] expectedKeyMat = TestUtils.hexStringToByteArray(FIRST_CHILD_KEY_MAT);
         assertArrayEquals(expectedKeyMat, calculatedKeyMat);
     }
+
+    @Test
+    public void testGetLivenessResponder() throws Exception {
+        SaProposal saProposal =
+                SaProposal.Builder.newIkeSaProposalBuilder()
+                        .addEncryptionAlgorithm(
+                                SaProposal.ENCRYPTION_ALGORITHM_AES_CBC, SaProposal.KEY_LEN_AES_128)
+                        .addIntegrityAlgorithm(SaProposal.INTEGRITY_ALGORITHM_HMAC_SHA1_96)
+                        .addPseudorandomFunction(SaProposal.PSEUDORANDOM_FUNCTION_HMAC_SHA1)
+                        .addDhGroup(SaProposal.DH_GROUP_1024_BIT_MODP)
+                        .build();
+        IkeSaRecord ikeSaRecord =
+                new IkeSaRecord(
+                        Long.parseUnsignedLong(IKE_INIT_SPI, 16),
+                        Long.parseUnsignedLong(IKE_RESP_SPI, 16),
+                        true /*localInit*/,
+                        TestUtils.hexStringToByteArray(IKE_NONCE_INIT_HEX_STRING),
+                        TestUtils.hexStringToByteArray(IKE_NONCE_RESP_HEX_STRING),
+                        saProposal,
+                        PRF_HMAC_SHA1_ALGO_NAME,
+                        TestUtils.hexStringToByteArray(IKE_SK_D_HEX_STRING),
+                        TestUtils.hexStringToByteArray(IKE_SK_AUTH_INIT_HEX_STRING),
+                        TestUtils.hexStringToByteArray(IKE_SK_AUTH_RESP_HEX_STRING),
+                        TestUtils.hexStringToByteArray(IKE_SK_ENCR_INIT_HEX_STRING),
+                        TestUtils.hexStringToByteArray(IKE_SK_ENCR_RESP_HEX_STRING),
+                        TestUtils.hexStringToByteArray(IKE_SK_PRF_INIT_HEX_STRING),
+                        TestUtils.hexStringToByteArray(IKE_SK_PRF_RESP_HEX_STRING));
+
+        assertNotNull(ikeSaRecord.getLivenessResponder());
+    }
+
+    @Test
+    public void testNoLivenessResponderWithoutKeys() throws Exception {
+        IkeSaRecord ikeSaRecord = new IkeSaRecord(1L, 2L, true /*localInit*/, null, null);
+
+        assertNull(ikeSaRecord.getLivenessResponder());
+    }
 }
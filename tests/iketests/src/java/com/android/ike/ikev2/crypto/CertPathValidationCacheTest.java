@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ike.ikev2.crypto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.security.cert.CertPathValidatorException;
+import java.security.cert.TrustAnchor;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public final class CertPathValidationCacheTest {
+    private static final int MAX_ENTRIES = 2;
+    private static final long TTL_MS = 1000L;
+    private static final long NOT_AFTER_MS = 100000L;
+
+    private static final ByteBuffer END_CERT_DATA = ByteBuffer.wrap(new byte[] {1, 2, 3});
+    private static final ByteBuffer INTERMEDIATE_CERT_DATA_A = ByteBuffer.wrap(new byte[] {4, 5});
+    private static final ByteBuffer INTERMEDIATE_CERT_DATA_B = ByteBuffer.wrap(new byte[] {6});
+
+    private final Set<TrustAnchor> mTrustAnchors = new HashSet<>();
+
+    private long mCurrentTimeMs;
+    private int mValidationCount;
+    private CertPathValidationCache mCache;
+
+    @Before
+    public void setUp() throws Exception {
+        mCurrentTimeMs = 0L;
+        mValidationCount = 0;
+        mCache = new CertPathValidationCache(MAX_ENTRIES, TTL_MS, () -> mCurrentTimeMs);
+    }
+
+    private void validate(ByteBuffer endCertData, List<ByteBuffer> otherCertData)
+            throws Exception {
+        mCache.validate(
+                endCertData,
+                otherCertData,
+                mTrustAnchors,
+                () -> {
+                    mValidationCount++;
+                    return NOT_AFTER_MS;
+                });
+    }
+
+    @Test
+    public void testReuseResultForUnorderedCertificates() throws Exception {
+        validate(END_CERT_DATA, Arrays.asList(INTERMEDIATE_CERT_DATA_A, INTERMEDIATE_CERT_DATA_B));
+        validate(END_CERT_DATA, Arrays.asList(INTERMEDIATE_CERT_DATA_B, INTERMEDIATE_CERT_DATA_A));
+
+        assertEquals(1, mValidationCount);
+        assertEquals(1L, mCache.getHitCount());
+
+        // Different chain or trust anchor set is validated again.
+        validate(END_CERT_DATA, Arrays.asList(INTERMEDIATE_CERT_DATA_A));
+        mCache.validate(
+                END_CERT_DATA,
+                Arrays.asList(INTERMEDIATE_CERT_DATA_A),
+                new HashSet<>(),
+                () -> ++mValidationCount);
+        assertEquals(3, mValidationCount);
+    }
+
+    @Test
+    public void testResultExpiresAfterTtlAndNotAfter() throws Exception {
+        validate(END_CERT_DATA, Arrays.asList());
+        mCurrentTimeMs = TTL_MS;
+        validate(END_CERT_DATA, Arrays.asList());
+        assertEquals(2, mValidationCount);
+
+        // Results cached with longer TTL are still bounded by notAfter.
+        mCache.setTtlMillis(NOT_AFTER_MS * 2);
+        mCurrentTimeMs = TTL_MS * 2;
+        validate(END_CERT_DATA, Arrays.asList());
+        mCurrentTimeMs = NOT_AFTER_MS - 1;
+        validate(END_CERT_DATA, Arrays.asList());
+        assertEquals(3, mValidationCount);
+
+        mCurrentTimeMs = NOT_AFTER_MS;
+        validate(END_CERT_DATA, Arrays.asList());
+        assertEquals(4, mValidationCount);
+        assertEquals(0, mCache.size());
+    }
+
+    @Test
+    public void testFailedValidationNotCached() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            try {
+                mCache.validate(
+                        END_CERT_DATA,
+                        Arrays.asList(),
+                        mTrustAnchors,
+                        () -> {
+                            mValidationCount++;
+                            throw new CertPathValidatorException();
+                        });
+                fail("Expected CertPathValidatorException");
+            } catch (CertPathValidatorException expected) {
+            }
+        }
+        assertEquals(2, mValidationCount);
+        assertEquals(0, mCache.size());
+    }
+
+    @Test
+    public void testTrustAnchorsChanged() throws Exception {
+        validate(END_CERT_DATA, Arrays.asList());
+
+        // Result of a validation that was in progress when trust anchors changed is dropped.
+        mCache.validate(
+                INTERMEDIATE_CERT_DATA_A,
+                Arrays.asList(),
+                mTrustAnchors,
+                () -> {
+                    mCache.onTrustAnchorsChanged();
+                    return NOT_AFTER_MS;
+                });
+        assertEquals(0, mCache.size());
+
+        validate(END_CERT_DATA, Arrays.asList());
+        assertEquals(2, mValidationCount);
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() throws Exception {
+        validate(END_CERT_DATA, Arrays.asList());
+        validate(INTERMEDIATE_CERT_DATA_A, Arrays.asList());
+        validate(END_CERT_DATA, Arrays.asList());
+        validate(INTERMEDIATE_CERT_DATA_B, Arrays.asList());
+        assertEquals(MAX_ENTRIES, mCache.size());
+
+        // INTERMEDIATE_CERT_DATA_A was evicted.
+        validate(END_CERT_DATA, Arrays.asList());
+        validate(INTERMEDIATE_CERT_DATA_A, Arrays.asList());
+        assertEquals(4, mValidationCount);
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ike.ikev2.crypto;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.List;
+
+public final class CertificateFetchCacheTest {
+    private static final int MAX_ENTRIES = 4;
+    private static final int MAX_CONTENT_BYTES = 8;
+
+    private static final String URL_A = "http://certs.android.com/a";
+    private static final String URL_B = "http://certs.android.com/b";
+    private static final String URL_C = "http://certs.android.com/c";
+
+    private static final byte[] CONTENT_A = {1, 2, 3};
+    private static final byte[] CONTENT_B = {4, 5, 6};
+    private static final byte[] CONTENT_C = {7, 8, 9, 10, 11};
+
+    private final List<String> mFetchedUrls = new ArrayList<>();
+
+    private CertificateFetchCache mCache;
+
+    @Before
+    public void setUp() throws Exception {
+        mCache =
+                new CertificateFetchCache(
+                        (String url) -> {
+                            mFetchedUrls.add(url);
+                            switch (url) {
+                                case URL_A:
+                                    return CONTENT_A;
+                                case URL_B:
+                                    return CONTENT_B;
+                                default:
+                                    return CONTENT_C;
+                            }
+                        },
+                        MAX_ENTRIES,
+                        MAX_CONTENT_BYTES);
+    }
+
+    @Test
+    public void testFetchKeyedByHash() throws Exception {
+        byte[] hash = CertificateFetchCache.digest(CONTENT_A);
+        assertArrayEquals(CONTENT_A, mCache.fetch(hash, URL_A));
+
+        // Content with the same hash is not fetched again even from another URL.
+        assertArrayEquals(CONTENT_A, mCache.fetch(hash, URL_B));
+
+        assertEquals(1, mFetchedUrls.size());
+        assertEquals(1L, mCache.getHitCount());
+        assertEquals(1L, mCache.getMissCount());
+    }
+
+    @Test
+    public void testHashMismatchNotCached() throws Exception {
+        byte[] hash = CertificateFetchCache.digest(CONTENT_A);
+        try {
+            mCache.fetch(hash, URL_B);
+            fail("Expected CertificateException");
+        } catch (CertificateException expected) {
+        }
+        assertEquals(0, mCache.size());
+    }
+
+    @Test
+    public void testEvictByContentLength() throws Exception {
+        mCache.fetch(CertificateFetchCache.digest(CONTENT_A), URL_A);
+        mCache.fetch(CertificateFetchCache.digest(CONTENT_B), URL_B);
+        assertEquals(2, mCache.size());
+
+        // CONTENT_C does not fit with both CONTENT_A and CONTENT_B. CONTENT_A is evicted.
+        mCache.fetch(CertificateFetchCache.digest(CONTENT_C), URL_C);
+        assertEquals(2, mCache.size());
+
+        mCache.fetch(CertificateFetchCache.digest(CONTENT_B), URL_B);
+        mCache.fetch(CertificateFetchCache.digest(CONTENT_A), URL_A);
+        assertEquals(4, mFetchedUrls.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFetchWithInvalidHash() throws Exception {
+        mCache.fetch(new byte[CertificateFetchCache.HASH_LEN - 1], URL_A);
+    }
+}
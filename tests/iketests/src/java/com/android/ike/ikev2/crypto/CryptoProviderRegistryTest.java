@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ike.ikev2.crypto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.ike.ikev2.message.IkeMessage;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.cert.CollectionCertStoreParameters;
+import java.util.Arrays;
+import java.util.Map;
+
+public final class CryptoProviderRegistryTest {
+    private static final String HMAC_SHA1_ALGO_NAME = "HmacSHA1";
+    private static final String MAC_HMAC_SHA1 =
+            CryptoProviderRegistry.SERVICE_TYPE_MAC + "/" + HMAC_SHA1_ALGO_NAME;
+
+    private static final Provider EMPTY_PROVIDER = new EmptyProvider();
+
+    @After
+    public void tearDown() {
+        CryptoProviderRegistry.reset();
+    }
+
+    @Test
+    public void testDefaultProviderServesPrimitive() throws Exception {
+        CryptoProviderRegistry.getMac(HMAC_SHA1_ALGO_NAME);
+
+        assertResolvedToIkeDefaultProvider();
+    }
+
+    @Test
+    public void testCertPathPrimitivesAreResolved() throws Exception {
+        CryptoProviderRegistry.getCertStore("Collection", new CollectionCertStoreParameters());
+        CryptoProviderRegistry.getCertPathBuilder("PKIX");
+
+        Map<String, String> report = CryptoProviderRegistry.getProviderReport();
+        assertTrue(
+                report.containsKey(CryptoProviderRegistry.SERVICE_TYPE_CERT_STORE + "/Collection"));
+        assertTrue(
+                report.containsKey(
+                        CryptoProviderRegistry.SERVICE_TYPE_CERT_PATH_BUILDER + "/PKIX"));
+    }
+
+    @Test
+    public void testFallbackToNextProviderInChain() throws Exception {
+        CryptoProviderRegistry.setFallbackChain(
+                Arrays.asList(EMPTY_PROVIDER, IkeMessage.getSecurityProvider()));
+
+        CryptoProviderRegistry.getMac(HMAC_SHA1_ALGO_NAME);
+
+        assertResolvedToIkeDefaultProvider();
+    }
+
+    @Test
+    public void testUnsupportedPreferredProviderFallsBack() throws Exception {
+        CryptoProviderRegistry.setPreferredProvider(
+                CryptoProviderRegistry.SERVICE_TYPE_MAC, HMAC_SHA1_ALGO_NAME, EMPTY_PROVIDER);
+
+        CryptoProviderRegistry.getMac(HMAC_SHA1_ALGO_NAME);
+
+        assertResolvedToIkeDefaultProvider();
+    }
+
+    @Test
+    public void testNoProviderInChainThrows() throws Exception {
+        CryptoProviderRegistry.setFallbackChain(Arrays.asList(EMPTY_PROVIDER));
+
+        try {
+            CryptoProviderRegistry.getMac(HMAC_SHA1_ALGO_NAME);
+            fail("Expected NoSuchAlgorithmException: no provider supports HmacSHA1");
+        } catch (NoSuchAlgorithmException expected) {
+        }
+    }
+
+    @Test
+    public void testCalibrateChoosesProviderInChain() throws Exception {
+        CryptoProviderRegistry.setFallbackChain(
+                Arrays.asList(EMPTY_PROVIDER, IkeMessage.getSecurityProvider()));
+
+        Provider provider =
+                CryptoProviderRegistry.calibrate(
+                        CryptoProviderRegistry.SERVICE_TYPE_MAC, HMAC_SHA1_ALGO_NAME);
+        CryptoProviderRegistry.getMac(HMAC_SHA1_ALGO_NAME);
+
+        assertSame(IkeMessage.getSecurityProvider(), provider);
+        assertResolvedToIkeDefaultProvider();
+    }
+
+    @Test
+    public void testCalibrateDefaultAlgorithms() throws Exception {
+        CryptoProviderRegistry.calibrateDefaultAlgorithms();
+        CryptoProviderRegistry.getMac(HMAC_SHA1_ALGO_NAME);
+        CryptoProviderRegistry.getCipher("AES/CBC/NoPadding");
+
+        Map<String, String> report = CryptoProviderRegistry.getProviderReport();
+        assertTrue(report.containsKey(MAC_HMAC_SHA1));
+        assertTrue(
+                report.containsKey(
+                        CryptoProviderRegistry.SERVICE_TYPE_CIPHER + "/AES/CBC/NoPadding"));
+    }
+
+    @Test
+    public void testCalibrateKeyAgreementThrows() throws Exception {
+        try {
+            CryptoProviderRegistry.calibrate(
+                    CryptoProviderRegistry.SERVICE_TYPE_KEY_AGREEMENT, "DH");
+            fail("Expected IllegalArgumentException: KeyAgreement cannot be calibrated");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static void assertResolvedToIkeDefaultProvider() {
+        assertEquals(
+                IkeMessage.getSecurityProvider().getName(),
+                CryptoProviderRegistry.getProviderReport().get(MAC_HMAC_SHA1));
+    }
+
+    private static final class EmptyProvider extends Provider {
+        EmptyProvider() {
+            super("Empty", 1.0, "Provider without any service");
+        }
+    }
+}
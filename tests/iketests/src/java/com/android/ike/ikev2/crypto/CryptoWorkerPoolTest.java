@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ike.ikev2.crypto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public final class CryptoWorkerPoolTest {
+    private static final long TIMEOUT_MS = 5000L;
+
+    @Test
+    public void testExecuteRunsOnWorkerThread() throws Exception {
+        CryptoWorkerPool pool = new CryptoWorkerPool(1, 1);
+        AtomicReference<Thread> runningThread = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(1);
+
+        pool.execute(
+                () -> {
+                    runningThread.set(Thread.currentThread());
+                    done.countDown();
+                });
+
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertNotSame(Thread.currentThread(), runningThread.get());
+        assertEquals(1L, pool.getOffloadedCount());
+        assertEquals(0L, pool.getRejectedCount());
+    }
+
+    @Test
+    public void testExecuteRejectsWhenSaturated() throws Exception {
+        CryptoWorkerPool pool = new CryptoWorkerPool(1, 1);
+        CountDownLatch workerStarted = new CountDownLatch(1);
+        CountDownLatch releaseWorker = new CountDownLatch(1);
+        CountDownLatch queuedDone = new CountDownLatch(1);
+
+        pool.execute(
+                () -> {
+                    workerStarted.countDown();
+                    try {
+                        releaseWorker.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+        assertTrue(workerStarted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        // Fill the queue.
+        pool.execute(queuedDone::countDown);
+
+        AtomicBoolean hasRun = new AtomicBoolean();
+        try {
+            pool.execute(() -> hasRun.set(true));
+            fail("Expected to reject the operation");
+        } catch (RejectedExecutionException expected) {
+        }
+
+        // The operation is not run on the calling thread.
+        assertFalse(hasRun.get());
+        assertEquals(2L, pool.getOffloadedCount());
+        assertEquals(1L, pool.getRejectedCount());
+
+        releaseWorker.countDown();
+        assertTrue(queuedDone.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+}
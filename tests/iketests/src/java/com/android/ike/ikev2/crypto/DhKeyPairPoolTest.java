@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ike.ikev2.crypto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.ike.ikev2.SaProposal;
+import com.android.ike.ikev2.crypto.DhKeyPairPool.DhKeyPairGenerator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.crypto.interfaces.DHPrivateKey;
+
+public final class DhKeyPairPoolTest {
+    private static final int DH_GROUP = SaProposal.DH_GROUP_1024_BIT_MODP;
+
+    private final List<Runnable> mPendingTasks = new ArrayList<>();
+    private final List<KeyPair> mGeneratedKeyPairs = new ArrayList<>();
+
+    private DhKeyPairPool mDhKeyPairPool;
+
+    @Before
+    public void setUp() throws Exception {
+        DhKeyPairGenerator generator = new DhKeyPairGenerator();
+        mDhKeyPairPool =
+                new DhKeyPairPool(
+                        mPendingTasks::add,
+                        (int dhGroup) -> {
+                            KeyPair keyPair = generator.generateKeyPair(dhGroup);
+                            mGeneratedKeyPairs.add(keyPair);
+                            return keyPair;
+                        });
+    }
+
+    private void runPendingTasks() {
+        while (!mPendingTasks.isEmpty()) {
+            mPendingTasks.remove(0).run();
+        }
+    }
+
+    @Test
+    public void testFirstAcquireIsMissAndStartsRefill() throws Exception {
+        KeyPair keyPair = mDhKeyPairPool.acquireKeyPair(DH_GROUP);
+
+        assertTrue(keyPair.getPrivate() instanceof DHPrivateKey);
+        assertEquals(0L, mDhKeyPairPool.getHitCount(DH_GROUP));
+        assertEquals(1L, mDhKeyPairPool.getMissCount(DH_GROUP));
+        assertEquals(1, mPendingTasks.size());
+
+        runPendingTasks();
+
+        assertEquals(
+                DhKeyPairPool.DEFAULT_HIGH_WATERMARK, mDhKeyPairPool.getReadyCount(DH_GROUP));
+    }
+
+    @Test
+    public void testAcquireFromReadyPoolIsHitAndSingleUse() throws Exception {
+        KeyPair missKeyPair = mDhKeyPairPool.acquireKeyPair(DH_GROUP);
+        runPendingTasks();
+
+        KeyPair firstHitKeyPair = mDhKeyPairPool.acquireKeyPair(DH_GROUP);
+        KeyPair secondHitKeyPair = mDhKeyPairPool.acquireKeyPair(DH_GROUP);
+
+        assertNotSame(missKeyPair, firstHitKeyPair);
+        assertNotSame(firstHitKeyPair, secondHitKeyPair);
+        assertEquals(2L, mDhKeyPairPool.getHitCount(DH_GROUP));
+        assertEquals(1L, mDhKeyPairPool.getMissCount(DH_GROUP));
+        assertEquals(
+                DhKeyPairPool.DEFAULT_HIGH_WATERMARK - 2, mDhKeyPairPool.getReadyCount(DH_GROUP));
+    }
+
+    @Test
+    public void testRefillStartsBelowLowWatermark() throws Exception {
+        mDhKeyPairPool.setWatermarks(2 /*lowWatermark*/, 3 /*highWatermark*/);
+        mDhKeyPairPool.acquireKeyPair(DH_GROUP);
+        runPendingTasks();
+
+        // Three ready key pairs. Taking one leaves the pool at the low watermark.
+        mDhKeyPairPool.acquireKeyPair(DH_GROUP);
+        assertTrue(mPendingTasks.isEmpty());
+
+        mDhKeyPairPool.acquireKeyPair(DH_GROUP);
+        assertEquals(1, mPendingTasks.size());
+
+        runPendingTasks();
+        assertEquals(3, mDhKeyPairPool.getReadyCount(DH_GROUP));
+    }
+
+    @Test
+    public void testDisabledPoolGeneratesSynchronously() throws Exception {
+        mDhKeyPairPool.setWatermarks(0 /*lowWatermark*/, 0 /*highWatermark*/);
+
+        mDhKeyPairPool.acquireKeyPair(DH_GROUP);
+        mDhKeyPairPool.acquireKeyPair(DH_GROUP);
+
+        assertTrue(mPendingTasks.isEmpty());
+        assertEquals(2, mGeneratedKeyPairs.size());
+        assertEquals(2L, mDhKeyPairPool.getMissCount(DH_GROUP));
+    }
+
+    @Test
+    public void testLowerHighWatermarkDiscardsReadyKeyPairs() throws Exception {
+        mDhKeyPairPool.acquireKeyPair(DH_GROUP);
+        runPendingTasks();
+
+        mDhKeyPairPool.setWatermarks(0 /*lowWatermark*/, 1 /*highWatermark*/);
+        assertEquals(1, mDhKeyPairPool.getReadyCount(DH_GROUP));
+
+        mDhKeyPairPool.clear();
+        assertEquals(0, mDhKeyPairPool.getReadyCount(DH_GROUP));
+        assertEquals(0L, mDhKeyPairPool.getMissCount(DH_GROUP));
+    }
+
+    @Test
+    public void testSetInvalidWatermarksThrows() throws Exception {
+        try {
+            mDhKeyPairPool.setWatermarks(3 /*lowWatermark*/, 2 /*highWatermark*/);
+            fail("Expected to fail due to low watermark larger than high watermark.");
+        } catch (IllegalArgumentException expected) {
+
+        }
+    }
+
+    @Test
+    public void testAcquireUnsupportedDhGroupThrows() throws Exception {
+        try {
+            mDhKeyPairPool.acquireKeyPair(SaProposal.DH_GROUP_NONE);
+            fail("Expected to fail due to unsupported DH group.");
+        } catch (IllegalArgumentException expected) {
+
+        }
+        assertTrue(mPendingTasks.isEmpty());
+        assertEquals(0L, mDhKeyPairPool.getMissCount(SaProposal.DH_GROUP_NONE));
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ike.ikev2.crypto;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.android.ike.ikev2.IkeDhParams;
+import com.android.ike.ikev2.utils.BigIntegerUtils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.util.Random;
+
+import javax.crypto.interfaces.DHPrivateKey;
+import javax.crypto.interfaces.DHPublicKey;
+import javax.crypto.spec.DHParameterSpec;
+
+public final class ModpEngineTest {
+    private static final int PRIVATE_VALUE_BITS = 256;
+    private static final int PUBLIC_VALUE_LEN = 128;
+
+    private BigInteger mPrime;
+    private BigInteger mBaseGen;
+    private ModpEngine mModpEngine;
+
+    @Before
+    public void setUp() throws Exception {
+        mPrime = BigIntegerUtils.unsignedHexStringToBigInteger(IkeDhParams.PRIME_1024_BIT_MODP);
+        mBaseGen = BigInteger.valueOf(IkeDhParams.BASE_GENERATOR_MODP);
+        mModpEngine =
+                new ModpEngine(
+                        new DHParameterSpec(mPrime, mBaseGen),
+                        PRIVATE_VALUE_BITS,
+                        PUBLIC_VALUE_LEN);
+    }
+
+    @Test
+    public void testFixedBaseExpMatchesModPow() throws Exception {
+        Random random = new Random(0x5eedL);
+        BigInteger[] exponents = {
+            BigInteger.valueOf(2L),
+            BigInteger.valueOf(0xf0fL),
+            BigInteger.ONE.shiftLeft(PRIVATE_VALUE_BITS).subtract(BigInteger.ONE),
+            new BigInteger(PRIVATE_VALUE_BITS, random),
+            new BigInteger(PRIVATE_VALUE_BITS, random),
+            // Exponents longer than the table fall back to modPow.
+            new BigInteger(PRIVATE_VALUE_BITS + 8, random)
+        };
+
+        for (BigInteger exponent : exponents) {
+            assertEquals(mBaseGen.modPow(exponent, mPrime), mModpEngine.fixedBaseExp(exponent));
+        }
+    }
+
+    @Test
+    public void testGenerateKeyPair() throws Exception {
+        KeyPair keyPair = mModpEngine.generateKeyPair();
+
+        BigInteger x = ((DHPrivateKey) keyPair.getPrivate()).getX();
+        BigInteger y = ((DHPublicKey) keyPair.getPublic()).getY();
+
+        assertEquals(mBaseGen.modPow(x, mPrime), y);
+        assertEquals(
+                PUBLIC_VALUE_LEN,
+                mModpEngine.encodePublicKey((DHPublicKey) keyPair.getPublic()).length);
+    }
+
+    @Test
+    public void testCalculateSharedSecret() throws Exception {
+        KeyPair localKeyPair = mModpEngine.generateKeyPair();
+        KeyPair remoteKeyPair = mModpEngine.generateKeyPair();
+
+        byte[] localSharedSecret =
+                mModpEngine.calculateSharedSecret(
+                        (DHPrivateKey) localKeyPair.getPrivate(),
+                        mModpEngine.encodePublicKey((DHPublicKey) remoteKeyPair.getPublic()));
+        byte[] remoteSharedSecret =
+                mModpEngine.calculateSharedSecret(
+                        (DHPrivateKey) remoteKeyPair.getPrivate(),
+                        mModpEngine.encodePublicKey((DHPublicKey) localKeyPair.getPublic()));
+
+        assertArrayEquals(localSharedSecret, remoteSharedSecret);
+    }
+
+    @Test
+    public void testCalculateSharedSecretWithInvalidPublicValue() throws Exception {
+        DHPrivateKey privateKey = (DHPrivateKey) mModpEngine.generateKeyPair().getPrivate();
+        BigInteger[] invalidPublicValues = {
+            BigInteger.ZERO, BigInteger.ONE, mPrime.subtract(BigInteger.ONE), mPrime
+        };
+
+        for (BigInteger publicValue : invalidPublicValues) {
+            try {
+                mModpEngine.calculateSharedSecret(
+                        privateKey,
+                        BigIntegerUtils.bigIntegerToUnsignedByteArray(
+                                publicValue, PUBLIC_VALUE_LEN));
+                fail("Expected InvalidKeyException: public value is out of range");
+            } catch (InvalidKeyException expected) {
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ike.ikev2.crypto;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.android.ike.ikev2.message.IkeMessage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+public final class PskPadKeyCacheTest {
+    private static final String PRF_HMAC_SHA1_ALGO_NAME = "HmacSHA1";
+    private static final String PRF_HMAC_SHA256_ALGO_NAME = "HmacSHA256";
+
+    private static final byte[] DATA_TO_SIGN = "SignedOctets".getBytes(StandardCharsets.US_ASCII);
+
+    private PskPadKeyCache mPskPadKeyCache;
+
+    @Before
+    public void setUp() throws Exception {
+        mPskPadKeyCache = new PskPadKeyCache();
+    }
+
+    private static Mac getMac(String algorithm) throws Exception {
+        return Mac.getInstance(algorithm, IkeMessage.getSecurityProvider());
+    }
+
+    private static byte[] calculateExpectedSignature(byte[] psk, String algorithm)
+            throws Exception {
+        Mac mac = getMac(algorithm);
+        mac.init(new SecretKeySpec(psk, algorithm));
+        byte[] padKey = mac.doFinal("Key Pad for IKEv2".getBytes(StandardCharsets.US_ASCII));
+        mac.init(new SecretKeySpec(padKey, algorithm));
+        return mac.doFinal(DATA_TO_SIGN);
+    }
+
+    private byte[] sign(byte[] psk, String algorithm) throws Exception {
+        return mPskPadKeyCache.getPadKeyedPrf(psk, getMac(algorithm)).doFinal(DATA_TO_SIGN);
+    }
+
+    @Test
+    public void testSignatureMatchesUncachedCalculation() throws Exception {
+        byte[] psk = "psk".getBytes(StandardCharsets.US_ASCII);
+        byte[] expected = calculateExpectedSignature(psk, PRF_HMAC_SHA1_ALGO_NAME);
+
+        assertArrayEquals(expected, sign(psk, PRF_HMAC_SHA1_ALGO_NAME));
+        assertArrayEquals(expected, sign(psk, PRF_HMAC_SHA1_ALGO_NAME));
+
+        assertEquals(1L, mPskPadKeyCache.getMissCount());
+        assertEquals(1L, mPskPadKeyCache.getHitCount());
+        assertEquals(1, mPskPadKeyCache.size());
+    }
+
+    @Test
+    public void testEntriesKeyedByPskInstanceAndPrf() throws Exception {
+        byte[] psk = "psk".getBytes(StandardCharsets.US_ASCII);
+        byte[] samePskOtherInstance = psk.clone();
+
+        sign(psk, PRF_HMAC_SHA1_ALGO_NAME);
+        sign(samePskOtherInstance, PRF_HMAC_SHA1_ALGO_NAME);
+        assertArrayEquals(
+                calculateExpectedSignature(psk, PRF_HMAC_SHA256_ALGO_NAME),
+                sign(psk, PRF_HMAC_SHA256_ALGO_NAME));
+
+        assertEquals(3L, mPskPadKeyCache.getMissCount());
+        assertEquals(3, mPskPadKeyCache.size());
+    }
+
+    @Test
+    public void testInvalidateAfterPskChanged() throws Exception {
+        byte[] psk = "psk".getBytes(StandardCharsets.US_ASCII);
+        sign(psk, PRF_HMAC_SHA1_ALGO_NAME);
+        sign(psk, PRF_HMAC_SHA256_ALGO_NAME);
+
+        psk[0] = 'P';
+        mPskPadKeyCache.invalidate(psk);
+        assertEquals(0, mPskPadKeyCache.size());
+
+        assertArrayEquals(
+                calculateExpectedSignature(psk, PRF_HMAC_SHA1_ALGO_NAME),
+                sign(psk, PRF_HMAC_SHA1_ALGO_NAME));
+        assertEquals(3L, mPskPadKeyCache.getMissCount());
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() throws Exception {
+        byte[][] psks = new byte[PskPadKeyCache.MAX_ENTRIES + 1][];
+        for (int i = 0; i < psks.length; i++) {
+            psks[i] = new byte[] {(byte) i};
+            sign(psks[i], PRF_HMAC_SHA1_ALGO_NAME);
+        }
+        assertEquals(PskPadKeyCache.MAX_ENTRIES, mPskPadKeyCache.size());
+
+        // psks[0] was evicted.
+        sign(psks[0], PRF_HMAC_SHA1_ALGO_NAME);
+        assertEquals(psks.length + 1, mPskPadKeyCache.getMissCount());
+
+        mPskPadKeyCache.invalidateAll();
+        assertEquals(0, mPskPadKeyCache.size());
+        assertEquals(0L, mPskPadKeyCache.getMissCount());
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ike.ikev2.crypto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.spec.ECGenParameterSpec;
+
+public final class SignatureCacheTest {
+    private static final String SIGNATURE_ALGO = "SHA256withECDSA";
+    private static final byte[] DATA = "SignedOctets".getBytes(StandardCharsets.US_ASCII);
+
+    private KeyPair mKeyPair;
+    private SignatureCache mSignatureCache;
+
+    @Before
+    public void setUp() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        mKeyPair = generator.generateKeyPair();
+        mSignatureCache = new SignatureCache();
+    }
+
+    private byte[] sign() throws Exception {
+        return mSignatureCache.withSigner(
+                SIGNATURE_ALGO,
+                mKeyPair.getPrivate(),
+                (Signature signer) -> {
+                    signer.update(DATA);
+                    return signer.sign();
+                });
+    }
+
+    private boolean verify(byte[] signature) throws Exception {
+        return mSignatureCache.withVerifier(
+                SIGNATURE_ALGO,
+                mKeyPair.getPublic(),
+                (Signature verifier) -> {
+                    verifier.update(DATA);
+                    return verifier.verify(signature);
+                });
+    }
+
+    @Test
+    public void testReuseInitializedSignature() throws Exception {
+        assertTrue(verify(sign()));
+        assertTrue(verify(sign()));
+
+        assertEquals(2L, mSignatureCache.getMissCount());
+        assertEquals(2L, mSignatureCache.getHitCount());
+    }
+
+    @Test
+    public void testDropSignatureAfterFailedOperation() throws Exception {
+        try {
+            mSignatureCache.withSigner(
+                    SIGNATURE_ALGO,
+                    mKeyPair.getPrivate(),
+                    (Signature signer) -> {
+                        signer.update(DATA);
+                        throw new SignatureException("Test failure");
+                    });
+            fail("Expected SignatureException");
+        } catch (SignatureException expected) {
+        }
+
+        sign();
+        assertEquals(2L, mSignatureCache.getMissCount());
+        assertEquals(0L, mSignatureCache.getHitCount());
+    }
+
+    @Test
+    public void testInvalidateKey() throws Exception {
+        sign();
+        mSignatureCache.invalidate(mKeyPair.getPrivate());
+        sign();
+
+        assertEquals(2L, mSignatureCache.getMissCount());
+        assertEquals(0L, mSignatureCache.getHitCount());
+    }
+
+    @Test
+    public void testConcurrentUsersGetDifferentSignatures() throws Exception {
+        Signature[] signatures = new Signature[2];
+        mSignatureCache.withSigner(
+                SIGNATURE_ALGO,
+                mKeyPair.getPrivate(),
+                (Signature outer) -> {
+                    signatures[0] = outer;
+                    try {
+                        return mSignatureCache.withSigner(
+                                SIGNATURE_ALGO,
+                                mKeyPair.getPrivate(),
+                                (Signature inner) -> {
+                                    signatures[1] = inner;
+                                    inner.update(DATA);
+                                    return inner.sign();
+                                });
+                    } catch (GeneralSecurityException e) {
+                        throw new SignatureException(e);
+                    }
+                });
+        assertNotSame(signatures[0], signatures[1]);
+
+        mSignatureCache.withSigner(
+                SIGNATURE_ALGO,
+                mKeyPair.getPrivate(),
+                (Signature signer) -> {
+                    assertSame(signatures[1], signer);
+                    return null;
+                });
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ike.ikev2.crypto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Base64;
+
+public final class X509CertificateCacheTest {
+    private static final String RSA_CERTIFICATE =
+            "MIICHDCCAYWgAwIBAgIULUhe9u3NcWMOI0uFS7FQfkjTaDswDQYJKoZIhvcNAQEL"
+                    + "BQAwHzEdMBsGA1UEAwwUcnNhLnRlc3QuYW5kcm9pZC5uZXQwIBcNMjYxMDE4MjAy"
+                    + "MzIxWhgPMjEyNjA5MjQyMDIzMjFaMB8xHTAbBgNVBAMMFHJzYS50ZXN0LmFuZHJv"
+                    + "aWQubmV0MIGfMA0GCSqGSIb3DQEBAQUAA4GNADCBiQKBgQDCnI5qazYvARD6B96x"
+                    + "Q7j/Ci1V09T/IJ71wzdi/AxVomSD6xH3tY3YNfwI+P8MzSXYYpieiOGDK7CF6N/p"
+                    + "MKqaJyLAb8xVEMJBNqI36hVCsJAnSyIhQMAx/SbAK7MN4D1CUpY6LH6D4tZVkAo/"
+                    + "Ms4M06BM636DzGb9QUZqRpbYrwIDAQABo1MwUTAdBgNVHQ4EFgQURhOMYxseJJU4"
+                    + "xlgeVpG5zDAfh7AwHwYDVR0jBBgwFoAURhOMYxseJJU4xlgeVpG5zDAfh7AwDwYD"
+                    + "VR0TAQH/BAUwAwEB/zANBgkqhkiG9w0BAQsFAAOBgQCsbDh1A1tlhUfnO/Q66GLk"
+                    + "jsBZ5kmwmR8myZuZkAeEQ/AKWLipvwKBdlHpcWEQc3GF6UizwZfYMVVjMrUex+d2"
+                    + "hB536tqJ4TXOLNmQXfoGl557J/SPQgtpK+akmTgKbdzkKJXio7dmWGKXR3m6KYvZ"
+                    + "7mqr1eOrUzcQeVdQuB5xMw==";
+    private static final String ECDSA_CERTIFICATE =
+            "MIIBmTCCAT+gAwIBAgIUHyGB9zuevU80xT/v5XGez2XwmXgwCgYIKoZIzj0EAwIw"
+                    + "ITEfMB0GA1UEAwwWZWNkc2EudGVzdC5hbmRyb2lkLm5ldDAgFw0yNjEwMTgyMDIz"
+                    + "MjFaGA8yMTI2MDkyNDIwMjMyMVowITEfMB0GA1UEAwwWZWNkc2EudGVzdC5hbmRy"
+                    + "b2lkLm5ldDBZMBMGByqGSM49AgEGCCqGSM49AwEHA0IABPPdVcz8DSoMkqctID8z"
+                    + "zSYlmaPatv5f1p8gA5Jl/1GZreUYk6q6ZtGai5TW0pu9QNcctZMcXtEXAseP4otr"
+                    + "dF+jUzBRMB0GA1UdDgQWBBSdMTM8GDz+uWt3O/BNLCRMG1HjmDAfBgNVHSMEGDAW"
+                    + "gBSdMTM8GDz+uWt3O/BNLCRMG1HjmDAPBgNVHRMBAf8EBTADAQH/MAoGCCqGSM49"
+                    + "BAMCA0gAMEUCIQDd4JPcbAQOKLiz52F6AEtac4t/lDwuts6aaFsBOwbkHQIgCwCO"
+                    + "N4haldq3oZ8eD5WDOytBeoF4bMiIO5WMn/sLcGQ=";
+
+    private static final byte[] RSA_CERT_DER = Base64.getDecoder().decode(RSA_CERTIFICATE);
+    private static final byte[] ECDSA_CERT_DER = Base64.getDecoder().decode(ECDSA_CERTIFICATE);
+
+    @Test
+    public void testHitReturnsSameCertificate() throws Exception {
+        X509CertificateCache cache =
+                new X509CertificateCache(
+                        X509CertificateCache.DEFAULT_MAX_ENTRIES,
+                        X509CertificateCache.DEFAULT_MAX_ENCODED_BYTES);
+
+        X509Certificate certificate = cache.getCertificate(RSA_CERT_DER);
+        // A new copy of the same DER encoding is served from the cache.
+        assertSame(certificate, cache.getCertificate(RSA_CERT_DER.clone()));
+
+        assertEquals(1L, cache.getMissCount());
+        assertEquals(1L, cache.getHitCount());
+        assertEquals(0.5, cache.getHitRate(), 0.0);
+        assertEquals(RSA_CERT_DER.length, cache.getEncodedBytes());
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsedByCount() throws Exception {
+        X509CertificateCache cache =
+                new X509CertificateCache(1, X509CertificateCache.DEFAULT_MAX_ENCODED_BYTES);
+
+        cache.getCertificate(RSA_CERT_DER);
+        cache.getCertificate(ECDSA_CERT_DER);
+        assertEquals(1, cache.size());
+        assertEquals(ECDSA_CERT_DER.length, cache.getEncodedBytes());
+
+        cache.getCertificate(RSA_CERT_DER);
+        assertEquals(3L, cache.getMissCount());
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsedByEncodedBytes() throws Exception {
+        X509CertificateCache cache =
+                new X509CertificateCache(
+                        X509CertificateCache.DEFAULT_MAX_ENTRIES,
+                        RSA_CERT_DER.length + ECDSA_CERT_DER.length - 1);
+
+        cache.getCertificate(RSA_CERT_DER);
+        cache.getCertificate(ECDSA_CERT_DER);
+
+        assertEquals(1, cache.size());
+        assertEquals(ECDSA_CERT_DER.length, cache.getEncodedBytes());
+    }
+
+    @Test
+    public void testInvalidCertificateNotCached() throws Exception {
+        X509CertificateCache cache =
+                new X509CertificateCache(
+                        X509CertificateCache.DEFAULT_MAX_ENTRIES,
+                        X509CertificateCache.DEFAULT_MAX_ENCODED_BYTES);
+        byte[] trailingBytes = Arrays.copyOf(RSA_CERT_DER, RSA_CERT_DER.length + 2);
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.getCertificate(trailingBytes);
+                fail("Expected CertificateException: Unexpected trailing bytes.");
+            } catch (CertificateException expected) {
+            }
+        }
+        assertEquals(2L, cache.getMissCount());
+        assertEquals(0, cache.size());
+    }
+}
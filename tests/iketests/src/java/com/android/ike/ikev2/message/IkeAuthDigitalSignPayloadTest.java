@@ -16,11 +16,27 @@
 
 package com.android.ike.ikev2.message;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.ike.ikev2.exceptions.AuthenticationFailedException;
 
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+
 public final class IkeAuthDigitalSignPayloadTest {
 
     private static final String AUTH_PAYLOAD_BODY_GENERIC_DIGITAL_SIGN_HEX_STRING =
@@ -35,6 +51,226 @@ public final class IkeAuthDigitalSignPayloadTest {
                     + "9aea77e5761ac5683a0b5af300ceb52f5e8d8168";
     // TODO: Build a RSA_SHA1 signature and add tests for it.
 
+    // Self-signed 1024-bit RSA and P-256 ECDSA certificates with their PKCS#8 private keys.
+    private static final String RSA_END_CERTIFICATE =
+            "MIICHDCCAYWgAwIBAgIULUhe9u3NcWMOI0uFS7FQfkjTaDswDQYJKoZIhvcNAQEL"
+                    + "BQAwHzEdMBsGA1UEAwwUcnNhLnRlc3QuYW5kcm9pZC5uZXQwIBcNMjYxMDE4MjAy"
+                    + "MzIxWhgPMjEyNjA5MjQyMDIzMjFaMB8xHTAbBgNVBAMMFHJzYS50ZXN0LmFuZHJv"
+                    + "aWQubmV0MIGfMA0GCSqGSIb3DQEBAQUAA4GNADCBiQKBgQDCnI5qazYvARD6B96x"
+                    + "Q7j/Ci1V09T/IJ71wzdi/AxVomSD6xH3tY3YNfwI+P8MzSXYYpieiOGDK7CF6N/p"
+                    + "MKqaJyLAb8xVEMJBNqI36hVCsJAnSyIhQMAx/SbAK7MN4D1CUpY6LH6D4tZVkAo/"
+                    + "Ms4M06BM636DzGb9QUZqRpbYrwIDAQABo1MwUTAdBgNVHQ4EFgQURhOMYxseJJU4"
+                    + "xlgeVpG5zDAfh7AwHwYDVR0jBBgwFoAURhOMYxseJJU4xlgeVpG5zDAfh7AwDwYD"
+                    + "VR0TAQH/BAUwAwEB/zANBgkqhkiG9w0BAQsFAAOBgQCsbDh1A1tlhUfnO/Q66GLk"
+                    + "jsBZ5kmwmR8myZuZkAeEQ/AKWLipvwKBdlHpcWEQc3GF6UizwZfYMVVjMrUex+d2"
+                    + "hB536tqJ4TXOLNmQXfoGl557J/SPQgtpK+akmTgKbdzkKJXio7dmWGKXR3m6KYvZ"
+                    + "7mqr1eOrUzcQeVdQuB5xMw==";
+    private static final String RSA_PRIVATE_KEY_HEX_STRING =
+            "30820276020100300d06092a864886f70d0101010500048202603082025c0201"
+                    + "0002818100c29c8e6a6b362f0110fa07deb143b8ff0a2d55d3d4ff209ef5c337"
+                    + "62fc0c55a26483eb11f7b58dd835fc08f8ff0ccd25d862989e88e1832bb085e8"
+                    + "dfe930aa9a2722c06fcc5510c24136a237ea1542b090274b222140c031fd26c0"
+                    + "2bb30de03d4252963a2c7e83e2d655900a3f32ce0cd3a04ceb7e83cc66fd4146"
+                    + "6a4696d8af020301000102818062f6157d8c133b87c14843a43c6401b8bf461a"
+                    + "74e3c4f0a3a4b9a67a914cfc66ddd22f412dc386e3c15fee781fca34afdfff13"
+                    + "38dac6425b7f22392f537749e8c298c68fe2eac8224075808452a8766de028ef"
+                    + "3d3236724b762c0c8d9887724e08704e0a19039d90b2b82e8265db7aceca46a0"
+                    + "77a5be210b952542e6ed5da601024100e46f15dd9b5470235595c3efd7814f43"
+                    + "a1a5efa65cc422a0fbe4d4ae4a2b9dd65d9b306f30742aef88553a83c0b4121f"
+                    + "d112350052ce6b509dfa02e1c6a7222f024100da189c3382cabd6f3e490741cb"
+                    + "97d457c1a35495950c22e3fa9be1dc19ec648f083fd21df43cef43683c360a95"
+                    + "ecd69c24e97c06395a585cfb1658afe79e918102400cb7224073a4ff98f7ea9e"
+                    + "3d7b8177280c976fff92aa58431dc25f14548c98fc95b94db8e2b994aa40ac7d"
+                    + "d557a4ae5d9705ac6d982e654ad7805328be260f81024100aee69f959ba51507"
+                    + "fa4e3c78a25a2f5af51a13c225966700a7408d7fa276762a527643fdeb995653"
+                    + "9b6af5f7c545fad19bb476d6d2f5c5f9430f27ae61b44381024019f66c99cddc"
+                    + "71334f0b8bcec5ceebafbf89035e8414d876af689fc541b0117f19f8a7b81e0a"
+                    + "0988729abaa9a0cf19d8016d4cf24cdb91cf8d2cab26ad92c252";
+    private static final String ECDSA_END_CERTIFICATE =
+            "MIIBmTCCAT+gAwIBAgIUHyGB9zuevU80xT/v5XGez2XwmXgwCgYIKoZIzj0EAwIw"
+                    + "ITEfMB0GA1UEAwwWZWNkc2EudGVzdC5hbmRyb2lkLm5ldDAgFw0yNjEwMTgyMDIz"
+                    + "MjFaGA8yMTI2MDkyNDIwMjMyMVowITEfMB0GA1UEAwwWZWNkc2EudGVzdC5hbmRy"
+                    + "b2lkLm5ldDBZMBMGByqGSM49AgEGCCqGSM49AwEHA0IABPPdVcz8DSoMkqctID8z"
+                    + "zSYlmaPatv5f1p8gA5Jl/1GZreUYk6q6ZtGai5TW0pu9QNcctZMcXtEXAseP4otr"
+                    + "dF+jUzBRMB0GA1UdDgQWBBSdMTM8GDz+uWt3O/BNLCRMG1HjmDAfBgNVHSMEGDAW"
+                    + "gBSdMTM8GDz+uWt3O/BNLCRMG1HjmDAPBgNVHRMBAf8EBTADAQH/MAoGCCqGSM49"
+                    + "BAMCA0gAMEUCIQDd4JPcbAQOKLiz52F6AEtac4t/lDwuts6aaFsBOwbkHQIgCwCO"
+                    + "N4haldq3oZ8eD5WDOytBeoF4bMiIO5WMn/sLcGQ=";
+    private static final String ECDSA_PRIVATE_KEY_HEX_STRING =
+            "308187020100301306072a8648ce3d020106082a8648ce3d030107046d306b02"
+                    + "01010420ae27a803e5a8714a47550c6e8b667a6afb2a5e6dff5d065d7a432154"
+                    + "38ffb1eda14403420004f3dd55ccfc0d2a0c92a72d203f33cd262599a3dab6fe"
+                    + "5fd69f20039265ff5199ade51893aaba66d19a8b94d6d29bbd40d71cb5931c5e"
+                    + "d11702c78fe28b6b745f";
+
+    private static final String ID_PAYLOAD_BODY_HEX_STRING = "010000000a50500d";
+    private static final String PRF_KEY_HEX_STRING = "094787780EE466E2CB049FA327B43908BC57E485";
+    private static final String NONCE_HEX_STRING =
+            "9756112ca539f5c25abacc7ee92b73091942a9c06950f98848f1af1694c4ddff";
+    private static final String IKE_INIT_HEX_STRING =
+            "5f54bf6d8b48e6e1000000000000000021202208"
+                    + "0000000000000150220000300000002c01010004";
+
+    // RSASSA-PSS with SHA-256 identifier in DER, which omits the default trailerField.
+    private static final String AUTH_PAYLOAD_BODY_RSA_PSS_DER_HEX_STRING =
+            "0e00000043304106092a864886f70d01010a3034a00f300d0609608648016503"
+                    + "0402010500a11c301a06092a864886f70d010108300d06096086480165030402"
+                    + "010500a2030201200102030405060708";
+
+    private static final String PRF_HMAC_SHA1_ALGO_NAME = "HmacSHA1";
+
+    private static final String[] RSA_SIGNATURE_ALGOS = {
+        IkeAuthDigitalSignPayload.SIGNATURE_ALGO_RSA_SHA2_256,
+        IkeAuthDigitalSignPayload.SIGNATURE_ALGO_RSA_SHA2_512,
+        IkeAuthDigitalSignPayload.SIGNATURE_ALGO_RSA_PSS_SHA2_256,
+        IkeAuthDigitalSignPayload.SIGNATURE_ALGO_RSA_PSS_SHA2_384
+    };
+    private static final String[] ECDSA_SIGNATURE_ALGOS = {
+        IkeAuthDigitalSignPayload.SIGNATURE_ALGO_ECDSA_SHA2_256,
+        IkeAuthDigitalSignPayload.SIGNATURE_ALGO_ECDSA_SHA2_384,
+        IkeAuthDigitalSignPayload.SIGNATURE_ALGO_ECDSA_SHA2_512
+    };
+
+    private static final byte[] ID_PAYLOAD_BODY =
+            TestUtils.hexStringToByteArray(ID_PAYLOAD_BODY_HEX_STRING);
+    private static final byte[] PRF_KEY = TestUtils.hexStringToByteArray(PRF_KEY_HEX_STRING);
+    private static final byte[] NONCE = TestUtils.hexStringToByteArray(NONCE_HEX_STRING);
+    private static final byte[] IKE_INIT = TestUtils.hexStringToByteArray(IKE_INIT_HEX_STRING);
+
+    private static X509Certificate buildCertificate(String base64Cert) throws Exception {
+        CertificateFactory factory = CertificateFactory.getInstance("X.509");
+        return (X509Certificate)
+                factory.generateCertificate(
+                        new ByteArrayInputStream(Base64.getDecoder().decode(base64Cert)));
+    }
+
+    private static PrivateKey buildPrivateKey(String keyAlgorithm, String pkcs8HexString)
+            throws Exception {
+        return KeyFactory.getInstance(keyAlgorithm)
+                .generatePrivate(
+                        new PKCS8EncodedKeySpec(TestUtils.hexStringToByteArray(pkcs8HexString)));
+    }
+
+    private static Mac getPrfMac() throws Exception {
+        return Mac.getInstance(PRF_HMAC_SHA1_ALGO_NAME, IkeMessage.getSecurityProvider());
+    }
+
+    private static IkeAuthDigitalSignPayload encodeAndDecode(IkeAuthDigitalSignPayload payload)
+            throws Exception {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(payload.getPayloadLength());
+        payload.encodeToByteBuffer(IkePayload.PAYLOAD_TYPE_NO_NEXT, byteBuffer);
+        byte[] payloadBody =
+                Arrays.copyOfRange(
+                        byteBuffer.array(), IkePayload.GENERIC_HEADER_LENGTH, byteBuffer.limit());
+        return (IkeAuthDigitalSignPayload) IkeAuthPayload.getIkeAuthPayload(false, payloadBody);
+    }
+
+    private static void verifySignAndVerify(
+            String[] signatureAlgos, String base64Cert, String keyAlgorithm, String keyHex)
+            throws Exception {
+        X509Certificate cert = buildCertificate(base64Cert);
+        PrivateKey privateKey = buildPrivateKey(keyAlgorithm, keyHex);
+
+        for (String signatureAlgo : signatureAlgos) {
+            IkeAuthDigitalSignPayload outboundPayload =
+                    new IkeAuthDigitalSignPayload(
+                            signatureAlgo,
+                            privateKey,
+                            IKE_INIT,
+                            NONCE,
+                            ID_PAYLOAD_BODY,
+                            getPrfMac(),
+                            PRF_KEY);
+            IkeAuthDigitalSignPayload inboundPayload = encodeAndDecode(outboundPayload);
+
+            assertEquals(
+                    IkeAuthPayload.AUTH_METHOD_GENERIC_DIGITAL_SIGN, inboundPayload.authMethod);
+            assertEquals(signatureAlgo, inboundPayload.signatureAlgoAndHash);
+            assertArrayEquals(outboundPayload.signature, inboundPayload.signature);
+
+            inboundPayload.verifyInboundSignature(
+                    cert, IKE_INIT, NONCE, ID_PAYLOAD_BODY, getPrfMac(), PRF_KEY);
+        }
+    }
+
+    @Test
+    public void testSignAndVerifyRsa() throws Exception {
+        verifySignAndVerify(
+                RSA_SIGNATURE_ALGOS, RSA_END_CERTIFICATE, "RSA", RSA_PRIVATE_KEY_HEX_STRING);
+    }
+
+    @Test
+    public void testSignAndVerifyEcdsa() throws Exception {
+        verifySignAndVerify(
+                ECDSA_SIGNATURE_ALGOS, ECDSA_END_CERTIFICATE, "EC", ECDSA_PRIVATE_KEY_HEX_STRING);
+    }
+
+    @Test
+    public void testDecodeRsaPssWithoutTrailerField() throws Exception {
+        byte[] inputPacket =
+                TestUtils.hexStringToByteArray(AUTH_PAYLOAD_BODY_RSA_PSS_DER_HEX_STRING);
+        IkeAuthDigitalSignPayload payload =
+                (IkeAuthDigitalSignPayload) IkeAuthPayload.getIkeAuthPayload(false, inputPacket);
+
+        assertEquals(
+                IkeAuthDigitalSignPayload.SIGNATURE_ALGO_RSA_PSS_SHA2_256,
+                payload.signatureAlgoAndHash);
+        assertArrayEquals(
+                TestUtils.hexStringToByteArray("0102030405060708"), payload.signature);
+    }
+
+    @Test
+    public void testVerifyFailsWithModifiedSignedOctets() throws Exception {
+        IkeAuthDigitalSignPayload payload =
+                new IkeAuthDigitalSignPayload(
+                        IkeAuthDigitalSignPayload.SIGNATURE_ALGO_ECDSA_SHA2_256,
+                        buildPrivateKey("EC", ECDSA_PRIVATE_KEY_HEX_STRING),
+                        IKE_INIT,
+                        NONCE,
+                        ID_PAYLOAD_BODY,
+                        getPrfMac(),
+                        PRF_KEY);
+        byte[] nonce = Arrays.copyOf(NONCE, NONCE.length);
+        nonce[0]++;
+
+        try {
+            payload.verifyInboundSignature(
+                    buildCertificate(ECDSA_END_CERTIFICATE),
+                    IKE_INIT,
+                    nonce,
+                    ID_PAYLOAD_BODY,
+                    getPrfMac(),
+                    PRF_KEY);
+            fail("Expected signature verification to have failed due to mismatched signatures.");
+        } catch (AuthenticationFailedException expected) {
+        }
+    }
+
+    @Test
+    public void testVerifyFailsWithMismatchedKeyType() throws Exception {
+        IkeAuthDigitalSignPayload payload =
+                new IkeAuthDigitalSignPayload(
+                        IkeAuthDigitalSignPayload.SIGNATURE_ALGO_RSA_SHA2_256,
+                        buildPrivateKey("RSA", RSA_PRIVATE_KEY_HEX_STRING),
+                        IKE_INIT,
+                        NONCE,
+                        ID_PAYLOAD_BODY,
+                        getPrfMac(),
+                        PRF_KEY);
+
+        try {
+            payload.verifyInboundSignature(
+                    buildCertificate(ECDSA_END_CERTIFICATE),
+                    IKE_INIT,
+                    NONCE,
+                    ID_PAYLOAD_BODY,
+                    getPrfMac(),
+                    PRF_KEY);
+            fail("Expected signature verification to have failed due to mismatched key type.");
+        } catch (AuthenticationFailedException expected) {
+        }
+    }
+
     @Test
     public void testDecodeGenericDigitalSignPayload() throws Exception {
         byte[] inputPacket =
@@ -23,6 +23,8 @@ import static org.junit.Assert.fail;
 
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+
 import javax.crypto.Mac;
 
 public final class IkeAuthPayloadTest {
@@ -130,4 +132,19 @@ public final class IkeAuthPayloadTest {
                         ikeInitRequest, nonceResp, idBytes, prfMac, skpBytes);
         byte[] expectedBytes = TestUtils.hexStringToByteArray(PSK_INIT_SIGNED_OCTETS);
     }
+
+    @Test
+    public void testUpdateWithSignedOctets() throws Exception {
+        byte[] signedIdBytes =
+                TestUtils.hexStringToByteArray(PSK_SIGNED_OCTETS_APPENDIX_HEX_STRING);
+        byte[] ikeInitRequest = TestUtils.hexStringToByteArray(PSK_IKE_INIT_REQUEST_HEX_STRING);
+        byte[] nonceResp = TestUtils.hexStringToByteArray(PSK_NONCE_RESP_HEX_STRING);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        IkeAuthPayload.updateWithSignedOctets(
+                outputStream::write, ikeInitRequest, nonceResp, signedIdBytes);
+
+        byte[] expectedBytes = TestUtils.hexStringToByteArray(PSK_INIT_SIGNED_OCTETS);
+        assertArrayEquals(expectedBytes, outputStream.toByteArray());
+    }
 }
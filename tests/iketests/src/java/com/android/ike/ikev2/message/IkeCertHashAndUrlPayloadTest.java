@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ike.ikev2.message;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.ike.ikev2.crypto.CertificateFetchCache;
+import com.android.ike.ikev2.exceptions.AuthenticationFailedException;
+import com.android.ike.ikev2.exceptions.InvalidSyntaxException;
+import com.android.ike.ikev2.utils.HttpCertificateFetcher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public final class IkeCertHashAndUrlPayloadTest {
+    private static final String CERT_URL = "http://certs.android.com/ike/end.der";
+    private static final String BUNDLE_URL = "http://certs.android.com/ike/bundle.der";
+
+    private static final byte[] END_CERT_DER =
+            Base64.getDecoder().decode(IkeCertX509CertPayloadTest.END_CERTIFICATE);
+    private static final byte[] INTERMEDIATE_CERT_DER =
+            Base64.getDecoder().decode(IkeCertX509CertPayloadTest.INTERMEDIATE_CA_CERTIFICATE);
+
+    private final Map<String, byte[]> mRepository = new HashMap<>();
+
+    @Before
+    public void setUp() throws Exception {
+        ByteArrayOutputStream bundle = new ByteArrayOutputStream();
+        bundle.write(END_CERT_DER);
+        bundle.write(INTERMEDIATE_CERT_DER);
+        mRepository.put(CERT_URL, END_CERT_DER);
+        mRepository.put(BUNDLE_URL, bundle.toByteArray());
+
+        CertificateFetchCache.getInstance().clear();
+        CertificateFetchCache.getInstance().setFetcher((String url) -> mRepository.get(url));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        CertificateFetchCache.getInstance().clear();
+        CertificateFetchCache.getInstance().setFetcher(new HttpCertificateFetcher());
+    }
+
+    private static byte[] encodePayloadBody(int encodingType, byte[] content, String url) {
+        IkeCertHashAndUrlPayload payload =
+                new IkeCertHashAndUrlPayload(
+                        encodingType, CertificateFetchCache.digest(content), url);
+        ByteBuffer byteBuffer = ByteBuffer.allocate(payload.getPayloadLength());
+        payload.encodeToByteBuffer(IkePayload.PAYLOAD_TYPE_NO_NEXT, byteBuffer);
+
+        byte[] payloadBody = new byte[byteBuffer.capacity() - IkePayload.GENERIC_HEADER_LENGTH];
+        byteBuffer.position(IkePayload.GENERIC_HEADER_LENGTH);
+        byteBuffer.get(payloadBody);
+        return payloadBody;
+    }
+
+    @Test
+    public void testEncodeDecodeHashAndUrl() throws Exception {
+        byte[] payloadBody =
+                encodePayloadBody(
+                        IkeCertPayload.CERTIFICATE_ENCODING_X509_CERT_HASH_URL,
+                        END_CERT_DER,
+                        CERT_URL);
+        assertEquals(
+                IkeCertPayload.CERT_ENCODING_LEN
+                        + CertificateFetchCache.HASH_LEN
+                        + CERT_URL.length(),
+                payloadBody.length);
+
+        IkeCertPayload certPayload = IkeCertPayload.getIkeCertPayload(false, payloadBody);
+        assertTrue(certPayload instanceof IkeCertHashAndUrlPayload);
+        IkeCertHashAndUrlPayload hashAndUrlPayload = (IkeCertHashAndUrlPayload) certPayload;
+        assertEquals(CERT_URL, hashAndUrlPayload.url);
+        assertArrayEquals(CertificateFetchCache.digest(END_CERT_DER), hashAndUrlPayload.certHash);
+
+        List<X509Certificate> certs = hashAndUrlPayload.fetchCertificates();
+        assertEquals(1, certs.size());
+        assertArrayEquals(END_CERT_DER, certs.get(0).getEncoded());
+
+        // Second lookup is served by the cache.
+        hashAndUrlPayload.fetchCertificates();
+        assertEquals(1L, CertificateFetchCache.getInstance().getMissCount());
+        assertEquals(1L, CertificateFetchCache.getInstance().getHitCount());
+    }
+
+    @Test
+    public void testFetchBundle() throws Exception {
+        byte[] payloadBody =
+                encodePayloadBody(
+                        IkeCertPayload.CERTIFICATE_ENCODING_X509_BUNDLE_HASH_URL,
+                        mRepository.get(BUNDLE_URL),
+                        BUNDLE_URL);
+        IkeCertHashAndUrlPayload certPayload =
+                (IkeCertHashAndUrlPayload) IkeCertPayload.getIkeCertPayload(false, payloadBody);
+
+        List<X509Certificate> certs = certPayload.fetchCertificates();
+        assertEquals(2, certs.size());
+        assertArrayEquals(END_CERT_DER, certs.get(0).getEncoded());
+        assertArrayEquals(INTERMEDIATE_CERT_DER, certs.get(1).getEncoded());
+    }
+
+    @Test
+    public void testFetchWithHashMismatch() throws Exception {
+        byte[] payloadBody =
+                encodePayloadBody(
+                        IkeCertPayload.CERTIFICATE_ENCODING_X509_CERT_HASH_URL,
+                        INTERMEDIATE_CERT_DER,
+                        CERT_URL);
+        IkeCertHashAndUrlPayload certPayload =
+                (IkeCertHashAndUrlPayload) IkeCertPayload.getIkeCertPayload(false, payloadBody);
+        try {
+            certPayload.fetchCertificates();
+            fail("Expected AuthenticationFailedException: " + "Hash mismatch.");
+        } catch (AuthenticationFailedException expected) {
+        }
+        assertEquals(0, CertificateFetchCache.getInstance().size());
+    }
+
+    @Test
+    public void testDecodeWithoutUrl() throws Exception {
+        byte[] payloadBody =
+                new byte[IkeCertPayload.CERT_ENCODING_LEN + CertificateFetchCache.HASH_LEN];
+        payloadBody[0] = (byte) IkeCertPayload.CERTIFICATE_ENCODING_X509_CERT_HASH_URL;
+        try {
+            IkeCertPayload.getIkeCertPayload(false, payloadBody);
+            fail("Expected InvalidSyntaxException: " + "URL is missing.");
+        } catch (InvalidSyntaxException expected) {
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBuildWithInvalidEncodingType() throws Exception {
+        new IkeCertHashAndUrlPayload(
+                IkeCertPayload.CERTIFICATE_ENCODING_X509_CERT_SIGNATURE,
+                CertificateFetchCache.digest(END_CERT_DER),
+                CERT_URL);
+    }
+}
@@ -17,18 +17,27 @@
 package com.android.ike.ikev2.message;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import com.android.ike.ikev2.crypto.CertPathValidationCache;
 import com.android.ike.ikev2.exceptions.AuthenticationFailedException;
 
+import org.junit.Before;
 import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
 import java.security.cert.CertificateFactory;
+import java.security.cert.TrustAnchor;
 import java.security.cert.X509Certificate;
 import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
 
 public final class IkeCertX509CertPayloadTest {
     private static final String CERT_PAYLOAD_BODY_HEX_STRING =
@@ -93,21 +102,66 @@ public final class IkeCertX509CertPayloadTest {
                     + "7beRMLs=";
     private static final int CERTIFICATE_OFFSET = 1;
 
+    // Certification path of EC certificates: root CA -> intermediate CA -> end certificate.
+    private static final String ROOT_CA_CERTIFICATE =
+            "MIIBnjCCAUOgAwIBAgIUIngL4JLIPho3cXolszaRiUSZc80wCgYIKoZIzj0EAwIw"
+                    + "GzEZMBcGA1UEAwwQSUtFIFRlc3QgUm9vdCBDQTAgFw0yNjEwMTgyMDI5MjZaGA8y"
+                    + "MTI2MDkyNDIwMjkyNlowGzEZMBcGA1UEAwwQSUtFIFRlc3QgUm9vdCBDQTBZMBMG"
+                    + "ByqGSM49AgEGCCqGSM49AwEHA0IABDYE624G2KtNxts90tAyRXNHLkDiX9wx8snj"
+                    + "nXRej5/HD/BzNLUCt430jBcr9wva/+hzrIvtqciQ7ro6Y1oLN9ajYzBhMB0GA1Ud"
+                    + "DgQWBBSk/SkmCLFf6wSXcv7arYpSuznPEjAfBgNVHSMEGDAWgBSk/SkmCLFf6wSX"
+                    + "cv7arYpSuznPEjAPBgNVHRMBAf8EBTADAQH/MA4GA1UdDwEB/wQEAwIBBjAKBggq"
+                    + "hkjOPQQDAgNJADBGAiEAw+/Qk03rw6+q4lzHLwSLAuCMAswjA7P0nkXRnAJdOKcC"
+                    + "IQCZOGJ3VAOcQ+y84TquHd8YTDkzJRqu3ZV2Yr1UDefhxA==";
+
+    static final String INTERMEDIATE_CA_CERTIFICATE =
+            "MIIBpTCCAUugAwIBAgIUdnZ2YDy7cOS2p2JGovzlq9FHRu4wCgYIKoZIzj0EAwIw"
+                    + "GzEZMBcGA1UEAwwQSUtFIFRlc3QgUm9vdCBDQTAgFw0yNjEwMTgyMDI5MjZaGA8y"
+                    + "MTI2MDkyNDIwMjkyNlowIzEhMB8GA1UEAwwYSUtFIFRlc3QgSW50ZXJtZWRpYXRl"
+                    + "IENBMFkwEwYHKoZIzj0CAQYIKoZIzj0DAQcDQgAEDiDFpywcNGK60JSbhKYfPRKJ"
+                    + "3And4sIjcUBE6fgTKFUBsjxh88dFwATy2azxLZKr1BPB1Qpwl6q1BumwEn0uLKNj"
+                    + "MGEwDwYDVR0TAQH/BAUwAwEB/zAOBgNVHQ8BAf8EBAMCAQYwHQYDVR0OBBYEFNzF"
+                    + "ONSAW3UFhcZ6TGcUo0aV+1peMB8GA1UdIwQYMBaAFKT9KSYIsV/rBJdy/tqtilK7"
+                    + "Oc8SMAoGCCqGSM49BAMCA0gAMEUCIQD/U7VgQRGmqzm13KgZC/XgMZTkA35+eY+q"
+                    + "jm2NhnwAygIgHB7wsthzX4+ID4pwQdifo1mHdBKavOUFJNBVwUIQjeo=";
+
+    static final String END_CERTIFICATE =
+            "MIIBtjCCAV2gAwIBAgIUNnodkrY7UgZxPvj0fTQWmvgr8FUwCgYIKoZIzj0EAwIw"
+                    + "IzEhMB8GA1UEAwwYSUtFIFRlc3QgSW50ZXJtZWRpYXRlIENBMCAXDTI2MTAxODIw"
+                    + "MjkyNloYDzIxMjYwOTI0MjAyOTI2WjAfMR0wGwYDVQQDDBRpa2UudGVzdC5hbmRy"
+                    + "b2lkLmNvbTBZMBMGByqGSM49AgEGCCqGSM49AwEHA0IABFSIzlEWqR1MFHhpJHYD"
+                    + "Z8Ir3+Cxhv24tZ+IMScaoNqEWcFNLyimqnEOaCmR8zzLLvtghE++2Hv6wc7t0jkE"
+                    + "D2ajcTBvMAwGA1UdEwEB/wQCMAAwHwYDVR0RBBgwFoIUaWtlLnRlc3QuYW5kcm9p"
+                    + "ZC5jb20wHQYDVR0OBBYEFD+SJisg7v7Md6ipqVfThYpP6KQmMB8GA1UdIwQYMBaA"
+                    + "FNzFONSAW3UFhcZ6TGcUo0aV+1peMAoGCCqGSM49BAMCA0cAMEQCIDaa0qGVsyZD"
+                    + "ES4v2kkX4OmdSeAxC6qNuOKgJU6+dA2YAiAxl/OVsiJD1IEoDyOEglK9uxMp1C4p"
+                    + "KhrhbncqPICUKQ==";
+
+    @Before
+    public void setUp() throws Exception {
+        CertPathValidationCache.getInstance().clear();
+    }
+
     @Test
     public void testDecodeX509Certificate() throws Exception {
         byte[] inputPacket = TestUtils.hexStringToByteArray(CERT_PAYLOAD_BODY_HEX_STRING);
         IkeCertPayload certPayload = IkeCertPayload.getIkeCertPayload(false, inputPacket);
 
         assertTrue(certPayload instanceof IkeCertX509CertPayload);
+        IkeCertX509CertPayload x509CertPayload = (IkeCertX509CertPayload) certPayload;
+        assertFalse(x509CertPayload.isCertificateParsed());
+
         X509Certificate expectedCert = pemStringToCertificate(CLIENT_END_CERTIFICATE);
-        assertEquals(expectedCert, ((IkeCertX509CertPayload) certPayload).certificate);
+        assertEquals(expectedCert, x509CertPayload.getCertificate());
+        assertTrue(x509CertPayload.isCertificateParsed());
+        assertSame(x509CertPayload.getCertificate(), x509CertPayload.getCertificate());
     }
 
     @Test
     public void testDecodeX509CertificateWithUnexpectedTrailing() throws Exception {
         byte[] inputPacket = TestUtils.hexStringToByteArray(CERT_PAYLOAD_BODY_HEX_STRING + "ffff");
         try {
-            IkeCertPayload.getIkeCertPayload(false, inputPacket);
+            decodeAndGetCertificate(inputPacket);
             fail("Expected AuthenticationFailedException: " + "Unexpected trailing bytes.");
         } catch (AuthenticationFailedException expected) {
         }
@@ -118,7 +172,7 @@ public final class IkeCertX509CertPayloadTest {
         byte[] inputPacket = TestUtils.hexStringToByteArray(CERT_PAYLOAD_BODY_HEX_STRING);
         inputPacket[CERTIFICATE_OFFSET] = 0;
         try {
-            IkeCertPayload.getIkeCertPayload(false, inputPacket);
+            decodeAndGetCertificate(inputPacket);
             fail("Expected AuthenticationFailedException: " + "No certificate got.");
         } catch (AuthenticationFailedException expected) {
         }
@@ -128,14 +182,82 @@ public final class IkeCertX509CertPayloadTest {
     public void testDecodeInvalidX509Certificate() throws Exception {
         byte[] inputPacket = TestUtils.hexStringToByteArray(CERT_PAYLOAD_BODY_HEX_STRING);
         try {
-            IkeCertPayload.getIkeCertPayload(
-                    false, Arrays.copyOfRange(inputPacket, 0, inputPacket.length - 1));
+            decodeAndGetCertificate(
+                    Arrays.copyOfRange(inputPacket, 0, inputPacket.length - 1));
             fail("Expected AuthenticationFailedException: " + "Certificate parsing exception.");
         } catch (AuthenticationFailedException expected) {
         }
     }
 
-    private X509Certificate pemStringToCertificate(String certPemStr) throws Exception {
+    @Test
+    public void testValidateCertificates() throws Exception {
+        Set<TrustAnchor> trustAnchors =
+                Collections.singleton(
+                        new TrustAnchor(pemStringToCertificate(ROOT_CA_CERTIFICATE), null));
+        IkeCertX509CertPayload endCertPayload = pemStringToCertPayload(END_CERTIFICATE);
+        List<IkeCertX509CertPayload> otherCertPayloads =
+                Arrays.asList(pemStringToCertPayload(INTERMEDIATE_CA_CERTIFICATE));
+
+        IkeCertPayload.validateCertificates(endCertPayload, otherCertPayloads, trustAnchors);
+
+        // Validation result is reused for the same certificates received in another message.
+        IkeCertX509CertPayload receivedAgain = pemStringToCertPayload(END_CERTIFICATE);
+        IkeCertPayload.validateCertificates(
+                receivedAgain,
+                Arrays.asList(pemStringToCertPayload(INTERMEDIATE_CA_CERTIFICATE)),
+                trustAnchors);
+        assertFalse(receivedAgain.isCertificateParsed());
+
+        CertPathValidationCache cache = CertPathValidationCache.getInstance();
+        assertEquals(1L, cache.getMissCount());
+        assertEquals(1L, cache.getHitCount());
+    }
+
+    @Test
+    public void testValidateCertificatesWithoutIntermediate() throws Exception {
+        Set<TrustAnchor> trustAnchors =
+                Collections.singleton(
+                        new TrustAnchor(pemStringToCertificate(ROOT_CA_CERTIFICATE), null));
+        try {
+            IkeCertPayload.validateCertificates(
+                    pemStringToCertPayload(END_CERTIFICATE), new LinkedList<>(), trustAnchors);
+            fail("Expected AuthenticationFailedException: " + "No certification path.");
+        } catch (AuthenticationFailedException expected) {
+        }
+        assertEquals(0, CertPathValidationCache.getInstance().size());
+    }
+
+    @Test
+    public void testValidateCertificatesWithUntrustedRoot() throws Exception {
+        Set<TrustAnchor> trustAnchors =
+                Collections.singleton(
+                        new TrustAnchor(pemStringToCertificate(CLIENT_END_CERTIFICATE), null));
+        try {
+            IkeCertPayload.validateCertificates(
+                    pemStringToCertPayload(END_CERTIFICATE),
+                    Arrays.asList(pemStringToCertPayload(INTERMEDIATE_CA_CERTIFICATE)),
+                    trustAnchors);
+            fail("Expected AuthenticationFailedException: " + "Untrusted root.");
+        } catch (AuthenticationFailedException expected) {
+        }
+    }
+
+    private static X509Certificate decodeAndGetCertificate(byte[] inputPacket) throws Exception {
+        // Decoding MUST succeed. Parsing errors are only reported when certificate is accessed.
+        IkeCertPayload certPayload = IkeCertPayload.getIkeCertPayload(false, inputPacket);
+        return ((IkeCertX509CertPayload) certPayload).getCertificate();
+    }
+
+    private static IkeCertX509CertPayload pemStringToCertPayload(String certPemStr)
+            throws Exception {
+        byte[] certData = Base64.getDecoder().decode(certPemStr);
+        byte[] payloadBody = new byte[certData.length + 1];
+        payloadBody[0] = (byte) IkeCertPayload.CERTIFICATE_ENCODING_X509_CERT_SIGNATURE;
+        System.arraycopy(certData, 0, payloadBody, 1, certData.length);
+        return (IkeCertX509CertPayload) IkeCertPayload.getIkeCertPayload(false, payloadBody);
+    }
+
+    private static X509Certificate pemStringToCertificate(String certPemStr) throws Exception {
         CertificateFactory factory =
                 CertificateFactory.getInstance("X.509", IkeMessage.getSecurityProvider());
         Base64.Decoder bs64Decoder = Base64.getDecoder();
@@ -229,4 +229,30 @@ public final class IkeEncryptedPayloadBodyTest {
 
         assertArrayEquals(mDataToPadAndEncrypt, paylaodBody.getUnencryptedData());
     }
+
+    @Test
+    public void testAuthenticateAndDecryptInboundDoesNotModifyMessage() throws Exception {
+        byte[] message = Arrays.copyOf(mIkeMessage, mIkeMessage.length);
+        new IkeEncryptedPayloadBody(
+                message, mHmacSha1IntegrityMac, HMAC_SHA1_CHECKSUM_LEN, mAesCbcCipher, mAesCbcKey);
+
+        assertArrayEquals(mIkeMessage, message);
+    }
+
+    @Test
+    public void testThrowForInvalidChecksumInInboundIkeEncryptedPayloadBody() throws Exception {
+        byte[] message = Arrays.copyOf(mIkeMessage, mIkeMessage.length);
+        message[message.length - 1]++;
+
+        try {
+            new IkeEncryptedPayloadBody(
+                    message,
+                    mHmacSha1IntegrityMac,
+                    HMAC_SHA1_CHECKSUM_LEN,
+                    mAesCbcCipher,
+                    mAesCbcKey);
+            fail("Expected GeneralSecurityException due to mismatched checksum.");
+        } catch (GeneralSecurityException expected) {
+        }
+    }
 }
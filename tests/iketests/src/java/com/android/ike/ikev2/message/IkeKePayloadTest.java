@@ -21,9 +21,11 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
 
 import com.android.ike.ikev2.IkeDhParams;
 import com.android.ike.ikev2.SaProposal;
+import com.android.ike.ikev2.crypto.CryptoProviderRegistry;
 import com.android.ike.ikev2.exceptions.InvalidSyntaxException;
 import com.android.ike.ikev2.utils.BigIntegerUtils;
 
@@ -31,8 +33,12 @@ import org.junit.Test;
 
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
 import java.util.Arrays;
 
+import javax.crypto.interfaces.DHPrivateKey;
+import javax.crypto.spec.DHParameterSpec;
 import javax.crypto.spec.DHPrivateKeySpec;
 
 public final class IkeKePayloadTest {
@@ -93,6 +99,18 @@ public final class IkeKePayloadTest {
                     + "F408ED31B63C6E6D";
     private static final String KEY_EXCHANGE_ALGORITHM = "DH";
 
+    private static final int[] ALL_DH_GROUPS = {
+        SaProposal.DH_GROUP_1024_BIT_MODP,
+        SaProposal.DH_GROUP_2048_BIT_MODP,
+        SaProposal.DH_GROUP_256_BIT_ECP,
+        SaProposal.DH_GROUP_384_BIT_ECP,
+        SaProposal.DH_GROUP_521_BIT_ECP,
+        SaProposal.DH_GROUP_CURVE_25519
+    };
+    private static final int[] EXPECTED_KE_DATA_LENS = {128, 256, 64, 96, 132, 32};
+
+    private static final String ECP_256_KE_PAYLOAD_HEADER = "00130000";
+
     @Test
     public void testDecodeIkeKePayload() throws Exception {
         byte[] inputPacket = TestUtils.hexStringToByteArray(KE_PAYLOAD_RAW_PACKET);
@@ -140,15 +158,15 @@ public final class IkeKePayloadTest {
     public void testGetIkeKePayload() throws Exception {
         IkeKePayload payload = new IkeKePayload(SaProposal.DH_GROUP_1024_BIT_MODP);
 
-        // Test DHPrivateKeySpec
+        // Test DHPrivateKey
         assertTrue(payload.isOutbound);
-        DHPrivateKeySpec privateKeySpec = payload.localPrivateKey;
+        DHParameterSpec dhParams = ((DHPrivateKey) payload.localPrivateKey).getParams();
 
-        BigInteger primeValue = privateKeySpec.getP();
+        BigInteger primeValue = dhParams.getP();
         BigInteger expectedPrimeValue = new BigInteger(IkeDhParams.PRIME_1024_BIT_MODP, 16);
         assertEquals(0, expectedPrimeValue.compareTo(primeValue));
 
-        BigInteger genValue = privateKeySpec.getG();
+        BigInteger genValue = dhParams.getG();
         BigInteger expectedGenValue = BigInteger.valueOf(IkeDhParams.BASE_GENERATOR_MODP);
         assertEquals(0, expectedGenValue.compareTo(genValue));
 
@@ -178,4 +196,99 @@ public final class IkeKePayloadTest {
         byte[] expectedSharedKeyBytes = TestUtils.hexStringToByteArray(EXPECTED_SHARED_KEY);
         assertTrue(Arrays.equals(expectedSharedKeyBytes, sharedKeyBytes));
     }
+
+    // Curve25519 is only available when a provider in the CryptoProviderRegistry fallback chain
+    // offers X25519, which the IKE BouncyCastle provider does not.
+    private static boolean isDhGroupAvailable(int dhGroup) {
+        if (dhGroup != SaProposal.DH_GROUP_CURVE_25519) return true;
+        try {
+            CryptoProviderRegistry.getKeyPairGenerator("X25519");
+            CryptoProviderRegistry.getKeyFactory("X25519");
+            CryptoProviderRegistry.getKeyAgreement("X25519");
+            return true;
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    @Test
+    public void testGetIkeKePayloadForAllDhGroups() throws Exception {
+        for (int i = 0; i < ALL_DH_GROUPS.length; i++) {
+            if (!isDhGroupAvailable(ALL_DH_GROUPS[i])) continue;
+            IkeKePayload payload = new IkeKePayload(ALL_DH_GROUPS[i]);
+
+            assertEquals(ALL_DH_GROUPS[i], payload.dhGroup);
+            assertEquals(EXPECTED_KE_DATA_LENS[i], payload.keyExchangeData.length);
+        }
+    }
+
+    @Test
+    public void testGetSharedKeyAgreesForAllDhGroups() throws Exception {
+        for (int dhGroup : ALL_DH_GROUPS) {
+            if (!isDhGroupAvailable(dhGroup)) continue;
+            IkeKePayload localPayload = new IkeKePayload(dhGroup);
+            IkeKePayload remotePayload = new IkeKePayload(dhGroup);
+
+            byte[] localSharedKey =
+                    IkeKePayload.getSharedKey(
+                            dhGroup, localPayload.localPrivateKey, remotePayload.keyExchangeData);
+            byte[] remoteSharedKey =
+                    IkeKePayload.getSharedKey(
+                            dhGroup, remotePayload.localPrivateKey, localPayload.keyExchangeData);
+
+            assertArrayEquals(localSharedKey, remoteSharedKey);
+        }
+    }
+
+    @Test
+    public void testDecodeEcpKePayloadWithInvalidKeDataLength() throws Exception {
+        // 63 octets of key exchange data for ECP-256 which requires 64 octets.
+        byte[] inputPacket =
+                TestUtils.hexStringToByteArray(ECP_256_KE_PAYLOAD_HEADER + repeat("01", 63));
+
+        try {
+            new IkeKePayload(CRITICAL_BIT, inputPacket);
+            fail("Expected InvalidSyntaxException: KE data length doesn't match its DH group type");
+        } catch (InvalidSyntaxException expected) {
+        }
+    }
+
+    @Test
+    public void testGetSharedKeyWithEcpPointNotOnCurve() throws Exception {
+        IkeKePayload localPayload = new IkeKePayload(SaProposal.DH_GROUP_256_BIT_ECP);
+        byte[] remotePublicKey = TestUtils.hexStringToByteArray(repeat("01", 64));
+
+        try {
+            IkeKePayload.getSharedKey(
+                    SaProposal.DH_GROUP_256_BIT_ECP,
+                    localPayload.localPrivateKey,
+                    remotePublicKey);
+            fail("Expected InvalidKeyException: remote public key is not on the curve");
+        } catch (InvalidKeyException expected) {
+        }
+    }
+
+    @Test
+    public void testGetSharedKeyWithCurve25519LowOrderPoint() throws Exception {
+        assumeTrue(isDhGroupAvailable(SaProposal.DH_GROUP_CURVE_25519));
+
+        IkeKePayload localPayload = new IkeKePayload(SaProposal.DH_GROUP_CURVE_25519);
+        // u = 0 is a point of small order and results in an all-zero shared secret.
+        byte[] remotePublicKey = new byte[32];
+
+        try {
+            IkeKePayload.getSharedKey(
+                    SaProposal.DH_GROUP_CURVE_25519,
+                    localPayload.localPrivateKey,
+                    remotePublicKey);
+            fail("Expected InvalidKeyException: remote public key is a low order point");
+        } catch (InvalidKeyException expected) {
+        }
+    }
+
+    private static String repeat(String hex, int times) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < times; i++) builder.append(hex);
+        return builder.toString();
+    }
 }
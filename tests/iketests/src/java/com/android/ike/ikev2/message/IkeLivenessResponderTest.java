@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ike.ikev2.message;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.util.Pair;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+public final class IkeLivenessResponderTest {
+    private static final long INIT_SPI = 0x5f54bf6d8b48e6e1L;
+    private static final long RESP_SPI = 0x909232b3d1edcb5cL;
+    private static final int MESSAGE_ID = 7;
+
+    private static final String ENCR_KEY_FROM_INIT_TO_RESP = "5cbfd33f75796c0188c4a3a546aec4a1";
+    private static final String ENCR_KEY_FROM_RESP_TO_INIT = "a0a1a2a3a4a5a6a7a8a9aaabacadaeaf";
+    private static final String INTE_KEY_FROM_INIT_TO_RESP =
+            "554fbf5a05b7f511e05a30ce23d874db9ef55e51";
+    private static final String INTE_KEY_FROM_RESP_TO_INIT =
+            "b0b1b2b3b4b5b6b7b8b9babbbcbdbebfc0c1c2c3";
+
+    private static final String ENCR_ALGO_AES_CBC = "AES/CBC/NoPadding";
+    private static final String INTE_ALGO_HMAC_SHA1 = "HmacSHA1";
+
+    private static final int CHECKSUM_LEN = 12;
+
+    private Cipher mAesCbcCipher;
+    private SecretKey mInitToRespEncrKey;
+    private SecretKey mRespToInitEncrKey;
+
+    private IkeLivenessResponder mLivenessResponder;
+
+    @Before
+    public void setUp() throws Exception {
+        mAesCbcCipher = Cipher.getInstance(ENCR_ALGO_AES_CBC, IkeMessage.getSecurityProvider());
+        mInitToRespEncrKey = makeEncrKey(ENCR_KEY_FROM_INIT_TO_RESP);
+        mRespToInitEncrKey = makeEncrKey(ENCR_KEY_FROM_RESP_TO_INIT);
+
+        // The local side is the IKE SA initiator.
+        mLivenessResponder =
+                new IkeLivenessResponder(
+                        INIT_SPI,
+                        RESP_SPI,
+                        true /*isLocalInit*/,
+                        makeIntegrityMac(INTE_KEY_FROM_RESP_TO_INIT),
+                        makeIntegrityMac(INTE_KEY_FROM_INIT_TO_RESP),
+                        CHECKSUM_LEN,
+                        mAesCbcCipher,
+                        mInitToRespEncrKey);
+    }
+
+    private static SecretKey makeEncrKey(String keyHex) {
+        return new SecretKeySpec(TestUtils.hexStringToByteArray(keyHex), ENCR_ALGO_AES_CBC);
+    }
+
+    private static Mac makeIntegrityMac(String keyHex) throws Exception {
+        Mac mac = Mac.getInstance(INTE_ALGO_HMAC_SHA1, IkeMessage.getSecurityProvider());
+        mac.init(new SecretKeySpec(TestUtils.hexStringToByteArray(keyHex), INTE_ALGO_HMAC_SHA1));
+        return mac;
+    }
+
+    // Build a request sent by the remote, who is the IKE SA responder.
+    private byte[] makeRemoteRequest(
+            @IkeHeader.ExchangeType int exchangeType,
+            @IkePayload.PayloadType int firstPayload,
+            byte[] unencryptedPayloads)
+            throws Exception {
+        IkeHeader header =
+                new IkeHeader(
+                        INIT_SPI,
+                        RESP_SPI,
+                        IkePayload.PAYLOAD_TYPE_SK,
+                        exchangeType,
+                        false /*isResp*/,
+                        false /*fromInit*/,
+                        MESSAGE_ID);
+        IkeSkPayload skPayload =
+                new IkeSkPayload(
+                        header,
+                        firstPayload,
+                        unencryptedPayloads,
+                        makeIntegrityMac(INTE_KEY_FROM_RESP_TO_INIT),
+                        CHECKSUM_LEN,
+                        mAesCbcCipher,
+                        mRespToInitEncrKey);
+
+        ByteBuffer buffer =
+                ByteBuffer.allocate(IkeHeader.IKE_HEADER_LENGTH + skPayload.getPayloadLength());
+        header.encodeToByteBuffer(buffer, skPayload.getPayloadLength());
+        skPayload.encodeToByteBuffer(firstPayload, buffer);
+        return buffer.array();
+    }
+
+    private byte[] makeEmptyInformationalRequest() throws Exception {
+        return makeRemoteRequest(
+                IkeHeader.EXCHANGE_TYPE_INFORMATIONAL,
+                IkePayload.PAYLOAD_TYPE_NO_NEXT,
+                new byte[0]);
+    }
+
+    @Test
+    public void testRecognizeEmptyInformationalRequest() throws Exception {
+        byte[] request = makeEmptyInformationalRequest();
+
+        assertTrue(
+                mLivenessResponder.isEmptyInformationalRequest(new IkeHeader(request), request));
+    }
+
+    @Test
+    public void testBuildResponse() throws Exception {
+        for (int messageId : new int[] {MESSAGE_ID, MESSAGE_ID + 1}) {
+            byte[] response = mLivenessResponder.buildResponse(messageId);
+
+            IkeHeader header = new IkeHeader(response);
+            header.checkInboundValidOrThrow(response.length);
+            assertEquals(IkeHeader.EXCHANGE_TYPE_INFORMATIONAL, header.exchangeType);
+            assertTrue(header.isResponseMsg);
+            assertTrue(header.fromIkeInitiator);
+            assertEquals(messageId, header.messageId);
+
+            // The remote can authenticate and decrypt the response, which has no payloads.
+            Pair<IkeSkPayload, Integer> pair =
+                    IkePayloadFactory.getIkeSkPayload(
+                            response,
+                            makeIntegrityMac(INTE_KEY_FROM_INIT_TO_RESP),
+                            CHECKSUM_LEN,
+                            mAesCbcCipher,
+                            mInitToRespEncrKey);
+            assertEquals(IkePayload.PAYLOAD_TYPE_NO_NEXT, (int) pair.second);
+            assertFalse(pair.first.getUnencryptedPayloadsBuffer().hasRemaining());
+        }
+    }
+
+    @Test
+    public void testResponseIsNotOverwritten() throws Exception {
+        byte[] response = mLivenessResponder.buildResponse(MESSAGE_ID);
+        byte[] responseCopy = response.clone();
+
+        mLivenessResponder.buildResponse(MESSAGE_ID + 1);
+
+        assertArrayEquals(responseCopy, response);
+    }
+
+    @Test
+    public void testRejectRequestWithPayloads() throws Exception {
+        ByteBuffer notifyPayload = ByteBuffer.allocate(IkePayload.GENERIC_HEADER_LENGTH + 4);
+        notifyPayload.putShort(2, (short) notifyPayload.capacity());
+        byte[] request =
+                makeRemoteRequest(
+                        IkeHeader.EXCHANGE_TYPE_INFORMATIONAL,
+                        IkePayload.PAYLOAD_TYPE_NOTIFY,
+                        notifyPayload.array());
+
+        assertFalse(
+                mLivenessResponder.isEmptyInformationalRequest(new IkeHeader(request), request));
+    }
+
+    @Test
+    public void testRejectOtherExchange() throws Exception {
+        byte[] request =
+                makeRemoteRequest(
+                        IkeHeader.EXCHANGE_TYPE_CREATE_CHILD_SA,
+                        IkePayload.PAYLOAD_TYPE_NO_NEXT,
+                        new byte[0]);
+
+        assertFalse(
+                mLivenessResponder.isEmptyInformationalRequest(new IkeHeader(request), request));
+    }
+
+    @Test
+    public void testRejectInvalidChecksum() throws Exception {
+        byte[] request = makeEmptyInformationalRequest();
+        request[request.length - 1] ^= 0x01;
+
+        assertFalse(
+                mLivenessResponder.isEmptyInformationalRequest(new IkeHeader(request), request));
+    }
+}
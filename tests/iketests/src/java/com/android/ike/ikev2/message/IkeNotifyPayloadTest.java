@@ -18,6 +18,8 @@ package com.android.ike.ikev2.message;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import com.android.ike.ikev2.exceptions.InvalidSyntaxException;
@@ -104,4 +106,14 @@ public final class IkeNotifyPayloadTest {
                         NOTIFY_PAYLOAD_GENERIC_HEADER + NOTIFY_PAYLOAD_BODY_RAW_PACKET);
         assertArrayEquals(expectedNoncePayload, byteBuffer.array());
     }
+
+    @Test
+    public void testIsErrorNotify() throws Exception {
+        assertTrue(
+                new IkeNotifyPayload(IkeNotifyPayload.NOTIFY_TYPE_INVALID_SYNTAX, new byte[0])
+                        .isErrorNotify());
+        assertFalse(
+                new IkeNotifyPayload(IkeNotifyPayload.NOTIFY_TYPE_TICKET_NACK, new byte[0])
+                        .isErrorNotify());
+    }
 }
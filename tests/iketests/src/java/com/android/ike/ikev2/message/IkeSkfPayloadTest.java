@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ike.ikev2.message;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.android.ike.ikev2.exceptions.InvalidSyntaxException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+public final class IkeSkfPayloadTest {
+    private static final String ENCR_KEY = "5cbfd33f75796c0188c4a3a546aec4a1";
+    private static final String INTE_KEY = "554fbf5a05b7f511e05a30ce23d874db9ef55e51";
+
+    private static final String ENCR_ALGO_AES_CBC = "AES/CBC/NoPadding";
+    private static final String INTE_ALGO_HMAC_SHA1 = "HmacSHA1";
+
+    private static final int CHECKSUM_LEN = 12;
+    private static final int FRAGMENT_LEN = 100;
+    private static final int TOTAL_FRAGMENTS = 3;
+
+    private static final long INIT_SPI = 0x5f54bf6d8b48e6e1L;
+    private static final long RESP_SPI = 0x909232b3d1edcb5cL;
+    private static final int MESSAGE_ID = 1;
+
+    private Cipher mAesCbcCipher;
+    private SecretKey mAesCbcKey;
+    private Mac mHmacSha1IntegrityMac;
+
+    private IkeHeader mIkeHeader;
+    private byte[] mUnencryptedPayloads;
+
+    @Before
+    public void setUp() throws Exception {
+        mAesCbcCipher = Cipher.getInstance(ENCR_ALGO_AES_CBC, IkeMessage.getSecurityProvider());
+        mAesCbcKey = new SecretKeySpec(TestUtils.hexStringToByteArray(ENCR_KEY), ENCR_ALGO_AES_CBC);
+
+        mHmacSha1IntegrityMac =
+                Mac.getInstance(INTE_ALGO_HMAC_SHA1, IkeMessage.getSecurityProvider());
+        mHmacSha1IntegrityMac.init(
+                new SecretKeySpec(TestUtils.hexStringToByteArray(INTE_KEY), INTE_ALGO_HMAC_SHA1));
+
+        mIkeHeader =
+                new IkeHeader(
+                        INIT_SPI,
+                        RESP_SPI,
+                        IkePayload.PAYLOAD_TYPE_SKF,
+                        IkeHeader.EXCHANGE_TYPE_IKE_AUTH,
+                        false /*isResponseMsg*/,
+                        true /*fromIkeInitiator*/,
+                        MESSAGE_ID);
+        mUnencryptedPayloads = new byte[FRAGMENT_LEN * TOTAL_FRAGMENTS];
+        for (int i = 0; i < mUnencryptedPayloads.length; i++) {
+            mUnencryptedPayloads[i] = (byte) i;
+        }
+    }
+
+    private IkeSkfPayload buildSkfPayload(int fragmentNum, int totalFragments) {
+        int offset = (fragmentNum - 1) * FRAGMENT_LEN;
+        return new IkeSkfPayload(
+                mIkeHeader,
+                getFirstPayloadType(fragmentNum),
+                fragmentNum,
+                totalFragments,
+                Arrays.copyOfRange(mUnencryptedPayloads, offset, offset + FRAGMENT_LEN),
+                mHmacSha1IntegrityMac,
+                CHECKSUM_LEN,
+                mAesCbcCipher,
+                mAesCbcKey);
+    }
+
+    // Only the first fragment indicates the first payload nested in the message.
+    private static int getFirstPayloadType(int fragmentNum) {
+        return fragmentNum == 1 ? IkePayload.PAYLOAD_TYPE_NOTIFY : IkePayload.PAYLOAD_TYPE_NO_NEXT;
+    }
+
+    private byte[] encodeSkfPacket(int fragmentNum) {
+        IkeSkfPayload skfPayload = buildSkfPayload(fragmentNum, TOTAL_FRAGMENTS);
+        ByteBuffer outputBuffer =
+                ByteBuffer.allocate(IkeHeader.IKE_HEADER_LENGTH + skfPayload.getPayloadLength());
+        mIkeHeader.encodeToByteBuffer(outputBuffer, skfPayload.getPayloadLength());
+        skfPayload.encodeToByteBuffer(getFirstPayloadType(fragmentNum), outputBuffer);
+        return outputBuffer.array();
+    }
+
+    private IkeSkfPayload decodeSkfPayload(byte[] packet) throws Exception {
+        return IkePayloadFactory.getIkeSkfPayload(
+                        packet, mHmacSha1IntegrityMac, CHECKSUM_LEN, mAesCbcCipher, mAesCbcKey)
+                .first;
+    }
+
+    @Test
+    public void testEncodeDecodeFragments() throws Exception {
+        for (int fragmentNum = 1; fragmentNum <= TOTAL_FRAGMENTS; fragmentNum++) {
+            byte[] packet = encodeSkfPacket(fragmentNum);
+
+            IkeHeader header = new IkeHeader(packet);
+            header.checkInboundValidOrThrow(packet.length);
+            assertEquals(IkePayload.PAYLOAD_TYPE_SKF, header.nextPayloadType);
+            assertEquals(MESSAGE_ID, header.messageId);
+            assertEquals(getFirstPayloadType(fragmentNum), packet[IkeHeader.IKE_HEADER_LENGTH]);
+
+            IkeSkfPayload skfPayload = decodeSkfPayload(packet);
+            assertEquals(fragmentNum, skfPayload.fragmentNum);
+            assertEquals(TOTAL_FRAGMENTS, skfPayload.totalFragments);
+            int offset = (fragmentNum - 1) * FRAGMENT_LEN;
+            assertArrayEquals(
+                    Arrays.copyOfRange(mUnencryptedPayloads, offset, offset + FRAGMENT_LEN),
+                    skfPayload.getUnencryptedFragment());
+        }
+    }
+
+    @Test
+    public void testDecodeWithModifiedFragmentNumber() throws Exception {
+        byte[] packet = encodeSkfPacket(2);
+
+        // Fragment Number is authenticated.
+        int fragmentNumOffset = IkeHeader.IKE_HEADER_LENGTH + IkePayload.GENERIC_HEADER_LENGTH;
+        packet[fragmentNumOffset + 1] = 1;
+        try {
+            decodeSkfPayload(packet);
+            fail("Expected GeneralSecurityException");
+        } catch (GeneralSecurityException expected) {
+        }
+    }
+
+    @Test
+    public void testDecodeWithInvalidFragmentNumber() throws Exception {
+        byte[] packet = encodeSkfPacket(1);
+
+        int fragmentNumOffset = IkeHeader.IKE_HEADER_LENGTH + IkePayload.GENERIC_HEADER_LENGTH;
+        packet[fragmentNumOffset + 1] = 0;
+        try {
+            decodeSkfPayload(packet);
+            fail("Expected InvalidSyntaxException");
+        } catch (InvalidSyntaxException expected) {
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBuildWithFragmentNumberAboveTotalFragments() throws Exception {
+        buildSkfPayload(TOTAL_FRAGMENTS, TOTAL_FRAGMENTS - 1);
+    }
+
+    @Test
+    public void testEncodeDecodeLastFragment() throws Exception {
+        byte[] lastPacket = encodeSkfPacket(TOTAL_FRAGMENTS);
+
+        IkeSkfPayload skfPayload = decodeSkfPayload(lastPacket);
+        byte[] encodedPayload = new byte[skfPayload.getPayloadLength()];
+        skfPayload.encodeToByteBuffer(
+                IkePayload.PAYLOAD_TYPE_NO_NEXT, ByteBuffer.wrap(encodedPayload));
+        assertArrayEquals(
+                Arrays.copyOfRange(lastPacket, IkeHeader.IKE_HEADER_LENGTH, lastPacket.length),
+                encodedPayload);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ike.ikev2.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+public final class HttpCertificateFetcherTest {
+    private static final int TIMEOUT_MS = 5000;
+    private static final int MAX_CONTENT_LEN = 16;
+
+    private static final byte[] CERT_CONTENT = {0x30, 0x03, 0x02, 0x01, 0x01};
+
+    private ServerSocket mServerSocket;
+    private Thread mServerThread;
+    private HttpCertificateFetcher mFetcher;
+
+    @Before
+    public void setUp() throws Exception {
+        mServerSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        mFetcher = new HttpCertificateFetcher(TIMEOUT_MS, MAX_CONTENT_LEN);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServerSocket.close();
+        if (mServerThread != null) mServerThread.join(TIMEOUT_MS);
+    }
+
+    /** Serve one HTTP request with the provided status line and body. */
+    private String startServer(String statusLine, byte[] body) {
+        mServerThread =
+                new Thread(
+                        () -> {
+                            try (Socket socket = mServerSocket.accept()) {
+                                BufferedReader reader =
+                                        new BufferedReader(
+                                                new InputStreamReader(
+                                                        socket.getInputStream(),
+                                                        StandardCharsets.US_ASCII));
+                                // Consume request headers.
+                                String line;
+                                while ((line = reader.readLine()) != null && !line.isEmpty()) {}
+
+                                OutputStream outputStream = socket.getOutputStream();
+                                String headers =
+                                        statusLine
+                                                + "\r\nContent-Length: "
+                                                + body.length
+                                                + "\r\nConnection: close\r\n\r\n";
+                                outputStream.write(headers.getBytes(StandardCharsets.US_ASCII));
+                                outputStream.write(body);
+                                outputStream.flush();
+                            } catch (IOException e) {
+                                // Server socket closed.
+                            }
+                        });
+        mServerThread.start();
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/cert.der";
+    }
+
+    @Test
+    public void testFetch() throws Exception {
+        String url = startServer("HTTP/1.1 200 OK", CERT_CONTENT);
+        assertArrayEquals(CERT_CONTENT, mFetcher.fetch(url));
+    }
+
+    @Test
+    public void testFetchWithErrorResponse() throws Exception {
+        String url = startServer("HTTP/1.1 404 Not Found", new byte[0]);
+        try {
+            mFetcher.fetch(url);
+            fail("Expected IOException: " + "Unexpected HTTP response code.");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testFetchContentTooLong() throws Exception {
+        String url = startServer("HTTP/1.1 200 OK", new byte[MAX_CONTENT_LEN + 1]);
+        try {
+            mFetcher.fetch(url);
+            fail("Expected IOException: " + "Content too long.");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testFetchNonHttpUrl() throws Exception {
+        try {
+            mFetcher.fetch("file:///etc/hosts");
+            fail("Expected IOException: " + "Unsupported URL protocol.");
+        } catch (IOException expected) {
+        }
+    }
+}
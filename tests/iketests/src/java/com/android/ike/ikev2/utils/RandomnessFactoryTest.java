@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ike.ikev2.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import com.android.ike.ikev2.utils.RandomnessFactory.DeterministicRandomnessSource;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+public final class RandomnessFactoryTest {
+    private static final long SEED = 0x1234L;
+
+    @After
+    public void tearDown() {
+        RandomnessFactory.setRandomnessSource(null);
+    }
+
+    private static byte[] getExpectedStream(int len) {
+        byte[] expected = new byte[len];
+        new DeterministicRandomnessSource(SEED).nextBytes(expected);
+        return expected;
+    }
+
+    @Test
+    public void testGetRandomReturnsSameInstanceInThread() throws Exception {
+        assertSame(RandomnessFactory.getRandom(), RandomnessFactory.getRandom());
+    }
+
+    @Test
+    public void testDeterministicSourceIsReproducible() throws Exception {
+        RandomnessFactory.setRandomnessSource(new DeterministicRandomnessSource(SEED));
+        byte[] first = RandomnessFactory.generateRandomBytes(32);
+
+        RandomnessFactory.setRandomnessSource(new DeterministicRandomnessSource(SEED));
+        byte[] second = RandomnessFactory.generateRandomBytes(32);
+
+        assertArrayEquals(first, second);
+    }
+
+    @Test
+    public void testBufferedOutputKeepsSourceStreamOrder() throws Exception {
+        RandomnessFactory.setRandomnessSource(new DeterministicRandomnessSource(SEED));
+
+        // Mix requests that are served from buffer, that cross the buffer boundary and that are
+        // larger than the buffer.
+        int[] requestLens = {8, 32, RandomnessFactory.RANDOM_BUFFER_LEN - 30, 100, 1000, 7};
+        int totalLen = 0;
+        for (int len : requestLens) totalLen += len;
+
+        ByteBuffer output = ByteBuffer.allocate(totalLen);
+        SecureRandom random = RandomnessFactory.getRandom();
+        for (int len : requestLens) {
+            byte[] bytes = new byte[len];
+            random.nextBytes(bytes);
+            output.put(bytes);
+        }
+
+        assertArrayEquals(getExpectedStream(totalLen), output.array());
+    }
+
+    @Test
+    public void testReplacingSourceDiscardsBufferedBytes() throws Exception {
+        RandomnessFactory.setRandomnessSource(new DeterministicRandomnessSource(SEED + 1));
+        RandomnessFactory.generateRandomBytes(8);
+
+        RandomnessFactory.setRandomnessSource(new DeterministicRandomnessSource(SEED));
+        assertArrayEquals(getExpectedStream(16), RandomnessFactory.generateRandomBytes(16));
+    }
+
+    @Test
+    public void testDefaultSourceGeneratesDistinctOutput() throws Exception {
+        byte[] first = RandomnessFactory.generateRandomBytes(32);
+        byte[] second = RandomnessFactory.generateRandomBytes(32);
+
+        assertFalse(Arrays.equals(first, second));
+    }
+}